@@ -0,0 +1,315 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.tritonus.share.sampled.AudioUtils;
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import com.mixblendr.util.TraceRecorder;
+
+/**
+ * A submix bus: the signals of all tracks and buses routed to this bus, and
+ * of all tracks sending to this bus, are mixed, then the bus applies its
+ * effects and its volume. The result goes to the master output, or to another
+ * bus.
+ * <p>
+ * Buses allow to share one effect instance among many tracks, e.g. one reverb
+ * on an aux bus instead of a reverb on every track. Use the AudioMixer class
+ * to add buses and to set up the routing.
+ *
+ * @author Florian Bomers
+ */
+public class AudioBus {
+
+	private static final int TRACE_PROCESS = TraceRecorder.registerEvent(
+			"AudioBus.process", "mixer");
+
+	/** an ID for this bus, unique in the player */
+	private int ID;
+
+	/**
+	 * the index of the bus list in AudioMixer. Package private so that
+	 * AudioMixer can access it.
+	 */
+	int index;
+
+	/** the name of this bus */
+	private String name;
+
+	/** linear volume */
+	private volatile double volume;
+
+	/** mute state */
+	private volatile boolean mute;
+
+	/** the list of effects */
+	private List<AudioEffect> effects;
+
+	/** the bus this bus is routed to, or null for the master output */
+	private volatile AudioBus output;
+
+	private AudioState state;
+
+	// render state, only used by AudioMixer
+
+	/**
+	 * the render level: buses are rendered after all buses with a lower level,
+	 * buses of the same level are independent of each other
+	 */
+	int renderLevel;
+
+	/** the mixed signal of the current slice */
+	FloatSampleBuffer buffer;
+
+	/** the tracks routed to this bus, set by the mixer's render plan */
+	AudioTrack[] inputTracks = new AudioTrack[0];
+
+	/** the tracks sending to this bus, set by the mixer's render plan */
+	AudioTrack[] sendTracks = new AudioTrack[0];
+
+	/** the sends of the sendTracks, set by the mixer's render plan */
+	AudioSend[] inputSends = new AudioSend[0];
+
+	/** the buses routed to this bus, set by the mixer's render plan */
+	AudioBus[] inputBuses = new AudioBus[0];
+
+	/** the volume applied at the end of the last slice */
+	private double lastEffectiveVolume;
+
+	/**
+	 * Create a new bus without effects, routed to the master output.
+	 */
+	public AudioBus(AudioState state) {
+		ID = state.nextBusID();
+		this.state = state;
+		index = -1;
+		name = "Bus " + ID;
+		volume = 1.0;
+		lastEffectiveVolume = volume;
+		mute = false;
+		effects = new ArrayList<AudioEffect>();
+	}
+
+	/**
+	 * @return the state
+	 */
+	public AudioState getState() {
+		return state;
+	}
+
+	/**
+	 * @return the ID
+	 */
+	public int getID() {
+		return ID;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param name the name to set
+	 */
+	public void setName(String name) {
+		if (name == null) return;
+		this.name = name;
+	}
+
+	/**
+	 * @return the index of this bus in AudioMixer's list of buses, or -1 if
+	 *         this bus does not belong to a mixer.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the linear volume of this bus [0..1]
+	 */
+	public double getVolume() {
+		return volume;
+	}
+
+	/**
+	 * @param volume specify the new linear volume of this bus [0..1]
+	 */
+	public void setVolume(double volume) {
+		this.volume = volume;
+		state.invalidateRenderedAudio();
+	}
+
+	/**
+	 * @return the volume of this bus in decibel [-inf..0]
+	 */
+	public double getVolumeDB() {
+		return AudioUtils.linear2decibel(volume);
+	}
+
+	/**
+	 * @param decibel specify the new volume of this bus in decibel [-inf..0]
+	 */
+	public void setVolumeDB(double decibel) {
+		setVolume(AudioUtils.decibel2linear(decibel));
+	}
+
+	/**
+	 * @return the mute state
+	 */
+	public boolean isMute() {
+		return mute;
+	}
+
+	/**
+	 * @param mute the mute state to set
+	 */
+	public void setMute(boolean mute) {
+		this.mute = mute;
+		state.invalidateRenderedAudio();
+	}
+
+	/**
+	 * Return the bus to which this bus is routed.<br>
+	 * Note: to change the output, use the AudioMixer class.
+	 *
+	 * @return the output bus, or null if this bus is routed to the master
+	 *         output
+	 */
+	public AudioBus getOutput() {
+		return output;
+	}
+
+	/** set the output bus, the mixer verifies the routing */
+	void setOutputImpl(AudioBus output) {
+		this.output = output;
+	}
+
+	/**
+	 * @return the number of effects
+	 */
+	public int getEffectCount() {
+		return effects.size();
+	}
+
+	/**
+	 * Add a new, initialized, effect. This effect will be used immediately.
+	 * Effects on a bus are initialized without a track.
+	 *
+	 * @param e the effect to add
+	 */
+	public void addEffect(AudioEffect e) {
+		synchronized (effects) {
+			effects.add(e);
+		}
+		state.invalidateRenderedAudio();
+	}
+
+	/**
+	 * Remove the specified effect.
+	 *
+	 * @param e the effect to remove
+	 * @return if the effect was actually removed
+	 */
+	public boolean removeEffect(AudioEffect e) {
+		boolean ret;
+		synchronized (effects) {
+			ret = effects.remove(e);
+		}
+		state.invalidateRenderedAudio();
+		return ret;
+	}
+
+	/**
+	 * Remove all effects.
+	 */
+	public void clearEffects() {
+		synchronized (effects) {
+			effects.clear();
+		}
+		state.invalidateRenderedAudio();
+	}
+
+	/**
+	 * Get a list of all effects.
+	 *
+	 * @return a non-modifiable view of the list of effects
+	 */
+	public List<AudioEffect> getEffects() {
+		synchronized (effects) {
+			return Collections.unmodifiableList(effects);
+		}
+	}
+
+	/**
+	 * Return the specified effect.
+	 *
+	 * @param aIndex the number of the effect, 0...getEffectCount()-1
+	 * @return the indexed effect
+	 */
+	public AudioEffect getEffect(int aIndex) {
+		synchronized (effects) {
+			return effects.get(aIndex);
+		}
+	}
+
+	/**
+	 * Called by the mixer before mixing the inputs: prepare and silence the
+	 * buffer for the slice.
+	 */
+	void startSlice(int channels, int sampleCount, float sampleRate) {
+		if (buffer == null) {
+			buffer = new FloatSampleBuffer(channels, sampleCount, sampleRate);
+		} else {
+			buffer.init(channels, sampleCount, sampleRate);
+		}
+		buffer.makeSilence();
+	}
+
+	/**
+	 * Called by the mixer after mixing the inputs: apply the effects and the
+	 * volume to the buffer.
+	 *
+	 * @param samplePos the position in samples when this buffer will be heard
+	 */
+	void process(long samplePos) {
+		long traceProcess = TraceRecorder.begin();
+		synchronized (effects) {
+			int count = effects.size();
+			for (int i = 0; i < count; i++) {
+				AudioEffect effect = effects.get(i);
+				long traceStart = TraceRecorder.begin();
+				try {
+					effect.process(samplePos, buffer, 0,
+							buffer.getSampleCount());
+				} catch (Throwable t) {
+					error("Exception occured during effects processing:");
+					error(t);
+				}
+				TraceRecorder.end(AudioTrack.TRACE_EFFECT, traceStart, -1,
+						samplePos);
+			}
+		}
+		double startVolume = lastEffectiveVolume;
+		double endVolume = mute ? 0.0 : volume;
+		lastEffectiveVolume = endVolume;
+		AudioMixer.applyVolume(buffer, 0, buffer.getSampleCount(),
+				startVolume, endVolume);
+		TraceRecorder.end(TRACE_PROCESS, traceProcess, index, samplePos);
+	}
+
+	/** @return a String representation of this bus, e.g. &quot;Bus 1&quot; */
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+/**
+ * Optional interface for audio effects that expose their parameters, e.g. for
+ * saving and restoring them in a project file. The parameters are identified
+ * by their name, so that the order can change in future versions of an
+ * effect.
+ *
+ * @author Florian Bomers
+ */
+public interface AudioEffectParameters {
+
+	/** @return the number of parameters */
+	public int getParameterCount();
+
+	/**
+	 * @param index the index of the parameter, 0...getParameterCount()-1
+	 * @return the name of the parameter, unique in this effect
+	 */
+	public String getParameterName(int index);
+
+	/** @return the current value of the parameter */
+	public double getParameter(int index);
+
+	/** set the parameter to a new value */
+	public void setParameter(int index, double value);
+
+	/**
+	 * @return the automation lane of the parameter, or null if this parameter
+	 *         cannot be automated with a lane
+	 */
+	public AutomationLane getParameterLane(int index);
+}
@@ -3,17 +3,25 @@
  */
 package com.mixblendr.audio;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Dispatcher to asynchronously deliver audio events to audio listeners.
+ * Dispatcher to asynchronously deliver audio events to audio listeners. Some
+ * events are dispatched from the render thread, so they are taken from a
+ * preallocated pool, and the queue does not allocate nodes. If the pool is
+ * exhausted because the listeners cannot keep up, further events from the
+ * real time audio threads are dropped. Events from other threads, e.g.
+ * download errors, are never dropped: a new event is allocated instead.
  * 
  * @author Florian Bomers
  */
 public class AudioEventDispatcher extends Thread {
 
+	/** the maximum number of queued events */
+	private static final int POOL_SIZE = 256;
+
 	/** state for event type */
 	private final static int TYPE_AUDIO_REGION_STATE = 1;
 	/** event type for download error */
@@ -27,14 +35,24 @@ public class AudioEventDispatcher extends Thread {
 	/** flag that's set when the list of listeners has changed */
 	private volatile boolean listenersChanged = false;
 
-	private LinkedList<AudioEvent> queue;
+	private ArrayDeque<AudioEvent> queue;
+
+	/** the unused events */
+	private ArrayDeque<AudioEvent> pool;
+
+	/** the number of events dropped because the pool was exhausted */
+	private int droppedEvents = 0;
 
 	private List<AudioListener> listeners;
 
 	/** create a new instance of the thread */
 	AudioEventDispatcher() {
 		super("Audio Event Dispatcher");
-		queue = new LinkedList<AudioEvent>();
+		queue = new ArrayDeque<AudioEvent>(POOL_SIZE);
+		pool = new ArrayDeque<AudioEvent>(POOL_SIZE);
+		for (int i = 0; i < POOL_SIZE; i++) {
+			pool.push(new AudioEvent());
+		}
 		listeners = new ArrayList<AudioListener>();
 		// GUI stuff, not very important
 		setPriority(Thread.MIN_PRIORITY);
@@ -51,26 +69,50 @@ public class AudioEventDispatcher extends Thread {
 	}
 
 	synchronized void dispatchEvent(int type) {
-		queue.offer(new AudioEvent(type));
-		this.notifyAll();
+		queueEvent(type, null, null, null);
 	}
 
 	synchronized void dispatchAudioRegionStateChange(AudioTrack track,
 			AudioRegion region, AudioRegion.State state) {
-		queue.offer(new AudioEvent(track, region, state));
-		this.notifyAll();
+		queueEvent(TYPE_AUDIO_REGION_STATE, track, region, state);
 	}
 
 	synchronized void dispatchDownloadError(AudioFile file, Throwable t) {
-		queue.offer(new AudioEvent(file, t));
-		this.notifyAll();
+		queueEvent(TYPE_DOWNLOAD_ERROR, file, t, null);
 	}
 
 	synchronized void dispatchTrackNameChange(AudioTrack track) {
-		queue.offer(new AudioEvent(TYPE_TRACK_NAME_CHANGE, track));
+		queueEvent(TYPE_TRACK_NAME_CHANGE, track, null, null);
+	}
+
+	/** take an event from the pool and queue it, must hold the lock */
+	private void queueEvent(int type, Object p1, Object p2, Object p3) {
+		AudioEvent ae = pool.poll();
+		if (ae == null) {
+			if (AudioOutput.isRealtimeThread()) {
+				droppedEvents++;
+				EngineMetrics.eventDropped();
+				return;
+			}
+			ae = new AudioEvent();
+		}
+		ae.queuedNanos = System.nanoTime();
+		ae.type = type;
+		ae.p1 = p1;
+		ae.p2 = p2;
+		ae.p3 = p3;
+		queue.offer(ae);
 		this.notifyAll();
 	}
 
+	/**
+	 * @return the number of events from the real time audio threads which
+	 *         were dropped because too many events were queued
+	 */
+	public synchronized int getDroppedEvents() {
+		return droppedEvents;
+	}
+
 	/** add a listener for the audio events */
 	public void addListener(AudioListener al) {
 		listeners.add(al);
@@ -103,6 +145,8 @@ public class AudioEventDispatcher extends Thread {
 				ae = queue.poll();
 			}
 			if (ae != null) {
+				EngineMetrics.eventDispatched(System.nanoTime()
+						- ae.queuedNanos);
 				if (localListeners == null || listenersChanged) {
 					localListeners = listeners.toArray(new AudioListener[listeners.size()]);
 				}
@@ -121,7 +165,16 @@ public class AudioEventDispatcher extends Thread {
 						break;
 					}
 				}
-				// IDEA: reuse ae in a pool of AudioEvents to reduce GC
+				synchronized (this) {
+					ae.p1 = null;
+					ae.p2 = null;
+					ae.p3 = null;
+					// events allocated when the pool was exhausted are
+					// garbage collected
+					if (pool.size() < POOL_SIZE) {
+						pool.push(ae);
+					}
+				}
 			}
 		}
 	}
@@ -129,29 +182,8 @@ public class AudioEventDispatcher extends Thread {
 	private static class AudioEvent {
 		int type;
 		Object p1, p2, p3;
-
-		AudioEvent(int type) {
-			super();
-			this.type = type;
-		}
-
-		AudioEvent(AudioTrack track, AudioRegion region, AudioRegion.State state) {
-			this(TYPE_AUDIO_REGION_STATE);
-			this.p1 = track;
-			this.p2 = region;
-			this.p3 = state;
-		}
-
-		AudioEvent(AudioFile file, Throwable t) {
-			this(TYPE_DOWNLOAD_ERROR);
-			this.p1 = file;
-			this.p2 = t;
-		}
-
-		AudioEvent(int type, AudioTrack track) {
-			this(type);
-			this.p1 = track;
-		}
+		/** System.nanoTime() when the event was queued */
+		long queuedNanos;
 	}
 
 }
@@ -3,9 +3,15 @@
  */
 package com.mixblendr.audio;
 
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.tritonus.share.sampled.AudioUtils;
 import org.tritonus.share.sampled.FloatSampleBuffer;
 import org.tritonus.share.sampled.FloatSampleTools;
 import javax.sound.sampled.*;
+
+import com.mixblendr.util.TraceRecorder;
 import static com.mixblendr.util.Debug.*;
 
 /**
@@ -20,6 +26,9 @@ import static com.mixblendr.util.Debug.*;
 public abstract class AudioFile {
 
 	private static final boolean DEBUG_PEAK_CACHE = false;
+
+	private static final int TRACE_READ = TraceRecorder.registerEvent(
+			"AudioFile.read", "file");
 	
 	private String name;
 
@@ -33,9 +42,21 @@ public abstract class AudioFile {
 
 	private long available;
 
+	/**
+	 * the initial size of the byte buffer in milliseconds, enough for the
+	 * usual slice sizes
+	 */
+	private static final double BYTE_BUFFER_MILLIS = 100;
+
 	/** cached byte buffer to prevent re-instanciation of temporary byte buffers */
 	private byte[] byteBuffer = null;
 
+	/**
+	 * cached byte buffer for readChannelData(), so that reading for the
+	 * display does not grow the buffer used by the audio thread
+	 */
+	private byte[] channelDataBuffer = null;
+
 	private boolean usePeakCache = true;
 
 	private AudioPeakCache peakCache;
@@ -43,6 +64,12 @@ public abstract class AudioFile {
 	/** Determine if this file can be played before it's fully loaded */
 	private boolean playBeforeFullyLoaded = true;
 
+	/** the number of regions using this file, see AudioFileFactory */
+	private final AtomicInteger referenceCount = new AtomicInteger();
+
+	/** set by close(), cleared when the file is opened again */
+	private volatile boolean closed = false;
+
 	/**
 	 * private def constructor to prevent instanciation without state
 	 */
@@ -66,12 +93,47 @@ public abstract class AudioFile {
 	 * closeImpl().
 	 */
 	public synchronized void close() {
+		closed = true;
 		closeImpl();
 		byteBuffer = null;
+		channelDataBuffer = null;
+	}
+
+	/**
+	 * @return true if this file was closed and its audio data is not
+	 *         available anymore
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/** called by descendants when a closed file is loaded again */
+	void clearClosed() {
+		closed = false;
 	}
 
 	protected abstract void closeImpl();
 
+	/**
+	 * The number of references to this file, usually the number of audio
+	 * regions using it. Use AudioFileFactory to add and remove references.
+	 * 
+	 * @return the current number of references
+	 */
+	public int getReferenceCount() {
+		return referenceCount.get();
+	}
+
+	/** increment the reference count and return the new count */
+	int addReference() {
+		return referenceCount.incrementAndGet();
+	}
+
+	/** decrement the reference count and return the new count */
+	int removeReference() {
+		return referenceCount.decrementAndGet();
+	}
+
 	/** @return if this audio file object is fully loaded */
 	public boolean isFullyLoaded() {
 		return (available == fileSize);
@@ -203,6 +265,17 @@ public abstract class AudioFile {
 	 */
 	public void setFormat(AudioFormat format) {
 		this.format = format;
+		// allocate the byte buffer now rather than in the audio thread
+		if (format != null && format.getFrameSize() > 0) {
+			int byteCount = ((int) AudioUtils.millis2Frames(BYTE_BUFFER_MILLIS,
+					format.getFrameRate()))
+					* format.getFrameSize();
+			synchronized (this) {
+				if (byteBuffer == null || byteBuffer.length < byteCount) {
+					byteBuffer = new byte[byteCount];
+				}
+			}
+		}
 	}
 
 	/**
@@ -309,6 +382,15 @@ public abstract class AudioFile {
 	 */
 	public synchronized boolean read(long readPos, FloatSampleBuffer buffer,
 			int offset, int count) {
+		long traceStart = TraceRecorder.begin();
+		boolean ret = readImpl(readPos, buffer, offset, count);
+		TraceRecorder.end(TRACE_READ, traceStart, -1, readPos);
+		return ret;
+	}
+
+	/** the implementation of read(), called with the lock held */
+	private boolean readImpl(long readPos, FloatSampleBuffer buffer,
+			int offset, int count) {
 		if (readPos < 0) {
 			return false;
 		}
@@ -385,11 +467,11 @@ public abstract class AudioFile {
 			readCount = (int) (avail - readPos);
 		}
 		int byteCount = readCount * format.getFrameSize();
-		if (byteBuffer == null || byteBuffer.length < byteCount) {
-			byteBuffer = new byte[byteCount];
+		if (channelDataBuffer == null || channelDataBuffer.length < byteCount) {
+			channelDataBuffer = new byte[byteCount];
 		}
-		byteCount = read(readPos * format.getFrameSize(), byteBuffer, 0,
-				byteCount);
+		byteCount = read(readPos * format.getFrameSize(), channelDataBuffer,
+				0, byteCount);
 		if (byteCount <= 0) {
 			// cannot read from underlying stream
 			return 0;
@@ -399,11 +481,45 @@ public abstract class AudioFile {
 			count = data.length;
 		}
 		// now convert to float data
-		FloatSampleTools.byte2float(channel, byteBuffer, 0, data, offset,
+		FloatSampleTools.byte2float(channel, channelDataBuffer, 0, data, offset,
 				count, format);
 		return count;
 	}
 
+	/** the SHA-1 hash of the audio data, calculated on demand */
+	private byte[] contentHash;
+
+	/**
+	 * Get the SHA-1 hash of the decoded audio data, e.g. for verifying the
+	 * source of a region in a saved project. The hash is calculated the first
+	 * time it is requested after the file is fully loaded.
+	 *
+	 * @return the hash, or null if the file is not fully loaded
+	 */
+	public synchronized byte[] getContentHash() {
+		if (contentHash == null && isFullyLoaded() && format != null) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-1");
+				byte[] buffer = new byte[16384];
+				long pos = 0;
+				long end = getAvailableBytes();
+				while (pos < end) {
+					int n = read(pos, buffer, 0, (int) Math.min(buffer.length,
+							end - pos));
+					if (n <= 0) {
+						break;
+					}
+					digest.update(buffer, 0, n);
+					pos += n;
+				}
+				contentHash = digest.digest();
+			} catch (Exception e) {
+				debug(e);
+			}
+		}
+		return contentHash;
+	}
+
 	@Override
 	public String toString() {
 		return "AudioFile " + getName();
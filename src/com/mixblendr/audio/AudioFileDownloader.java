@@ -11,14 +11,17 @@ import javax.sound.sampled.spi.FormatConversionProvider;
 import javax.sound.sampled.spi.AudioFileReader;
 
 import org.tritonus.share.sampled.*;
+
+import com.mixblendr.util.TraceRecorder;
 import static com.mixblendr.util.Debug.*;
 
 /**
  * Class to asynchronously download URLs. Use a queue of URL's and a number of
  * threads for simultaneous downloading.
  * <p>
- * This class cannot be instanciated, use getInstance() to get the singleton
- * instance.
+ * Every AudioFileFactory has its own instance, so that the downloads of
+ * independent players do not wait for each other. The file reader and format
+ * conversion providers are shared by all instances.
  * 
  * @author Florian Bomers
  */
@@ -28,6 +31,15 @@ class AudioFileDownloader {
 
 	public static final int MAX_CONCURRENT_DOWNLOADS = 3;
 
+	// trace events of the download stages. The sample position is the
+	// number of downloaded samples.
+	private static final int TRACE_OPEN = TraceRecorder.registerEvent(
+			"Download.open", "download");
+	private static final int TRACE_READ = TraceRecorder.registerEvent(
+			"Download.read", "download");
+	private static final int TRACE_STORE = TraceRecorder.registerEvent(
+			"Download.store", "download");
+
 	// read from network this size.
 	private static int TEMP_BUFFER_SIZE_SLICE = 1024 * 20;
 	// write to file this size. Must be a multiple of TEMP_BUFFER_SIZE_SLICE
@@ -42,27 +54,19 @@ class AudioFileDownloader {
 	/** threads will terminate themselves after this timeout in milliseconds */
 	public static final int TIMEOUT = 10000;
 
-	/** the singleton instance of this class */
-	private static AudioFileDownloader instance = new AudioFileDownloader();
-
 	protected List<DownloadJob> jobs;
 
 	protected List<DownloadThread> threads;
 
 	protected AudioFileDownloadListener listener;
 
-	/** private constructor, only one static instance exists */
-	private AudioFileDownloader() {
+	/** create a downloader, only used by AudioFileFactory */
+	AudioFileDownloader() {
 		super();
 		jobs = new ArrayList<DownloadJob>();
 		threads = new ArrayList<DownloadThread>(MAX_CONCURRENT_DOWNLOADS);
 	}
 
-	/** retrieve the only instance of the AudioFileDownloader */
-	public static AudioFileDownloader getInstance() {
-		return instance;
-	}
-
 	/**
 	 * Start downloading this AudioFileURL instance asynchronously. The audio
 	 * file instance is notified when data is read, and when downloading is
@@ -109,6 +113,34 @@ class AudioFileDownloader {
 		}
 	}
 
+	/**
+	 * Wait until no download thread is processing the specified audio file
+	 * anymore, e.g. after its job was killed.
+	 */
+	void waitForJobEnd(AudioFileURL af) {
+		synchronized (threads) {
+			while (isProcessing(af)) {
+				try {
+					threads.wait(TIMEOUT);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+	}
+
+	/** returns true if a download thread is processing this file */
+	private boolean isProcessing(AudioFileURL af) {
+		synchronized (threads) {
+			for (DownloadThread thread : threads) {
+				if (thread.processing == af) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/** kill all threads */
 	void killAll() {
 		synchronized (jobs) {
@@ -138,6 +170,27 @@ class AudioFileDownloader {
 		return false;
 	}
 
+	/** @return the number of files waiting for a download thread */
+	public int getQueueLength() {
+		synchronized (jobs) {
+			return jobs.size();
+		}
+	}
+
+	/**
+	 * @return for every download thread, a line with the downloaded bytes and
+	 *         the throughput
+	 */
+	public String[] getThreadStatistics() {
+		synchronized (threads) {
+			String[] ret = new String[threads.size()];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = threads.get(i).getStatistics();
+			}
+			return ret;
+		}
+	}
+
 	/**
 	 * @return the listener
 	 */
@@ -154,15 +207,23 @@ class AudioFileDownloader {
 
 	protected static int IDCounter = 0;
 
+	/** @return the number for the name of a new download thread */
+	private static synchronized int nextThreadID() {
+		return IDCounter++;
+	}
+
+	// the providers are stateless and shared by the download threads of all
+	// instances. Creating them twice in a race is harmless.
+
 	/** if tritonus mp3 decoder is available */
-	protected static boolean hasMP3converter = true;
+	protected static volatile boolean hasMP3converter = true;
 	/** the tritonus mp3 converter provider, if available */
-	protected static org.tritonus.sampled.convert.javalayer.MpegFormatConversionProvider mp3converter = null;
+	protected static volatile org.tritonus.sampled.convert.javalayer.MpegFormatConversionProvider mp3converter = null;
 
 	/** if tritonus ogg/vorbis decoder is available */
-	protected static boolean hasVorbisConverter = true;
+	protected static volatile boolean hasVorbisConverter = true;
 	/** the tritonus ogg/vorbis converter provider, if available */
-	protected static org.tritonus.sampled.convert.jorbis.JorbisFormatConversionProvider vorbisConverter = null;
+	protected static volatile org.tritonus.sampled.convert.jorbis.JorbisFormatConversionProvider vorbisConverter = null;
 
 	/**
 	 * Shadow for AudioSystem.getAudioInputStream(AudioFormat,
@@ -233,14 +294,14 @@ class AudioFileDownloader {
 	}
 
 	/** if tritonus mp3 reader is available */
-	protected static boolean hasMP3reader = true;
+	protected static volatile boolean hasMP3reader = true;
 	/** the tritonus mp3 reader provider, if available */
-	protected static org.tritonus.sampled.file.mpeg.MpegAudioFileReader mp3reader = null;
+	protected static volatile org.tritonus.sampled.file.mpeg.MpegAudioFileReader mp3reader = null;
 
 	/** if tritonus ogg/vorbis reader is available */
-	protected static boolean hasVorbisReader = true;
+	protected static volatile boolean hasVorbisReader = true;
 	/** the tritonus ogg/vorbis reader provider, if available */
-	protected static org.tritonus.sampled.file.jorbis.JorbisAudioFileReader vorbisReader = null;
+	protected static volatile org.tritonus.sampled.file.jorbis.JorbisAudioFileReader vorbisReader = null;
 
 	/**
 	 * Shadow for AudioSystem.getAudioInputStream(URL url): Because applets do
@@ -323,8 +384,7 @@ class AudioFileDownloader {
 		private boolean killed = false;
 
 		public DownloadThread() {
-			super("AudioDownloadThread " + IDCounter);
-			IDCounter++;
+			super("AudioDownloadThread " + nextThreadID());
 			setDaemon(true);
 			setPriority(Thread.MIN_PRIORITY);
 			start();
@@ -333,6 +393,56 @@ class AudioFileDownloader {
 		private DownloadJob currentJob = null;
 		private AudioInputStream currentAIS = null;
 
+		/**
+		 * the file passed to download(), until download() returns. Unlike
+		 * currentJob, it is not cleared by kill().
+		 */
+		volatile AudioFileURL processing = null;
+
+		/** the decoded bytes passed to audio files by this thread */
+		private volatile long downloadedBytes = 0;
+
+		/** the time this thread spent downloading */
+		private volatile long busyNanos = 0;
+
+		/** the start of the current measurement interval */
+		private long lastNanos;
+
+		/**
+		 * Account for decoded data passed to the audio file.
+		 *
+		 * @param bytes the number of bytes
+		 * @param format the format of the data
+		 */
+		private void progress(int bytes, AudioFormat format) {
+			long now = System.nanoTime();
+			long nanos = now - lastNanos;
+			lastNanos = now;
+			downloadedBytes += bytes;
+			busyNanos += nanos;
+			EngineMetrics.downloadProgress(bytes, format, nanos);
+		}
+
+		/** @return the name, downloaded bytes and throughput */
+		String getStatistics() {
+			long bytes = downloadedBytes;
+			long nanos = busyNanos;
+			StringBuffer sb = new StringBuffer(getName());
+			sb.append(": ").append(bytes).append(" bytes");
+			if (nanos > 0) {
+				sb.append(", ").append(
+						(long) (bytes * 1000000000.0 / nanos)).append(
+						" bytes/s");
+			}
+			DownloadJob job = currentJob;
+			if (job != null) {
+				sb.append(", downloading ").append(job.af.getName());
+			} else {
+				sb.append(", idle");
+			}
+			return sb.toString();
+		}
+
 		public synchronized void kill() {
 			if (DEBUG) {
 				debug(getName() + ": getting killed");
@@ -377,7 +487,7 @@ class AudioFileDownloader {
 				debug(getName() + ": Starting download " + job.af.getName());
 			}
 			if (AudioPlayer.INHIBIT_PLAYBACK_DURING_DOWNLOAD) {
-				AudioPlayer.stopAllPlayers();
+				AudioPlayer.stopPlayers(AudioFileDownloader.this);
 			}
 			if (listener != null) {
 				listener.downloadStarted(job.af);
@@ -392,6 +502,8 @@ class AudioFileDownloader {
 				}
 			}
 			// first, try to see if that audio file is supported at all
+			long traceStart = TraceRecorder.begin();
+			lastNanos = System.nanoTime();
 			try {
 				if (killed) return;
 				ais = getAudioInputStream(job.af.getURL());
@@ -434,16 +546,27 @@ class AudioFileDownloader {
 				job.af.init(ais.getFormat(), ais.getFrameLength()
 						* ais.getFormat().getFrameSize());
 				currentAIS = ais;
+				TraceRecorder.end(TRACE_OPEN, traceStart, -1, 0);
+				int frameSize = ais.getFormat().getFrameSize();
+				// the number of bytes passed on to the AudioFile
+				long total = 0;
 				// FINALLY read from the (converted) stream and pass on the data
 				// to the AudioFile
 				int pos = 0;
 				while (!killed) {
+					traceStart = TraceRecorder.begin();
 					int read = ais.read(tempBuffer, pos, TEMP_BUFFER_SIZE_SLICE);
+					TraceRecorder.end(TRACE_READ, traceStart, -1, total
+							/ frameSize);
 					if (killed) break;
 					if (read < 0) {
 						// send out remaining data
 						if (pos > 0) {
+							traceStart = TraceRecorder.begin();
 							job.af.downloadData(tempBuffer, 0, pos);
+							TraceRecorder.end(TRACE_STORE, traceStart, -1,
+									total / frameSize);
+							progress(pos, ais.getFormat());
 						}
 						break;
 					} else if (read == 0) {
@@ -451,7 +574,13 @@ class AudioFileDownloader {
 					} else {
 						pos += read;
 						if (pos + TEMP_BUFFER_SIZE_SLICE > tempBuffer.length) {
-							if (!job.af.downloadData(tempBuffer, 0, pos)) {
+							traceStart = TraceRecorder.begin();
+							boolean more = job.af.downloadData(tempBuffer, 0, pos);
+							TraceRecorder.end(TRACE_STORE, traceStart, -1,
+									total / frameSize);
+							progress(pos, ais.getFormat());
+							total += pos;
+							if (!more) {
 								// AudioFile requests end of stream
 								break;
 							}
@@ -486,6 +615,10 @@ class AudioFileDownloader {
 				if (listener != null) {
 					listener.downloadEnded(job.af);
 				}
+				synchronized (threads) {
+					processing = null;
+					threads.notifyAll();
+				}
 			}
 		}
 
@@ -508,6 +641,10 @@ class AudioFileDownloader {
 						if (!jobs.isEmpty()) {
 							active = true;
 							job = jobs.remove(0);
+							// mark as processing while holding the lock, so
+							// that killJob() always finds the job
+							currentJob = job;
+							processing = job.af;
 							if (DEBUG) {
 								debug(getName()
 										+ ": retrieved job from queue, now "
@@ -519,6 +656,11 @@ class AudioFileDownloader {
 				if (job == null || killed) {
 					active = false;
 					synchronized (threads) {
+						if (processing != null) {
+							// killed after retrieving the job
+							processing = null;
+							threads.notifyAll();
+						}
 						if (hasWaited || killed) {
 							threads.remove(this);
 							break;
@@ -8,67 +8,108 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.mixblendr.util.Debug;
 
 /**
  * Factory class for managing a pool of AudioFile objects.
- * 
+ * <p>
+ * Audio files are reference counted: every audio region using an audio file
+ * holds a reference to it. When the last reference is removed, the file is
+ * moved to a small cache of recently released files, so that e.g. undoing a
+ * deletion does not need to download the file again. Files evicted from that
+ * cache are closed, freeing their memory and temporary files.
+ *
  * @author Florian Bomers
  */
 public final class AudioFileFactory {
 
-	private static boolean USE_ONLY_MEM_FILES = !AudioFileURLFile.isFileSystemAccessible();
-	
+	private static final boolean DEBUG_REFERENCES = false;
+
+	/** the maximum number of released files that are kept open */
+	public static final int MAX_RELEASED_FILES = 4;
+
+	/**
+	 * the maximum number of bytes of audio data in released files that are
+	 * kept open. The most recently released file is always kept.
+	 */
+	public static final long MAX_RELEASED_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * the default for new factories: if the file system is not accessible
+	 * (e.g. in an unsigned applet), only in-memory files are used
+	 */
+	private static final boolean USE_ONLY_MEM_FILES = !AudioFileURLFile.isFileSystemAccessible();
+
 	static {
 		if (USE_ONLY_MEM_FILES) {
 			Debug.error("using in-memory files");
 		}
 	}
-	
+
 	private AudioState state;
-	private List<AudioFile> audioFiles;
 
-    public List<AudioFile> getAudioFiles()
-    {
-        return audioFiles;
-    }
+	/** the downloader for the files of this factory */
+	private AudioFileDownloader downloader;
+
+	/** if true, new files keep their audio data in memory */
+	private volatile boolean useOnlyMemFiles = USE_ONLY_MEM_FILES;
+
+	/** the audio files in use, indexed by their source */
+	private Map<String, AudioFile> audioFiles;
+
+	/**
+	 * files without references, in order of release. Access must be
+	 * synchronized on this factory.
+	 */
+	private LinkedHashMap<String, AudioFile> releasedFiles;
+
+	/**
+	 * @return a snapshot of the list of audio files currently in use
+	 */
+	public List<AudioFile> getAudioFiles() {
+		return new ArrayList<AudioFile>(audioFiles.values());
+	}
 
-    /**
+	/**
 	 * prevent instanciation without state object
 	 */
 	private AudioFileFactory() {
 		super();
-		audioFiles = new ArrayList<AudioFile>();
+		audioFiles = new ConcurrentHashMap<String, AudioFile>();
+		releasedFiles = new LinkedHashMap<String, AudioFile>();
+		downloader = new AudioFileDownloader();
 	}
 
 	/**
 	 * Create a new AudioManager instance. It will register itself as the audio
 	 * manager in the state object.
-	 * 
+	 *
 	 * @param state
 	 */
 	AudioFileFactory(AudioState state) {
 		this();
 		this.state = state;
 		state.setAudioFileFactory(this);
+		EngineMetrics.addFactory(this);
 	}
 
 	/**
 	 * Create a new AudioManager instance. It will register itself as the audio
 	 * manager in the state object. The listener will receive notifications
 	 * about download progress.
-	 * 
+	 *
 	 * @param state
 	 */
 	AudioFileFactory(AudioState state, AudioFileDownloadListener listener) {
 		this(state);
-		AudioFileDownloader.getInstance().setListener(listener);
+		downloader.setListener(listener);
 	}
 
 	/**
 	 * Create/Retrieve the audio file object associated with this URL.
-	 * 
+	 *
 	 * @param url
 	 * @return the instance for audio data from the specified URL
 	 */
@@ -79,83 +120,237 @@ public final class AudioFileFactory {
 	/**
 	 * Create/Retrieve the audio file object associated with this URL. The
 	 * duration parameter is only useful if the duration is known in advance.
-	 * 
+	 *
 	 * @param url
 	 * @param durationInSamples the duration for the file scaled to 44100Hz, or
 	 *            -1 if not known.
 	 * @return the instance for audio data from the specified URL
 	 */
 	public AudioFile getAudioFile(URL url, long durationInSamples) {
-		String source = url.toString();
-		AudioFile ret = findAudioFile(source);
-		if (ret == null) {
-			if (USE_ONLY_MEM_FILES) {
-				ret = new AudioFileURLMem(state, url);
-			} else {
-				ret = new AudioFileURLFile(state, url);
-			}
-			if (durationInSamples >= 0) {
-				// FIXME: need to set file size in bytes, not in samples...
-				// ret.setFileSize(durationInSamples);
-			}
-			synchronized (audioFiles) {
-				audioFiles.add(ret);
-			}
+		AudioFile ret = getAudioFile(url.toString(), url);
+		if (durationInSamples >= 0) {
+			// FIXME: need to set file size in bytes, not in samples...
+			// ret.setFileSize(durationInSamples);
 		}
 		return ret;
 	}
 
 	/**
 	 * Create/Retrieve the audio file object associated from the given File.
-	 * 
+	 *
 	 * @param file
 	 * @return the instance for audio data from the specified file
 	 */
 	public AudioFile getAudioFile(File file) throws MalformedURLException,
 			IOException {
-		String source = file.getCanonicalPath();
-		AudioFile ret = findAudioFile(source);
-		if (ret == null) {
-			URL url = file.toURL();
-			if (USE_ONLY_MEM_FILES) {
-				ret = new AudioFileURLMem(state, url);
-			} else {
-				ret = new AudioFileURLFile(state, url);
-			}
-			synchronized (audioFiles) {
-				audioFiles.add(ret);
+		// use the URL as key, it is the source of the audio file
+		URL url = file.getCanonicalFile().toURL();
+		return getAudioFile(url.toString(), url);
+	}
+
+	/**
+	 * Retrieve the audio file for the given source from the files in use or
+	 * from the released files, or create a new one.
+	 */
+	private AudioFile getAudioFile(String source, URL url) {
+		AudioFile ret = audioFiles.get(source);
+		if (ret != null) {
+			return ret;
+		}
+		synchronized (this) {
+			// check again, could have been added in the meantime
+			ret = audioFiles.get(source);
+			if (ret == null) {
+				ret = releasedFiles.remove(source);
+				if (ret == null) {
+					if (useOnlyMemFiles) {
+						ret = new AudioFileURLMem(state, url);
+					} else {
+						ret = new AudioFileURLFile(state, url);
+					}
+					((AudioFileURL) ret).startDownload(downloader);
+				} else if (DEBUG_REFERENCES) {
+					Debug.debug("AudioFileFactory: re-using released " + ret);
+				}
+				audioFiles.put(source, ret);
 			}
 		}
 		return ret;
 	}
 
-	/** search the list of already created audio files for the given one */
-	private AudioFile findAudioFile(String source) {
-		for (AudioFile af : audioFiles) {
-			if (af.getSource().equals(source)) {
-				return af;
+	/**
+	 * Add a reference to the audio file. This is called by an audio region or
+	 * an effect when it starts using the audio file.
+	 *
+	 * @param af the audio file
+	 */
+	public void addReference(AudioFile af) {
+		if (af.addReference() == 1) {
+			// could have been released in the meantime
+			synchronized (this) {
+				String source = af.getSource();
+				if (releasedFiles.get(source) == af) {
+					releasedFiles.remove(source);
+					audioFiles.put(source, af);
+				}
+			}
+			// or evicted and closed, e.g. when a region of a large file is
+			// moved to another track
+			if (af.isClosed()) {
+				reopen(af);
 			}
 		}
-		return null;
 	}
 
-    public int getTrackNumber() {
-        int result =0;
-        if (audioFiles != null) {
-            result = audioFiles.size();
-        }
-        return result;
-    }
+	/**
+	 * Load a closed audio file again, and use it for new regions of the same
+	 * source unless a new file was created for it in the meantime.
+	 */
+	private void reopen(AudioFile af) {
+		if (!(af instanceof AudioFileURL)) {
+			return;
+		}
+		synchronized (this) {
+			String source = af.getSource();
+			if (!audioFiles.containsKey(source)) {
+				audioFiles.put(source, af);
+			}
+		}
+		if (DEBUG_REFERENCES) {
+			Debug.debug("AudioFileFactory: reopening " + af);
+		}
+		((AudioFileURL) af).reopen();
+	}
+
+	/**
+	 * Remove a reference to the audio file. This is called by an audio region
+	 * or an effect when it is not used anymore. When the last reference is removed, the
+	 * file is moved to the cache of released files.
+	 *
+	 * @param af the audio file
+	 */
+	public void removeReference(AudioFile af) {
+		if (af.removeReference() > 0) {
+			return;
+		}
+		List<AudioFile> evicted = null;
+		synchronized (this) {
+			String source = af.getSource();
+			// only release if the file was not referenced again
+			if (af.getReferenceCount() > 0) {
+				return;
+			}
+			if (audioFiles.get(source) != af) {
+				// a reopened file that was replaced by a new file for the same
+				// source: not managed by this factory anymore
+				if ((af instanceof AudioFileURL) && !af.isClosed()
+						&& releasedFiles.get(source) != af) {
+					evicted = new ArrayList<AudioFile>();
+					evicted.add(af);
+				}
+			} else {
+				audioFiles.remove(source);
+				releasedFiles.put(source, af);
+				if (DEBUG_REFERENCES) {
+					Debug.debug("AudioFileFactory: released " + af);
+				}
+				// evict the oldest released files. The file released now is
+				// kept even if it is larger than the limit: when moving a
+				// region to another track, it is referenced again right away.
+				long releasedBytes = 0;
+				for (AudioFile released : releasedFiles.values()) {
+					releasedBytes += released.getAvailableBytes();
+				}
+				Iterator<AudioFile> it = releasedFiles.values().iterator();
+				while (it.hasNext()
+						&& (releasedFiles.size() > MAX_RELEASED_FILES || releasedBytes > MAX_RELEASED_BYTES)) {
+					AudioFile oldest = it.next();
+					if (oldest == af) {
+						break;
+					}
+					it.remove();
+					releasedBytes -= oldest.getAvailableBytes();
+					if (evicted == null) {
+						evicted = new ArrayList<AudioFile>();
+					}
+					evicted.add(oldest);
+				}
+			}
+		}
+		if (evicted != null) {
+			// close outside of the lock, may need to wait for download threads
+			for (AudioFile oldest : evicted) {
+				if (DEBUG_REFERENCES) {
+					Debug.debug("AudioFileFactory: closing " + oldest);
+				}
+				oldest.close();
+				// a region may have added a reference before the file was
+				// closed
+				if (oldest.getReferenceCount() > 0) {
+					reopen(oldest);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a snapshot of the list of open audio files: the files in use
+	 *         and the released files
+	 */
+	public synchronized List<AudioFile> getOpenFiles() {
+		List<AudioFile> ret = new ArrayList<AudioFile>(audioFiles.values());
+		ret.addAll(releasedFiles.values());
+		return ret;
+	}
 
+	/**
+	 * @return the number of released, but still open files
+	 */
+	public synchronized int getReleasedFileCount() {
+		return releasedFiles.size();
+	}
+
+	/** @return the downloader for the files of this factory */
+	AudioFileDownloader getDownloader() {
+		return downloader;
+	}
+
+	/**
+	 * @return true if new audio files keep their audio data in memory instead
+	 *         of a temporary file
+	 */
+	public boolean isUseOnlyMemFiles() {
+		return useOnlyMemFiles;
+	}
 
+	/**
+	 * Set whether new audio files keep their audio data in memory instead of
+	 * a temporary file. The default is true only if the file system is not
+	 * accessible. Files that are already open are not affected.
+	 */
+	public void setUseOnlyMemFiles(boolean useOnlyMemFiles) {
+		this.useOnlyMemFiles = useOnlyMemFiles;
+	}
 
+	/**
+	 * @return the number of audio files in use
+	 */
+	public int getTrackNumber() {
+		return audioFiles.size();
+	}
 
-    /** close all open files */
+	/** close all open files */
 	void close() {
-		for (AudioFile af : audioFiles) {
+		List<AudioFile> all;
+		synchronized (this) {
+			all = new ArrayList<AudioFile>(audioFiles.values());
+			all.addAll(releasedFiles.values());
+			audioFiles.clear();
+			releasedFiles.clear();
+		}
+		for (AudioFile af : all) {
 			af.close();
 		}
-		audioFiles.clear();
 	}
 
 }
@@ -26,6 +26,9 @@ public abstract class AudioFileURL extends AudioFile {
 
 	private boolean downloadEnd = false;
 
+	/** the downloader that downloads this file */
+	private AudioFileDownloader downloader;
+
 	/**
 	 * Create a new AudioFile instance from the given URL. Note: you should use
 	 * the AudioFileFactory factory to create audio file objects.
@@ -36,7 +39,47 @@ public abstract class AudioFileURL extends AudioFile {
 	public AudioFileURL(AudioState state, URL url) {
 		super(state, getBaseName(url.getPath()), url.toString());
 		this.url = url;
-		AudioFileDownloader.getInstance().addJob(this);
+	}
+
+	/**
+	 * Schedule the download. This is called by the factory after constructing
+	 * the instance: the download thread must not see a partially constructed
+	 * subclass instance.
+	 *
+	 * @param downloader the downloader of the factory
+	 */
+	void startDownload(AudioFileDownloader downloader) {
+		this.downloader = downloader;
+		downloader.addJob(this);
+	}
+
+	/**
+	 * Load the audio data of a closed file again. This is called by the
+	 * factory when a closed file is referenced again, e.g. when a region is
+	 * moved to another track after its file was evicted from the released
+	 * files. The peak cache is kept, so the waveform can be displayed while
+	 * the file is downloaded.
+	 */
+	void reopen() {
+		AudioFileDownloader lDownloader = downloader;
+		if (lDownloader == null) {
+			return;
+		}
+		// the killed download thread may still pass data to this file
+		lDownloader.waitForJobEnd(this);
+		synchronized (this) {
+			if (!isClosed()) {
+				// already reopened
+				return;
+			}
+			downloadEnd = false;
+			setAvailableBytes(0);
+			clearClosed();
+		}
+		if (TRACE) {
+			debug(getName() + ": reopened");
+		}
+		lDownloader.addJob(this);
 	}
 
 	/**
@@ -74,7 +117,9 @@ public abstract class AudioFileURL extends AudioFile {
 	 */
 	@Override
 	protected synchronized void closeImpl() {
-		AudioFileDownloader.getInstance().killJob(this);
+		if (downloader != null) {
+			downloader.killJob(this);
+		}
 	}
 
 	/**
@@ -23,6 +23,13 @@ import com.mixblendr.util.Debug;
  */
 public class AudioFileURLFile extends AudioFileURL {
 
+	/**
+	 * if true, 16-bit audio data is stored losslessly compressed with
+	 * PCMBlockCodec
+	 */
+	public static final boolean COMPRESS_DATA = true;
+
+	/** if true, uncompressed audio data is scrambled in the temp file */
 	public static final boolean SCRAMBLE_DATA = true;
 
 	public static final boolean INHIBIT_PLAYBACK_DURING_DOWNLOAD = false;
@@ -40,7 +47,7 @@ public class AudioFileURLFile extends AudioFileURL {
 	/** Prefix for temporary audio files created from downloaded streams */
 	public static final String TEMP_FILE_PREFIX = "mixblendr";
 	/** Suffix for temporary audio files created from downloaded streams */
-	public static final String TEMP_FILE_SUFFIX = SCRAMBLE_DATA ? ".dat"
+	public static final String TEMP_FILE_SUFFIX = (SCRAMBLE_DATA || COMPRESS_DATA) ? ".dat"
 			: ".pcm";
 
 	/** where the temp file resides */
@@ -53,6 +60,9 @@ public class AudioFileURLFile extends AudioFileURL {
 	/** a magic used for scrambling */
 	private int scrambleMagic;
 
+	/** if non-null, the audio data is compressed with this block store */
+	private PCMBlockStore store;
+
 	private byte[] memCache = null;
 	private int memCacheFilled = 0;
 	private long memCachePos = 0;
@@ -89,8 +99,14 @@ public class AudioFileURLFile extends AudioFileURL {
 	 */
 	@Override
 	protected synchronized void closeImpl() {
+		if (store != null) {
+			store.close();
+			store = null;
+		}
 		closeReadFile();
 		closeWriteFile();
+		// invalidate the memory cache in case the file is reopened
+		memCacheFilled = 0;
 		super.closeImpl();
 		if (cacheFile != null) {
 			if (cacheFile.exists()) {
@@ -143,12 +159,46 @@ public class AudioFileURLFile extends AudioFileURL {
 		this.cacheFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
 		cacheFile.deleteOnExit();
 		writeFile = new RandomAccessFile(cacheFile, "rw");
+		if (COMPRESS_DATA && PCMBlockCodec.isSupported(format)) {
+			store = new FileBlockStore(format);
+		}
 		super.init(format, fileSize);
 		if (DEBUG) {
 			Debug.debug(getName() + ": created "
-					+ (SCRAMBLE_DATA ? "scrambled " : "") + "temp file: "
-					+ cacheFile.getName());
+					+ ((store != null) ? "compressed "
+							: (SCRAMBLE_DATA ? "scrambled " : ""))
+					+ "temp file: " + cacheFile.getName());
+		}
+	}
+
+	/**
+	 * @return the number of bytes used in the temporary file. If compressed,
+	 *         this does not include the last incomplete block, which is kept
+	 *         in memory.
+	 */
+	public long getCacheFileBytes() {
+		PCMBlockStore lStore = store;
+		if (lStore != null) {
+			return lStore.getStoredBytes();
+		}
+		return getAvailableBytes();
+	}
+
+	/** open the temp file for reading, if not already open */
+	private RandomAccessFile getReadFile() {
+		if (readFile == null && cacheFile != null) {
+			try {
+				readFile = new RandomAccessFile(cacheFile, "r");
+			} catch (Exception e) {
+				if (cacheFile != null) {
+					cacheFile.delete();
+					cacheFile = null;
+				}
+				error(e);
+				// TODO: notify User?
+			}
 		}
+		return readFile;
 	}
 
 	/*
@@ -158,6 +208,19 @@ public class AudioFileURLFile extends AudioFileURL {
 	 */
 	@Override
 	boolean downloadData(byte[] data, int offset, int length) throws Exception {
+		PCMBlockStore lStore = store;
+		if (lStore != null) {
+			long written = getAvailableBytes();
+			if (getFileSize() >= 0 && written + length > getFileSize()) {
+				length = (int) (getFileSize() - written);
+			}
+			if (length > 0) {
+				lStore.write(data, offset, length);
+				downloadUpdate(data, offset, length);
+				return true;
+			}
+			return false;
+		}
 		long filePointer = writeFile.getFilePointer();
 		if (getFileSize() >= 0 && filePointer + length > getFileSize()) {
 			length = (int) (getFileSize() - writeFile.getFilePointer());
@@ -200,19 +263,15 @@ public class AudioFileURLFile extends AudioFileURL {
 		if (!hasDownloadStarted() || cacheFile == null) {
 			return 0;
 		}
-		if (readFile == null) {
+		if (store != null) {
 			try {
-				readFile = new RandomAccessFile(cacheFile, "r");
-			} catch (Exception e) {
-				if (cacheFile != null) {
-					cacheFile.delete();
-					cacheFile = null;
-				}
-				error(e);
-				// TODO: notify User?
+				return store.read(pos, buffer, offset, length);
+			} catch (IOException ioe) {
+				error(ioe);
+				return 0;
 			}
 		}
-		if (readFile == null) {
+		if (getReadFile() == null) {
 			return 0;
 		}
 		try {
@@ -274,6 +333,35 @@ public class AudioFileURLFile extends AudioFileURL {
 		return 0;
 	}
 
+	/**
+	 * The block store writing the compressed blocks to the temp file. The
+	 * blocks are read with the read file handle.
+	 */
+	private class FileBlockStore extends PCMBlockStore {
+
+		public FileBlockStore(AudioFormat format) {
+			super(format);
+		}
+
+		@Override
+		protected void storeBlock(long pos, byte[] data, int offset,
+				int length) throws IOException {
+			writeFile.seek(pos);
+			writeFile.write(data, offset, length);
+		}
+
+		@Override
+		protected void loadBlock(long pos, byte[] data, int offset,
+				int length) throws IOException {
+			RandomAccessFile file = getReadFile();
+			if (file == null) {
+				throw new IOException("cannot open temp file");
+			}
+			file.seek(pos);
+			file.readFully(data, offset, length);
+		}
+	}
+
 	/**
 	 * Scramble the given buffer in place.
 	 * 
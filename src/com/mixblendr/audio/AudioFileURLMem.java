@@ -5,6 +5,7 @@ package com.mixblendr.audio;
 
 import static com.mixblendr.util.Debug.debug;
 
+import java.io.IOException;
 import java.net.URL;
 
 import javax.sound.sampled.AudioFormat;
@@ -18,11 +19,20 @@ public class AudioFileURLMem extends AudioFileURL {
 
 	private final static boolean TRACE = false;
 
+	/**
+	 * if true, 16-bit audio data is kept losslessly compressed with
+	 * PCMBlockCodec
+	 */
+	public static final boolean COMPRESS_DATA = true;
+
 	/** the array for storing the audio data */
 	private byte[] mem = null;
 
 	private int writePos = 0;
 
+	/** if non-null, the audio data in mem is compressed with this store */
+	private PCMBlockStore store;
+
 	/**
 	 * Create a new AudioFile instance from the given URL.
 	 * <p>
@@ -43,6 +53,10 @@ public class AudioFileURLMem extends AudioFileURL {
 	 */
 	@Override
 	protected synchronized void closeImpl() {
+		if (store != null) {
+			store.close();
+			store = null;
+		}
 		mem = null;
 		super.closeImpl();
 	}
@@ -58,7 +72,18 @@ public class AudioFileURLMem extends AudioFileURL {
 	@Override
 	void init(AudioFormat format, long fileSize) throws Exception {
 		writePos = 0;
-		if (fileSize > 0) {
+		if (COMPRESS_DATA && PCMBlockCodec.isSupported(format)) {
+			store = new MemBlockStore(format);
+			// the coded data is grown on demand, starting with the expected
+			// size of the compressed data
+			if (fileSize > 0) {
+				long expected = fileSize / 2;
+				if (expected > Integer.MAX_VALUE) {
+					expected = Integer.MAX_VALUE;
+				}
+				mem = new byte[(int) expected];
+			}
+		} else if (fileSize > 0) {
 			// maximum size for arrays
 			if (fileSize > Integer.MAX_VALUE) {
 				fileSize = Integer.MAX_VALUE;
@@ -113,6 +138,15 @@ public class AudioFileURLMem extends AudioFileURL {
 		if (max >= 0 && ((getAvailableBytes() + length) > max)) {
 			length = (int) (max - getAvailableBytes());
 		}
+		PCMBlockStore lStore = store;
+		if (lStore != null) {
+			if (length > 0) {
+				lStore.write(data, offset, length);
+				downloadUpdate(data, offset, length);
+				return true;
+			}
+			return false;
+		}
 		if (length > 0) {
 			if (mem == null
 					|| (max < 0 && ((getAvailableBytes() + length) > mem.length))) {
@@ -139,7 +173,18 @@ public class AudioFileURLMem extends AudioFileURL {
 	@Override
 	protected synchronized int read(long pos, byte[] buffer, int offset,
 			int length) {
-		if (!hasDownloadStarted() || mem == null) {
+		if (!hasDownloadStarted()) {
+			return 0;
+		}
+		if (store != null) {
+			try {
+				return store.read(pos, buffer, offset, length);
+			} catch (IOException ioe) {
+				// cannot happen for memory storage
+				return 0;
+			}
+		}
+		if (mem == null) {
 			return 0;
 		}
 		if (pos + length > mem.length) {
@@ -151,4 +196,54 @@ public class AudioFileURLMem extends AudioFileURL {
 		}
 		return 0;
 	}
+
+	/**
+	 * @return the number of bytes of memory used for the audio data
+	 */
+	public long getMemoryBytes() {
+		byte[] lMem = mem;
+		return (lMem == null) ? 0 : lMem.length;
+	}
+
+	/** The block store keeping the compressed blocks in the mem array. */
+	private class MemBlockStore extends PCMBlockStore {
+
+		public MemBlockStore(AudioFormat format) {
+			super(format);
+		}
+
+		@Override
+		protected void storeBlock(long pos, byte[] data, int offset,
+				int length) throws IOException {
+			if (pos + length > Integer.MAX_VALUE) {
+				throw new IOException("out of memory for audio data");
+			}
+			int end = (int) pos + length;
+			if (mem == null || mem.length < end) {
+				// grow by 50%, but at least by GROW_SIZE
+				int size = (mem == null) ? 0 : mem.length;
+				size += Math.max(size / 2, GROW_SIZE);
+				if (size < end) {
+					size = end;
+				}
+				byte[] newMem = new byte[size];
+				if (mem != null && pos > 0) {
+					System.arraycopy(mem, 0, newMem, 0, (int) pos);
+				}
+				mem = newMem;
+				if (TRACE) {
+					debug(getName() + ": (re)allocated compressed memory with "
+							+ (size / 1024) + " KB");
+				}
+			}
+			System.arraycopy(data, offset, mem, (int) pos, length);
+			writePos = end;
+		}
+
+		@Override
+		protected void loadBlock(long pos, byte[] data, int offset,
+				int length) throws IOException {
+			System.arraycopy(mem, (int) pos, data, offset, length);
+		}
+	}
 }
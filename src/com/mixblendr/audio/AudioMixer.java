@@ -7,10 +7,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.tritonus.share.sampled.AudioUtils;
 import org.tritonus.share.sampled.FloatSampleBuffer;
 import org.tritonus.share.sampled.FloatSampleInput;
 
 import com.mixblendr.audio.AudioTrack.SoloState;
+import com.mixblendr.util.TraceRecorder;
 import static com.mixblendr.util.Debug.*;
 
 /**
@@ -24,22 +26,122 @@ public class AudioMixer implements FloatSampleInput {
 	private final static boolean TRACE = false;
 	private final static boolean TRACE_FADE = false;
 	private final static boolean DEBUG_LOOPING = false;
+	private final static boolean DEBUG_BUSES = false;
+
+	private static final int TRACE_READ = TraceRecorder.registerEvent(
+			"AudioMixer.read", "mixer");
+	private static final int TRACE_TRACK = TraceRecorder.registerEvent(
+			"AudioMixer.renderTrack", "mixer");
 
 	/** list of tracks that are read from */
 	private List<AudioTrack> tracks;
 
+	/** list of buses that tracks and other buses can be routed to */
+	private List<AudioBus> buses;
+
 	/** a temporary audio buffer used while reading */
 	private FloatSampleBuffer scratchBuffer;
 
 	private AudioState state;
 
+	/** the time spent in read(), for all tracks and buses */
+	private final LoadMeter load = new LoadMeter();
+
+	/** if not null, receives the rendered audio of every track */
+	private volatile TrackTap trackTap;
+
+	/**
+	 * the audio buffers are prepared for slices of up to this duration in
+	 * milliseconds, so that the audio thread does not need to grow them
+	 */
+	static final double PREPARED_SLICE_MILLIS = 50;
+
 	/**
 	 * Create an instance of the AudioMixer
 	 */
 	public AudioMixer(AudioState state) {
 		tracks = new ArrayList<AudioTrack>();
+		buses = new ArrayList<AudioBus>();
 		this.state = state;
-		trackChange = true;
+		scratchBuffer = createBuffer();
+		fadeOutBuffer = new FloatSampleBuffer(state.getChannels(),
+				getFadeSampleCount(), state.getSampleRate());
+		createRenderPlan();
+	}
+
+	/**
+	 * @return a new buffer with enough room for a slice, with its sample
+	 *         count set to the current slice size
+	 */
+	private FloatSampleBuffer createBuffer() {
+		int prepared = (int) state.millis2sample(PREPARED_SLICE_MILLIS);
+		FloatSampleBuffer ret = new FloatSampleBuffer(state.getChannels(),
+				Math.max(prepared, state.getSliceSizeSamples()),
+				state.getSampleRate());
+		ret.setSampleCount(state.getSliceSizeSamples(), false);
+		return ret;
+	}
+
+	/**
+	 * @return the load meter of the whole mixer. The load of the individual
+	 *         tracks and effects is available from the tracks, see
+	 *         AudioTrack.getSourceLoad(), getEffectsLoad(), getMixLoad() and
+	 *         getEffectLoad().
+	 */
+	public LoadMeter getLoadMeter() {
+		return load;
+	}
+
+	/**
+	 * Receives the audio of every track after its effects, in the thread
+	 * calling read(). The buffer must not be modified, and it is only valid
+	 * during the call. Since volume and balance are applied when reading the
+	 * track's playlist, the audio includes the fader. For tracks routed to a
+	 * bus, it is the audio going into the bus.
+	 */
+	public interface TrackTap {
+		/**
+		 * @param trackIndex the index of the track in the mixer
+		 * @param track the track
+		 * @param samplePos the position of the slice
+		 * @param buffer the rendered audio of the track, the sample count is
+		 *            the number of rendered samples
+		 */
+		public void trackRendered(int trackIndex, AudioTrack track,
+				long samplePos, FloatSampleBuffer buffer);
+	}
+
+	/**
+	 * @return the track tap, or null if none is set
+	 */
+	public TrackTap getTrackTap() {
+		return trackTap;
+	}
+
+	/**
+	 * Set a receiver for the rendered audio of every track, e.g. for
+	 * exporting the tracks as separate files while rendering the mix.
+	 *
+	 * @param tap the track tap, or null to remove it
+	 */
+	public void setTrackTap(TrackTap tap) {
+		this.trackTap = tap;
+	}
+
+	/**
+	 * Find the track which uses the most processing time.
+	 *
+	 * @return the track with the highest average load, or null if there are
+	 *         no tracks
+	 */
+	public synchronized AudioTrack getMostExpensiveTrack() {
+		AudioTrack ret = null;
+		for (AudioTrack t : tracks) {
+			if (ret == null || t.getAverageLoad() > ret.getAverageLoad()) {
+				ret = t;
+			}
+		}
+		return ret;
 	}
 
 	// TRACK MANAGEMENT
@@ -87,7 +189,7 @@ public class AudioMixer implements FloatSampleInput {
 			// end
 			t.index = tracks.size() - 1;
 			updateSoloState();
-			trackChange = true;
+			renderPlanChanged();
 		}
 	}
 
@@ -123,7 +225,7 @@ public class AudioMixer implements FloatSampleInput {
 			if (ret) {
 				updateSoloState();
 				updateTrackIndices();
-				trackChange = true;
+				renderPlanChanged();
 			}
 			t.index = -1;
 		}
@@ -141,14 +243,18 @@ public class AudioMixer implements FloatSampleInput {
 	}
 
 	/**
-	 * Remove all tracks
+	 * Remove all tracks and buses
 	 */
 	public synchronized void clear() {
 		for (AudioTrack t : tracks) {
 			t.index = -1;
 		}
 		tracks.clear();
-		trackChange = true;
+		for (AudioBus b : buses) {
+			b.index = -1;
+		}
+		buses.clear();
+		renderPlanChanged();
 		updateSoloState();
 	}
 
@@ -178,10 +284,20 @@ public class AudioMixer implements FloatSampleInput {
 		tracks.set(newIndex, thisTrack);
 		tracks.set(trackIndex, otherTrack);
 		updateTrackIndices();
-		trackChange = true;
+		renderPlanChanged();
 		return true;
 	}
 
+	/**
+	 * Rebuild the render plan, to be used from the next read() call on, and
+	 * discard audio rendered ahead. Called after each change to the tracks,
+	 * buses, or routing, with the lock of this mixer held.
+	 */
+	private void renderPlanChanged() {
+		createRenderPlan();
+		state.invalidateRenderedAudio();
+	}
+
 	/**
 	 * update the index field of all the tracks. Should be called after each
 	 * change to the list of tracks
@@ -192,6 +308,149 @@ public class AudioMixer implements FloatSampleInput {
 		}
 	}
 
+	// BUS MANAGEMENT
+
+	/**
+	 * @return the number of buses
+	 */
+	public int getBusCount() {
+		return buses.size();
+	}
+
+	/**
+	 * Return the index bus.
+	 *
+	 * @param index the index of the list of buses
+	 * @return the bus at the specified index, or null if index is out of range
+	 */
+	public AudioBus getBus(int index) {
+		if (index < 0 || index >= buses.size()) {
+			return null;
+		}
+		return buses.get(index);
+	}
+
+	/**
+	 * @return a non-modifyable view of the list of buses
+	 */
+	public synchronized List<AudioBus> getBuses() {
+		return Collections.unmodifiableList(buses);
+	}
+
+	/**
+	 * Add a new bus. It is routed to the master output unless its output is
+	 * changed with setOutputBus().
+	 *
+	 * @param b the bus to add
+	 */
+	public synchronized void addBus(AudioBus b) {
+		if (b != null && !buses.contains(b)) {
+			buses.add(b);
+			b.index = buses.size() - 1;
+			renderPlanChanged();
+		}
+	}
+
+	/**
+	 * Remove the bus. All tracks and buses routed to this bus are routed to
+	 * the master output, and all sends to this bus are removed.
+	 *
+	 * @param b the bus to remove
+	 * @return if the bus was actually removed
+	 */
+	public synchronized boolean removeBus(AudioBus b) {
+		if (b == null || !buses.remove(b)) {
+			return false;
+		}
+		b.index = -1;
+		b.setOutputImpl(null);
+		for (AudioTrack t : tracks) {
+			if (t.getOutputBus() == b) {
+				t.setOutputBusImpl(null);
+			}
+			t.setSendLevelImpl(b, 0.0);
+		}
+		for (int i = 0; i < buses.size(); i++) {
+			AudioBus other = buses.get(i);
+			other.index = i;
+			if (other.getOutput() == b) {
+				other.setOutputImpl(null);
+			}
+		}
+		renderPlanChanged();
+		return true;
+	}
+
+	/**
+	 * Route the track to a bus, or to the master output.
+	 *
+	 * @param track the track to route
+	 * @param bus the bus to which the track is routed, or null for the master
+	 *            output
+	 * @throws IllegalArgumentException if the bus is not added to this mixer
+	 */
+	public synchronized void setOutputBus(AudioTrack track, AudioBus bus) {
+		checkBus(bus);
+		if (track.getOutputBus() != bus) {
+			track.setOutputBusImpl(bus);
+			renderPlanChanged();
+		}
+	}
+
+	/**
+	 * Route a bus to another bus, or to the master output. Routings that
+	 * would create a loop are not allowed.
+	 *
+	 * @param bus the bus to route
+	 * @param output the bus to which the bus is routed, or null for the master
+	 *            output
+	 * @throws IllegalArgumentException if output is not added to this mixer, or
+	 *             if the routing would create a loop
+	 */
+	public synchronized void setOutputBus(AudioBus bus, AudioBus output) {
+		checkBus(output);
+		for (AudioBus b = output; b != null; b = b.getOutput()) {
+			if (b == bus) {
+				throw new IllegalArgumentException("cannot route " + bus
+						+ " to " + output + ": loop");
+			}
+		}
+		if (bus.getOutput() != output) {
+			bus.setOutputImpl(output);
+			renderPlanChanged();
+		}
+	}
+
+	/**
+	 * Set the level of the send of the track to the bus. The send is taken
+	 * after the track's volume and effects (post-fader). A level of 0 removes
+	 * the send.
+	 *
+	 * @param track the sending track
+	 * @param bus the bus receiving the send
+	 * @param level the linear send level [0..1]
+	 * @throws IllegalArgumentException if the bus is not added to this mixer
+	 */
+	public synchronized void setSendLevel(AudioTrack track, AudioBus bus,
+			double level) {
+		if (bus == null) {
+			throw new IllegalArgumentException("no bus given");
+		}
+		checkBus(bus);
+		if (track.setSendLevelImpl(bus, level)) {
+			createRenderPlan();
+		}
+		state.invalidateRenderedAudio();
+	}
+
+	/** throw an exception if bus is not null and not added to this mixer */
+	private void checkBus(AudioBus bus) {
+		if (bus != null && !buses.contains(bus)) {
+			throw new IllegalArgumentException(bus
+					+ " is not added to the mixer");
+		}
+	}
+
 	// SOLO MANAGEMENT
 
 	/**
@@ -300,24 +559,77 @@ public class AudioMixer implements FloatSampleInput {
 
 	/**
 	 * remember this new position. The next read() call will then fade from the
-	 * old playback pos to the new one and update state accordingly
+	 * old playback pos to the new one and update state accordingly. If audio
+	 * is rendered ahead, the position is set when the rendered audio is
+	 * discarded.
 	 */
 	void setRequestedPlaybackPosition(long newPos) {
+		RenderAheadBuffer renderAhead = state.getRenderAhead();
+		if (renderAhead != null && renderAhead.requestPosition(newPos)) {
+			return;
+		}
+		setRequestedPlaybackPositionImpl(newPos);
+	}
+
+	/** set the position to jump to in the next read() call */
+	void setRequestedPlaybackPositionImpl(long newPos) {
 		synchronized (newPositionLock) {
 			requestedNewPositionSamples = newPos;
 		}
 	}
 
 	/**
-	 * use a local copy of the track list to not lock the tracks list during
-	 * processing
+	 * The render plan: the tracks and buses to render, and their routing. A
+	 * plan is created by the thread changing the tracks, buses, or routing,
+	 * and taken over by the audio thread at the start of the next slice, so
+	 * that the audio thread does not need to lock or allocate. A plan is not
+	 * modified after it was created.
 	 */
-	private AudioTrack[] trackCache = null;
+	private static class RenderPlan {
+		/**
+		 * a copy of the track list to not lock the tracks list during
+		 * processing
+		 */
+		AudioTrack[] tracks;
+
+		/** for every track: if it is mixed to the master output */
+		boolean[] trackToMaster;
+
+		/**
+		 * for every track: if it feeds a bus, then it is rendered to its own
+		 * buffer
+		 */
+		boolean[] trackFeedsBus;
+
+		/**
+		 * the buses to render, grouped by render level. All buses of a level
+		 * only read the buffers of tracks and lower level buses.
+		 */
+		AudioBus[][] busLevels;
+
+		/** the buses mixed to the master output */
+		AudioBus[] masterBuses;
+
+		// for every bus: its inputs, set to the bus when taking over the plan
+
+		AudioBus[] buses;
+
+		AudioTrack[][] inputTracks;
+
+		AudioTrack[][] sendTracks;
+
+		AudioSend[][] inputSends;
+
+		AudioBus[][] inputBuses;
+	}
+
+	/** the most recently created render plan */
+	private volatile RenderPlan nextPlan;
 
-	/** set when the order or contents of the tracks changed */
-	private volatile boolean trackChange = false;
+	/** the render plan used by the audio thread */
+	private RenderPlan plan;
 
-	private FloatSampleBuffer fadeOutBuffer = null;
+	private FloatSampleBuffer fadeOutBuffer;
 
 	/** return number of samples to perform the fade */
 	private int getFadeSampleCount() {
@@ -326,30 +638,41 @@ public class AudioMixer implements FloatSampleInput {
 
 	/**
 	 * Main mixing method: go through all tracks and mix them together.
-	 * 
+	 * <p>
+	 * If there are buses, the slice is rendered in dependency order: first all
+	 * tracks, each one into its own buffer if it feeds a bus; then the buses,
+	 * level by level, every bus mixing the buffers of its input tracks, sends,
+	 * and input buses into its own buffer before applying its effects. Since
+	 * every track and bus only writes its own buffer, and only reads buffers
+	 * of a lower level, the tracks, and the buses of one level, could be
+	 * rendered in parallel. Here, they are rendered one after the other in the
+	 * calling thread. Finally, the tracks and buses without output bus are
+	 * mixed to the outgoing buffer.
+	 *
 	 * @see org.tritonus.share.sampled.FloatSampleInput#read(org.tritonus.share.sampled.FloatSampleBuffer,
 	 *      int, int)
 	 */
 	public void read(FloatSampleBuffer buffer, int offset, int sampleCount) {
-		// use a local copy of the tracks to not lock this class unneccessarily
-		if (trackChange) {
-			trackChange = false;
-			synchronized (this) {
-				int trackCount = tracks.size();
-				if (trackCache == null || trackCache.length != trackCount) {
-					trackCache = new AudioTrack[trackCount];
-				}
-				trackCache = tracks.toArray(trackCache);
+		long traceStart = TraceRecorder.begin();
+		long readStart = System.nanoTime();
+		// use the render plan to not lock this class unneccessarily
+		RenderPlan p = nextPlan;
+		if (p != plan) {
+			for (int i = 0; i < p.buses.length; i++) {
+				AudioBus b = p.buses[i];
+				b.inputTracks = p.inputTracks[i];
+				b.sendTracks = p.sendTracks[i];
+				b.inputSends = p.inputSends[i];
+				b.inputBuses = p.inputBuses[i];
 			}
+			plan = p;
 		}
 
-		if (scratchBuffer == null) {
-			scratchBuffer = new FloatSampleBuffer(buffer.getChannelCount(),
-					sampleCount, buffer.getSampleRate());
-		} else {
-			scratchBuffer.init(buffer.getChannelCount(), sampleCount,
-					buffer.getSampleRate());
-		}
+		int channels = buffer.getChannelCount();
+		float sampleRate = buffer.getSampleRate();
+		scratchBuffer.init(channels, sampleCount, sampleRate);
+		double sliceNanos = AudioUtils.frames2MillisD(sampleCount, sampleRate)
+				* 1000000.0;
 
 		long samplePos = state.getSampleSlicePosition();
 
@@ -369,21 +692,60 @@ public class AudioMixer implements FloatSampleInput {
 		// read each track
 		boolean first = true;
 		if (TRACE) onnl("<");
-		for (AudioTrack t : trackCache) {
+		AudioTrack[] localTracks = p.tracks;
+		TrackTap tap = trackTap;
+		for (int i = 0; i < localTracks.length; i++) {
+			AudioTrack t = localTracks[i];
 			if (TRACE) onnl("" + t.index + "y,");
+			long traceTrack = TraceRecorder.begin();
+			FloatSampleBuffer trackBuffer = scratchBuffer;
+			if (p.trackFeedsBus[i]) {
+				if (t.renderBuffer == null) {
+					t.renderBuffer = new FloatSampleBuffer(channels,
+							sampleCount, sampleRate);
+				} else {
+					t.renderBuffer.init(channels, sampleCount, sampleRate);
+				}
+				trackBuffer = t.renderBuffer;
+			}
 			// read this track, including looping and microfades for
 			// click-prevention
+			long sourceStart = System.nanoTime();
 			nextSlicePos = readImpl1(samplePos, requestedNewPosition, t,
-					scratchBuffer, 0, sampleCount);
+					trackBuffer, 0, sampleCount);
+			t.getSourceLoad().add(System.nanoTime() - sourceStart, sliceNanos);
 			// then apply this track's effects
-			t.readEffects(samplePos, scratchBuffer);
+			t.readEffects(samplePos, trackBuffer);
+			TraceRecorder.end(TRACE_TRACK, traceTrack, t.index, samplePos);
+			if (tap != null) {
+				tap.trackRendered(i, t, samplePos, trackBuffer);
+			}
+			if (!p.trackToMaster[i]) {
+				continue;
+			}
+			long mixStart = System.nanoTime();
 			if (first) {
 				// copy first track directly into the outgoing buffer
-				scratchBuffer.copyTo(buffer, offset, sampleCount);
+				trackBuffer.copyTo(buffer, offset, sampleCount);
 				first = false;
 			} else {
 				// mix to the outgoing buffer
-				buffer.mix(scratchBuffer, 0, offset, sampleCount);
+				buffer.mix(trackBuffer, 0, offset, sampleCount);
+			}
+			t.getMixLoad().add(System.nanoTime() - mixStart, sliceNanos);
+		}
+		// render the buses
+		for (AudioBus[] level : p.busLevels) {
+			for (AudioBus bus : level) {
+				renderBus(bus, samplePos, channels, sampleCount, sampleRate);
+			}
+		}
+		for (AudioBus bus : p.masterBuses) {
+			if (first) {
+				bus.buffer.copyTo(buffer, offset, sampleCount);
+				first = false;
+			} else {
+				buffer.mix(bus.buffer, 0, offset, sampleCount);
 			}
 		}
 		if (first) {
@@ -395,6 +757,183 @@ public class AudioMixer implements FloatSampleInput {
 
 		// init new position
 		state.setSampleSlicePosition(nextSlicePos);
+		long readNanos = System.nanoTime() - readStart;
+		load.add(readNanos, sliceNanos);
+		EngineMetrics.sliceRendered(readNanos);
+		TraceRecorder.end(TRACE_READ, traceStart, -1, samplePos);
+	}
+
+	/**
+	 * Create a new render plan from the current tracks, buses and routings,
+	 * and prepare the buffers for rendering. The audio thread takes it over
+	 * at the start of the next slice. Called with the lock of this mixer held.
+	 */
+	private void createRenderPlan() {
+		RenderPlan p = new RenderPlan();
+		int trackCount = tracks.size();
+		p.tracks = tracks.toArray(new AudioTrack[trackCount]);
+		p.trackToMaster = new boolean[trackCount];
+		p.trackFeedsBus = new boolean[trackCount];
+		for (int i = 0; i < trackCount; i++) {
+			AudioTrack t = p.tracks[i];
+			p.trackToMaster[i] = (t.getOutputBus() == null);
+			p.trackFeedsBus[i] = !p.trackToMaster[i]
+					|| t.getSends().length > 0;
+			// the render buffer is kept once created, since the audio thread
+			// may still be using the previous plan
+			if (p.trackFeedsBus[i] && t.renderBuffer == null) {
+				t.renderBuffer = createBuffer();
+			}
+		}
+		int busCount = buses.size();
+		p.buses = buses.toArray(new AudioBus[busCount]);
+		p.inputTracks = new AudioTrack[busCount][];
+		p.sendTracks = new AudioTrack[busCount][];
+		p.inputSends = new AudioSend[busCount][];
+		p.inputBuses = new AudioBus[busCount][];
+		List<AudioBus> masterList = new ArrayList<AudioBus>();
+		for (AudioBus b : buses) {
+			b.renderLevel = 0;
+		}
+		int maxLevel = 0;
+		for (int bi = 0; bi < busCount; bi++) {
+			AudioBus b = p.buses[bi];
+			if (b.buffer == null) {
+				b.buffer = createBuffer();
+			}
+			int level = calcRenderLevel(b);
+			if (level > maxLevel) {
+				maxLevel = level;
+			}
+			if (b.getOutput() == null) {
+				masterList.add(b);
+			}
+			// collect the inputs of this bus
+			List<AudioTrack> inputTracks = new ArrayList<AudioTrack>();
+			List<AudioTrack> sendTracks = new ArrayList<AudioTrack>();
+			List<AudioSend> inputSends = new ArrayList<AudioSend>();
+			List<AudioBus> inputBuses = new ArrayList<AudioBus>();
+			for (AudioTrack t : p.tracks) {
+				if (t.getOutputBus() == b) {
+					inputTracks.add(t);
+				}
+				for (AudioSend send : t.getSends()) {
+					if (send.getBus() == b) {
+						sendTracks.add(t);
+						inputSends.add(send);
+					}
+				}
+			}
+			for (AudioBus other : buses) {
+				if (other.getOutput() == b) {
+					inputBuses.add(other);
+				}
+			}
+			p.inputTracks[bi] = inputTracks.toArray(new AudioTrack[inputTracks.size()]);
+			p.sendTracks[bi] = sendTracks.toArray(new AudioTrack[sendTracks.size()]);
+			p.inputSends[bi] = inputSends.toArray(new AudioSend[inputSends.size()]);
+			p.inputBuses[bi] = inputBuses.toArray(new AudioBus[inputBuses.size()]);
+		}
+		// group the buses by level
+		AudioBus[][] levels = new AudioBus[maxLevel][];
+		for (int level = 1; level <= maxLevel; level++) {
+			List<AudioBus> list = new ArrayList<AudioBus>();
+			for (AudioBus b : buses) {
+				if (b.renderLevel == level) {
+					list.add(b);
+				}
+			}
+			levels[level - 1] = list.toArray(new AudioBus[list.size()]);
+		}
+		p.busLevels = levels;
+		p.masterBuses = masterList.toArray(new AudioBus[masterList.size()]);
+		nextPlan = p;
+		if (DEBUG_BUSES && busCount > 0) {
+			debug("AudioMixer: " + busCount + " buses in " + maxLevel
+					+ " render levels");
+		}
+	}
+
+	/**
+	 * Calculate the render level of the bus: 1 if no other bus is routed to
+	 * it, otherwise 1 + the maximum level of the buses routed to it. The
+	 * routing does not contain loops, see setOutputBus().
+	 */
+	private int calcRenderLevel(AudioBus bus) {
+		if (bus.renderLevel == 0) {
+			int level = 1;
+			for (AudioBus other : buses) {
+				if (other.getOutput() == bus) {
+					int otherLevel = calcRenderLevel(other) + 1;
+					if (otherLevel > level) {
+						level = otherLevel;
+					}
+				}
+			}
+			bus.renderLevel = level;
+		}
+		return bus.renderLevel;
+	}
+
+	/**
+	 * Mix all inputs of the bus into the bus' buffer, and let the bus apply
+	 * its effects and volume.
+	 */
+	private void renderBus(AudioBus bus, long samplePos, int channels,
+			int sampleCount, float sampleRate) {
+		bus.startSlice(channels, sampleCount, sampleRate);
+		FloatSampleBuffer busBuffer = bus.buffer;
+		for (AudioTrack t : bus.inputTracks) {
+			busBuffer.mix(t.renderBuffer, 0, 0, sampleCount);
+		}
+		AudioSend[] sends = bus.inputSends;
+		for (int i = 0; i < sends.length; i++) {
+			double startLevel = sends[i].startSlice();
+			mix(bus.sendTracks[i].renderBuffer, busBuffer, 0, sampleCount,
+					startLevel, sends[i].getSliceEndLevel());
+		}
+		for (AudioBus input : bus.inputBuses) {
+			busBuffer.mix(input.buffer, 0, 0, sampleCount);
+		}
+		bus.process(samplePos);
+	}
+
+	/**
+	 * Mix source to dest, with a gain ramping linearly from startGain to
+	 * endGain.
+	 */
+	static void mix(FloatSampleBuffer source, FloatSampleBuffer dest,
+			int destOffset, int count, double startGain, double endGain) {
+		if (startGain <= 0.0 && endGain <= 0.0) {
+			return;
+		}
+		if (startGain == 1.0 && endGain == 1.0) {
+			dest.mix(source, 0, destOffset, count);
+			return;
+		}
+		int channels = Math.min(source.getChannelCount(),
+				dest.getChannelCount());
+		float inc = (float) ((endGain - startGain) / count);
+		for (int c = 0; c < channels; c++) {
+			float[] src = source.getChannel(c);
+			float[] dst = dest.getChannel(c);
+			float gain = (float) startGain;
+			for (int i = 0; i < count; i++) {
+				dst[destOffset + i] += src[i] * gain;
+				gain += inc;
+			}
+		}
+	}
+
+	/**
+	 * Apply a gain ramping linearly from startGain to endGain to the buffer.
+	 */
+	static void applyVolume(FloatSampleBuffer buffer, int offset, int count,
+			double startGain, double endGain) {
+		if (startGain == 1.0 && endGain == 1.0) {
+			return;
+		}
+		buffer.linearFade((float) startGain, (float) endGain, offset, count);
 	}
 
 	/**
@@ -464,10 +1003,6 @@ public class AudioMixer implements FloatSampleInput {
 		// if true, only mix to buffer, do not overwrite
 		if (requestedNewPosition >= 0) {
 			// read at the old position and then perform a fade-out
-			if (fadeOutBuffer == null) {
-				fadeOutBuffer = new FloatSampleBuffer(buffer.getChannelCount(),
-						getFadeSampleCount(), buffer.getSampleRate());
-			}
 			track.readSource(samplePos, fadeOutBuffer, 0,
 					fadeOutBuffer.getSampleCount());
 			doFade = true;
@@ -478,12 +1013,7 @@ public class AudioMixer implements FloatSampleInput {
 		track.readSource(samplePos, buffer, offset, sampleCount);
 
 		if (doFade) {
-			int fadeLen;
-			if (fadeOutBuffer != null) {
-				fadeLen = fadeOutBuffer.getSampleCount();
-			} else {
-				fadeLen = getFadeSampleCount();
-			}
+			int fadeLen = fadeOutBuffer.getSampleCount();
 			if (fadeLen > sampleCount) {
 				fadeLen = sampleCount;
 			}
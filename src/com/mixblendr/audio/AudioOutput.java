@@ -8,6 +8,7 @@ import static com.mixblendr.util.Debug.*;
 import java.io.File;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class for writing audio data to a soundcard.
@@ -19,6 +20,11 @@ public class AudioOutput {
 	private final static boolean TRACE = false;
 	private final static boolean DEBUG = false;
 
+	private static final int TRACE_WRITE = TraceRecorder.registerEvent(
+			"AudioOutput.write", "output");
+	private static final int TRACE_UNDERRUN = TraceRecorder.registerEvent(
+			"AudioOutput.underrun", "output");
+
 	/** for debugging only: use java sound audio engein (if it exists) */
 	private static final boolean FORCE_JAVA_SOUND_AUDIO_ENGINE = false;
 
@@ -37,9 +43,31 @@ public class AudioOutput {
 	private static final double JAVASOUNDENGINE_BUFFER_SIZE_MILLIS = 60;
 	private static final double JAVASOUNDENGINE_SLICE_SIZE_MILLIS = 15;
 
+	/** a sensible duration to render ahead, see setRenderAheadMillis() */
+	public static final double DEFAULT_RENDER_AHEAD_MILLIS = 300;
+
 	/** the priority of the audio thread */
 	private static final int THREAD_PRIORITY = Thread.MAX_PRIORITY;
 
+	/** set for the threads that render audio for the audio device */
+	private static final ThreadLocal<Boolean> realtimeThread = new ThreadLocal<Boolean>();
+
+	/**
+	 * Mark the current thread as rendering audio for the audio device in real
+	 * time. This is done by the audio threads, or by a test simulating them.
+	 */
+	public static void setRealtimeThread() {
+		realtimeThread.set(Boolean.TRUE);
+	}
+
+	/**
+	 * @return true if the current thread renders audio for the audio device,
+	 *         so it must not block or allocate memory
+	 */
+	static boolean isRealtimeThread() {
+		return realtimeThread.get() != null;
+	}
+
 	/** the thread instance feeding/reading the audio device */
 	private AOThread thread = null;
     private SaveThread saveThread = null;
@@ -51,16 +79,41 @@ public class AudioOutput {
 	 * the mixer info to retrieve the data line from
 	 */
 	private Mixer.Info mixerInfo;
+
+	/**
+	 * the device providing the line, or null to get the line from the mixer
+	 * with mixerInfo
+	 */
+	private volatile Device device;
+
     private AudioPlayer audioPlayer;
 	/**
 	 * the buffer size in milliseconds
 	 */
-	private double bufferSizeMillis;
+	private volatile double bufferSizeMillis;
 
 	/**
 	 * the slice size in milliseconds
 	 */
-	private double sliceSizeMillis;
+	private volatile double sliceSizeMillis;
+
+	/**
+	 * the duration to render ahead of the playback position, or 0 to render
+	 * in the audio device thread
+	 */
+	private volatile double renderAheadMillis = 0;
+
+	/**
+	 * if true, the buffer size and slice size are adapted to the measured
+	 * underruns and render times
+	 */
+	private volatile boolean adaptiveLatency = false;
+
+	/** measures underruns and render times, and chooses the latency */
+	private volatile LatencyController latency;
+
+	/** tells which sample is audible, measured from the device position */
+	private volatile PlaybackClock clock;
 
 	/** listener for exceptions in io thread */
 	protected FatalExceptionListener fatalExceptionListener = null;
@@ -120,6 +173,9 @@ public class AudioOutput {
 				}
 			}
 		}
+		if ("simulated".equals(System.getProperty("mixblendr.audiodevice"))) {
+			device = new SimulatedLine();
+		}
 		// create thread and sourcedataline
 		try {
 			init();
@@ -133,13 +189,18 @@ public class AudioOutput {
 		SourceDataLine line = null;
 
 		if (thread == null || thread.closed || thread.getLine() == null) {
-			String mixerName = (mixerInfo != null) ? mixerInfo.getName()
-					: "(default)";
+			Device dev = device;
+			String mixerName = (dev != null) ? dev.getName()
+					: (mixerInfo != null) ? mixerInfo.getName() : "(default)";
 			// retrieve data line
 			if (DEBUG) {
 				debug("creating audio device from mixer '" + mixerName + "'...");
 			}
-			line = AudioSystem.getSourceDataLine(format, mixerInfo);
+			if (dev != null) {
+				line = dev.getLine(format);
+			} else {
+				line = AudioSystem.getSourceDataLine(format, mixerInfo);
+			}
 
 			// use larger buffer for Java Sound Audio Engine
 			if (AudioUtils.isJavaSoundAudioEngine(line)) {
@@ -148,6 +209,9 @@ public class AudioOutput {
 				debug("Java Sound Audio Engine detected: increase buffer size to "
 						+ JAVASOUNDENGINE_BUFFER_SIZE_MILLIS + "ms");
 			}
+			// start measuring the new device from the current sizes
+			latency = new LatencyController(bufferSizeMillis, sliceSizeMillis);
+			clock = new PlaybackClock(state);
 		}
 		if (thread == null || thread.closed) {
 			thread = new AOThread(line);
@@ -171,11 +235,64 @@ public class AudioOutput {
 	 * samples
 	 */
 	public long getSampleLag() {
-		long ret = getBufferSizeSamples();
+		return getBufferSizeSamples() + getDeviceLagSamples();
+	}
+
+	/**
+	 * get approximate lag from the frame position reported by the device to
+	 * when it's heard, in samples. The Java Sound Audio Engine reports the
+	 * position of its own mixer, which buffers the audio again.
+	 */
+	public long getDeviceLagSamples() {
 		if (isJavaSoundAudioEngine()) {
-			ret += ret * 2 / 3;
+			return getBufferSizeSamples() * 2 / 3;
 		}
-		return ret;
+		return 0;
+	}
+
+	/**
+	 * Enable or disable adapting the buffer size and slice size to the
+	 * measured underruns and render times. If enabled, the audio device is
+	 * opened with a buffer of LatencyController.MAX_BUFFER_MILLIS, and it is
+	 * only filled up to the current latency. Changing this flag takes effect
+	 * when the audio device is opened the next time. It is disabled by
+	 * default, then the fixed buffer size is used.
+	 */
+	public void setAdaptiveLatency(boolean adaptive) {
+		this.adaptiveLatency = adaptive;
+	}
+
+	/**
+	 * @return true if the buffer size is adapted to the measured underruns
+	 *         and render times
+	 */
+	public boolean isAdaptiveLatency() {
+		return adaptiveLatency;
+	}
+
+	/**
+	 * @return the latency controller of the current audio device, with the
+	 *         statistics of underruns and render times, or null if no device
+	 *         is open
+	 */
+	public LatencyController getLatencyController() {
+		return latency;
+	}
+
+	/**
+	 * @return the current output latency in milliseconds, i.e. the buffer
+	 *         size
+	 */
+	public double getLatencyMillis() {
+		return bufferSizeMillis;
+	}
+
+	/**
+	 * @return the playback clock of the current audio device, or null if no
+	 *         device is open
+	 */
+	public PlaybackClock getPlaybackClock() {
+		return clock;
 	}
 
 	/**
@@ -198,6 +315,45 @@ public class AudioOutput {
 				format));
 	}
 
+	/**
+	 * Set the duration of audio that is rendered ahead of the playback
+	 * position in a separate render thread. Then the audio device thread only
+	 * copies rendered audio to the device, and render hiccups do not cause
+	 * dropouts. Changes to the arrangement, the mix, or effect parameters
+	 * discard the audio rendered ahead, see
+	 * AudioState.invalidateRenderedAudio().
+	 * <p>
+	 * A new duration is used when playback is started the next time. Setting
+	 * it to 0 during playback stops rendering ahead immediately.
+	 *
+	 * @param millis the duration in milliseconds, e.g.
+	 *            DEFAULT_RENDER_AHEAD_MILLIS, or 0 to render in the audio
+	 *            device thread
+	 */
+	public void setRenderAheadMillis(double millis) {
+		if (millis < 0) {
+			millis = 0;
+		}
+		this.renderAheadMillis = millis;
+	}
+
+	/**
+	 * @return the duration in milliseconds that is rendered ahead of the
+	 *         playback position, or 0 if audio is rendered in the audio device
+	 *         thread
+	 */
+	public double getRenderAheadMillis() {
+		return renderAheadMillis;
+	}
+
+	/**
+	 * @return the active render-ahead ring, or null if not playing or not
+	 *         rendering ahead
+	 */
+	public RenderAheadBuffer getRenderAhead() {
+		return state.getRenderAhead();
+	}
+
 	/**
 	 * @return the number of slices that are rendered per audio hardware buffer
 	 */
@@ -220,6 +376,18 @@ public class AudioOutput {
 				* format.getFrameSize();
 	}
 
+	/**
+	 * @return the size of the audio device's buffer in bytes: the maximum
+	 *         buffer size if adapting the latency, otherwise the buffer size
+	 */
+	protected int getLineBufferSizeBytes() {
+		if (adaptiveLatency) {
+			return (int) AudioUtils.millis2BytesFrameAligned(
+					LatencyController.MAX_BUFFER_MILLIS, format);
+		}
+		return getBufferSizeBytes();
+	}
+
 	/**
 	 * @return the buffer size in samples
 	 */
@@ -237,7 +405,7 @@ public class AudioOutput {
 		try {
 			init();
 			if (!thread.getLine().isOpen()) {
-				thread.getLine().open(format, getBufferSizeBytes());
+				thread.getLine().open(format, getLineBufferSizeBytes());
 				if (DEBUG) {
 					debug("opened audio device, buffer size: "
 							+ thread.getLine().getBufferSize()
@@ -352,6 +520,36 @@ public class AudioOutput {
 		}
 	}
 
+	/**
+	 * Set a device providing the line, e.g. a SimulatedLine. It replaces the
+	 * output device set with setAudioDevice(). If playback is started, it is
+	 * restarted on the new device.
+	 *
+	 * @param device the device, or null to use the output device set with
+	 *            setAudioDevice()
+	 * @throws LineUnavailableException if the device cannot provide a line
+	 */
+	public synchronized void setDevice(Device device)
+			throws LineUnavailableException {
+		boolean wasStarted = started;
+		stop(true);
+		this.device = device;
+		if (thread != null) {
+			thread.setLine(null);
+		}
+		init();
+		if (wasStarted) {
+			start();
+		}
+	}
+
+	/**
+	 * @return the device set with setDevice(), or null
+	 */
+	public Device getDevice() {
+		return device;
+	}
+
 	/**
 	 * @return the fatalExceptionListener
 	 */
@@ -366,6 +564,23 @@ public class AudioOutput {
 		this.fatalExceptionListener = fatalExceptionListener;
 	}
 
+	/**
+	 * A provider of the line to which the audio is written, instead of a
+	 * mixer of Java Sound.
+	 */
+	public interface Device {
+		/**
+		 * @param format the format in which the line will be opened
+		 * @return the line, not open yet
+		 * @throws LineUnavailableException if no line is available
+		 */
+		public SourceDataLine getLine(AudioFormat format)
+				throws LineUnavailableException;
+
+		/** @return the name of the device */
+		public String getName();
+	}
+
 	/**
 	 * Thread to continously read audio data from the source, convert it to a
 	 * byte stream, and write to the selected sound card.
@@ -387,6 +602,18 @@ public class AudioOutput {
 		private FloatSampleBuffer floatBuffer;
 		private byte[] byteBuffer;
 
+		/** the render-ahead ring during playback, or null */
+		private volatile RenderAheadBuffer renderAhead;
+
+		/** the number of frames written since the line was flushed */
+		private long framesWritten = 0;
+
+		/** the frame position of the line when it was flushed */
+		private long framePositionBase = 0;
+
+		/** the number of frames the line played without data */
+		private long gapFrames = 0;
+
 		/** create a new instance of the IO thread */
 		public AOThread(SourceDataLine line) {
 			super("Audio Output Thread");
@@ -413,7 +640,11 @@ public class AudioOutput {
 			configChange = true;
 		}
 
-		/** create the temporary float and byte buffers for reading */
+		/**
+		 * Create the temporary float and byte buffers for reading. They are
+		 * allocated for the maximum latency so that the latency controller
+		 * can change the slice size without allocating.
+		 */
 		private void createBuffers() {
 			// get the slice size in terms of the buffer size
 			int sliceSizeSamples = getSliceSampleCount();
@@ -428,9 +659,15 @@ public class AudioOutput {
 						+ "ms");
 			}
 			// calculate number of samples
+			int maxSamples = (int) AudioUtils.millis2Frames(
+					LatencyController.MAX_BUFFER_MILLIS, format);
+			if (maxSamples < sliceSizeSamples) {
+				maxSamples = sliceSizeSamples;
+			}
 			floatBuffer = new FloatSampleBuffer(format.getChannels(),
-					sliceSizeSamples, format.getSampleRate());
-			byteBuffer = new byte[sliceSizeBytes];
+					maxSamples, format.getSampleRate());
+			floatBuffer.changeSampleCount(sliceSizeSamples, false);
+			byteBuffer = new byte[maxSamples * format.getFrameSize()];
 		}
 
 		/** return the flag if this thread should cease operation immediately. */
@@ -438,6 +675,137 @@ public class AudioOutput {
 			return closed;
 		}
 
+		/**
+		 * Create and start the render-ahead ring for the mixer, unless this
+		 * thread is stopped. If adapting the latency, the ring has room for
+		 * all slice sizes the latency controller can choose.
+		 *
+		 * @return the new ring, or null if stopped
+		 */
+		private synchronized RenderAheadBuffer startRenderAhead(AudioMixer mixer) {
+			if (stopped || closed) {
+				return null;
+			}
+			int sliceSamples = getSliceSampleCount();
+			int slices = getRenderAheadSlices();
+			int maxSliceSamples = sliceSamples;
+			int maxSlices = slices;
+			if (adaptiveLatency) {
+				maxSliceSamples = (int) AudioUtils.millis2Frames(
+						LatencyController.MAX_SLICE_MILLIS, format);
+				maxSlices = (int) Math.ceil(renderAheadMillis
+						/ LatencyController.MIN_SLICE_MILLIS);
+			}
+			RenderAheadBuffer ra = new RenderAheadBuffer(state, mixer,
+					sliceSamples, slices, maxSliceSamples, maxSlices);
+			ra.start();
+			state.setRenderAhead(ra);
+			renderAhead = ra;
+			if (DEBUG) {
+				debug(getName() + ": rendering " + ra.getTargetSlices()
+						+ " slices ahead");
+			}
+			return ra;
+		}
+
+		/** @return the number of slices to render ahead */
+		private int getRenderAheadSlices() {
+			return (int) Math.ceil(renderAheadMillis / sliceSizeMillis);
+		}
+
+		/**
+		 * Stop the render-ahead ring, if any. The slice position is set back
+		 * to the position after the last played slice.
+		 */
+		private synchronized void stopRenderAhead() {
+			RenderAheadBuffer ra = renderAhead;
+			if (ra != null) {
+				renderAhead = null;
+				state.setRenderAhead(null);
+				ra.stop();
+			}
+		}
+
+		/** reset the underrun detection after flushing the line */
+		private void lineFlushed(SourceDataLine l) {
+			framesWritten = 0;
+			gapFrames = 0;
+			framePositionBase = l.getLongFramePosition();
+			PlaybackClock c = clock;
+			if (c != null) {
+				c.reset();
+			}
+		}
+
+		/**
+		 * Check if the line ran out of data: its buffer is empty, or its frame
+		 * position advanced beyond the written frames.
+		 *
+		 * @return true if the line ran out of data since the last check
+		 */
+		private boolean checkUnderrun(SourceDataLine l) {
+			if (framesWritten < AudioUtils.millis2Frames(bufferSizeMillis,
+					format)) {
+				// not filled yet
+				return false;
+			}
+			boolean underrun = (l.available() >= l.getBufferSize());
+			long gap = l.getLongFramePosition() - framePositionBase
+					- framesWritten;
+			if (gap > gapFrames) {
+				gapFrames = gap;
+				underrun = true;
+			}
+			return underrun;
+		}
+
+		/**
+		 * If adapting the latency, the line's buffer is larger than the
+		 * latency: wait until writing byteCount bytes does not fill the line's
+		 * buffer beyond the latency.
+		 */
+		private void waitForBufferSpace(SourceDataLine l, int byteCount) {
+			int target = (int) AudioUtils.millis2BytesFrameAligned(
+					bufferSizeMillis, format);
+			if (target > l.getBufferSize()) {
+				target = l.getBufferSize();
+			}
+			while (!stopped && !closed && l.isRunning()) {
+				int queued = l.getBufferSize() - l.available();
+				int excess = queued + byteCount - target;
+				if (excess <= 0) {
+					break;
+				}
+				double millis = AudioUtils.bytes2MillisD(excess, format);
+				if (millis > 5.0) {
+					millis = 5.0;
+				}
+				LockSupport.parkNanos((long) (millis * 1000000.0) + 100000);
+			}
+		}
+
+		/**
+		 * Use the buffer and slice size chosen by the latency controller.
+		 * This runs in the audio thread: the buffers are only resized within
+		 * their capacity, and the render-ahead ring keeps its rendered slices
+		 * and renders the following ones with the new slice size.
+		 */
+		private void applyLatency(LatencyController lc) {
+			setBufferSizeMillis(lc.getBufferMillis());
+			setSliceSizeMillis(lc.getSliceMillis());
+			int sliceSamples = getSliceSampleCount();
+			floatBuffer.changeSampleCount(sliceSamples, false);
+			RenderAheadBuffer ra = renderAhead;
+			if (ra != null) {
+				ra.setSliceSize(sliceSamples, getRenderAheadSlices());
+			}
+			if (DEBUG) {
+				debug("Audio output latency: " + ((int) lc.getBufferMillis())
+						+ "ms, slice size " + lc.getSliceMillis() + "ms ("
+						+ lc.getUnderruns() + " underruns)");
+			}
+		}
+
 		/** call this method to pause this thread */
 		public void doResume() {
 			stopped = false;
@@ -474,6 +842,13 @@ public class AudioOutput {
 					stopped = true;
 					configChange = true;
 				}
+				if (stopped) {
+					stopRenderAhead();
+					PlaybackClock c = clock;
+					if (c != null) {
+						c.reset();
+					}
+				}
 				this.notifyAll();
                 isPlaying = false;
             }
@@ -529,6 +904,7 @@ public class AudioOutput {
 		@Override
 		public void run() {
 			if (TRACE) debug(getName() + ": started.");
+			setRealtimeThread();
 			AudioFormat localFormat = format;
 			SourceDataLine localLine = null;
 			FloatSampleInput localInput = input;
@@ -553,6 +929,7 @@ public class AudioOutput {
 									debug(getName() + ": audio device stopped");
 								}
 							}
+							stopRenderAhead();
 						}
 						if (localLine != line) {
 							if (TRACE)
@@ -561,6 +938,10 @@ public class AudioOutput {
 							if (localLine != null && !closed) {
 								localFormat = format;
 								createBuffers();
+								// start the new line with silence, and measure
+								// underruns from its position
+								lineFlushed(localLine);
+								doFadeIn = false;
 							}
 						}
 						if ((stopped || localLine == null || localInput == null)
@@ -603,15 +984,39 @@ public class AudioOutput {
 								byteBuffer[i] = 0;
 							}
 							localLine.flush();
+							lineFlushed(localLine);
 							localLine.write(byteBuffer, 0, len);
+							framesWritten += len / localFormat.getFrameSize();
 							localLine.start();
 							doFadeIn = true;
 						}
 					} else if (localLine != null) {
 						// read from the input line
+						RenderAheadBuffer ra = null;
+						long renderNanos = 0;
 						if (localInput != null) {
+							FloatSampleInput in = localInput;
+							if (localInput instanceof AudioMixer) {
+								ra = renderAhead;
+								if (renderAheadMillis <= 0) {
+									if (ra != null) {
+										// continue rendering in this thread
+										stopRenderAhead();
+										ra = null;
+										floatBuffer.changeSampleCount(
+												getSliceSampleCount(), false);
+									}
+								} else if (ra == null) {
+									ra = startRenderAhead((AudioMixer) localInput);
+								}
+								if (ra != null) {
+									in = ra;
+								}
+							}
 							// o("+");
-							localInput.read(floatBuffer);
+							long renderStart = System.nanoTime();
+							in.read(floatBuffer);
+							renderNanos = System.nanoTime() - renderStart;
 							// o("-");
 							if (doFadeIn) {
 								floatBuffer.linearFade(0, 1);
@@ -635,11 +1040,45 @@ public class AudioOutput {
 							if (!localLine.isRunning()) {
 								localLine.start();
 							}
+							boolean underrun = checkUnderrun(localLine);
+							if (underrun) {
+								TraceRecorder.instant(TRACE_UNDERRUN, -1,
+										state.getSampleSlicePosition());
+								EngineMetrics.underrun();
+							}
+							long traceStart = TraceRecorder.begin();
+							if (adaptiveLatency) {
+								waitForBufferSpace(localLine, n);
+							}
 							// o("<");
 							localLine.write(byteBuffer, 0, n);
 							// o(">");
+							TraceRecorder.end(TRACE_WRITE, traceStart, -1,
+									state.getSampleSlicePosition());
+							long startFrame = framesWritten;
+							framesWritten += n / localFormat.getFrameSize();
 							// update the state with this new buffer
-							state.bufferWrittenToOutput();
+							long endPos;
+							if (ra != null) {
+								endPos = ra.getLastReadPosition();
+								state.bufferWrittenToOutput(endPos);
+							} else {
+								endPos = state.getSampleSlicePosition();
+								state.bufferWrittenToOutput();
+							}
+							PlaybackClock c = clock;
+							if (c != null) {
+								c.sliceWritten(startFrame, framesWritten, endPos,
+										localLine.getLongFramePosition()
+												- framePositionBase,
+										System.nanoTime());
+							}
+							LatencyController lc = latency;
+							if (lc != null
+									&& lc.update(renderNanos, underrun,
+											adaptiveLatency)) {
+								applyLatency(lc);
+							}
 						}
 					}
 				}
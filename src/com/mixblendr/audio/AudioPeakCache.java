@@ -55,11 +55,15 @@ public class AudioPeakCache {
 
 	/**
 	 * now that's a cache of the cache :) this list stores cache arrays to be
-	 * recycled
+	 * recycled. It is shared by all players, access is synchronized on the
+	 * list.
 	 */
 	private static List<float[]> cachePool = new ArrayList<float[]>(10);
 	private static final boolean USE_POOL = true;
 
+	/** the maximum number of arrays in the pool */
+	private static final int MAX_POOL_ARRAYS = 64;
+
 	static {
 		if (USE_POOL) {
 			// initialize the pool
@@ -91,6 +95,38 @@ public class AudioPeakCache {
 		init(channelCount, sampleCount);
 	}
 
+	/**
+	 * @return the number of bytes of the arrays in the pool, ready to be used
+	 *         by new caches
+	 */
+	public static long getPoolBytes() {
+		long ret = 0;
+		synchronized (cachePool) {
+			for (float[] d : cachePool) {
+				ret += d.length * 4L;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the number of bytes of memory used by the cache arrays
+	 */
+	public long getMemoryBytes() {
+		long ret = 0;
+		FloatSampleBuffer[] caches = new FloatSampleBuffer[] {
+				minCache, maxCache
+		};
+		for (FloatSampleBuffer cache : caches) {
+			if (cache != null) {
+				for (int c = 0; c < cache.getChannelCount(); c++) {
+					ret += cache.getChannel(c).length * 4L;
+				}
+			}
+		}
+		return ret;
+	}
+
 	private static float[] newArray(int size) {
 		// first look into cache pool
 		if (USE_POOL) {
@@ -141,7 +177,9 @@ public class AudioPeakCache {
 				if (oldData.length % CACHE_INCREASE_ELEMENTS == 0) {
 					// put the old array back in the pool
 					synchronized (cachePool) {
-						cachePool.add(oldData);
+						if (cachePool.size() < MAX_POOL_ARRAYS) {
+							cachePool.add(oldData);
+						}
 					}
 					if (DEBUG_PEAK_CACHE) {
 						debug("    put back an array of " + oldData.length
@@ -55,7 +55,10 @@ public class AudioPlayer {
 		listeners = new ArrayList<Listener>();
 		factory = new AudioFileFactory(state, listener);
 		this.fel = fel;
-		instances.add(this);
+		synchronized (instances) {
+			instances.add(this);
+		}
+		EngineMetrics.register();
 	}
 
 	/**
@@ -112,9 +115,6 @@ public class AudioPlayer {
 		listeners.remove(l);
 	}
 
-	/** the static lag from writing to audio device to when it's heard */
-	private long audioSampleLag = 0;
-
 	/**
 	 * start playback. If INHIBIT_PLAYBACK_DURING_DOWNLOAD is true, it is not
 	 * started if there is any download in progress.
@@ -122,13 +122,16 @@ public class AudioPlayer {
 	public synchronized void start() throws Exception {
 		if (!isStarted()) {
 			if (INHIBIT_PLAYBACK_DURING_DOWNLOAD
-					&& AudioFileDownloader.getInstance().isDownloading()) {
+					&& factory.getDownloader().isDownloading()) {
 				return;
 			}
+			// load lazily loaded playlists now, not in the render thread
+			for (AudioTrack t : mixer.getTracks()) {
+				t.loadPlaylist();
+			}
 			// reset calculation for interpolating the sample position
 			state.knownSampleSystemTime = -1;
             output.start();
-			audioSampleLag = output.getSampleLag();
 			for (Listener l : listeners) {
 				l.onPlaybackStart(this);
 			}
@@ -157,14 +160,20 @@ public class AudioPlayer {
 	}
 
 	/**
-	 * stop all currently playing players. This method is used for stopping
-	 * playback if a download is started.
+	 * stop all currently playing players which use the given downloader. This
+	 * method is used for stopping playback if a download is started.
 	 * 
 	 * @see #INHIBIT_PLAYBACK_DURING_DOWNLOAD
 	 */
-	static void stopAllPlayers() {
-		for (AudioPlayer ap : instances) {
-			ap.stop(false);
+	static void stopPlayers(AudioFileDownloader downloader) {
+		AudioPlayer[] players;
+		synchronized (instances) {
+			players = instances.toArray(new AudioPlayer[instances.size()]);
+		}
+		for (AudioPlayer ap : players) {
+			if (ap.factory.getDownloader() == downloader) {
+				ap.stop(false);
+			}
 		}
 	}
 
@@ -177,7 +186,9 @@ public class AudioPlayer {
 		output.close();
 		mixer.clear();
 		factory.close();
-		instances.remove(this);
+		synchronized (instances) {
+			instances.remove(this);
+		}
 	}
 
 	public boolean isStarted() {
@@ -202,19 +213,58 @@ public class AudioPlayer {
 	public void removeAudioTrack(AudioTrack at) {
 		if (at != null) {
 			mixer.removeTrack(at);
+			if (at.getPlaylistLoader() != null) {
+				// not loaded yet: no need to load it
+				at.setPlaylistLoader(null);
+			} else {
+				// release the audio files used by the track's regions
+				at.getPlaylist().clear();
+			}
+		}
+	}
+
+	/** convenience method for creating a new bus and adding it to the mixer */
+	public AudioBus addAudioBus() {
+		AudioBus bus = new AudioBus(state);
+		mixer.addBus(bus);
+		return bus;
+	}
+
+	/**
+	 * convenience method for removing a bus. The tracks routed to this bus are
+	 * routed to the master output.
+	 */
+	public void removeAudioBus(AudioBus bus) {
+		if (bus != null) {
+			mixer.removeBus(bus);
 		}
 	}
 
 	/**
-	 * return an interpolated exact position in samples. It uses the last sample
-	 * slice time and calculates the time difference using System.nanoTime().
+	 * return an interpolated exact position in samples. It is taken from the
+	 * output's playback clock, which follows the frame position of the audio
+	 * device. Until the clock is valid, it uses the last sample slice time
+	 * and calculates the time difference using System.nanoTime(). The lag of
+	 * the audio device is queried every time, since the output may adapt its
+	 * latency during playback.
 	 */
 	private final long getSamplePlaybackPosition() {
-		if (state.knownSampleSlicePos < 0 || !isStarted()) {
+		if (!isStarted()) {
+			return state.getSampleSlicePosition();
+		}
+		PlaybackClock clock = output.getPlaybackClock();
+		if (clock != null) {
+			long pos = clock.getPosition();
+			if (pos >= 0) {
+				pos -= output.getDeviceLagSamples();
+				return (pos < 0) ? 0 : pos;
+			}
+		}
+		if (state.knownSampleSlicePos < 0) {
 			return state.getSampleSlicePosition();
 		}
 		long ret = state.getSampleSystemTime() - state.knownSampleSystemTime
-				+ state.knownSampleSlicePos - audioSampleLag;
+				+ state.knownSampleSlicePos - output.getSampleLag();
 		if (ret < 0) {
 			return 0;
 		}
@@ -35,6 +35,9 @@ public class AudioRegion extends AutomationObject implements
 	/** the current read position, 0 to duration */
 	private long playbackPos;
 
+	/** if this region holds a reference to the audio file */
+	private boolean holdsAudioFile;
+
 	/**
 	 * Create a new audio region object, initially empty.
 	 * 
@@ -74,6 +77,46 @@ public class AudioRegion extends AutomationObject implements
 	/** this method should be called whenever this region is not used anymore. */
 	public void close() {
 		removeAudioFileDependency();
+		releaseAudioFile();
+	}
+
+	/**
+	 * Add a reference to the audio file, so that it is not closed while this
+	 * region is in use. This is called by the playlist when this region is
+	 * added to it. Calling this method more than once is ignored.
+	 */
+	synchronized void acquireAudioFile() {
+		if (holdsAudioFile || af == null) {
+			return;
+		}
+		holdsAudioFile = true;
+		AudioFileFactory factory = getState().getAudioFileFactory();
+		if (factory != null) {
+			factory.addReference(af);
+		} else {
+			af.addReference();
+		}
+		// re-install the download listener if this region was closed before
+		if ((af instanceof AudioFileURL) && !af.isFullyLoaded()) {
+			((AudioFileURL) af).addListener(this);
+		}
+	}
+
+	/**
+	 * Remove the reference to the audio file. If no other region uses the
+	 * audio file, the factory may close it.
+	 */
+	private synchronized void releaseAudioFile() {
+		if (!holdsAudioFile) {
+			return;
+		}
+		holdsAudioFile = false;
+		AudioFileFactory factory = getState().getAudioFileFactory();
+		if (factory != null) {
+			factory.removeReference(af);
+		} else {
+			af.removeReference();
+		}
 	}
 
 	/**
@@ -109,6 +152,7 @@ public class AudioRegion extends AutomationObject implements
 	 */
 	public synchronized void setAudioFileOffset(long audioFileOffset) {
 		this.audioFileOffset = audioFileOffset;
+		getState().invalidateRenderedAudio();
 	}
 
 	/**
@@ -142,7 +186,7 @@ public class AudioRegion extends AutomationObject implements
 	 */
 	public synchronized void setDuration(long duration) {
 		this.duration = duration;
-
+		getState().invalidateRenderedAudio();
 	}
 
 	/**
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+/**
+ * An aux send of a track to a bus: the track's signal after its effects is
+ * mixed to the bus with the send level, in addition to the track's regular
+ * output. Use AudioMixer.setSendLevel() to create and change sends.
+ *
+ * @author Florian Bomers
+ */
+public class AudioSend {
+
+	private final AudioBus bus;
+
+	/** the level set by the user */
+	private volatile double level;
+
+	/** the level applied to the last rendered slice */
+	private double lastLevel;
+
+	/** create a new send to the bus with the given level */
+	AudioSend(AudioBus bus, double level) {
+		this.bus = bus;
+		this.level = level;
+		this.lastLevel = level;
+	}
+
+	/**
+	 * @return the bus which this send feeds
+	 */
+	public AudioBus getBus() {
+		return bus;
+	}
+
+	/**
+	 * @return the linear send level [0..1]
+	 */
+	public double getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param level the linear send level to set [0..1]
+	 */
+	void setLevel(double level) {
+		this.level = level;
+	}
+
+	/**
+	 * Called by the mixer in the render thread: return the level at the
+	 * beginning of the slice, and remember the end level for the next slice.
+	 *
+	 * @return the start level for ramping to getSliceEndLevel() in this
+	 *         slice
+	 */
+	double startSlice() {
+		double ret = lastLevel;
+		lastLevel = level;
+		return ret;
+	}
+
+	/**
+	 * @return the level at the end of the slice, after calling startSlice()
+	 */
+	double getSliceEndLevel() {
+		return lastLevel;
+	}
+
+	@Override
+	public String toString() {
+		return "Send to " + bus.getName() + ": " + level;
+	}
+}
@@ -46,6 +46,10 @@ public class AudioState {
 
 	private List<StateListener> stateListeners;
 
+	/** counters for the IDs of the tracks and buses of this player */
+	private int trackIDCounter = 0;
+	private int busIDCounter = 0;
+
 	AudioState() {
 		automationDispatcher = new AutomationEventDispatcher();
 		audioDispatcher = new AudioEventDispatcher();
@@ -340,15 +344,56 @@ public class AudioState {
 	 * played, for getSamplePlaybackPosition()
 	 */
 	final void bufferWrittenToOutput() {
+		bufferWrittenToOutput(sampleSlicePosition);
+	}
+
+	/**
+	 * called by AudioOutput whenever a buffer was just written to the
+	 * soundcard, if the buffer was rendered ahead.
+	 *
+	 * @param slicePos the slice position after the written buffer
+	 */
+	final void bufferWrittenToOutput(long slicePos) {
 		long newTime = getSampleSystemTime();
 		if (knownSampleSystemTime < 0
 				|| (newTime - lastWriteTime >= sampleSliceSize)) {
 			knownSampleSystemTime = newTime;
-			knownSampleSlicePos = sampleSlicePosition;
+			knownSampleSlicePos = slicePos;
 		}
 		lastWriteTime = newTime;
 	}
 
+	/** the active render-ahead ring, or null */
+	private volatile RenderAheadBuffer renderAhead;
+
+	/**
+	 * @return the active render-ahead ring, or null if audio is not rendered
+	 *         ahead
+	 */
+	RenderAheadBuffer getRenderAhead() {
+		return renderAhead;
+	}
+
+	/**
+	 * @param renderAhead the active render-ahead ring, or null
+	 */
+	void setRenderAhead(RenderAheadBuffer renderAhead) {
+		this.renderAhead = renderAhead;
+	}
+
+	/**
+	 * Discard audio that is rendered ahead of the playback position, so that
+	 * a change becomes audible as soon as possible. This method must be
+	 * called for every change of the arrangement, the mix, or effect
+	 * parameters. If audio is not rendered ahead, it does nothing.
+	 */
+	public void invalidateRenderedAudio() {
+		RenderAheadBuffer ra = renderAhead;
+		if (ra != null) {
+			ra.invalidate();
+		}
+	}
+
 	/**
 	 * The number of samples that are rendered at once in the audio engine.
 	 * 
@@ -430,6 +475,7 @@ public class AudioState {
 			long oldEnd = this.loopEnd;
 			this.loopStart = start;
 			this.loopEnd = end;
+			invalidateRenderedAudio();
 			for (StateListener tl : stateListeners) {
 				try {
 					tl.loopChanged(oldStart, oldEnd, start, end);
@@ -456,6 +502,7 @@ public class AudioState {
 	void setLoopEnabled(boolean loopEnabled) {
 		if (this.loopEnabled != loopEnabled) {
 			this.loopEnabled = loopEnabled;
+			invalidateRenderedAudio();
 			// fire loop change event
 			for (StateListener tl : stateListeners) {
 				try {
@@ -503,6 +550,7 @@ public class AudioState {
 		}
 		if (this.tempo != tempo) {
 			this.tempo = tempo;
+			invalidateRenderedAudio();
 			for (StateListener tl : stateListeners) {
 				try {
 					tl.tempoChanged();
@@ -567,6 +615,16 @@ public class AudioState {
 		}
 	}
 
+	/** @return a new ID for a track, unique in this player */
+	synchronized int nextTrackID() {
+		return ++trackIDCounter;
+	}
+
+	/** @return a new ID for a bus, unique in this player */
+	synchronized int nextBusID() {
+		return ++busIDCounter;
+	}
+
 	/**
 	 * @return the audio file factory
 	 */
@@ -609,6 +667,7 @@ public class AudioState {
 	 */
 	public void setMasterVolume(double masterVolume) {
 		this.masterVolume = masterVolume;
+		invalidateRenderedAudio();
 	}
 
 	/**
@@ -623,6 +682,7 @@ public class AudioState {
 	 */
 	public void setMasterVolumeDB(double decibels) {
 		this.masterVolume = AudioUtils.decibel2linear(decibels);
+		invalidateRenderedAudio();
 	}
 
 	/** interface for listeners of tempo and loop changes */
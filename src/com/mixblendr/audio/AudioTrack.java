@@ -6,12 +6,15 @@ package com.mixblendr.audio;
 import static com.mixblendr.util.Debug.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import org.tritonus.share.sampled.AudioUtils;
 import org.tritonus.share.sampled.FloatSampleBuffer;
 
+import com.mixblendr.util.TraceRecorder;
+
 /**
  * Class that manages all the components of a track: volume, balance, mute,
  * solo, effects. It owns a Playlist object which provides the audio data,
@@ -29,10 +32,7 @@ public class AudioTrack {
 		NONE, SOLO, OTHER_SOLO
 	}
 
-	/** counter for the unique track ID */
-	private static int IDCounter = 0;
-
-	/** a unique number identifying this track */
+	/** a number identifying this track, unique in the player */
 	private int ID;
 
 	/**
@@ -59,9 +59,56 @@ public class AudioTrack {
 	/** list of tracks that are read from */
 	private List<AudioEffect> effects;
 
+	/**
+	 * for every effect in the effects list: its load meter. Replaced as a
+	 * whole, with the lock of effects held.
+	 */
+	private LoadMeter[] effectMeters = NO_METERS;
+
+	private static final LoadMeter[] NO_METERS = new LoadMeter[0];
+
+	/** the time spent reading the playlist and applying volume and balance */
+	private final LoadMeter sourceLoad = new LoadMeter();
+
+	/** the time spent in the effects */
+	private final LoadMeter effectsLoad = new LoadMeter();
+
+	/** the time spent mixing this track to the output */
+	private final LoadMeter mixLoad = new LoadMeter();
+
 	/** the playlist providing the samples */
 	private Playlist playlist;
 
+	/**
+	 * if not null, fills the playlist and the automation lanes when they are
+	 * accessed for the first time
+	 */
+	private volatile PlaylistLoader playlistLoader;
+
+	/** set while the playlist loader is running, to allow recursive access */
+	private boolean loadingPlaylist = false;
+
+	/** set once the render thread found the playlist not loaded */
+	private boolean notLoadedLogged = false;
+
+	/** the bus this track is routed to, or null for the master output */
+	private volatile AudioBus outputBus;
+
+	/** the aux sends of this track, replaced as a whole when changed */
+	private volatile AudioSend[] sends = NO_SENDS;
+
+	private static final AudioSend[] NO_SENDS = new AudioSend[0];
+
+	/** the trace event of effect processing, also used by AudioBus */
+	static final int TRACE_EFFECT = TraceRecorder.registerEvent(
+			"AudioEffect.process", "effect");
+
+	/**
+	 * the buffer with the rendered signal of the current slice, only used by
+	 * AudioMixer if this track feeds a bus
+	 */
+	FloatSampleBuffer renderBuffer;
+
 	private AudioState state;
 
 	/** The current effective volume per channel */
@@ -75,11 +122,32 @@ public class AudioTrack {
 
 	private boolean automationEnabled;
 
+	/** the automation lane for the volume */
+	private AutomationLane volumeLane;
+
+	/** the automation lane for the balance */
+	private AutomationLane balanceLane;
+
+	/** if the volume lane is applied to the current block */
+	private boolean volumeLaneActive;
+
+	/** if the balance lane is applied to the current block */
+	private boolean balanceLaneActive;
+
+	/**
+	 * the per-sample volume curve from the volume lane, prepared for the
+	 * mixer's slices, see AudioMixer.PREPARED_SLICE_MILLIS
+	 */
+	private float[] volumeCurve;
+
+	/** the per-sample balance curve from the balance lane */
+	private float[] balanceCurve;
+
 	/**
 	 * Create a new empty audio track.
 	 */
 	public AudioTrack(AudioState state) {
-		ID = ++IDCounter;
+		ID = state.nextTrackID();
 		this.state = state;
 		index = -1;
 		name = "Track " + ID;
@@ -92,6 +160,12 @@ public class AudioTrack {
 		effects = new ArrayList<AudioEffect>();
 		playlist = new Playlist(state, this);
 		automationEnabled = false;
+		volumeLane = new AutomationLane();
+		balanceLane = new AutomationLane();
+		int curveSize = Math.max((int) state.millis2sample(
+				AudioMixer.PREPARED_SLICE_MILLIS), state.getSliceSizeSamples());
+		volumeCurve = new float[curveSize];
+		balanceCurve = new float[curveSize];
 		calcEffectiveVolume();
 		applyEffVolToLastEffVol();
 	}
@@ -136,6 +210,7 @@ public class AudioTrack {
 			effectiveVolume[1] = volume * state.getMasterVolume()
 					* ((balance >= 0.0) ? 1.0 : 1 + balance);
 		}
+		state.invalidateRenderedAudio();
 	}
 
 	/**
@@ -177,9 +252,53 @@ public class AudioTrack {
 	 * @return the playlist instance
 	 */
 	public Playlist getPlaylist() {
+		loadPlaylist();
 		return playlist;
 	}
 
+	/**
+	 * Defer filling the playlist and the automation lanes of this track until
+	 * they are accessed for the first time. This allows opening large
+	 * projects quickly.
+	 *
+	 * @param loader the loader, or null to remove the current loader
+	 */
+	public void setPlaylistLoader(PlaylistLoader loader) {
+		playlistLoader = loader;
+	}
+
+	/**
+	 * @return the pending playlist loader, or null if the playlist is loaded
+	 */
+	public PlaylistLoader getPlaylistLoader() {
+		return playlistLoader;
+	}
+
+	/**
+	 * Run the pending playlist loader, if any. This is done automatically
+	 * when the playlist or the automation lanes are accessed, but should be
+	 * done before starting playback, so that the render thread does not need
+	 * to do it.
+	 */
+	public void loadPlaylist() {
+		if (playlistLoader == null) {
+			return;
+		}
+		synchronized (this) {
+			PlaylistLoader loader = playlistLoader;
+			if (loader == null || loadingPlaylist) {
+				return;
+			}
+			loadingPlaylist = true;
+			try {
+				loader.loadPlaylist(this);
+			} finally {
+				playlistLoader = null;
+				loadingPlaylist = false;
+			}
+		}
+	}
+
 	/**
 	 * @return the balance [L -1...0...+1 R]
 	 */
@@ -262,6 +381,78 @@ public class AudioTrack {
 		calcEffectiveVolume();
 	}
 
+	/**
+	 * Return the bus to which this track is routed.<br>
+	 * Note: to change the output, use the AudioMixer class.
+	 *
+	 * @return the output bus, or null if this track is routed to the master
+	 *         output
+	 */
+	public AudioBus getOutputBus() {
+		return outputBus;
+	}
+
+	/** set the output bus, called by the mixer */
+	void setOutputBusImpl(AudioBus bus) {
+		this.outputBus = bus;
+	}
+
+	/**
+	 * Return the aux sends of this track.<br>
+	 * Note: to change the sends, use the AudioMixer class.
+	 *
+	 * @return the sends, an empty array if this track does not send to any bus.
+	 *         Do not modify the array.
+	 */
+	public AudioSend[] getSends() {
+		return sends;
+	}
+
+	/**
+	 * @param bus the bus to query
+	 * @return the send level of this track to the bus, or 0 if not sending to
+	 *         the bus
+	 */
+	public double getSendLevel(AudioBus bus) {
+		for (AudioSend send : sends) {
+			if (send.getBus() == bus) {
+				return send.getLevel();
+			}
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Set the send level to the bus, called by the mixer. The sends array is
+	 * replaced so that the render thread can use it without locking.
+	 *
+	 * @return true if a send was added or removed
+	 */
+	synchronized boolean setSendLevelImpl(AudioBus bus, double level) {
+		AudioSend[] old = sends;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i].getBus() == bus) {
+				if (level > 0.0) {
+					old[i].setLevel(level);
+					return false;
+				}
+				AudioSend[] newSends = new AudioSend[old.length - 1];
+				System.arraycopy(old, 0, newSends, 0, i);
+				System.arraycopy(old, i + 1, newSends, i, newSends.length - i);
+				sends = newSends;
+				return true;
+			}
+		}
+		if (level <= 0.0) {
+			return false;
+		}
+		AudioSend[] newSends = new AudioSend[old.length + 1];
+		System.arraycopy(old, 0, newSends, 0, old.length);
+		newSends[old.length] = new AudioSend(bus, level);
+		sends = newSends;
+		return true;
+	}
+
 	/**
 	 * @return the number of effects
 	 */
@@ -277,7 +468,13 @@ public class AudioTrack {
 	public void addEffect(AudioEffect e) {
 		synchronized (effects) {
 			effects.add(e);
+			LoadMeter[] newMeters = new LoadMeter[effectMeters.length + 1];
+			System.arraycopy(effectMeters, 0, newMeters, 0,
+					effectMeters.length);
+			newMeters[effectMeters.length] = new LoadMeter();
+			effectMeters = newMeters;
 		}
+		state.invalidateRenderedAudio();
 	}
 
 	/**
@@ -287,9 +484,21 @@ public class AudioTrack {
 	 * @return if the effect was actually removed
 	 */
 	public boolean removeEffect(AudioEffect e) {
+		boolean ret;
 		synchronized (effects) {
-			return effects.remove(e);
+			int i = effects.indexOf(e);
+			ret = (i >= 0);
+			if (ret) {
+				effects.remove(i);
+				LoadMeter[] newMeters = new LoadMeter[effectMeters.length - 1];
+				System.arraycopy(effectMeters, 0, newMeters, 0, i);
+				System.arraycopy(effectMeters, i + 1, newMeters, i,
+						newMeters.length - i);
+				effectMeters = newMeters;
+			}
 		}
+		state.invalidateRenderedAudio();
+		return ret;
 	}
 
 	/**
@@ -298,7 +507,9 @@ public class AudioTrack {
 	public void clearEffects() {
 		synchronized (effects) {
 			effects.clear();
+			effectMeters = NO_METERS;
 		}
+		state.invalidateRenderedAudio();
 	}
 
 	/**
@@ -345,12 +556,14 @@ public class AudioTrack {
 		if (durationInSamples >= 0) {
 			r.setDuration(durationInSamples);
 		}
+		loadPlaylist();
 		playlist.addObject(r);
 		return r;
 	}
 
 	/** Add an automation object to this track. It will be effective immediately. */
 	public void addAutomationObject(AutomationObject ao) {
+		loadPlaylist();
 		playlist.addObject(ao);
 		// debug("Adding "+ao);
 	}
@@ -360,6 +573,7 @@ public class AudioTrack {
 	 * availability of currently downloaded media
 	 */
 	public long getDurationSamples() {
+		loadPlaylist();
 		return playlist.getDurationSamples();
 	}
 
@@ -375,18 +589,146 @@ public class AudioTrack {
 		automationEnabled = on;
 	}
 
+	/**
+	 * @return the automation lane for the linear volume [0..1]
+	 */
+	public AutomationLane getVolumeLane() {
+		loadPlaylist();
+		return volumeLane;
+	}
+
+	/**
+	 * @return the automation lane for the balance [-1..0..+1]
+	 */
+	public AutomationLane getBalanceLane() {
+		loadPlaylist();
+		return balanceLane;
+	}
+
+	/**
+	 * Record a volume change in the volume automation lane. While the volume
+	 * lane is tracking, the changes are inserted when tracking ends.
+	 *
+	 * @param vol the new linear volume [0..1]
+	 * @param samplePos the time of the change in samples
+	 */
+	public void recordVolume(double vol, long samplePos) {
+		loadPlaylist();
+		volumeLane.record(samplePos, (float) vol,
+				(int) state.millis2sample(AutomationLane.CHANGE_RAMP_MILLIS));
+	}
+
+	/**
+	 * Record a balance change in the balance automation lane. While the
+	 * balance lane is tracking, the changes are inserted when tracking ends.
+	 *
+	 * @param bal the new balance [-1..0..+1]
+	 * @param samplePos the time of the change in samples
+	 */
+	public void recordBalance(double bal, long samplePos) {
+		loadPlaylist();
+		balanceLane.record(samplePos, (float) bal,
+				(int) state.millis2sample(AutomationLane.CHANGE_RAMP_MILLIS));
+	}
+
+	/**
+	 * Prepare the volume and balance lanes for the block. If a lane is active,
+	 * the volume or balance field is set to the lane's value at the end of the
+	 * block, so that the GUI can display it, and so that the regular volume
+	 * handling continues smoothly when the lane is not applied anymore.
+	 *
+	 * @return true if any of the lanes is active for this block
+	 */
+	private boolean prepareAutomationLanes(long samplePos, int sampleCount) {
+		volumeLaneActive = volumeLane.prepare(samplePos, sampleCount,
+				automationEnabled);
+		balanceLaneActive = balanceLane.prepare(samplePos, sampleCount,
+				automationEnabled);
+		if (!volumeLaneActive && !balanceLaneActive) {
+			return false;
+		}
+		long endPos = samplePos + sampleCount - 1;
+		if (volumeLaneActive) {
+			volume = volumeLane.getValue(endPos);
+		}
+		if (balanceLaneActive) {
+			balance = balanceLane.getValue(endPos);
+		}
+		calcEffectiveVolume();
+		return true;
+	}
+
+	/**
+	 * If the volume or balance lanes are active, apply the per-sample volume
+	 * curves to the buffer.
+	 *
+	 * @return true if the automation lanes were applied, false if the regular
+	 *         volume should be applied.
+	 */
+	private boolean applyAutomationLanes(long samplePos,
+			FloatSampleBuffer buffer, int offset, int sampleCount) {
+		if (!volumeLaneActive && !balanceLaneActive) {
+			return false;
+		}
+		if ((mute && solo != SoloState.SOLO) || (solo == SoloState.OTHER_SOLO)) {
+			// silent anyway, regular volume handling will fade out
+			return false;
+		}
+		if (volumeCurve.length < sampleCount) {
+			// a slice larger than prepared, e.g. when rendering offline
+			volumeCurve = new float[sampleCount];
+			balanceCurve = new float[sampleCount];
+		}
+		if (volumeLaneActive) {
+			volumeLane.getCurve(samplePos, volumeCurve, 0, sampleCount);
+		} else {
+			Arrays.fill(volumeCurve, 0, sampleCount, (float) volume);
+		}
+		if (balanceLaneActive) {
+			balanceLane.getCurve(samplePos, balanceCurve, 0, sampleCount);
+		} else {
+			Arrays.fill(balanceCurve, 0, sampleCount, (float) balance);
+		}
+		float master = (float) state.getMasterVolume();
+		int channels = buffer.getChannelCount();
+		for (int c = 0; c < channels; c++) {
+			float[] data = buffer.getChannel(c);
+			for (int i = 0; i < sampleCount; i++) {
+				float vol = volumeCurve[i] * master;
+				if (channels == 2) {
+					float bal = balanceCurve[i];
+					if (c == 0 && bal > 0.0f) {
+						vol *= 1.0f - bal;
+					} else if (c == 1 && bal < 0.0f) {
+						vol *= 1.0f + bal;
+					}
+				}
+				data[i + offset] *= vol;
+			}
+		}
+		// continue smoothly from here when the lanes are not applied anymore
+		applyEffVolToLastEffVol();
+		return true;
+	}
+
 	/**
 	 * This class maintains the peak levels of the last PEAK_ARRAY_SIZE buffers
 	 * rendered in this track.
 	 */
 	private float[] peakArray = new float[PEAK_ARRAY_SIZE];
+	/** for every entry in peakArray: the sample position of the buffer */
+	private long[] peakPositions = new long[PEAK_ARRAY_SIZE];
+	/** for every entry in peakArray: the number of samples of the buffer */
+	private int[] peakSampleCounts = new int[PEAK_ARRAY_SIZE];
 	/** current write position into the peak array */
 	private int peakArrayIndex = 0;
 
 	private static final int PEAK_ARRAY_SIZE = 500;
 
 	/** add the current peak level to the rotating array of levels */
-	private void handlePeak(float level) {
+	private void handlePeak(float level, long samplePos, int sampleCount) {
+		peakPositions[peakArrayIndex] = samplePos;
+		peakSampleCounts[peakArrayIndex] = sampleCount;
 		peakArray[peakArrayIndex++] = level;
 		if (peakArrayIndex >= peakArray.length) {
 			peakArrayIndex = 0;
@@ -397,23 +739,48 @@ public class AudioTrack {
 	void flushPeakCache() {
 		for (int i = 0; i < PEAK_ARRAY_SIZE; i++) {
 			peakArray[i] = 0.0f;
+			peakSampleCounts[i] = 0;
 		}
 	}
 
 	/**
-	 * Retrieve a (historic) peak level for peak level meters. For better
-	 * results when jumping, use getPeakLevel(int, int).
+	 * Retrieve a (historic) peak level for peak level meters. The peak levels
+	 * are looked up by their sample position, so the result is correct also
+	 * when rendering ahead, and after jumps and loops: going back from the
+	 * most recently rendered buffer, the first buffers overlapping the period
+	 * are used.
 	 * 
-	 * @param samplePosition the time for when the peak level is seeked. This
-	 *            time should be lower or equal the current slice position.
+	 * @param samplePosition the time for when the peak level is seeked, i.e.
+	 *            the audible playback position. This time should be lower or
+	 *            equal the current slice position.
 	 * @param durationSamples the duration in samples of the period for which
 	 *            the peak is being displayed.
 	 * @return the current linear peak level [0..1]
 	 */
 	public float getPeakLevel(long samplePosition, int durationSamples) {
-		long currSlicePos = state.getSampleSlicePosition();
-		int lag = (int) (currSlicePos - samplePosition + durationSamples);
-		return getPeakLevel(lag, durationSamples);
+		long periodStart = samplePosition - durationSamples;
+		float max = 0.0f;
+		boolean found = false;
+		int index = peakArrayIndex;
+		for (int i = 0; i < PEAK_ARRAY_SIZE; i++) {
+			index--;
+			if (index < 0) {
+				index += PEAK_ARRAY_SIZE;
+			}
+			long pos = peakPositions[index];
+			int count = peakSampleCounts[index];
+			if (count > 0 && pos <= samplePosition
+					&& pos + count > periodStart) {
+				found = true;
+				if (peakArray[index] > max) {
+					max = peakArray[index];
+				}
+			} else if (found) {
+				// left the period: older entries are from a previous pass
+				break;
+			}
+		}
+		return max;
 	}
 
 	/**
@@ -479,9 +846,27 @@ public class AudioTrack {
 	 * available, the remainder is silenced. Any call(s) to this method should
 	 * be followed by readEffects() to apply the effects and calculate the peak
 	 * level.
+	 * <p>
+	 * The playlist is loaded before playback starts, see AudioPlayer.start().
+	 * If it is still not loaded, e.g. for a track added during playback, the
+	 * audio threads play silence instead of loading it.
 	 */
 	public void readSource(long samplePos, FloatSampleBuffer buffer,
 			int offset, int sampleCount) {
+		if (playlistLoader != null) {
+			if (AudioOutput.isRealtimeThread()) {
+				if (!notLoadedLogged) {
+					notLoadedLogged = true;
+					debug("AudioTrack " + getName()
+							+ ": playlist not loaded, playing silence");
+				}
+				buffer.makeSilence(offset, sampleCount);
+				return;
+			}
+			loadPlaylist();
+		}
+		// evaluate the automation lanes first, they may change the volume
+		prepareAutomationLanes(samplePos, sampleCount);
 		// will we generate samples at all?
 		boolean silent = true;
 		for (int c = 0; c < effectiveVolume.length; c++) {
@@ -501,6 +886,11 @@ public class AudioTrack {
 		if (playlist.read(samplePos, buffer, offset, sampleCount) && !silent) {
 			// has successfully read the audio data, now apply the volume
 			// (fading when volume changed)
+			if (sampleCount > 0
+					&& applyAutomationLanes(samplePos, buffer, offset,
+							sampleCount)) {
+				return;
+			}
 			for (int c = 0; c < buffer.getChannelCount(); c++) {
 				double startVolume = lastEffectiveVolume[c];
 				double endVolume = effectiveVolume[c];
@@ -539,9 +929,17 @@ public class AudioTrack {
 	 *            peak.
 	 */
 	public void readEffects(long samplePos, FloatSampleBuffer buffer) {
+		double sliceNanos = AudioUtils.frames2MillisD(buffer.getSampleCount(),
+				buffer.getSampleRate()) * 1000000.0;
+		long effectsStart = System.nanoTime();
 		synchronized (effects) {
-			// apply the effects
-			for (AudioEffect effect : effects) {
+			// apply the effects. Do not use an iterator, it would allocate
+			// an object in the render thread
+			int count = effects.size();
+			for (int i = 0; i < count; i++) {
+				AudioEffect effect = effects.get(i);
+				long traceStart = TraceRecorder.begin();
+				long start = System.nanoTime();
 				try {
 					effect.process(samplePos, buffer, 0,
 							buffer.getSampleCount());
@@ -549,10 +947,72 @@ public class AudioTrack {
 					error("Exception occured during effects processing:");
 					error(t);
 				}
+				effectMeters[i].add(System.nanoTime() - start, sliceNanos);
+				TraceRecorder.end(TRACE_EFFECT, traceStart, index, samplePos);
 			}
 		}
+		effectsLoad.add(System.nanoTime() - effectsStart, sliceNanos);
 		// calculate volume level and store in rotating array
-		handlePeak(getMaxLevel(buffer));
+		handlePeak(getMaxLevel(buffer), samplePos, buffer.getSampleCount());
+	}
+
+	/**
+	 * @return the load meter of reading the audio data from the playlist,
+	 *         including automation, volume and balance
+	 */
+	public LoadMeter getSourceLoad() {
+		return sourceLoad;
+	}
+
+	/**
+	 * @return the load meter of all effects of this track
+	 */
+	public LoadMeter getEffectsLoad() {
+		return effectsLoad;
+	}
+
+	/**
+	 * @return the load meter of mixing this track to the master output. For
+	 *         tracks routed to a bus, mixing is done by the bus.
+	 */
+	public LoadMeter getMixLoad() {
+		return mixLoad;
+	}
+
+	/**
+	 * Return the load meter of the given effect of this track.
+	 *
+	 * @param effect the effect
+	 * @return the load meter, or null if the effect is not used by this track
+	 */
+	public LoadMeter getEffectLoad(AudioEffect effect) {
+		synchronized (effects) {
+			int i = effects.indexOf(effect);
+			if (i < 0) {
+				return null;
+			}
+			return effectMeters[i];
+		}
+	}
+
+	/**
+	 * @return the average load of this track: reading, effects and mixing
+	 */
+	public double getAverageLoad() {
+		return sourceLoad.getAverageLoad() + effectsLoad.getAverageLoad()
+				+ mixLoad.getAverageLoad();
+	}
+
+	/**
+	 * Fills the playlist and the automation lanes of a track on first access,
+	 * see setPlaylistLoader().
+	 */
+	public interface PlaylistLoader {
+		/**
+		 * Add the regions and automation objects to the track, and set the
+		 * points of its automation lanes. Called at most once per track.
+		 */
+		public void loadPlaylist(AudioTrack track);
 	}
 
 	/** @return a String representation of this track, e.g. &quot;Track 1&quot; */
@@ -564,6 +1024,7 @@ public class AudioTrack {
 
     public double getStartTime()
     {
+        loadPlaylist();
         return playlist.getStartTime();
     }
 
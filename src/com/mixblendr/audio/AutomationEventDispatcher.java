@@ -3,29 +3,48 @@
  */
 package com.mixblendr.audio;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Dispatcher for automation events.
+ * Dispatcher for automation events. Events are dispatched from the render
+ * thread, so they are taken from a preallocated pool, and the queue does not
+ * allocate nodes. If the pool is exhausted because the listeners cannot keep
+ * up, further events from the real time audio threads are dropped. Events
+ * from other threads, e.g. when rendering to a file, are never dropped: a new
+ * event is allocated instead.
  * 
  * @author Florian Bomers
  */
 public class AutomationEventDispatcher extends Thread {
+
+	/** the maximum number of queued events */
+	private static final int POOL_SIZE = 256;
+
 	/** flag to signal a requested stop of this thread */
 	private volatile boolean stopRequested = false;
 	/** flag that's set when the list of listeners has changed */
 	private volatile boolean listenersChanged = false;
 
-	private LinkedList<AutomationEvent> queue;
+	private ArrayDeque<AutomationEvent> queue;
+
+	/** the unused events */
+	private ArrayDeque<AutomationEvent> pool;
+
+	/** the number of events dropped because the pool was exhausted */
+	private int droppedEvents = 0;
 
 	private List<AutomationListener> listeners;
 
 	/** create a new instance of the thread */
 	AutomationEventDispatcher() {
 		super("Automation Event Dispatcher");
-		queue = new LinkedList<AutomationEvent>();
+		queue = new ArrayDeque<AutomationEvent>(POOL_SIZE);
+		pool = new ArrayDeque<AutomationEvent>(POOL_SIZE);
+		for (int i = 0; i < POOL_SIZE; i++) {
+			pool.push(new AutomationEvent());
+		}
 		listeners = new ArrayList<AutomationListener>();
 		// GUI stuff, not very important
 		setPriority(Thread.MIN_PRIORITY);
@@ -42,10 +61,30 @@ public class AutomationEventDispatcher extends Thread {
 	}
 
 	synchronized void dispatchEvent(AutomationObject ao, AudioTrack track) {
-		queue.offer(new AutomationEvent(ao, track));
+		AutomationEvent ae = pool.poll();
+		if (ae == null) {
+			if (AudioOutput.isRealtimeThread()) {
+				droppedEvents++;
+				EngineMetrics.eventDropped();
+				return;
+			}
+			ae = new AutomationEvent();
+		}
+		ae.queuedNanos = System.nanoTime();
+		ae.ao = ao;
+		ae.track = track;
+		queue.offer(ae);
 		this.notifyAll();
 	}
 
+	/**
+	 * @return the number of events from the real time audio threads which
+	 *         were dropped because too many events were queued
+	 */
+	public synchronized int getDroppedEvents() {
+		return droppedEvents;
+	}
+
 	/** add a listener for the automation events */
 	public void addListener(AutomationListener al) {
 		listeners.add(al);
@@ -78,13 +117,23 @@ public class AutomationEventDispatcher extends Thread {
 				ae = queue.poll();
 			}
 			if (ae != null) {
+				EngineMetrics.eventDispatched(System.nanoTime()
+						- ae.queuedNanos);
 				if (localListeners == null || listenersChanged) {
 					localListeners = listeners.toArray(new AutomationListener[listeners.size()]);
 				}
 				for (AutomationListener al : localListeners) {
 					al.automationEvent(ae.track, ae.ao);
 				}
-				// IDEA: reuse ae in a pool of AutomationEvents to reduce GC
+				synchronized (this) {
+					ae.ao = null;
+					ae.track = null;
+					// events allocated when the pool was exhausted are
+					// garbage collected
+					if (pool.size() < POOL_SIZE) {
+						pool.push(ae);
+					}
+				}
 			}
 		}
 	}
@@ -92,17 +141,8 @@ public class AutomationEventDispatcher extends Thread {
 	private static class AutomationEvent {
 		AutomationObject ao;
 		AudioTrack track;
-
-		/**
-		 * @param ao
-		 * @param track
-		 */
-		public AutomationEvent(AutomationObject ao, AudioTrack track) {
-			super();
-			this.ao = ao;
-			this.track = track;
-		}
-
+		/** System.nanoTime() when the event was queued */
+		long queuedNanos;
 	}
 
 }
@@ -9,34 +9,51 @@ package com.mixblendr.audio;
  * automation type has a different instance of AutomationHandler.
  * <p>
  * The handler is specifically used for managing the state during tracking (i.e.
- * user moves the GUI control). It is also used for optimizing chasing events.
+ * user moves the GUI control). The handlers are shared by all players, so
+ * they do not store any state of a particular player: tracking is stored per
+ * track, and the state for chasing events is kept in the playlists.
  * 
  * @author Florian Bomers
  */
 public class AutomationHandler {
-	private AudioTrack trackingTrack;
 
-	private AutomationObject lastChasingObject;
+	private static final AudioTrack[] NO_TRACKS = new AudioTrack[0];
+
+	/** the index of this handler in AutomationManager */
+	private final int index;
 
 	/**
-	 * @return the lastChasingObject
+	 * the tracks on which tracking is active. Replaced when tracking starts or
+	 * ends, so that the render thread can iterate it without locking.
 	 */
-	AutomationObject getLastChasingObject() {
-		return lastChasingObject;
+	private volatile AudioTrack[] trackingTracks = NO_TRACKS;
+
+	/** only created by AutomationManager */
+	AutomationHandler(int index) {
+		this.index = index;
 	}
 
 	/**
-	 * @param lastChasingObject the lastChasingObject to set
+	 * @return the index of this handler, 0...AutomationManager.getHandlerCount()-1
 	 */
-	void setLastChasingObject(AutomationObject lastChasingObject) {
-		this.lastChasingObject = lastChasingObject;
+	int getIndex() {
+		return index;
 	}
 
 	/**
 	 * @return true if tracking is currently active on this track
 	 */
 	public boolean isTracking(AudioTrack track) {
-		return (track != null) && (trackingTrack == track);
+		if (track == null) {
+			return false;
+		}
+		AudioTrack[] tracks = trackingTracks;
+		for (int i = 0; i < tracks.length; i++) {
+			if (tracks[i] == track) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -47,15 +64,32 @@ public class AutomationHandler {
 	 * It is very important that the implementor makes sure that tracking is
 	 * turned off when the user releases the control. Otherwise, automation for
 	 * this type will be defunct.
+	 * <p>
+	 * Tracking can be active on several tracks at once, e.g. in different
+	 * players.
 	 * 
 	 * @param track the track to activate tracking
 	 */
-	public void setTracking(AudioTrack track, boolean on) {
-		if (!on && trackingTrack == track) {
-			trackingTrack = null;
-		} else if (on) {
-			trackingTrack = track;
+	public synchronized void setTracking(AudioTrack track, boolean on) {
+		if (track == null || on == isTracking(track)) {
+			return;
+		}
+		AudioTrack[] tracks = trackingTracks;
+		AudioTrack[] newTracks;
+		if (on) {
+			newTracks = new AudioTrack[tracks.length + 1];
+			System.arraycopy(tracks, 0, newTracks, 0, tracks.length);
+			newTracks[tracks.length] = track;
+		} else {
+			newTracks = new AudioTrack[tracks.length - 1];
+			int n = 0;
+			for (int i = 0; i < tracks.length; i++) {
+				if (tracks[i] != track) {
+					newTracks[n++] = tracks[i];
+				}
+			}
 		}
+		trackingTracks = newTracks;
 	}
 
 }
@@ -0,0 +1,514 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+/**
+ * A lane of automation points for one continuous parameter, e.g. the volume
+ * of a track or the feedback of an effect. The points are kept sorted by time
+ * in primitive arrays, so that a point only needs 12 bytes and the value at
+ * any time can be found with a binary search.
+ * <p>
+ * Between two points, the value is ramped linearly. Before the first point,
+ * the value of the first point is used, after the last point the value of the
+ * last point. This allows to apply automation per sample without zipper
+ * noise.
+ * <p>
+ * While the user holds the GUI control of the parameter, the lane should be
+ * set to tracking. Then the lane is not applied during playback, and, if
+ * automation is recording, the existing points are removed while playing over
+ * them.
+ * <p>
+ * Control changes are recorded with record(). They are buffered and thinned
+ * by an AutomationRecorder, and inserted in one batch when tracking ends, so
+ * that the render thread is not blocked by many small insertions and the
+ * lane only keeps the points needed to reproduce the recorded curve.
+ *
+ * @author Florian Bomers
+ */
+public class AutomationLane {
+
+	private static final boolean DEBUG_LANE = false;
+
+	/**
+	 * the default duration of the ramp in milliseconds when a value change is
+	 * recorded
+	 */
+	public static final double CHANGE_RAMP_MILLIS = 5.0;
+
+	/**
+	 * the default maximum deviation of recorded curves from the raw control
+	 * values, suitable for parameters in the range [0..1] or [-1..1]
+	 */
+	public static final float DEFAULT_RECORD_TOLERANCE = 0.002f;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** the times of the points in samples, sorted ascending */
+	private long[] times;
+
+	/** the values of the points */
+	private float[] values;
+
+	/** number of points */
+	private int size;
+
+	/** if the GUI control of this lane is currently held by the user */
+	private volatile boolean tracking;
+
+	/** buffers and thins recorded control changes */
+	private AutomationRecorder recorder;
+
+	/** the ramp duration used when inserting the recorded points */
+	private volatile int recordRampSamples;
+
+	/** create a new, empty automation lane */
+	public AutomationLane() {
+		this(DEFAULT_RECORD_TOLERANCE);
+	}
+
+	/**
+	 * Create a new, empty automation lane.
+	 *
+	 * @param recordTolerance the maximum deviation of recorded curves from the
+	 *            raw control values
+	 */
+	public AutomationLane(float recordTolerance) {
+		times = new long[INITIAL_CAPACITY];
+		values = new float[INITIAL_CAPACITY];
+		size = 0;
+		recorder = new AutomationRecorder(recordTolerance);
+	}
+
+	/**
+	 * @return the maximum deviation of recorded curves from the raw control
+	 *         values
+	 */
+	public float getRecordTolerance() {
+		return recorder.getTolerance();
+	}
+
+	/**
+	 * @param tolerance the maximum deviation of recorded curves from the raw
+	 *            control values
+	 */
+	public void setRecordTolerance(float tolerance) {
+		recorder.setTolerance(tolerance);
+	}
+
+	/**
+	 * @return the number of points in this lane
+	 */
+	public synchronized int getPointCount() {
+		return size;
+	}
+
+	/**
+	 * @return true if this lane does not have any points
+	 */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param index the index of the point, 0...getPointCount()-1
+	 * @return the time of the point in samples
+	 */
+	public synchronized long getPointTime(int index) {
+		checkIndex(index);
+		return times[index];
+	}
+
+	/**
+	 * @param index the index of the point, 0...getPointCount()-1
+	 * @return the value of the point
+	 */
+	public synchronized float getPointValue(int index) {
+		checkIndex(index);
+		return values[index];
+	}
+
+	private final void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index
+					+ " out of bounds [0.." + size + ")");
+		}
+	}
+
+	/**
+	 * @return true if the user currently holds the GUI control of this lane
+	 */
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * Set tracking on or off. While tracking, the lane is not applied during
+	 * playback. It is very important that tracking is turned off when the user
+	 * releases the control. Turning tracking off ends the recording pass and
+	 * inserts the recorded points.
+	 */
+	public void setTracking(boolean on) {
+		boolean wasTracking = tracking;
+		tracking = on;
+		if (wasTracking && !on) {
+			commitRecording();
+		}
+	}
+
+	/**
+	 * Record a control change. While tracking, the changes are buffered until
+	 * tracking ends, otherwise the change is inserted immediately. The
+	 * previous value is held until rampSamples before the first recorded
+	 * change, and the last recorded value is held until rampSamples before
+	 * the next existing point.
+	 * <p>
+	 * If the time is before the last recorded change, e.g. because playback
+	 * looped or the user set a new position while holding the control, the
+	 * changes recorded so far are inserted and a new recording pass is started
+	 * with this change.
+	 *
+	 * @param time the time of the change in samples
+	 * @param value the new value
+	 * @param rampSamples the duration of the ramp from and to existing values
+	 */
+	public void record(long time, float value, int rampSamples) {
+		if (time < recorder.getLastTime()) {
+			commitRecording();
+		}
+		recordRampSamples = rampSamples;
+		recorder.add(time, value);
+		if (!tracking) {
+			commitRecording();
+		}
+	}
+
+	/**
+	 * Insert all recorded changes which were not inserted yet. This is called
+	 * automatically when tracking ends.
+	 *
+	 * @return the number of inserted points
+	 */
+	public int commitRecording() {
+		synchronized (recorder) {
+			int count = recorder.finish();
+			if (count > 0) {
+				insertRecording(recorder.getTimes(), recorder.getValues(),
+						count, recordRampSamples);
+				if (DEBUG_LANE) {
+					debug("AutomationLane: recorded " + recorder.getRawCount()
+							+ " changes, inserted " + count + " points");
+				}
+			}
+			recorder.reset();
+			return count;
+		}
+	}
+
+	/**
+	 * Replace all points in the time range of the recorded points with the
+	 * recorded points, in one pass.
+	 */
+	private synchronized void insertRecording(long[] recTimes,
+			float[] recValues, int count, int rampSamples) {
+		long firstTime = recTimes[0];
+		long lastTime = recTimes[count - 1];
+		// existing points before and after the recorded range
+		int before = findPoint(firstTime - 1) + 1;
+		int after = findPoint(lastTime) + 1;
+		// hold the previous value until the recording starts
+		boolean holdBefore = false;
+		float holdBeforeValue = 0;
+		if (before > 0 && rampSamples > 0
+				&& times[before - 1] < firstTime - rampSamples) {
+			holdBeforeValue = getValueImpl(firstTime - rampSamples, before - 1);
+			holdBefore = (holdBeforeValue != recValues[0]);
+		}
+		// hold the last recorded value until the next point
+		boolean holdAfter = (after < size) && rampSamples > 0
+				&& (times[after] - rampSamples > lastTime)
+				&& (values[after] != recValues[count - 1]);
+		int newSize = before + (holdBefore ? 1 : 0) + count
+				+ (holdAfter ? 1 : 0) + (size - after);
+		long[] newTimes = new long[Math.max(newSize, INITIAL_CAPACITY)];
+		float[] newValues = new float[newTimes.length];
+		System.arraycopy(times, 0, newTimes, 0, before);
+		System.arraycopy(values, 0, newValues, 0, before);
+		int index = before;
+		if (holdBefore) {
+			newTimes[index] = firstTime - rampSamples;
+			newValues[index] = holdBeforeValue;
+			index++;
+		}
+		System.arraycopy(recTimes, 0, newTimes, index, count);
+		System.arraycopy(recValues, 0, newValues, index, count);
+		index += count;
+		if (holdAfter) {
+			newTimes[index] = times[after] - rampSamples;
+			newValues[index] = recValues[count - 1];
+			index++;
+		}
+		System.arraycopy(times, after, newTimes, index, size - after);
+		System.arraycopy(values, after, newValues, index, size - after);
+		times = newTimes;
+		values = newValues;
+		size = newSize;
+	}
+
+	/**
+	 * Find the last point at or before the given time.
+	 *
+	 * @return the index of the point, or -1 if all points are after time
+	 */
+	private final int findPoint(long time) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midTime = times[mid];
+			if (midTime < time) {
+				low = mid + 1;
+			} else if (midTime > time) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return high;
+	}
+
+	/** make sure that there is space for count more points */
+	private final void ensureCapacity(int count) {
+		if (size + count > times.length) {
+			int newCapacity = times.length * 2;
+			if (newCapacity < size + count) {
+				newCapacity = size + count;
+			}
+			long[] newTimes = new long[newCapacity];
+			float[] newValues = new float[newCapacity];
+			System.arraycopy(times, 0, newTimes, 0, size);
+			System.arraycopy(values, 0, newValues, 0, size);
+			times = newTimes;
+			values = newValues;
+		}
+	}
+
+	/**
+	 * Insert a point into this lane. If a point exists at exactly this time,
+	 * its value is overwritten.
+	 *
+	 * @param time the time in samples
+	 * @param value the value at that time
+	 */
+	public synchronized void addPoint(long time, float value) {
+		int index = findPoint(time);
+		if (index >= 0 && times[index] == time) {
+			values[index] = value;
+			return;
+		}
+		index++;
+		ensureCapacity(1);
+		if (index < size) {
+			System.arraycopy(times, index, times, index + 1, size - index);
+			System.arraycopy(values, index, values, index + 1, size - index);
+		}
+		times[index] = time;
+		values[index] = value;
+		size++;
+		if (DEBUG_LANE) {
+			debug("AutomationLane: added point at "
+					+ time + ": " + value + ", now " + size + " points");
+		}
+	}
+
+	/**
+	 * Record a change of the value at the given time. The previous value is
+	 * held until rampSamples before time, then it is ramped to the new value.
+	 * This is the behavior of a user moving a GUI control.
+	 *
+	 * @param time the time in samples when the new value is reached
+	 * @param value the new value
+	 * @param rampSamples the duration of the ramp from the previous value
+	 */
+	public synchronized void addChange(long time, float value, int rampSamples) {
+		int prev = findPoint(time - 1);
+		if (prev >= 0 && rampSamples > 0 && times[prev] < time - rampSamples) {
+			float holdValue = getValueImpl(time - rampSamples, prev);
+			if (holdValue != value) {
+				addPoint(time - rampSamples, holdValue);
+			}
+		}
+		addPoint(time, value);
+	}
+
+	/**
+	 * Remove all points in the time range [fromTime, toTime).
+	 *
+	 * @return the number of removed points
+	 */
+	public synchronized int removePoints(long fromTime, long toTime) {
+		int from = findPoint(fromTime - 1) + 1;
+		int to = findPoint(toTime - 1) + 1;
+		int count = to - from;
+		if (count > 0) {
+			System.arraycopy(times, to, times, from, size - to);
+			System.arraycopy(values, to, values, from, size - to);
+			size -= count;
+		}
+		return (count > 0) ? count : 0;
+	}
+
+	/** remove all points */
+	public synchronized void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Copy the points of this lane to the arrays. If the arrays are too small,
+	 * only the first points are copied.
+	 *
+	 * @return the number of points in this lane
+	 */
+	public synchronized int getPoints(long[] destTimes, float[] destValues) {
+		int count = Math.min(size, Math.min(destTimes.length,
+				destValues.length));
+		System.arraycopy(times, 0, destTimes, 0, count);
+		System.arraycopy(values, 0, destValues, 0, count);
+		return size;
+	}
+
+	/**
+	 * Replace all points of this lane, e.g. when loading a project. This is
+	 * much faster than adding the points one by one.
+	 *
+	 * @param newTimes the times of the points in samples, sorted ascending
+	 * @param newValues the values of the points
+	 * @param count the number of points
+	 * @throws IllegalArgumentException if the times are not sorted
+	 */
+	public synchronized void setPoints(long[] newTimes, float[] newValues,
+			int count) {
+		for (int i = 1; i < count; i++) {
+			if (newTimes[i] <= newTimes[i - 1]) {
+				throw new IllegalArgumentException(
+						"point times are not ascending at index " + i);
+			}
+		}
+		size = 0;
+		ensureCapacity(count);
+		System.arraycopy(newTimes, 0, times, 0, count);
+		System.arraycopy(newValues, 0, values, 0, count);
+		size = count;
+	}
+
+	/**
+	 * Called from the render loop for every block before querying the value
+	 * curve. While tracking and recording, any points in the block are
+	 * removed.
+	 *
+	 * @param samplePos the start of the block in samples
+	 * @param sampleCount the number of samples in the block
+	 * @param recording if automation is currently being recorded
+	 * @return true if this lane is active and should be applied to the block
+	 */
+	public synchronized boolean prepare(long samplePos, int sampleCount,
+			boolean recording) {
+		if (tracking) {
+			if (recording && size > 0) {
+				removePoints(samplePos, samplePos + sampleCount);
+			}
+			return false;
+		}
+		return size > 0;
+	}
+
+	/**
+	 * Get the value at the given time, linearly interpolated between the
+	 * neighboring points.
+	 *
+	 * @param time the time in samples
+	 * @return the value, or 0 if this lane is empty
+	 */
+	public synchronized float getValue(long time) {
+		if (size == 0) {
+			return 0.0f;
+		}
+		return getValueImpl(time, findPoint(time));
+	}
+
+	/** get the value at time, index is the result of findPoint(time) */
+	private final float getValueImpl(long time, int index) {
+		if (index < 0) {
+			return values[0];
+		}
+		if (index >= size - 1) {
+			return values[size - 1];
+		}
+		long t0 = times[index];
+		float v0 = values[index];
+		return v0 + (values[index + 1] - v0) * ((float) (time - t0))
+				/ (times[index + 1] - t0);
+	}
+
+	/**
+	 * Fill the array with the interpolated values for every sample of a block.
+	 * If this lane is empty, the array is not modified.
+	 *
+	 * @param samplePos the time of the first sample
+	 * @param curve the array to receive the values
+	 * @param offset the index in curve where to write the first value
+	 * @param count the number of values to write
+	 */
+	public synchronized void getCurve(long samplePos, float[] curve,
+			int offset, int count) {
+		if (size == 0) {
+			return;
+		}
+		int index = findPoint(samplePos);
+		long time = samplePos;
+		int end = offset + count;
+		while (offset < end) {
+			if (index >= size - 1) {
+				// after the last point: constant value
+				float v = values[size - 1];
+				while (offset < end) {
+					curve[offset++] = v;
+				}
+				break;
+			}
+			long nextTime = times[index + 1];
+			int segmentCount;
+			if (nextTime - time < end - offset) {
+				segmentCount = (int) (nextTime - time);
+			} else {
+				segmentCount = end - offset;
+			}
+			if (index < 0) {
+				// before the first point: constant value
+				float v = values[0];
+				for (int i = 0; i < segmentCount; i++) {
+					curve[offset++] = v;
+				}
+			} else {
+				long t0 = times[index];
+				float v0 = values[index];
+				float inc = (values[index + 1] - v0) / (nextTime - t0);
+				float v = v0 + inc * (time - t0);
+				for (int i = 0; i < segmentCount; i++) {
+					curve[offset++] = v;
+					v += inc;
+				}
+			}
+			time += segmentCount;
+			index++;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "AutomationLane with " + size + " points"
+				+ (tracking ? " (tracking)" : "");
+	}
+}
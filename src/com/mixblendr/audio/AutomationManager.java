@@ -6,14 +6,20 @@ package com.mixblendr.audio;
 import java.util.HashMap;
 
 /**
- * Manage automation types.
+ * Manage automation types. The automation handlers are shared by all players
+ * in the VM: they are created once per automation type and do not hold any
+ * state of a particular player.
  * 
  * @author Florian Bomers
  */
 @SuppressWarnings("unchecked")
 public class AutomationManager {
 
-	static HashMap<Class, AutomationHandler> types = new HashMap<Class, AutomationHandler>();
+	/** the handlers by automation class. Access is synchronized on the class. */
+	private static HashMap<Class, AutomationHandler> types = new HashMap<Class, AutomationHandler>();
+
+	/** the number of handlers, the indexes of the handlers are 0...count-1 */
+	private static volatile int handlerCount = 0;
 
 	/** prevent instanciation */
 	private AutomationManager() {
@@ -48,12 +54,21 @@ public class AutomationManager {
 	 * from the track. Additionally, the implementor is responsible for creating
 	 * new automation objects and adding them to the track.
 	 */
-	public static AutomationHandler getHandler(Class automationClass) {
+	public static synchronized AutomationHandler getHandler(
+			Class automationClass) {
 		AutomationHandler ah = types.get(automationClass);
 		if (ah == null) {
-			ah = new AutomationHandler();
+			ah = new AutomationHandler(handlerCount);
 			types.put(automationClass, ah);
+			handlerCount++;
 		}
 		return ah;
 	}
+
+	/**
+	 * @return the number of automation handlers created so far
+	 */
+	static int getHandlerCount() {
+		return handlerCount;
+	}
 }
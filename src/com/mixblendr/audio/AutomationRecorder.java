@@ -0,0 +1,254 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+/**
+ * Collects the raw control changes while recording automation for one
+ * automation lane, and thins them with a tolerance based curve
+ * simplification.
+ * <p>
+ * Changes are appended to a lock-free ring buffer, so recording never waits
+ * for the lane which is used by the render thread. When the ring buffer is
+ * half full, and when the recording pass is finished, the buffered changes are
+ * simplified incrementally: a point is only kept if the straight line from the
+ * previously kept point cannot represent all points in between within the
+ * tolerance (a &quot;fan&quot; of valid slopes is maintained for that). The
+ * kept points are then inserted into the lane in one batch.
+ * <p>
+ * The times of one pass must not decrease. When playback jumps back, e.g. at
+ * the end of a loop or when the user sets a new position, the lane finishes
+ * the pass and starts a new one, see getLastTime().
+ * <p>
+ * Only one thread may call add() at a time, usually the event dispatch thread.
+ *
+ * @author Florian Bomers
+ */
+class AutomationRecorder {
+
+	/** size of the ring buffer, must be a power of 2 */
+	private static final int RING_SIZE = 512;
+
+	private static final int RING_MASK = RING_SIZE - 1;
+
+	private final long[] ringTimes = new long[RING_SIZE];
+
+	private final float[] ringValues = new float[RING_SIZE];
+
+	/** number of points written to the ring, only written by add() */
+	private volatile int writeCount = 0;
+
+	/** number of points read from the ring, only written by drain() */
+	private volatile int readCount = 0;
+
+	/** the time of the last change in this pass, or -1 */
+	private volatile long lastTime = -1;
+
+	/** the maximum deviation of the simplified curve */
+	private float tolerance;
+
+	// simplification state and result, guarded by this
+
+	/** the simplified points */
+	private long[] times = new long[64];
+
+	private float[] values = new float[64];
+
+	private int count = 0;
+
+	/** if the candidate point is valid */
+	private boolean hasCandidate = false;
+
+	/** the last received point, not yet kept */
+	private long candidateTime;
+
+	private float candidateValue;
+
+	/** the range of slopes from the last kept point, for the fan */
+	private double slopeLow;
+
+	private double slopeHigh;
+
+	/** number of raw points received in this pass */
+	private int rawCount = 0;
+
+	/**
+	 * Create a new recorder.
+	 *
+	 * @param tolerance the maximum deviation of the simplified curve from the
+	 *            recorded values
+	 */
+	AutomationRecorder(float tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return the tolerance
+	 */
+	float getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @param tolerance the tolerance to set
+	 */
+	void setTolerance(float tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Append a raw control change. Does not block, unless the ring buffer is
+	 * half full, then the buffered changes are simplified first.
+	 */
+	void add(long time, float value) {
+		int w = writeCount;
+		if (w - readCount >= RING_SIZE / 2) {
+			drain();
+		}
+		ringTimes[w & RING_MASK] = time;
+		ringValues[w & RING_MASK] = value;
+		lastTime = time;
+		// publish
+		writeCount = w + 1;
+	}
+
+	/**
+	 * @return the time of the last change added in this pass, or -1 if none
+	 *         was added
+	 */
+	long getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * @return true if no changes were recorded since the last call to
+	 *         finish()
+	 */
+	boolean isEmpty() {
+		return writeCount == readCount && !hasCandidate && count == 0;
+	}
+
+	/** feed all buffered changes to the simplification */
+	synchronized void drain() {
+		int r = readCount;
+		int w = writeCount;
+		while (r != w) {
+			simplify(ringTimes[r & RING_MASK], ringValues[r & RING_MASK]);
+			r++;
+		}
+		readCount = r;
+	}
+
+	/** add a point to the simplified curve */
+	private final void keep(long time, float value) {
+		if (count == times.length) {
+			long[] newTimes = new long[count * 2];
+			float[] newValues = new float[count * 2];
+			System.arraycopy(times, 0, newTimes, 0, count);
+			System.arraycopy(values, 0, newValues, 0, count);
+			times = newTimes;
+			values = newValues;
+		}
+		times[count] = time;
+		values[count] = value;
+		count++;
+	}
+
+	/** process one raw point */
+	private final void simplify(long time, float value) {
+		rawCount++;
+		if (count == 0) {
+			// first point is always kept
+			keep(time, value);
+			hasCandidate = false;
+			return;
+		}
+		long anchorTime = times[count - 1];
+		float anchorValue = values[count - 1];
+		if (!hasCandidate) {
+			if (time <= anchorTime) {
+				if (time == anchorTime) {
+					values[count - 1] = value;
+				}
+				return;
+			}
+			candidateTime = time;
+			candidateValue = value;
+			hasCandidate = true;
+			slopeLow = Double.NEGATIVE_INFINITY;
+			slopeHigh = Double.POSITIVE_INFINITY;
+			return;
+		}
+		if (time <= candidateTime) {
+			if (time == candidateTime) {
+				// the candidate is not part of the fan, it can be replaced
+				candidateValue = value;
+			}
+			// ignore points going back in time, the lane starts a new pass
+			// for them
+			return;
+		}
+		// narrow the fan with the candidate
+		double dt = candidateTime - anchorTime;
+		double low = (candidateValue - tolerance - anchorValue) / dt;
+		double high = (candidateValue + tolerance - anchorValue) / dt;
+		if (low < slopeLow) {
+			low = slopeLow;
+		}
+		if (high > slopeHigh) {
+			high = slopeHigh;
+		}
+		double slope = (value - anchorValue) / ((double) (time - anchorTime));
+		if (slope >= low && slope <= high) {
+			// the line to the new point represents all points in between
+			slopeLow = low;
+			slopeHigh = high;
+		} else {
+			// the candidate must be kept
+			keep(candidateTime, candidateValue);
+			slopeLow = Double.NEGATIVE_INFINITY;
+			slopeHigh = Double.POSITIVE_INFINITY;
+		}
+		candidateTime = time;
+		candidateValue = value;
+	}
+
+	/**
+	 * Finish the recording pass: drain the ring buffer and keep the last
+	 * point. The result is available with getCount(), getTimes() and
+	 * getValues() until reset() is called.
+	 *
+	 * @return the number of simplified points
+	 */
+	synchronized int finish() {
+		drain();
+		if (hasCandidate) {
+			keep(candidateTime, candidateValue);
+			hasCandidate = false;
+		}
+		return count;
+	}
+
+	/** @return the number of raw points received in this pass */
+	synchronized int getRawCount() {
+		return rawCount;
+	}
+
+	/** @return the times of the simplified points */
+	synchronized long[] getTimes() {
+		return times;
+	}
+
+	/** @return the values of the simplified points */
+	synchronized float[] getValues() {
+		return values;
+	}
+
+	/** start a new recording pass */
+	synchronized void reset() {
+		lastTime = -1;
+		count = 0;
+		rawCount = 0;
+		hasCandidate = false;
+	}
+}
@@ -0,0 +1,375 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import javax.sound.sampled.AudioFormat;
+
+import com.mixblendr.util.Histogram;
+
+/**
+ * Health metrics of the audio engine, for monitoring a headless engine and
+ * for capacity planning. The engine parts update the counters with the
+ * static methods of this class, which do not lock or allocate, so that they
+ * can be called from the audio thread. Cache sizes and queue lengths are
+ * collected when they are queried.
+ * <p>
+ * The metrics are registered as the MBean com.mixblendr:type=EngineMetrics
+ * with the platform MBean server when the first AudioPlayer is created,
+ * unless the system property mixblendr.jmx is set to false. Other metrics
+ * registries can poll getValues().
+ *
+ * @author Florian Bomers
+ */
+public class EngineMetrics implements EngineMetricsMBean {
+
+	/** the name of the MBean */
+	public static final String OBJECT_NAME = "com.mixblendr:type=EngineMetrics";
+
+	/** slice render times in microseconds, from 64us to 131ms */
+	private static final Histogram sliceRender = Histogram.createExponential(
+			64, 12);
+
+	private static final AtomicLong underruns = new AtomicLong();
+
+	private static final AtomicLong renderAheadUnderruns = new AtomicLong();
+
+	/** dispatch lag in microseconds, from 64us to 1s */
+	private static final Histogram dispatchLag = Histogram.createExponential(
+			64, 15);
+
+	private static final AtomicLong droppedEvents = new AtomicLong();
+
+	private static final AtomicLong downloadedBytes = new AtomicLong();
+
+	private static final AtomicLong downloadNanos = new AtomicLong();
+
+	/** the duration of the downloaded audio */
+	private static final AtomicLong decodedAudioNanos = new AtomicLong();
+
+	private static final AtomicLong encodedFrames = new AtomicLong();
+
+	private static final AtomicLong encodeNanos = new AtomicLong();
+
+	/** the duration of the encoded audio */
+	private static final AtomicLong encodedAudioNanos = new AtomicLong();
+
+	/** the audio file factories of all players */
+	private static final List<WeakReference<AudioFileFactory>> factories = new ArrayList<WeakReference<AudioFileFactory>>();
+
+	private static final EngineMetrics instance = new EngineMetrics();
+
+	private static boolean registered = false;
+
+	/** use getInstance() */
+	private EngineMetrics() {
+		// nothing
+	}
+
+	/**
+	 * Register the MBean with the platform MBean server, if not done yet.
+	 * Failures, e.g. in an applet, are ignored.
+	 */
+	static synchronized void register() {
+		if (registered) {
+			return;
+		}
+		registered = true;
+		try {
+			if ("false".equals(System.getProperty("mixblendr.jmx"))) {
+				return;
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					instance, new ObjectName(OBJECT_NAME));
+		} catch (Throwable t) {
+			debug("EngineMetrics: cannot register MBean: " + t);
+		}
+	}
+
+	// RECORDING
+
+	/** called by the mixer after rendering a slice */
+	static void sliceRendered(long nanos) {
+		sliceRender.record(nanos / 1000);
+	}
+
+	/** called when the audio device ran out of data */
+	static void underrun() {
+		underruns.incrementAndGet();
+	}
+
+	/** called when a slice was not rendered ahead in time */
+	static void renderAheadUnderrun() {
+		renderAheadUnderruns.incrementAndGet();
+	}
+
+	/** called by the dispatchers when an event is dispatched */
+	static void eventDispatched(long lagNanos) {
+		dispatchLag.record(lagNanos / 1000);
+	}
+
+	/** called by the dispatchers when an event could not be queued */
+	static void eventDropped() {
+		droppedEvents.incrementAndGet();
+	}
+
+	/**
+	 * called by the download threads when decoded data was passed to an
+	 * audio file
+	 *
+	 * @param bytes the number of bytes
+	 * @param format the format of the bytes
+	 * @param nanos the time it took to download and decode them
+	 */
+	static void downloadProgress(int bytes, AudioFormat format, long nanos) {
+		downloadedBytes.addAndGet(bytes);
+		downloadNanos.addAndGet(nanos);
+		decodedAudioNanos.addAndGet(getDurationNanos(bytes
+				/ format.getFrameSize(), format.getFrameRate()));
+	}
+
+	/**
+	 * called by the encoder
+	 *
+	 * @param frames the number of encoded sample frames
+	 * @param frameRate the frame rate of the encoded audio
+	 * @param nanos the time it took to encode them
+	 */
+	static void encoded(long frames, float frameRate, long nanos) {
+		encodedFrames.addAndGet(frames);
+		encodeNanos.addAndGet(nanos);
+		encodedAudioNanos.addAndGet(getDurationNanos(frames, frameRate));
+	}
+
+	private static long getDurationNanos(long frames, float frameRate) {
+		if (frameRate <= 0) {
+			return 0;
+		}
+		return (long) (frames * 1000000000.0 / frameRate);
+	}
+
+	/** called by the constructor of AudioFileFactory */
+	static void addFactory(AudioFileFactory factory) {
+		synchronized (factories) {
+			factories.add(new WeakReference<AudioFileFactory>(factory));
+		}
+	}
+
+	/** @return a snapshot of the list of factories */
+	private static List<AudioFileFactory> getFactories() {
+		List<AudioFileFactory> ret = new ArrayList<AudioFileFactory>();
+		synchronized (factories) {
+			Iterator<WeakReference<AudioFileFactory>> it = factories.iterator();
+			while (it.hasNext()) {
+				AudioFileFactory factory = it.next().get();
+				if (factory == null) {
+					it.remove();
+				} else {
+					ret.add(factory);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/** @return a snapshot of the list of open files of all factories */
+	private static List<AudioFile> getOpenFiles() {
+		List<AudioFile> ret = new ArrayList<AudioFile>();
+		for (AudioFileFactory factory : getFactories()) {
+			ret.addAll(factory.getOpenFiles());
+		}
+		return ret;
+	}
+
+	// QUERYING
+
+	/**
+	 * @return the single instance, for querying the metrics without JMX
+	 */
+	public static EngineMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return all metrics by name, e.g. for publishing them to another
+	 *         metrics registry
+	 */
+	public Map<String, Object> getValues() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("sliceCount", getSliceCount());
+		ret.put("sliceRenderMeanMicros", getSliceRenderMeanMicros());
+		ret.put("sliceRenderP99Micros", getSliceRenderP99Micros());
+		ret.put("sliceRenderMaxMicros", getSliceRenderMaxMicros());
+		ret.put("underruns", getUnderruns());
+		ret.put("renderAheadUnderruns", getRenderAheadUnderruns());
+		ret.put("downloadQueueLength", getDownloadQueueLength());
+		ret.put("downloadedBytes", getDownloadedBytes());
+		ret.put("downloadBytesPerSecond", getDownloadBytesPerSecond());
+		ret.put("decodeSpeedFactor", getDecodeSpeedFactor());
+		ret.put("peakCacheBytes", getPeakCacheBytes());
+		ret.put("pcmMemoryBytes", getPCMMemoryBytes());
+		ret.put("pcmDiskBytes", getPCMDiskBytes());
+		ret.put("openFileCount", getOpenFileCount());
+		ret.put("dispatchLagMeanMicros", getDispatchLagMeanMicros());
+		ret.put("dispatchLagMaxMicros", getDispatchLagMaxMicros());
+		ret.put("droppedEvents", getDroppedEvents());
+		ret.put("encodedFrames", getEncodedFrames());
+		ret.put("encoderSpeedFactor", getEncoderSpeedFactor());
+		return ret;
+	}
+
+	public long getSliceCount() {
+		return sliceRender.getCount();
+	}
+
+	public double getSliceRenderMeanMicros() {
+		return sliceRender.getMean();
+	}
+
+	public long getSliceRenderP99Micros() {
+		return sliceRender.getPercentile(99);
+	}
+
+	public long getSliceRenderMaxMicros() {
+		return sliceRender.getMax();
+	}
+
+	public long[] getSliceRenderHistogramBounds() {
+		return sliceRender.getBounds();
+	}
+
+	public long[] getSliceRenderHistogram() {
+		return sliceRender.getCounts();
+	}
+
+	public long getUnderruns() {
+		return underruns.get();
+	}
+
+	public long getRenderAheadUnderruns() {
+		return renderAheadUnderruns.get();
+	}
+
+	public int getDownloadQueueLength() {
+		int ret = 0;
+		for (AudioFileFactory factory : getFactories()) {
+			ret += factory.getDownloader().getQueueLength();
+		}
+		return ret;
+	}
+
+	public String[] getDownloadThreads() {
+		List<String> ret = new ArrayList<String>();
+		for (AudioFileFactory factory : getFactories()) {
+			ret.addAll(Arrays.asList(factory.getDownloader().getThreadStatistics()));
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public long getDownloadedBytes() {
+		return downloadedBytes.get();
+	}
+
+	public double getDownloadBytesPerSecond() {
+		long nanos = downloadNanos.get();
+		if (nanos == 0) {
+			return 0;
+		}
+		return downloadedBytes.get() * 1000000000.0 / nanos;
+	}
+
+	public double getDecodeSpeedFactor() {
+		long nanos = downloadNanos.get();
+		if (nanos == 0) {
+			return 0;
+		}
+		return ((double) decodedAudioNanos.get()) / nanos;
+	}
+
+	public long getPeakCacheBytes() {
+		long ret = AudioPeakCache.getPoolBytes();
+		for (AudioFile af : getOpenFiles()) {
+			AudioPeakCache cache = af.getPeakCache();
+			if (cache != null) {
+				ret += cache.getMemoryBytes();
+			}
+		}
+		return ret;
+	}
+
+	public long getPCMMemoryBytes() {
+		long ret = 0;
+		for (AudioFile af : getOpenFiles()) {
+			if (af instanceof AudioFileURLMem) {
+				ret += ((AudioFileURLMem) af).getMemoryBytes();
+			}
+		}
+		return ret;
+	}
+
+	public long getPCMDiskBytes() {
+		long ret = 0;
+		for (AudioFile af : getOpenFiles()) {
+			if (af instanceof AudioFileURLFile) {
+				ret += ((AudioFileURLFile) af).getCacheFileBytes();
+			}
+		}
+		return ret;
+	}
+
+	public int getOpenFileCount() {
+		return getOpenFiles().size();
+	}
+
+	public double getDispatchLagMeanMicros() {
+		return dispatchLag.getMean();
+	}
+
+	public long getDispatchLagMaxMicros() {
+		return dispatchLag.getMax();
+	}
+
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	public long getEncodedFrames() {
+		return encodedFrames.get();
+	}
+
+	public double getEncoderSpeedFactor() {
+		long nanos = encodeNanos.get();
+		if (nanos == 0) {
+			return 0;
+		}
+		return ((double) encodedAudioNanos.get()) / nanos;
+	}
+
+	public void reset() {
+		sliceRender.reset();
+		underruns.set(0);
+		renderAheadUnderruns.set(0);
+		dispatchLag.reset();
+		droppedEvents.set(0);
+		downloadedBytes.set(0);
+		downloadNanos.set(0);
+		decodedAudioNanos.set(0);
+		encodedFrames.set(0);
+		encodeNanos.set(0);
+		encodedAudioNanos.set(0);
+	}
+
+}
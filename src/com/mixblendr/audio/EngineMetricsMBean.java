@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+/**
+ * The management interface of EngineMetrics, for JMX.
+ *
+ * @author Florian Bomers
+ */
+public interface EngineMetricsMBean {
+
+	// rendering
+
+	/** @return the number of rendered slices */
+	public long getSliceCount();
+
+	/** @return the mean render time of a slice in microseconds */
+	public double getSliceRenderMeanMicros();
+
+	/** @return the 99th percentile of the slice render time in microseconds */
+	public long getSliceRenderP99Micros();
+
+	/** @return the maximum render time of a slice in microseconds */
+	public long getSliceRenderMaxMicros();
+
+	/** @return the upper bounds of the render time histogram in microseconds */
+	public long[] getSliceRenderHistogramBounds();
+
+	/** @return the counts of the render time histogram */
+	public long[] getSliceRenderHistogram();
+
+	/** @return the number of times the audio device ran out of data */
+	public long getUnderruns();
+
+	/** @return the number of slices that were not rendered ahead in time */
+	public long getRenderAheadUnderruns();
+
+	// downloading and decoding
+
+	/** @return the number of files waiting to be downloaded */
+	public int getDownloadQueueLength();
+
+	/** @return a line for every download thread, with its throughput */
+	public String[] getDownloadThreads();
+
+	/** @return the number of decoded bytes of all downloads */
+	public long getDownloadedBytes();
+
+	/** @return the decoded bytes per second of download thread activity */
+	public double getDownloadBytesPerSecond();
+
+	/**
+	 * @return the duration of the decoded audio divided by the time it took
+	 *         to download and decode it
+	 */
+	public double getDecodeSpeedFactor();
+
+	// caches
+
+	/** @return the memory used by peak caches, including the pool */
+	public long getPeakCacheBytes();
+
+	/** @return the bytes of audio data stored in memory */
+	public long getPCMMemoryBytes();
+
+	/** @return the bytes of audio data stored in temporary files */
+	public long getPCMDiskBytes();
+
+	/** @return the number of open audio files, including released files */
+	public int getOpenFileCount();
+
+	// event dispatching
+
+	/** @return the mean time from queuing an event to dispatching it */
+	public double getDispatchLagMeanMicros();
+
+	/** @return the maximum time from queuing an event to dispatching it */
+	public long getDispatchLagMaxMicros();
+
+	/** @return the number of events dropped because the queue was full */
+	public long getDroppedEvents();
+
+	// encoding
+
+	/** @return the number of encoded sample frames */
+	public long getEncodedFrames();
+
+	/**
+	 * @return the duration of the encoded audio divided by the time it took
+	 *         to encode it
+	 */
+	public double getEncoderSpeedFactor();
+
+	/** reset all counters and histograms */
+	public void reset();
+}
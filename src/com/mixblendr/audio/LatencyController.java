@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+/**
+ * Chooses the buffer size and slice size of the audio output from measured
+ * underruns and render times, so that playback runs at the lowest latency
+ * that is stable on this machine.
+ * <p>
+ * The buffer is grown immediately by GROW_FACTOR when the device ran out of
+ * data, or when rendering one slice used up most of the buffered audio. It is
+ * shrunk by SHRINK_FACTOR only after STABLE_MILLIS without such events and
+ * with a low render load, and never to a size that caused an underrun in the
+ * last UNDERRUN_MEMORY_MILLIS. This hysteresis prevents oscillating between
+ * two sizes. The slice size follows the buffer size.
+ * <p>
+ * The update method is called by the audio output thread after every slice.
+ * The getters can be called from any thread.
+ *
+ * @author Florian Bomers
+ */
+public class LatencyController {
+
+	private static final boolean DEBUG_LATENCY = false;
+
+	/** the minimum buffer size in milliseconds */
+	public static final double MIN_BUFFER_MILLIS = 20;
+
+	/** the maximum buffer size in milliseconds */
+	public static final double MAX_BUFFER_MILLIS = 250;
+
+	/** the number of slices per buffer, if possible */
+	private static final int SLICES_PER_BUFFER = 4;
+
+	/** the minimum slice size in milliseconds */
+	public static final double MIN_SLICE_MILLIS = 5;
+
+	/** the maximum slice size in milliseconds */
+	public static final double MAX_SLICE_MILLIS = 25;
+
+	private static final double GROW_FACTOR = 1.5;
+
+	private static final double SHRINK_FACTOR = 0.8;
+
+	/**
+	 * a slice is a near miss if rendering it took longer than this part of the
+	 * audio that was buffered in addition to the slice
+	 */
+	private static final double NEAR_MISS_FRACTION = 0.75;
+
+	/** do not grow again within this time after a change */
+	private static final long HOLD_OFF_MILLIS = 1000;
+
+	/** shrink only after this time without underruns and near misses */
+	private static final long STABLE_MILLIS = 20000;
+
+	/** shrink only if the render load stayed below this during that time */
+	private static final double SHRINK_MAX_LOAD = 0.5;
+
+	/** do not shrink to a buffer size that caused an underrun for this time */
+	private static final long UNDERRUN_MEMORY_MILLIS = 300000;
+
+	private volatile double bufferMillis;
+
+	private volatile double sliceMillis;
+
+	/** the number of times the device ran out of data */
+	private volatile int underruns = 0;
+
+	/** the number of slices which took longer to render than to play */
+	private volatile int missedDeadlines = 0;
+
+	/** the number of buffer size changes */
+	private volatile int changes = 0;
+
+	/** render time / slice duration of the last slice */
+	private volatile double lastLoad = 0;
+
+	/** the maximum load since the stable window started */
+	private double windowMaxLoad = 0;
+
+	private long lastChangeNanos;
+
+	private long stableSinceNanos;
+
+	/** the buffer size at the last underrun */
+	private double underrunBufferMillis = 0;
+
+	private long underrunNanos;
+
+	/**
+	 * Create a controller.
+	 *
+	 * @param initialBufferMillis the buffer size to start with
+	 * @param initialSliceMillis the slice size to start with
+	 */
+	public LatencyController(double initialBufferMillis,
+			double initialSliceMillis) {
+		bufferMillis = initialBufferMillis;
+		sliceMillis = initialSliceMillis;
+		long now = System.nanoTime();
+		lastChangeNanos = now;
+		stableSinceNanos = now;
+		underrunNanos = now - UNDERRUN_MEMORY_MILLIS * 1000000L;
+	}
+
+	/**
+	 * @return the current buffer size in milliseconds, i.e. the output latency
+	 */
+	public double getBufferMillis() {
+		return bufferMillis;
+	}
+
+	/**
+	 * @return the current slice size in milliseconds
+	 */
+	public double getSliceMillis() {
+		return sliceMillis;
+	}
+
+	/**
+	 * @return the number of times the audio device ran out of data
+	 */
+	public int getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * @return the number of slices which took longer to render than to play
+	 */
+	public int getMissedDeadlines() {
+		return missedDeadlines;
+	}
+
+	/**
+	 * @return the number of times the buffer size was changed
+	 */
+	public int getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return the render time of the last slice divided by its duration
+	 */
+	public double getLastLoad() {
+		return lastLoad;
+	}
+
+	/**
+	 * Called after every slice with the measurements.
+	 *
+	 * @param renderNanos the time it took to render the slice
+	 * @param underrun true if the device ran out of data before this slice
+	 *            was written
+	 * @param adapt if false, only the statistics are updated
+	 * @return true if the buffer and slice size changed
+	 */
+	boolean update(long renderNanos, boolean underrun, boolean adapt) {
+		long now = System.nanoTime();
+		double renderMillis = renderNanos / 1000000.0;
+		double load = renderMillis / sliceMillis;
+		lastLoad = load;
+		if (load > 1.0) {
+			missedDeadlines++;
+		}
+		if (underrun) {
+			underruns++;
+			underrunBufferMillis = bufferMillis;
+			underrunNanos = now;
+		}
+		boolean nearMiss = (renderMillis > (bufferMillis - sliceMillis)
+				* NEAR_MISS_FRACTION);
+		if (underrun || nearMiss) {
+			stableSinceNanos = now;
+			windowMaxLoad = 0;
+			if (adapt && bufferMillis < MAX_BUFFER_MILLIS
+					&& now - lastChangeNanos >= HOLD_OFF_MILLIS * 1000000L) {
+				setBufferMillis(bufferMillis * GROW_FACTOR, now, underrun
+						? "underrun" : "slow slice");
+				return true;
+			}
+			return false;
+		}
+		if (load > windowMaxLoad) {
+			windowMaxLoad = load;
+		}
+		if (now - stableSinceNanos < STABLE_MILLIS * 1000000L) {
+			return false;
+		}
+		// a stable window is complete: try to shrink
+		boolean shrink = adapt && bufferMillis > MIN_BUFFER_MILLIS
+				&& windowMaxLoad < SHRINK_MAX_LOAD;
+		double newMillis = Math.max(MIN_BUFFER_MILLIS, bufferMillis
+				* SHRINK_FACTOR);
+		if (newMillis <= underrunBufferMillis
+				&& now - underrunNanos < UNDERRUN_MEMORY_MILLIS * 1000000L) {
+			shrink = false;
+		}
+		stableSinceNanos = now;
+		windowMaxLoad = 0;
+		if (shrink) {
+			setBufferMillis(newMillis, now, "stable");
+			return true;
+		}
+		return false;
+	}
+
+	private void setBufferMillis(double millis, long now, String reason) {
+		if (millis > MAX_BUFFER_MILLIS) {
+			millis = MAX_BUFFER_MILLIS;
+		} else if (millis < MIN_BUFFER_MILLIS) {
+			millis = MIN_BUFFER_MILLIS;
+		}
+		double slice = millis / SLICES_PER_BUFFER;
+		if (slice < MIN_SLICE_MILLIS) {
+			slice = MIN_SLICE_MILLIS;
+		} else if (slice > MAX_SLICE_MILLIS) {
+			slice = MAX_SLICE_MILLIS;
+		}
+		bufferMillis = millis;
+		sliceMillis = slice;
+		lastChangeNanos = now;
+		changes++;
+		if (DEBUG_LATENCY) {
+			debug("LatencyController: " + reason + ", new latency "
+					+ ((int) millis) + "ms, slice " + slice + "ms");
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+/**
+ * Measures the processing time of one part of the render path, e.g. the
+ * effects of a track, as a rolling average and a recent maximum. The load is
+ * the processing time divided by the duration of the rendered slice, so a
+ * load of 1.0 uses up the whole time available for rendering.
+ * <p>
+ * The add method is called by the audio thread only, it does not lock or
+ * allocate. The getters can be called from any thread, e.g. by the GUI.
+ *
+ * @author Florian Bomers
+ */
+public class LoadMeter {
+
+	/** the weight of a new measurement in the rolling average */
+	private static final double AVERAGE_WEIGHT = 0.02;
+
+	/** the maximum is taken over this many slices, at least */
+	private static final int MAX_WINDOW = 256;
+
+	private volatile double averageNanos = 0;
+
+	private volatile double averageLoad = 0;
+
+	private volatile long maxNanos = 0;
+
+	private volatile double maxLoad = 0;
+
+	// only accessed by the audio thread
+
+	private long count = 0;
+
+	private int windowCount = 0;
+
+	private long windowMaxNanos = 0;
+
+	private double windowMaxLoad = 0;
+
+	private long lastWindowMaxNanos = 0;
+
+	private double lastWindowMaxLoad = 0;
+
+	/**
+	 * Add a measurement. Called by the audio thread.
+	 *
+	 * @param nanos the time it took to process the slice
+	 * @param sliceNanos the duration of the slice
+	 */
+	void add(long nanos, double sliceNanos) {
+		double load = (sliceNanos > 0) ? nanos / sliceNanos : 0;
+		if (count == 0) {
+			averageNanos = nanos;
+			averageLoad = load;
+		} else {
+			averageNanos += (nanos - averageNanos) * AVERAGE_WEIGHT;
+			averageLoad += (load - averageLoad) * AVERAGE_WEIGHT;
+		}
+		count++;
+		if (nanos > windowMaxNanos) {
+			windowMaxNanos = nanos;
+		}
+		if (load > windowMaxLoad) {
+			windowMaxLoad = load;
+		}
+		maxNanos = Math.max(windowMaxNanos, lastWindowMaxNanos);
+		maxLoad = Math.max(windowMaxLoad, lastWindowMaxLoad);
+		windowCount++;
+		if (windowCount >= MAX_WINDOW) {
+			lastWindowMaxNanos = windowMaxNanos;
+			lastWindowMaxLoad = windowMaxLoad;
+			windowMaxNanos = 0;
+			windowMaxLoad = 0;
+			windowCount = 0;
+		}
+	}
+
+	/**
+	 * @return the rolling average of the processing time per slice, in
+	 *         nanoseconds
+	 */
+	public double getAverageNanos() {
+		return averageNanos;
+	}
+
+	/**
+	 * @return the rolling average of the load, i.e. processing time divided
+	 *         by slice duration
+	 */
+	public double getAverageLoad() {
+		return averageLoad;
+	}
+
+	/**
+	 * @return the maximum processing time of a slice in the last
+	 *         MAX_WINDOW..2*MAX_WINDOW slices, in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	/**
+	 * @return the maximum load of a slice in the last
+	 *         MAX_WINDOW..2*MAX_WINDOW slices
+	 */
+	public double getMaxLoad() {
+		return maxLoad;
+	}
+
+	/**
+	 * @return the load as a percentage string, e.g. &quot;2.5%&quot;
+	 */
+	public static String formatLoad(double load) {
+		int tenths = (int) Math.round(load * 1000.0);
+		return (tenths / 10) + "." + (tenths % 10) + "%";
+	}
+
+	/** @return the average and maximum load, e.g. &quot;2.5% (max 4.1%)&quot; */
+	@Override
+	public String toString() {
+		return formatLoad(getAverageLoad()) + " (max "
+				+ formatLoad(getMaxLoad()) + ")";
+	}
+}
@@ -23,6 +23,11 @@ public class MultiPartFormOutputStream
      */
     private static final String PREFIX = "--";
 
+    /**
+     * The size of the buffer for copying input streams.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     /**
      * The output stream to write to.
      */
@@ -242,7 +247,7 @@ public class MultiPartFormOutputStream
         }
         out.writeBytes(NEWLINE);
         // write content
-        byte[] data = new byte[1024];
+        byte[] data = new byte[COPY_BUFFER_SIZE];
         int r = 0;
         while((r = is.read(data, 0, data.length)) != -1) {
             out.write(data, 0, r);
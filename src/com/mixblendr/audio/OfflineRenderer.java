@@ -0,0 +1,774 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.tritonus.share.sampled.AudioUtils;
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+/**
+ * Renders the mix of an AudioPlayer faster than real time to a WAV or Ogg
+ * Vorbis file, without an audio device and without any GUI. The player must
+ * be initialized, but not started.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * OfflineRenderer renderer = new OfflineRenderer(player);
+ * renderer.waitForDownloads(60000);
+ * OfflineRenderer.Statistics stats = renderer.render(0,
+ * 		renderer.getEndSamples(), new File(&quot;mix.ogg&quot;), OfflineRenderer.OGG);
+ * </pre>
+ *
+ * With render(long, long, Output[]), the mix is written to several files at
+ * once, e.g. a WAV master, an Ogg Vorbis file, and a low quality preview.
+ * With renderStems(), the tracks are written to separate files while
+ * rendering the mix. Both render the timeline only once.
+ *
+ * @author Florian Bomers
+ */
+public class OfflineRenderer {
+
+	private static final boolean TRACE = false;
+
+	/** output type: 16-bit WAV file */
+	public static final int WAV = 0;
+
+	/** output type: Ogg Vorbis file, requires 44100Hz stereo */
+	public static final int OGG = 1;
+
+	/**
+	 * output type: Ogg Vorbis file with PREVIEW_QUALITY, requires 44100Hz
+	 * stereo
+	 */
+	public static final int OGG_PREVIEW = 2;
+
+	/** the Vorbis quality of OGG_PREVIEW files */
+	public static final float PREVIEW_QUALITY = 0.0f;
+
+	/**
+	 * the number of slices that can be queued for every output written in
+	 * its own thread
+	 */
+	private static final int WRITER_QUEUE_SLICES = 64;
+
+	private AudioPlayer player;
+
+	private long downloadNanos = 0;
+
+	/**
+	 * Create an offline renderer for the given player.
+	 *
+	 * @param player the initialized player, it must not be started
+	 */
+	public OfflineRenderer(AudioPlayer player) {
+		this.player = player;
+	}
+
+	/**
+	 * @return the output type for the file name extension: OGG for .ogg, WAV
+	 *         otherwise
+	 */
+	public static int getType(File file) {
+		if (file.getName().toLowerCase().endsWith(".ogg")) {
+			return OGG;
+		}
+		return WAV;
+	}
+
+	/**
+	 * Wait until all audio files used by the player are downloaded and
+	 * decoded. Returns as soon as a download fails.
+	 *
+	 * @param timeoutMillis the maximum time to wait, or 0 to wait forever
+	 * @throws IOException if a file could not be downloaded, or on timeout
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void waitForDownloads(long timeoutMillis) throws IOException,
+			InterruptedException {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		DownloadWaiter waiter = new DownloadWaiter();
+		List<AudioFileURL> files = new ArrayList<AudioFileURL>();
+		for (AudioFile af : player.getFactory().getAudioFiles()) {
+			if (af instanceof AudioFileURL) {
+				files.add((AudioFileURL) af);
+				((AudioFileURL) af).addListener(waiter);
+			}
+		}
+		try {
+			synchronized (waiter) {
+				// no need to wait for the other files if one failed
+				while (!anyFailed(files, waiter) && !allLoaded(files)) {
+					long wait = 0;
+					if (timeoutMillis > 0) {
+						wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) {
+							throw new IOException(
+									"timeout while downloading the audio files");
+						}
+					}
+					waiter.wait(wait);
+				}
+			}
+		} finally {
+			for (AudioFileURL af : files) {
+				af.removeListener(waiter);
+			}
+		}
+		downloadNanos = System.nanoTime() - start;
+		StringBuffer failed = new StringBuffer();
+		for (AudioFileURL af : files) {
+			if (hasFailed(af, waiter)) {
+				if (failed.length() > 0) {
+					failed.append(", ");
+				}
+				failed.append(af.getSource());
+			}
+		}
+		if (failed.length() > 0) {
+			throw new IOException("could not load " + failed);
+		}
+	}
+
+	/** @return true if the download of any of the files failed */
+	private static boolean anyFailed(List<AudioFileURL> files,
+			DownloadWaiter waiter) {
+		for (AudioFileURL af : files) {
+			if (hasFailed(af, waiter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the download failed, or ended without providing audio
+	 *         data, e.g. when it failed before the waiter was installed
+	 */
+	private static boolean hasFailed(AudioFileURL af, DownloadWaiter waiter) {
+		return waiter.failed.contains(af)
+				|| (af.isFullyLoaded() && af.getFormat() == null);
+	}
+
+	private static boolean allLoaded(List<AudioFileURL> files) {
+		for (AudioFileURL af : files) {
+			if (!af.isFullyLoaded()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the end of the last region of all tracks, in samples
+	 */
+	public long getEndSamples() {
+		long ret = 0;
+		for (AudioTrack t : player.getMixer().getTracks()) {
+			long end = t.getDurationSamples();
+			if (end > ret) {
+				ret = end;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Render the mix to a file. Looping is disabled while rendering.
+	 *
+	 * @param startSample the first sample to render
+	 * @param endSample the end of the rendered portion, exclusive
+	 * @param file the output file, it is overwritten
+	 * @param type WAV, OGG, or OGG_PREVIEW
+	 * @return the timing statistics
+	 * @throws IOException if the file cannot be written, or the format is not
+	 *             supported by the encoder
+	 */
+	public Statistics render(long startSample, long endSample, File file,
+			int type) throws IOException {
+		AudioState state = player.getState();
+		AudioFormat format = getFormat(type);
+		if (endSample < startSample) {
+			endSample = startSample;
+		}
+		boolean loop = player.isLoopEnabled();
+		long oldPosition = state.getSampleSlicePosition();
+		player.setLoopEnabled(false);
+		player.setPositionSamples(startSample);
+		RenderStream stream = new RenderStream(format, endSample - startSample);
+		long start = System.nanoTime();
+		try {
+			if (type != WAV) {
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(
+						file));
+				try {
+					VorbisEncoder encoder = new VorbisEncoder();
+					if (type == OGG_PREVIEW) {
+						encoder.setQuality(PREVIEW_QUALITY);
+					}
+					encoder.encode(stream, os);
+				} finally {
+					os.close();
+				}
+			} else {
+				AudioSystem.write(new AudioInputStream(stream, format,
+						endSample - startSample), AudioFileFormat.Type.WAVE,
+						file);
+			}
+		} finally {
+			player.setLoopEnabled(loop);
+			player.setPositionSamples(oldPosition);
+		}
+		Statistics ret = new Statistics();
+		ret.frames = stream.renderedFrames;
+		ret.sampleRate = format.getSampleRate();
+		ret.downloadNanos = downloadNanos;
+		ret.renderNanos = stream.renderNanos;
+		ret.writeNanos = System.nanoTime() - start - stream.renderNanos;
+		ret.maxSliceNanos = stream.maxSliceNanos;
+		ret.bytes = file.length();
+		if (DEBUG) {
+			debug("OfflineRenderer: " + file + ": " + ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the 16-bit format of the output files
+	 * @throws IOException if the encoder does not support the format
+	 */
+	private AudioFormat getFormat(int type) throws IOException {
+		AudioState state = player.getState();
+		if (player.isStarted()) {
+			throw new IllegalStateException("cannot render while playing");
+		}
+		AudioFormat format = new AudioFormat(state.getSampleRate(), 16,
+				state.getChannels(), true, false);
+		if (type != WAV
+				&& (format.getSampleRate() != 44100 || format.getChannels() != 2)) {
+			throw new IOException("Ogg Vorbis output requires 44100Hz stereo");
+		}
+		return format;
+	}
+
+	/**
+	 * Create file names for exporting all tracks with renderStems(): the
+	 * track number and the track name, with the extension for the type.
+	 *
+	 * @param dir the directory of the files
+	 * @param type WAV, OGG, or OGG_PREVIEW
+	 * @return for every track of the mixer, a file in dir
+	 */
+	public File[] getStemFiles(File dir, int type) {
+		List<AudioTrack> tracks = player.getMixer().getTracks();
+		File[] ret = new File[tracks.size()];
+		for (int i = 0; i < ret.length; i++) {
+			String name = tracks.get(i).getName();
+			StringBuffer sb = new StringBuffer();
+			sb.append(i < 9 ? "0" : "").append(i + 1);
+			if (name != null && name.length() > 0) {
+				sb.append(' ');
+				for (char c : name.toCharArray()) {
+					sb.append(Character.isLetterOrDigit(c) || c == ' '
+							|| c == '-' ? c : '_');
+				}
+			}
+			sb.append(type == WAV ? ".wav" : ".ogg");
+			ret[i] = new File(dir, sb.toString());
+		}
+		return ret;
+	}
+
+	/**
+	 * Render the tracks and the mix to separate files in one pass over the
+	 * timeline. Every track is rendered only once: its audio after the
+	 * effects is written to its own file, and the mix of all tracks to the
+	 * master file. Since the volume and balance of a track are applied before
+	 * its effects, the exported tracks include the fader. Mute and solo
+	 * apply as in the mix, and tracks routed to a bus are exported without
+	 * the bus.
+	 * <p>
+	 * Every file is converted, encoded and written by its own thread, see
+	 * render(long, long, Output[]). The export of n tracks takes about the
+	 * time of rendering the mix once, plus the time of encoding the slowest
+	 * file.
+	 *
+	 * @param startSample the first sample to render
+	 * @param endSample the end of the rendered portion, exclusive
+	 * @param trackFiles for every track of the mixer, the output file, or
+	 *            null to not export the track. The files are overwritten.
+	 * @param masterFile the output file for the mix, or null
+	 * @param type WAV, OGG, or OGG_PREVIEW
+	 * @return the timing statistics, the size is the sum of all files
+	 * @throws IOException if a file cannot be written, or the format is not
+	 *             supported by the encoder
+	 */
+	public Statistics renderStems(long startSample, long endSample,
+			File[] trackFiles, File masterFile, int type) throws IOException {
+		Output[] trackOutputs = new Output[trackFiles.length];
+		for (int i = 0; i < trackFiles.length; i++) {
+			if (trackFiles[i] != null) {
+				trackOutputs[i] = new Output(trackFiles[i], type);
+			}
+		}
+		Output[] mixOutputs = new Output[0];
+		if (masterFile != null) {
+			mixOutputs = new Output[] {
+				new Output(masterFile, type)
+			};
+		}
+		return render(startSample, endSample, trackOutputs, mixOutputs);
+	}
+
+	/**
+	 * Render the mix to several files in one pass, e.g. to a WAV file for
+	 * archiving, an Ogg Vorbis file for publishing, and an Ogg Vorbis file
+	 * with low quality for previews. Every rendered slice is handed to all
+	 * outputs, and every output is converted, encoded and written by its own
+	 * thread. An output can fall behind the rendering by WRITER_QUEUE_SLICES
+	 * slices, then rendering waits for it, so the slowest output determines
+	 * the total time, and the memory use is bounded. Looping is disabled
+	 * while rendering. If rendering or writing fails, all files are deleted.
+	 *
+	 * @param startSample the first sample to render
+	 * @param endSample the end of the rendered portion, exclusive
+	 * @param outputs the output files, they are overwritten
+	 * @return the timing statistics, the size is the sum of all files
+	 * @throws IOException if a file cannot be written, or the format is not
+	 *             supported by the encoder
+	 */
+	public Statistics render(long startSample, long endSample,
+			Output[] outputs) throws IOException {
+		return render(startSample, endSample, new Output[0], outputs);
+	}
+
+	/**
+	 * Render the mix to several files, and every track to its own files, in
+	 * one pass. See renderStems() and render(long, long, Output[]).
+	 *
+	 * @param startSample the first sample to render
+	 * @param endSample the end of the rendered portion, exclusive
+	 * @param trackOutputs for every track of the mixer, the output, or null
+	 *            to not export the track
+	 * @param mixOutputs the outputs for the mix
+	 * @return the timing statistics, the size is the sum of all files
+	 * @throws IOException if a file cannot be written, or the format is not
+	 *             supported by the encoder
+	 */
+	public Statistics render(long startSample, long endSample,
+			Output[] trackOutputs, Output[] mixOutputs) throws IOException {
+		AudioState state = player.getState();
+		AudioMixer mixer = player.getMixer();
+		AudioFormat format = getFormat(WAV);
+		for (Output o : trackOutputs) {
+			if (o != null) {
+				getFormat(o.type);
+			}
+		}
+		for (Output o : mixOutputs) {
+			getFormat(o.type);
+		}
+		if (endSample < startSample) {
+			endSample = startSample;
+		}
+		long frames = endSample - startSample;
+		int sliceSize = state.getSliceSizeSamples();
+		List<StemWriter> writers = new ArrayList<StemWriter>();
+		StemWriter[] trackWriters = new StemWriter[mixer.getTrackCount()];
+		for (int i = 0; i < trackWriters.length && i < trackOutputs.length; i++) {
+			if (trackOutputs[i] != null) {
+				trackWriters[i] = new StemWriter(trackOutputs[i], format,
+						frames, WRITER_QUEUE_SLICES, sliceSize);
+				writers.add(trackWriters[i]);
+			}
+		}
+		StemWriter[] mixWriters = new StemWriter[mixOutputs.length];
+		for (int i = 0; i < mixWriters.length; i++) {
+			mixWriters[i] = new StemWriter(mixOutputs[i], format, frames,
+					WRITER_QUEUE_SLICES, sliceSize);
+			writers.add(mixWriters[i]);
+		}
+		FloatSampleBuffer floatBuffer = new FloatSampleBuffer(
+				format.getChannels(), sliceSize, format.getSampleRate());
+		StemTap tap = new StemTap(trackWriters);
+
+		boolean loop = player.isLoopEnabled();
+		long oldPosition = state.getSampleSlicePosition();
+		player.setLoopEnabled(false);
+		player.setPositionSamples(startSample);
+		for (StemWriter w : writers) {
+			w.start();
+		}
+		if (writers.size() > mixWriters.length) {
+			mixer.setTrackTap(tap);
+		}
+		Statistics ret = new Statistics();
+		boolean success = false;
+		long start = System.nanoTime();
+		try {
+			long remainingFrames = frames;
+			while (remainingFrames > 0) {
+				int count = sliceSize;
+				if (count > remainingFrames) {
+					count = (int) remainingFrames;
+				}
+				floatBuffer.changeSampleCount(count, false);
+				long sliceStart = System.nanoTime();
+				mixer.read(floatBuffer);
+				for (StemWriter w : mixWriters) {
+					w.write(floatBuffer);
+				}
+				long nanos = System.nanoTime() - sliceStart;
+				ret.renderNanos += nanos;
+				if (nanos > ret.maxSliceNanos) {
+					ret.maxSliceNanos = nanos;
+				}
+				if (tap.interrupted) {
+					throw new InterruptedException();
+				}
+				checkWriters(writers);
+				remainingFrames -= count;
+				ret.frames += count;
+			}
+			mixer.setTrackTap(null);
+			for (StemWriter w : writers) {
+				w.finish();
+			}
+			for (StemWriter w : writers) {
+				w.join();
+			}
+			checkWriters(writers);
+			success = true;
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("stem export interrupted");
+		} finally {
+			mixer.setTrackTap(null);
+			if (!success) {
+				for (StemWriter w : writers) {
+					w.abort();
+				}
+				joinWriters(writers);
+			}
+			player.setLoopEnabled(loop);
+			player.setPositionSamples(oldPosition);
+		}
+		ret.sampleRate = format.getSampleRate();
+		ret.downloadNanos = downloadNanos;
+		ret.writeNanos = System.nanoTime() - start - ret.renderNanos;
+		for (StemWriter w : writers) {
+			ret.bytes += w.getFile().length();
+			if (TRACE) {
+				debug("OfflineRenderer: " + w.getFile() + ": encoded in "
+						+ (w.getWriteNanos() / 1000000) + "ms");
+			}
+		}
+		if (DEBUG) {
+			debug("OfflineRenderer: " + writers.size() + " files: " + ret);
+		}
+		return ret;
+	}
+
+	/** throw the first exception of the writers */
+	private static void checkWriters(List<StemWriter> writers)
+			throws IOException {
+		for (StemWriter w : writers) {
+			IOException ioe = w.getException();
+			if (ioe != null) {
+				throw ioe;
+			}
+		}
+	}
+
+	/** wait for the writers to exit, keeping the interrupted state */
+	private static void joinWriters(List<StemWriter> writers) {
+		boolean interrupted = false;
+		for (StemWriter w : writers) {
+			while (w.isAlive()) {
+				try {
+					w.join();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Hands over the audio of the tracks to their writers, in the rendering
+	 * thread.
+	 */
+	private static class StemTap implements AudioMixer.TrackTap {
+		private StemWriter[] writers;
+		volatile boolean interrupted = false;
+
+		StemTap(StemWriter[] writers) {
+			this.writers = writers;
+		}
+
+		public void trackRendered(int trackIndex, AudioTrack track,
+				long samplePos, FloatSampleBuffer buffer) {
+			if (trackIndex >= writers.length || writers[trackIndex] == null
+					|| interrupted) {
+				return;
+			}
+			try {
+				writers[trackIndex].write(buffer);
+			} catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+	}
+
+	/**
+	 * An output file of a render operation with several outputs: the file,
+	 * the type, and for Ogg Vorbis, the quality.
+	 */
+	public static class Output {
+		File file;
+		int type;
+		float quality;
+
+		/**
+		 * Create an output with the default quality of the type.
+		 *
+		 * @param file the output file
+		 * @param type WAV, OGG, or OGG_PREVIEW
+		 */
+		public Output(File file, int type) {
+			this(file, type, (type == OGG_PREVIEW) ? PREVIEW_QUALITY
+					: VorbisEncoder.DEFAULT_QUALITY);
+		}
+
+		/**
+		 * @param file the output file
+		 * @param type WAV, OGG, or OGG_PREVIEW
+		 * @param quality the Vorbis quality for Ogg Vorbis files, from -0.1
+		 *            (lowest bitrate) to 1.0 (best quality)
+		 */
+		public Output(File file, int type, float quality) {
+			this.file = file;
+			this.type = type;
+			this.quality = quality;
+		}
+
+		/** @return the output file */
+		public File getFile() {
+			return file;
+		}
+
+		/** @return the type: WAV, OGG, or OGG_PREVIEW */
+		public int getType() {
+			return type;
+		}
+
+		/** @return the Vorbis quality, only used for Ogg Vorbis files */
+		public float getQuality() {
+			return quality;
+		}
+
+		@Override
+		public String toString() {
+			return file + (type == WAV ? "" : " (quality " + quality + ")");
+		}
+	}
+
+	/**
+	 * An input stream that reads the mix from the mixer, slice by slice, and
+	 * converts it to the given format.
+	 */
+	private class RenderStream extends InputStream {
+		private AudioFormat format;
+		private FloatSampleBuffer floatBuffer;
+		private byte[] byteBuffer;
+		private int bytePos = 0;
+		private int byteCount = 0;
+		private long remainingFrames;
+		long renderedFrames = 0;
+		long renderNanos = 0;
+		long maxSliceNanos = 0;
+
+		RenderStream(AudioFormat format, long frames) {
+			this.format = format;
+			this.remainingFrames = frames;
+			int sliceSize = player.getState().getSliceSizeSamples();
+			floatBuffer = new FloatSampleBuffer(format.getChannels(),
+					sliceSize, format.getSampleRate());
+			byteBuffer = new byte[sliceSize * format.getFrameSize()];
+		}
+
+		/** render the next slice, return false at the end */
+		private boolean renderSlice() {
+			if (remainingFrames <= 0) {
+				return false;
+			}
+			int frames = byteBuffer.length / format.getFrameSize();
+			if (frames > remainingFrames) {
+				frames = (int) remainingFrames;
+			}
+			floatBuffer.changeSampleCount(frames, false);
+			long start = System.nanoTime();
+			player.getMixer().read(floatBuffer);
+			long nanos = System.nanoTime() - start;
+			renderNanos += nanos;
+			if (nanos > maxSliceNanos) {
+				maxSliceNanos = nanos;
+			}
+			byteCount = floatBuffer.convertToByteArray(byteBuffer, 0, format);
+			bytePos = 0;
+			remainingFrames -= frames;
+			renderedFrames += frames;
+			if (TRACE) {
+				debug("OfflineRenderer: rendered " + frames + " samples, "
+						+ remainingFrames + " remaining");
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) < 0) {
+				return -1;
+			}
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (bytePos >= byteCount && !renderSlice()) {
+				return -1;
+			}
+			int n = byteCount - bytePos;
+			if (n > len) {
+				n = len;
+			}
+			System.arraycopy(byteBuffer, bytePos, b, off, n);
+			bytePos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return byteCount - bytePos;
+		}
+	}
+
+	/** collects download errors and wakes up waitForDownloads() */
+	private static class DownloadWaiter implements AudioFileURL.Listener {
+		List<AudioFile> failed = new ArrayList<AudioFile>();
+
+		public void audioFileDownloadStart(AudioFile source) {
+			// nothing to do
+		}
+
+		public void audioFileDownloadUpdate(AudioFile source) {
+			// nothing to do
+		}
+
+		public synchronized void audioFileDownloadError(AudioFile source) {
+			failed.add(source);
+			notifyAll();
+		}
+
+		public synchronized void audioFileDownloadEnd(AudioFile source) {
+			notifyAll();
+		}
+	}
+
+	/** timing statistics of a render operation */
+	public static class Statistics {
+		long frames;
+		float sampleRate;
+		long downloadNanos;
+		long renderNanos;
+		long writeNanos;
+		long maxSliceNanos;
+		long bytes;
+
+		/** @return the number of rendered sample frames */
+		public long getFrames() {
+			return frames;
+		}
+
+		/** @return the duration of the rendered audio in milliseconds */
+		public double getDurationMillis() {
+			return AudioUtils.frames2MillisD(frames, sampleRate);
+		}
+
+		/**
+		 * @return the time spent waiting for downloads in waitForDownloads(),
+		 *         in milliseconds
+		 */
+		public double getDownloadMillis() {
+			return downloadNanos / 1000000.0;
+		}
+
+		/** @return the time spent in the mixer, in milliseconds */
+		public double getRenderMillis() {
+			return renderNanos / 1000000.0;
+		}
+
+		/**
+		 * @return the time spent converting, encoding and writing the file, in
+		 *         milliseconds
+		 */
+		public double getWriteMillis() {
+			return writeNanos / 1000000.0;
+		}
+
+		/** @return the maximum render time of a slice, in milliseconds */
+		public double getMaxSliceMillis() {
+			return maxSliceNanos / 1000000.0;
+		}
+
+		/** @return the size of the written file in bytes */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the duration of the audio divided by the time it took to
+		 *         render and write it
+		 */
+		public double getSpeedFactor() {
+			double millis = getRenderMillis() + getWriteMillis();
+			if (millis <= 0) {
+				return 0;
+			}
+			return getDurationMillis() / millis;
+		}
+
+		@Override
+		public String toString() {
+			return format(getDurationMillis() / 1000.0) + "s of audio, "
+					+ bytes + " bytes. Download: "
+					+ format(getDownloadMillis()) + "ms, render: "
+					+ format(getRenderMillis()) + "ms (max slice "
+					+ format(getMaxSliceMillis()) + "ms), encode/write: "
+					+ format(getWriteMillis()) + "ms, speed: "
+					+ format(getSpeedFactor()) + "x real time";
+		}
+
+		private static String format(double d) {
+			return Double.toString(Math.round(d * 10) / 10.0);
+		}
+	}
+}
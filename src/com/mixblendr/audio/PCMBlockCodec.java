@@ -0,0 +1,449 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A lossless codec for 16-bit PCM audio data. The audio data is coded in
+ * blocks of up to BLOCK_FRAMES sample frames, every block can be decoded
+ * independently of any other block. Each channel of a block is coded with a
+ * fixed linear predictor of order 0, 1, or 2, and the prediction residual is
+ * stored with Rice codes. Stereo blocks can optionally code the second channel
+ * as the difference between left and right channel. If prediction does not
+ * pay off, a channel is stored verbatim, so a block never grows by more than a
+ * few header bytes.
+ * <p>
+ * An instance of this class is not thread safe: it uses internal work buffers
+ * to prevent memory allocation during encoding and decoding.
+ *
+ * @author Florian Bomers
+ */
+public final class PCMBlockCodec {
+
+	/** the maximum number of sample frames in one block */
+	public static final int BLOCK_FRAMES = 4096;
+
+	/** the highest order of the fixed predictor */
+	private static final int MAX_ORDER = 2;
+
+	/** the highest Rice parameter */
+	private static final int MAX_RICE_PARAM = 19;
+
+	/** special value for the rice parameter field: channel is stored verbatim */
+	private static final int VERBATIM = 31;
+
+	/** number of bits in the per-channel header: 2 bits order, 5 bits param */
+	private static final int CHANNEL_HEADER_BITS = 7;
+
+	/**
+	 * residuals with a quotient of this size or larger are escaped and written
+	 * as ESCAPE_BITS raw bits
+	 */
+	private static final int ESCAPE_QUOTIENT = 32;
+
+	/** large enough for a zigzag'ed order 2 residual of the side channel */
+	private static final int ESCAPE_BITS = 20;
+
+	private final int channels;
+
+	private final int frameSize;
+
+	private final boolean bigEndian;
+
+	/** the samples of the current block, one array per channel */
+	private final int[][] samples;
+
+	/** the zigzag'ed residual of the channel currently coded */
+	private final int[] residual;
+
+	// bit writer/reader state
+	private byte[] bitData;
+	private int bitPos;
+	private long bitAcc;
+	private int bitCount;
+
+	/**
+	 * Create a new codec instance for the given format.
+	 *
+	 * @param format the format of the PCM data
+	 * @throws IllegalArgumentException if the format is not supported
+	 * @see #isSupported(AudioFormat)
+	 */
+	public PCMBlockCodec(AudioFormat format) {
+		if (!isSupported(format)) {
+			throw new IllegalArgumentException("format not supported: "
+					+ format);
+		}
+		channels = format.getChannels();
+		frameSize = format.getFrameSize();
+		bigEndian = format.isBigEndian();
+		samples = new int[channels][BLOCK_FRAMES];
+		residual = new int[BLOCK_FRAMES];
+	}
+
+	/**
+	 * @return true if audio data in the given format can be coded by this
+	 *         codec: 16-bit signed PCM.
+	 */
+	public static boolean isSupported(AudioFormat format) {
+		return format != null
+				&& format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+				&& format.getSampleSizeInBits() == 16
+				&& format.getChannels() > 0
+				&& format.getFrameSize() == 2 * format.getChannels();
+	}
+
+	/**
+	 * @return the number of bytes of a full block of uncoded PCM data
+	 */
+	public int getBlockBytes() {
+		return BLOCK_FRAMES * frameSize;
+	}
+
+	/**
+	 * @return the maximum number of bytes that encode() will write for the
+	 *         given number of frames
+	 */
+	public int getMaxEncodedSize(int frames) {
+		// one bit for the stereo mode, the channel headers, and in the worst
+		// case verbatim 17-bit samples (side channel)
+		int bits = 1 + channels * (CHANNEL_HEADER_BITS + frames * 17);
+		return (bits + 7) / 8;
+	}
+
+	/**
+	 * Encode a block of PCM data.
+	 *
+	 * @param pcm the PCM data
+	 * @param offset the offset in pcm, in bytes
+	 * @param frames the number of sample frames to encode, max. BLOCK_FRAMES
+	 * @param out the array receiving the coded block, at least
+	 *            getMaxEncodedSize(frames) bytes long after outOffset
+	 * @param outOffset where to start writing in out
+	 * @return the number of bytes written to out
+	 */
+	public int encode(byte[] pcm, int offset, int frames, byte[] out,
+			int outOffset) {
+		if (frames > BLOCK_FRAMES) {
+			throw new IllegalArgumentException("too many frames: " + frames);
+		}
+		readSamples(pcm, offset, frames);
+		boolean sideCoding = false;
+		if (channels == 2) {
+			// see if the difference signal is cheaper to code than the right
+			// channel
+			int[] left = samples[0];
+			int[] right = samples[1];
+			long rightCost = 0;
+			long sideCost = 0;
+			for (int i = MAX_ORDER; i < frames; i++) {
+				rightCost += Math.abs(right[i] - 2 * right[i - 1]
+						+ right[i - 2]);
+				int s0 = left[i] - right[i];
+				int s1 = left[i - 1] - right[i - 1];
+				int s2 = left[i - 2] - right[i - 2];
+				sideCost += Math.abs(s0 - 2 * s1 + s2);
+			}
+			if (sideCost < rightCost) {
+				sideCoding = true;
+				for (int i = 0; i < frames; i++) {
+					right[i] = left[i] - right[i];
+				}
+			}
+		}
+		startWrite(out, outOffset);
+		writeBits(sideCoding ? 1 : 0, 1);
+		for (int c = 0; c < channels; c++) {
+			encodeChannel(samples[c], frames, (sideCoding && c == 1) ? 17 : 16);
+		}
+		return endWrite() - outOffset;
+	}
+
+	/**
+	 * Decode a block that was previously coded with encode().
+	 *
+	 * @param in the coded data
+	 * @param inOffset where the block starts in in
+	 * @param pcm the array receiving the decoded PCM data
+	 * @param offset the offset in pcm, in bytes
+	 * @param frames the number of sample frames in this block (as passed to
+	 *            encode())
+	 */
+	public void decode(byte[] in, int inOffset, byte[] pcm, int offset,
+			int frames) {
+		startRead(in, inOffset);
+		boolean sideCoding = (readBits(1) != 0);
+		for (int c = 0; c < channels; c++) {
+			decodeChannel(samples[c], frames, (sideCoding && c == 1) ? 17 : 16);
+		}
+		if (sideCoding) {
+			int[] left = samples[0];
+			int[] right = samples[1];
+			for (int i = 0; i < frames; i++) {
+				right[i] = left[i] - right[i];
+			}
+		}
+		writeSamples(pcm, offset, frames);
+	}
+
+	// ------------------------------------------------ channel coding
+
+	/** encode one channel of the current block to the bit stream */
+	private void encodeChannel(int[] x, int frames, int sampleBits) {
+		// find the best order
+		long e0 = 0, e1 = 0, e2 = 0;
+		for (int i = MAX_ORDER; i < frames; i++) {
+			int x0 = x[i];
+			int x1 = x[i - 1];
+			e0 += Math.abs(x0);
+			e1 += Math.abs(x0 - x1);
+			e2 += Math.abs(x0 - 2 * x1 + x[i - 2]);
+		}
+		int order;
+		long sum;
+		if (e0 <= e1 && e0 <= e2) {
+			order = 0;
+			sum = e0;
+		} else if (e1 <= e2) {
+			order = 1;
+			sum = e1;
+		} else {
+			order = 2;
+			sum = e2;
+		}
+		if (order > frames) {
+			order = frames;
+		}
+		// calculate the zigzag'ed residual
+		int[] r = residual;
+		int count = frames - order;
+		for (int i = order; i < frames; i++) {
+			int res;
+			switch (order) {
+			case 0:
+				res = x[i];
+				break;
+			case 1:
+				res = x[i] - x[i - 1];
+				break;
+			default:
+				res = x[i] - 2 * x[i - 1] + x[i - 2];
+			}
+			r[i - order] = (res << 1) ^ (res >> 31);
+		}
+		// estimate the rice parameter from the mean, then refine it
+		int param = 0;
+		if (count > 0) {
+			long mean = (2 * sum) / count;
+			while (param < MAX_RICE_PARAM && (1L << (param + 1)) <= mean) {
+				param++;
+			}
+		}
+		long bestCost = Long.MAX_VALUE;
+		int bestParam = param;
+		for (int k = Math.max(0, param - 1); k <= Math.min(MAX_RICE_PARAM,
+				param + 1); k++) {
+			long cost = getRiceCost(r, count, k);
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestParam = k;
+			}
+		}
+		if (bestCost + order * sampleBits >= (long) frames * sampleBits) {
+			// prediction doesn't pay off
+			writeBits(VERBATIM, CHANNEL_HEADER_BITS);
+			for (int i = 0; i < frames; i++) {
+				writeBits(x[i], sampleBits);
+			}
+			return;
+		}
+		writeBits((order << 5) | bestParam, CHANNEL_HEADER_BITS);
+		// warm-up samples
+		for (int i = 0; i < order; i++) {
+			writeBits(x[i], sampleBits);
+		}
+		int k = bestParam;
+		int kMask = (1 << k) - 1;
+		for (int i = 0; i < count; i++) {
+			int u = r[i];
+			int q = u >>> k;
+			if (q >= ESCAPE_QUOTIENT) {
+				writeBits(0, ESCAPE_QUOTIENT);
+				writeBits(u, ESCAPE_BITS);
+			} else {
+				// q zeros, terminated by a 1, followed by k low bits
+				writeBits(1, q + 1);
+				if (k > 0) {
+					writeBits(u & kMask, k);
+				}
+			}
+		}
+	}
+
+	/** @return the number of bits needed to rice-code r with parameter k */
+	private static long getRiceCost(int[] r, int count, int k) {
+		long cost = 0;
+		for (int i = 0; i < count; i++) {
+			int q = r[i] >>> k;
+			if (q >= ESCAPE_QUOTIENT) {
+				cost += ESCAPE_QUOTIENT + ESCAPE_BITS;
+			} else {
+				cost += q + 1 + k;
+			}
+		}
+		return cost;
+	}
+
+	/** decode one channel of the current block from the bit stream */
+	private void decodeChannel(int[] x, int frames, int sampleBits) {
+		int header = readBits(CHANNEL_HEADER_BITS);
+		int signShift = 32 - sampleBits;
+		if ((header & 0x1F) == VERBATIM) {
+			for (int i = 0; i < frames; i++) {
+				x[i] = (readBits(sampleBits) << signShift) >> signShift;
+			}
+			return;
+		}
+		int order = header >> 5;
+		int k = header & 0x1F;
+		for (int i = 0; i < order; i++) {
+			x[i] = (readBits(sampleBits) << signShift) >> signShift;
+		}
+		for (int i = order; i < frames; i++) {
+			int u;
+			int q = readUnary();
+			if (q >= ESCAPE_QUOTIENT) {
+				u = readBits(ESCAPE_BITS);
+			} else if (k > 0) {
+				u = (q << k) | readBits(k);
+			} else {
+				u = q;
+			}
+			int res = (u >>> 1) ^ -(u & 1);
+			switch (order) {
+			case 0:
+				x[i] = res;
+				break;
+			case 1:
+				x[i] = res + x[i - 1];
+				break;
+			default:
+				x[i] = res + 2 * x[i - 1] - x[i - 2];
+			}
+		}
+	}
+
+	// ------------------------------------------------ PCM conversion
+
+	/** convert the PCM bytes to the samples arrays */
+	private void readSamples(byte[] pcm, int offset, int frames) {
+		int hi = bigEndian ? 0 : 1;
+		int lo = bigEndian ? 1 : 0;
+		for (int c = 0; c < channels; c++) {
+			int[] x = samples[c];
+			int pos = offset + 2 * c;
+			for (int i = 0; i < frames; i++) {
+				x[i] = (pcm[pos + hi] << 8) | (pcm[pos + lo] & 0xFF);
+				pos += frameSize;
+			}
+		}
+	}
+
+	/** convert the samples arrays to PCM bytes */
+	private void writeSamples(byte[] pcm, int offset, int frames) {
+		int hi = bigEndian ? 0 : 1;
+		int lo = bigEndian ? 1 : 0;
+		for (int c = 0; c < channels; c++) {
+			int[] x = samples[c];
+			int pos = offset + 2 * c;
+			for (int i = 0; i < frames; i++) {
+				int sample = x[i];
+				pcm[pos + hi] = (byte) (sample >> 8);
+				pcm[pos + lo] = (byte) sample;
+				pos += frameSize;
+			}
+		}
+	}
+
+	// ------------------------------------------------ bit stream
+
+	private void startWrite(byte[] data, int offset) {
+		bitData = data;
+		bitPos = offset;
+		bitAcc = 0;
+		bitCount = 0;
+	}
+
+	/** write the lower n bits of value, n <= 32 */
+	private void writeBits(int value, int n) {
+		bitAcc = (bitAcc << n) | (value & ((1L << n) - 1));
+		bitCount += n;
+		while (bitCount >= 8) {
+			bitCount -= 8;
+			bitData[bitPos++] = (byte) (bitAcc >>> bitCount);
+		}
+	}
+
+	/** flush the remaining bits and return the end position */
+	private int endWrite() {
+		if (bitCount > 0) {
+			bitData[bitPos++] = (byte) (bitAcc << (8 - bitCount));
+			bitCount = 0;
+		}
+		bitData = null;
+		return bitPos;
+	}
+
+	private void startRead(byte[] data, int offset) {
+		bitData = data;
+		bitPos = offset;
+		bitAcc = 0;
+		bitCount = 0;
+	}
+
+	/** read n bits, n <= 32 */
+	private int readBits(int n) {
+		while (bitCount < n) {
+			bitAcc = (bitAcc << 8) | (bitData[bitPos++] & 0xFF);
+			bitCount += 8;
+		}
+		bitCount -= n;
+		return (int) ((bitAcc >>> bitCount) & ((1L << n) - 1));
+	}
+
+	/**
+	 * Read a sequence of zeros terminated by a one bit.
+	 *
+	 * @return the number of zeros, or ESCAPE_QUOTIENT if ESCAPE_QUOTIENT zeros
+	 *         were read without terminating bit
+	 */
+	private int readUnary() {
+		int q = 0;
+		while (true) {
+			if (bitCount == 0) {
+				bitAcc = (bitAcc << 8) | (bitData[bitPos++] & 0xFF);
+				bitCount = 8;
+			}
+			long bits = bitAcc & ((1L << bitCount) - 1);
+			int zeros;
+			if (bits == 0) {
+				zeros = bitCount;
+			} else {
+				zeros = bitCount - (64 - Long.numberOfLeadingZeros(bits));
+			}
+			if (q + zeros >= ESCAPE_QUOTIENT) {
+				bitCount -= ESCAPE_QUOTIENT - q;
+				return ESCAPE_QUOTIENT;
+			}
+			q += zeros;
+			bitCount -= zeros;
+			if (bits != 0) {
+				// skip the terminating one
+				bitCount--;
+				return q;
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Random access storage of PCM data, compressed with PCMBlockCodec. Incoming
+ * data is collected until a full block is available, which is then encoded and
+ * appended to the underlying storage. A block index allows to find the coded
+ * block for any byte position. The last, incomplete block is kept uncoded in
+ * memory. A small number of decoded blocks is cached, so that consecutive
+ * reads will only decode a block once.
+ * <p>
+ * Descendants implement the actual storage, e.g. in a file or in memory.
+ *
+ * @author Florian Bomers
+ */
+abstract class PCMBlockStore {
+
+	/** how many decoded blocks are kept */
+	private static final int DECODED_BLOCK_CACHE_SIZE = 4;
+
+	private PCMBlockCodec codec;
+
+	/** size of an uncoded block in bytes */
+	private int blockBytes;
+
+	/** frame size in bytes */
+	private int frameSize;
+
+	/**
+	 * the block index: the start position of every block in the storage.
+	 * blockIndex[blockCount] is the end of the last block.
+	 */
+	private long[] blockIndex;
+
+	/** number of coded blocks */
+	private int blockCount;
+
+	/** the incomplete block, uncoded */
+	private byte[] pending;
+
+	/** number of bytes in pending */
+	private int pendingFill;
+
+	/** buffer for coded data */
+	private byte[] codedBuffer;
+
+	/** the cached decoded blocks */
+	private byte[][] decoded;
+
+	/** the block numbers of the cached decoded blocks, or -1 */
+	private int[] decodedBlock;
+
+	/** the cache slot to be replaced next */
+	private int nextDecodedSlot;
+
+	/**
+	 * Create a new block store for the given format.
+	 *
+	 * @throws IllegalArgumentException if the format is not supported by
+	 *             PCMBlockCodec.
+	 */
+	protected PCMBlockStore(AudioFormat format) {
+		codec = new PCMBlockCodec(format);
+		blockBytes = codec.getBlockBytes();
+		frameSize = format.getFrameSize();
+		blockIndex = new long[64];
+		blockCount = 0;
+		pending = new byte[blockBytes];
+		pendingFill = 0;
+		codedBuffer = new byte[codec.getMaxEncodedSize(PCMBlockCodec.BLOCK_FRAMES)];
+		decoded = new byte[DECODED_BLOCK_CACHE_SIZE][];
+		decodedBlock = new int[DECODED_BLOCK_CACHE_SIZE];
+		for (int i = 0; i < DECODED_BLOCK_CACHE_SIZE; i++) {
+			decodedBlock[i] = -1;
+		}
+	}
+
+	/**
+	 * Append coded data to the storage.
+	 *
+	 * @param pos the position in the storage, always the end of the previously
+	 *            stored data
+	 */
+	protected abstract void storeBlock(long pos, byte[] data, int offset,
+			int length) throws IOException;
+
+	/**
+	 * Read coded data from the storage.
+	 *
+	 * @param pos the position in the storage
+	 */
+	protected abstract void loadBlock(long pos, byte[] data, int offset,
+			int length) throws IOException;
+
+	/**
+	 * @return the number of bytes used by coded blocks in the storage
+	 */
+	public synchronized long getStoredBytes() {
+		return blockIndex[blockCount];
+	}
+
+	/**
+	 * @return the number of PCM bytes written to this store
+	 */
+	public synchronized long getPCMBytes() {
+		return ((long) blockCount) * blockBytes + pendingFill;
+	}
+
+	/**
+	 * Append PCM data. Full blocks are coded and stored.
+	 */
+	public synchronized void write(byte[] data, int offset, int length)
+			throws IOException {
+		if (pending == null) {
+			// closed
+			return;
+		}
+		while (length > 0) {
+			int count = blockBytes - pendingFill;
+			if (count > length) {
+				count = length;
+			}
+			System.arraycopy(data, offset, pending, pendingFill, count);
+			pendingFill += count;
+			offset += count;
+			length -= count;
+			if (pendingFill == blockBytes) {
+				int coded = codec.encode(pending, 0, PCMBlockCodec.BLOCK_FRAMES,
+						codedBuffer, 0);
+				long pos = blockIndex[blockCount];
+				storeBlock(pos, codedBuffer, 0, coded);
+				if (blockCount + 2 > blockIndex.length) {
+					long[] newIndex = new long[blockIndex.length * 2];
+					System.arraycopy(blockIndex, 0, newIndex, 0,
+							blockIndex.length);
+					blockIndex = newIndex;
+				}
+				blockCount++;
+				blockIndex[blockCount] = pos + coded;
+				pendingFill = 0;
+			}
+		}
+	}
+
+	/**
+	 * Read PCM data from the given position.
+	 *
+	 * @param pos the position in PCM bytes
+	 * @return the number of bytes read, which is less than length if reading
+	 *         beyond the written data.
+	 */
+	public synchronized int read(long pos, byte[] buffer, int offset,
+			int length) throws IOException {
+		int ret = 0;
+		while (length > 0) {
+			int block = (int) (pos / blockBytes);
+			int blockOffset = (int) (pos - ((long) block) * blockBytes);
+			byte[] src;
+			int avail;
+			if (block < blockCount) {
+				src = getDecodedBlock(block);
+				avail = blockBytes - blockOffset;
+			} else if (block == blockCount) {
+				src = pending;
+				avail = pendingFill - blockOffset;
+			} else {
+				break;
+			}
+			if (avail <= 0) {
+				break;
+			}
+			if (avail > length) {
+				avail = length;
+			}
+			System.arraycopy(src, blockOffset, buffer, offset, avail);
+			pos += avail;
+			offset += avail;
+			length -= avail;
+			ret += avail;
+		}
+		// only return full frames
+		return ret - (ret % frameSize);
+	}
+
+	/** return the decoded block, from the cache, if possible */
+	private byte[] getDecodedBlock(int block) throws IOException {
+		for (int i = 0; i < DECODED_BLOCK_CACHE_SIZE; i++) {
+			if (decodedBlock[i] == block) {
+				return decoded[i];
+			}
+		}
+		int slot = nextDecodedSlot;
+		nextDecodedSlot = (nextDecodedSlot + 1) % DECODED_BLOCK_CACHE_SIZE;
+		if (decoded[slot] == null) {
+			decoded[slot] = new byte[blockBytes];
+		}
+		// invalidate in case loading or decoding fails
+		decodedBlock[slot] = -1;
+		long start = blockIndex[block];
+		int length = (int) (blockIndex[block + 1] - start);
+		loadBlock(start, codedBuffer, 0, length);
+		codec.decode(codedBuffer, 0, decoded[slot], 0,
+				PCMBlockCodec.BLOCK_FRAMES);
+		decodedBlock[slot] = block;
+		return decoded[slot];
+	}
+
+	/** free the memory used by this store */
+	public synchronized void close() {
+		pending = null;
+		pendingFill = 0;
+		decoded = new byte[DECODED_BLOCK_CACHE_SIZE][];
+		for (int i = 0; i < DECODED_BLOCK_CACHE_SIZE; i++) {
+			decodedBlock[i] = -1;
+		}
+		blockCount = 0;
+	}
+}
@@ -0,0 +1,282 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+/**
+ * A clock that tells which sample of the song is audible right now. The audio
+ * output thread reports the frame position of the audio device
+ * (SourceDataLine.getLongFramePosition()) after every written slice, together
+ * with the song position of the written audio. The device position is only
+ * updated in chunks by most drivers, and it is read at irregular times, so a
+ * linear model of device frames against System.nanoTime() is fitted to the
+ * measurements with a second order delay-locked loop: every measurement
+ * corrects the phase by a part of the error, and the rate by a smaller part
+ * of it. This filters the jitter and follows the drift between the sound
+ * card's clock and the system clock.
+ * <p>
+ * The song position of a device frame is looked up in a ring of anchors,
+ * one for every written slice, so that seeking, looping and rendering ahead
+ * are taken into account.
+ * <p>
+ * The update methods are called by the audio output thread, the getters can
+ * be called from any thread, e.g. by the GUI's display timer.
+ *
+ * @author Florian Bomers
+ */
+public class PlaybackClock {
+
+	private static final boolean DEBUG_CLOCK = false;
+
+	/** the bandwidth of the delay-locked loop in Hz */
+	private static final double BANDWIDTH = 0.5;
+
+	/** the rate never deviates more than this from the nominal rate */
+	private static final double MAX_RATE_DEVIATION = 0.05;
+
+	/**
+	 * if the model is off by more than this, it is restarted from the
+	 * measurement
+	 */
+	private static final double RESTART_MILLIS = 50;
+
+	/** the number of written slices that are remembered */
+	private static final int ANCHOR_COUNT = 64;
+
+	private final AudioState state;
+
+	/** the nominal rate in frames per nanosecond */
+	private final double nominalRate;
+
+	// the model: modelFrames at modelNanos, advancing by rate frames per ns
+
+	private boolean valid = false;
+
+	private long modelNanos;
+
+	private double modelFrames;
+
+	private double rate;
+
+	/** the number of measurements since the model was started */
+	private int measurements = 0;
+
+	/** the last measured error in frames */
+	private double lastError = 0;
+
+	// anchors: for every written slice, its device frames and song positions
+
+	private final long[] anchorStartFrames = new long[ANCHOR_COUNT];
+
+	private final long[] anchorEndFrames = new long[ANCHOR_COUNT];
+
+	private final long[] anchorStartPositions = new long[ANCHOR_COUNT];
+
+	private final long[] anchorEndPositions = new long[ANCHOR_COUNT];
+
+	/** the number of anchors written since the last reset */
+	private long anchorCount = 0;
+
+	/** the last returned device frame, the clock never runs backwards */
+	private long lastFrame = 0;
+
+	/**
+	 * Create a clock for the state's sample rate.
+	 */
+	public PlaybackClock(AudioState state) {
+		this.state = state;
+		nominalRate = state.getSampleRate() / 1000000000.0;
+		rate = nominalRate;
+	}
+
+	/**
+	 * Forget the model and the anchors, e.g. after the device was flushed or
+	 * stopped. Until the next slice is written, the clock is not valid.
+	 */
+	synchronized void reset() {
+		valid = false;
+		measurements = 0;
+		anchorCount = 0;
+		lastFrame = 0;
+		lastError = 0;
+	}
+
+	/**
+	 * Called by the audio output thread after a slice was written to the
+	 * device.
+	 *
+	 * @param startFrame the device frame of the first written frame
+	 * @param endFrame the device frame after the last written frame
+	 * @param endPosition the song position after the written slice
+	 * @param deviceFrame the device's frame position, measured just now
+	 * @param nanos System.nanoTime() of the measurement
+	 */
+	synchronized void sliceWritten(long startFrame, long endFrame,
+			long endPosition, long deviceFrame, long nanos) {
+		// the song position at the start of this slice: continuous from the
+		// previous slice, unless this is the first one
+		long startPosition;
+		if (anchorCount > 0
+				&& anchorEndFrames[(int) ((anchorCount - 1) % ANCHOR_COUNT)] == startFrame) {
+			startPosition = anchorEndPositions[(int) ((anchorCount - 1) % ANCHOR_COUNT)];
+		} else {
+			startPosition = endPosition - (endFrame - startFrame);
+		}
+		int a = (int) (anchorCount % ANCHOR_COUNT);
+		anchorStartFrames[a] = startFrame;
+		anchorEndFrames[a] = endFrame;
+		anchorStartPositions[a] = startPosition;
+		anchorEndPositions[a] = endPosition;
+		anchorCount++;
+		measure(deviceFrame, nanos);
+	}
+
+	/** update the model with a measurement of the device position */
+	private void measure(long deviceFrame, long nanos) {
+		if (valid) {
+			long dt = nanos - modelNanos;
+			if (dt <= 0) {
+				return;
+			}
+			double predicted = modelFrames + rate * dt;
+			double error = deviceFrame - predicted;
+			if (Math.abs(error) > RESTART_MILLIS * nominalRate * 1000000.0) {
+				if (DEBUG_CLOCK) {
+					debug("PlaybackClock: restart, error=" + ((int) error)
+							+ " frames");
+				}
+				valid = false;
+			} else {
+				// loop filter coefficients of a critically damped DLL
+				double omega = 2 * Math.PI * BANDWIDTH * dt / 1000000000.0;
+				double b = Math.sqrt(2) * omega;
+				double c = omega * omega;
+				modelNanos = nanos;
+				modelFrames = predicted + b * error;
+				rate += c * error / dt;
+				if (rate > nominalRate * (1 + MAX_RATE_DEVIATION)) {
+					rate = nominalRate * (1 + MAX_RATE_DEVIATION);
+				} else if (rate < nominalRate * (1 - MAX_RATE_DEVIATION)) {
+					rate = nominalRate * (1 - MAX_RATE_DEVIATION);
+				}
+				lastError = error;
+				measurements++;
+			}
+		}
+		if (!valid) {
+			modelNanos = nanos;
+			modelFrames = deviceFrame;
+			rate = nominalRate;
+			lastError = 0;
+			measurements = 1;
+			valid = true;
+		}
+	}
+
+	/**
+	 * @return true if the clock has measurements of the running device
+	 */
+	public synchronized boolean isValid() {
+		return valid && anchorCount > 0;
+	}
+
+	/**
+	 * Return the device frame which is audible at the given time, from the
+	 * smoothed model. The returned frame never decreases, and never exceeds
+	 * the written frames.
+	 *
+	 * @param nanos the time, as returned by System.nanoTime()
+	 * @return the device frame, or -1 if the clock is not valid
+	 */
+	public synchronized long getDeviceFrame(long nanos) {
+		if (!isValid()) {
+			return -1;
+		}
+		long frame = (long) (modelFrames + rate * (nanos - modelNanos));
+		long written = anchorEndFrames[(int) ((anchorCount - 1) % ANCHOR_COUNT)];
+		if (frame > written) {
+			frame = written;
+		}
+		if (frame < lastFrame) {
+			frame = lastFrame;
+		}
+		lastFrame = frame;
+		return frame;
+	}
+
+	/**
+	 * @return the song position in samples which is audible right now, or -1
+	 *         if the clock is not valid
+	 */
+	public long getPosition() {
+		return getPosition(System.nanoTime());
+	}
+
+	/**
+	 * Return the song position which is audible at the given time.
+	 *
+	 * @param nanos the time, as returned by System.nanoTime()
+	 * @return the song position in samples, or -1 if the clock is not valid
+	 */
+	public synchronized long getPosition(long nanos) {
+		long frame = getDeviceFrame(nanos);
+		if (frame < 0) {
+			return -1;
+		}
+		return frame2position(frame);
+	}
+
+	/** look up the song position of the device frame in the anchors */
+	private long frame2position(long frame) {
+		long oldest = Math.max(0, anchorCount - ANCHOR_COUNT);
+		int a = (int) (oldest % ANCHOR_COUNT);
+		for (long i = anchorCount - 1; i >= oldest; i--) {
+			a = (int) (i % ANCHOR_COUNT);
+			if (frame >= anchorStartFrames[a]) {
+				break;
+			}
+		}
+		long startFrame = anchorStartFrames[a];
+		long startPos = anchorStartPositions[a];
+		long endPos = anchorEndPositions[a];
+		if (frame <= startFrame) {
+			return startPos;
+		}
+		long frames = anchorEndFrames[a] - startFrame;
+		if (endPos - startPos == frames) {
+			return startPos + (frame - startFrame);
+		}
+		// a discontinuity in this slice: a loop or a new position
+		if (state.isLoopEnabled() && startPos < state.getLoopEndSamples()
+				&& frame - startFrame < state.getLoopEndSamples() - startPos) {
+			return startPos + (frame - startFrame);
+		}
+		return Math.max(0, endPos - (anchorEndFrames[a] - frame));
+	}
+
+	/**
+	 * @return the drift of the device clock against the system clock, in
+	 *         parts per million
+	 */
+	public synchronized double getDriftPPM() {
+		return (rate / nominalRate - 1.0) * 1000000.0;
+	}
+
+	/**
+	 * @return the difference of the last measured device position to the
+	 *         model, in milliseconds
+	 */
+	public synchronized double getLastErrorMillis() {
+		return lastError / (nominalRate * 1000000.0);
+	}
+
+	/**
+	 * @return the number of measurements since the model was (re)started
+	 */
+	public synchronized int getMeasurements() {
+		return measurements;
+	}
+
+}
@@ -6,6 +6,8 @@ package com.mixblendr.audio;
 import java.util.*;
 
 import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import com.mixblendr.util.TraceRecorder;
 import static com.mixblendr.util.Debug.*;
 
 /**
@@ -22,6 +24,9 @@ public class Playlist implements AudioInput {
 
 	private final static boolean DEBUG_PLAYLIST = false;
 
+	private static final int TRACE_READ = TraceRecorder.registerEvent(
+			"Playlist.read", "playlist");
+
 	private AudioState state;
 
 	/** maintain the next expected sample position to detect jumps */
@@ -32,6 +37,13 @@ public class Playlist implements AudioInput {
 
 	private List<AutomationObject> elements = null;
 
+	/**
+	 * the last automation object of every type before the playback position,
+	 * indexed by the handler index. Used for chasing after a jump, only
+	 * accessed with the lock held.
+	 */
+	private AutomationObject[] chasing = new AutomationObject[0];
+
 	/** prevent instanciation of def constructor */
 	private Playlist() {
 		super();
@@ -48,6 +60,12 @@ public class Playlist implements AudioInput {
 		this();
 		this.state = state;
 		this.owner = owner;
+		// prepare the fade buffers here, so that the audio thread does not
+		// allocate them
+		fadeInBuffer = new FloatSampleBuffer(state.getChannels(),
+				getFadeSampleCount(), state.getSampleRate());
+		fadeOutBuffer = new FloatSampleBuffer(state.getChannels(),
+				getFadeSampleCount(), state.getSampleRate());
 	}
 
 	/**
@@ -72,11 +90,23 @@ public class Playlist implements AudioInput {
 	 */
 	public synchronized void addObject(AutomationObject ao) {
 		ao.owner = this;
+		if (ao.getHandler().getIndex() >= chasing.length) {
+			// allocate here, not in the render thread
+			chasing = new AutomationObject[AutomationManager.getHandlerCount()];
+		}
 		int i = 0;
 		int c = elements.size();
 		long aost = ao.getStartTimeSamples();
 		boolean isRegion = (ao instanceof AudioRegion);
+		if (isRegion) {
+			// keep the audio file open while the region is in this playlist
+			((AudioRegion) ao).acquireAudioFile();
+		}
 		boolean sameTimeSameClass = false;
+		if (c > 0 && elements.get(c - 1).getStartTimeSamples() < aost) {
+			// fast path for appending, e.g. when loading a project
+			i = c;
+		}
 		while (i < c) {
 			AutomationObject el = elements.get(i);
 			long startTime = el.getStartTimeSamples();
@@ -369,11 +399,18 @@ public class Playlist implements AudioInput {
 			elements.remove(ao);
 		}
 		addObject(ao);
+		state.invalidateRenderedAudio();
 	}
 
-	/** force the current playback position to be reinitialized */
+	/**
+	 * force the current playback position to be reinitialized, and discard
+	 * audio rendered ahead
+	 */
 	private void initRegionPlayback() {
 		nextSamplePos = -1;
+		if (state != null) {
+			state.invalidateRenderedAudio();
+		}
 	}
 
 	/** index in elements of the next object to execute */
@@ -474,6 +511,16 @@ public class Playlist implements AudioInput {
 	 */
 	public synchronized boolean read(long samplePos, FloatSampleBuffer buffer,
 			int offset, int sampleCount) {
+		long traceStart = TraceRecorder.begin();
+		boolean ret = readImpl(samplePos, buffer, offset, sampleCount);
+		TraceRecorder.end(TRACE_READ, traceStart, (owner != null)
+				? owner.index : -1, samplePos);
+		return ret;
+	}
+
+	/** the implementation of read(), called with the lock held */
+	private boolean readImpl(long samplePos, FloatSampleBuffer buffer,
+			int offset, int sampleCount) {
 		if (nextSamplePos != samplePos) {
 			// go through the list of objects and find the current position
 			// also, do chasing for automation objects
@@ -495,7 +542,10 @@ public class Playlist implements AudioInput {
 				} else if (startTime > samplePos) {
 					break;
 				}
-				ao.getHandler().setLastChasingObject(ao);
+				int h = ao.getHandler().getIndex();
+				if (h < chasing.length) {
+					chasing[h] = ao;
+				}
 			}
 			currElementIndex = i;
 			// set playback position of the region
@@ -505,13 +555,11 @@ public class Playlist implements AudioInput {
 			}
 			initNewCurrRegion(samplePos);
 			// now execute all chasing objects
-			for (AutomationHandler ah : AutomationManager.types.values()) {
-				AutomationObject last = ah.getLastChasingObject();
-				if (last != null
-				// sanity
-						&& last.owner == this) {
+			for (int h = 0; h < chasing.length; h++) {
+				AutomationObject last = chasing[h];
+				if (last != null) {
 					last.execute(owner);
-					ah.setLastChasingObject(null);
+					chasing[h] = null;
 				}
 			}
 		}
@@ -0,0 +1,508 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+import org.tritonus.share.sampled.FloatSampleInput;
+
+import com.mixblendr.util.TraceRecorder;
+
+/**
+ * A ring of rendered slices between the mixer and the audio device. A render
+ * thread reads slices from the mixer ahead of the playback position, and the
+ * audio device thread only copies them from the ring. Render hiccups (garbage
+ * collection, disk access, heavy effects) are absorbed by the rendered slices
+ * in the ring, instead of the device buffer.
+ * <p>
+ * The ring is a single producer (render thread), single consumer (audio
+ * device thread) queue with volatile read and write indices, it does not
+ * lock. When the user changes the arrangement, the mix, or effect parameters,
+ * invalidate() discards all rendered slices except the next KEEP_SLICES, so
+ * the change is audible quickly. The cut is done by the consumer, which
+ * knows exactly which slices are played; the render thread acknowledges it
+ * and renders again from the position after the kept slices. After a cut, the
+ * ring is refilled at most REFILL_SPEED times faster than real time, so that
+ * a series of changes, e.g. while dragging a slider, does not cause a burst
+ * of rendering.
+ * <p>
+ * Effects keep their internal state (e.g. the contents of a delay line) when
+ * the ring is cut, so the discarded slices may still be audible in effect
+ * tails.
+ * <p>
+ * The slots are allocated for a maximum slice size and number of slices, so
+ * that the slice size and the number of slices rendered ahead can be changed
+ * with setSliceSize() during playback, e.g. when the latency changes.
+ * Slices that are already rendered keep their size: the device thread plays
+ * them as they are.
+ *
+ * @author Florian Bomers
+ */
+public class RenderAheadBuffer implements FloatSampleInput {
+
+	private static final boolean DEBUG_RENDER_AHEAD = false;
+
+	private static final int TRACE_UNDERRUN = TraceRecorder.registerEvent(
+			"RenderAheadBuffer.underrun", "output");
+
+	/** the number of rendered slices that are kept when invalidating */
+	public static final int KEEP_SLICES = 2;
+
+	/**
+	 * the number of slices that are always rendered as fast as possible after
+	 * invalidating
+	 */
+	private static final int MIN_FILL_SLICES = 2 * KEEP_SLICES;
+
+	/**
+	 * after invalidating, the ring is filled at most by this many slices per
+	 * played slice
+	 */
+	private static final int REFILL_SPEED = 2;
+
+	/** the priority of the render thread */
+	private static final int THREAD_PRIORITY = Thread.MAX_PRIORITY - 1;
+
+	private final AudioState state;
+
+	private final AudioMixer mixer;
+
+	/** the rendered slices */
+	private final FloatSampleBuffer[] slots;
+
+	/** for every slot: the slice position after rendering it */
+	private final long[] slotEndPositions;
+
+	/** for every slot: the number of rendered samples */
+	private final int[] slotSampleCounts;
+
+	/** the number of slots */
+	private final int capacity;
+
+	/** the number of samples the slots can hold */
+	private final int maxSliceSize;
+
+	/** the number of samples of the slices to render */
+	private volatile int sliceSize;
+
+	/** the number of slices to render ahead, at most capacity */
+	private volatile int fillSlices;
+
+	/** the index of the next slice to render, only written by the producer */
+	private volatile long writeIndex = 0;
+
+	/** the index of the next slice to play, only written by the consumer */
+	private volatile long readIndex = 0;
+
+	/** incremented by invalidate() */
+	private final AtomicInteger invalidateRequests = new AtomicInteger();
+
+	/** the last invalidate request handled by the consumer */
+	private int handledRequests = 0;
+
+	/** the first discarded slice of the last cut */
+	private volatile long cutIndex = 0;
+
+	/** the read index at the time of the last cut */
+	private volatile long cutReadIndex = 0;
+
+	/** incremented by the consumer for every cut */
+	private volatile int cutGeneration = 0;
+
+	/** set by the producer to cutGeneration once it handled the cut */
+	private volatile int ackGeneration = 0;
+
+	/** a new playback position, to be set when the ring is cut, or -1 */
+	private final AtomicLong requestedPosition = new AtomicLong(-1);
+
+	/** the slice position after the last played slice */
+	private volatile long lastReadPosition;
+
+	/** the number of slices which were not rendered in time */
+	private volatile int underruns = 0;
+
+	private volatile Thread renderThread;
+
+	/**
+	 * Create a render-ahead ring.
+	 *
+	 * @param state the state
+	 * @param mixer the mixer to render
+	 * @param sliceSize the number of samples of every slice
+	 * @param slices the number of slices to render ahead
+	 * @param maxSliceSize the largest slice size that can be set with
+	 *            setSliceSize()
+	 * @param maxSlices the largest number of slices to render ahead that can
+	 *            be set with setSliceSize()
+	 */
+	RenderAheadBuffer(AudioState state, AudioMixer mixer, int sliceSize,
+			int slices, int maxSliceSize, int maxSlices) {
+		this.state = state;
+		this.mixer = mixer;
+		this.maxSliceSize = Math.max(sliceSize, maxSliceSize);
+		capacity = Math.max(Math.max(slices, maxSlices), MIN_FILL_SLICES + 1);
+		slots = new FloatSampleBuffer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new FloatSampleBuffer(state.getChannels(),
+					this.maxSliceSize, state.getSampleRate());
+		}
+		slotEndPositions = new long[capacity];
+		slotSampleCounts = new int[capacity];
+		setSliceSize(sliceSize, slices);
+		lastReadPosition = state.getSampleSlicePosition();
+	}
+
+	/**
+	 * Change the size of the slices rendered from now on, and the number of
+	 * slices to render ahead. The slices that are already rendered are kept.
+	 * Does not allocate memory, so it can be called by the device thread. The
+	 * values are limited to the maximum given to the constructor.
+	 *
+	 * @param sliceSize the new number of samples of every slice
+	 * @param slices the new number of slices to render ahead
+	 */
+	void setSliceSize(int sliceSize, int slices) {
+		if (sliceSize > maxSliceSize) {
+			sliceSize = maxSliceSize;
+		}
+		if (slices > capacity) {
+			slices = capacity;
+		} else if (slices < MIN_FILL_SLICES + 1) {
+			slices = MIN_FILL_SLICES + 1;
+		}
+		fillSlices = slices;
+		this.sliceSize = sliceSize;
+		unparkRenderThread();
+	}
+
+	/**
+	 * @return the number of slots in the ring, i.e. the maximum number of
+	 *         slices rendered ahead
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of slices that are rendered ahead
+	 */
+	public int getTargetSlices() {
+		return fillSlices;
+	}
+
+	/**
+	 * @return the number of samples of the slices that are rendered
+	 */
+	public int getSliceSize() {
+		return sliceSize;
+	}
+
+	/**
+	 * @return the number of rendered slices that are not played yet
+	 */
+	public int getFillSlices() {
+		return (int) (writeIndex - readIndex);
+	}
+
+	/**
+	 * @return the number of slices for which the device thread had to wait
+	 *         for the render thread in vain
+	 */
+	public int getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * @return the slice position after the last slice that was passed to the
+	 *         audio device
+	 */
+	public long getLastReadPosition() {
+		return lastReadPosition;
+	}
+
+	/**
+	 * @return true if the render thread is running
+	 */
+	public boolean isRunning() {
+		return renderThread != null;
+	}
+
+	/** start the render thread */
+	synchronized void start() {
+		if (renderThread != null) {
+			return;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				renderLoop();
+			}
+		}, "Audio Render Thread");
+		t.setDaemon(true);
+		t.setPriority(THREAD_PRIORITY);
+		renderThread = t;
+		t.start();
+	}
+
+	/**
+	 * Stop the render thread and set the slice position to the position after
+	 * the last played slice, or to the requested position.
+	 */
+	synchronized void stop() {
+		Thread t = renderThread;
+		if (t == null) {
+			return;
+		}
+		renderThread = null;
+		LockSupport.unpark(t);
+		try {
+			t.join(1000);
+		} catch (InterruptedException ie) {
+			// nothing
+		}
+		long pos = requestedPosition.getAndSet(-1);
+		if (pos < 0) {
+			pos = lastReadPosition;
+		}
+		state.setSampleSlicePosition(pos);
+		if (DEBUG_RENDER_AHEAD) {
+			debug("RenderAheadBuffer: stopped at " + pos + ", " + underruns
+					+ " underruns");
+		}
+	}
+
+	/**
+	 * Discard the rendered slices, except the next KEEP_SLICES, so that
+	 * changes become audible. Can be called from any thread. Calls from the
+	 * render thread itself, e.g. when automation objects are executed, are
+	 * ignored: these changes are part of the rendered audio.
+	 */
+	public void invalidate() {
+		if (Thread.currentThread() == renderThread) {
+			return;
+		}
+		invalidateRequests.incrementAndGet();
+	}
+
+	/**
+	 * Discard the rendered slices like invalidate(), and continue playback at
+	 * the given position.
+	 *
+	 * @param pos the new playback position in samples
+	 * @return false if the render thread is not running, then the caller
+	 *         should set the position in the mixer directly
+	 */
+	boolean requestPosition(long pos) {
+		if (renderThread == null) {
+			return false;
+		}
+		requestedPosition.set(pos);
+		invalidate();
+		return true;
+	}
+
+	/**
+	 * Will just return the AudioState's channels.
+	 *
+	 * @see org.tritonus.share.sampled.FloatSampleInput#getChannels()
+	 */
+	public int getChannels() {
+		return state.getChannels();
+	}
+
+	/**
+	 * Will just return the AudioState's sample rate.
+	 *
+	 * @see org.tritonus.share.sampled.FloatSampleInput#getSampleRate()
+	 */
+	public float getSampleRate() {
+		return state.getSampleRate();
+	}
+
+	/**
+	 * @see org.tritonus.share.sampled.FloatSampleInput#isDone()
+	 */
+	public boolean isDone() {
+		return false;
+	}
+
+	/**
+	 * Called by the audio device thread: copy the next rendered slice to the
+	 * buffer, and set the buffer's sample count to the size of the slice. If
+	 * the render thread does not deliver the slice within one slice duration,
+	 * the buffer is filled with a slice of silence. The buffer should have
+	 * room for the maximum slice size, then this method does not allocate
+	 * memory.
+	 *
+	 * @see org.tritonus.share.sampled.FloatSampleInput#read(org.tritonus.share.sampled.FloatSampleBuffer)
+	 */
+	public void read(FloatSampleBuffer buffer) {
+		int slot = waitForSlice();
+		if (slot < 0) {
+			buffer.changeSampleCount(sliceSize, false);
+			buffer.makeSilence();
+			return;
+		}
+		int count = slotSampleCounts[slot];
+		buffer.changeSampleCount(count, false);
+		readSlice(slot, buffer, 0);
+	}
+
+	/**
+	 * Called by the audio device thread: copy the next rendered slice to the
+	 * buffer. If the render thread does not deliver the slice within one
+	 * slice duration, silence is returned.
+	 *
+	 * @param sampleCount the number of samples to read, must be the size of
+	 *            the next slice
+	 * @see org.tritonus.share.sampled.FloatSampleInput#read(org.tritonus.share.sampled.FloatSampleBuffer,
+	 *      int, int)
+	 */
+	public void read(FloatSampleBuffer buffer, int offset, int sampleCount) {
+		int slot = waitForSlice();
+		if (slot < 0) {
+			buffer.makeSilence(offset, sampleCount);
+			return;
+		}
+		if (sampleCount != slotSampleCounts[slot]) {
+			throw new IllegalArgumentException("the next slice has "
+					+ slotSampleCounts[slot] + " samples");
+		}
+		readSlice(slot, buffer, offset);
+	}
+
+	/**
+	 * Cut the ring if requested, and wait until the next slice is rendered.
+	 *
+	 * @return the slot of the next slice, or -1 if it was not rendered in time
+	 */
+	private int waitForSlice() {
+		int requests = invalidateRequests.get();
+		if (requests != handledRequests && ackGeneration == cutGeneration) {
+			// cut the ring after the slices to keep
+			handledRequests = requests;
+			long r = readIndex;
+			cutIndex = Math.min(writeIndex, r + KEEP_SLICES);
+			cutReadIndex = r;
+			cutGeneration++;
+			unparkRenderThread();
+		}
+		long r = readIndex;
+		long deadline = -1;
+		while (r >= getReadLimit()) {
+			if (renderThread == null) {
+				return -1;
+			}
+			long now = System.nanoTime();
+			if (deadline < 0) {
+				deadline = now + (long) (state.sample2millis(sliceSize) * 1000000.0);
+			} else if (now > deadline) {
+				underruns++;
+				TraceRecorder.instant(TRACE_UNDERRUN, -1, lastReadPosition);
+				EngineMetrics.renderAheadUnderrun();
+				if (DEBUG_RENDER_AHEAD) {
+					debug("RenderAheadBuffer: underrun");
+				}
+				return -1;
+			}
+			unparkRenderThread();
+			LockSupport.parkNanos(100000);
+		}
+		return (int) (r % capacity);
+	}
+
+	/** copy the slice in the slot to the buffer and advance the read index */
+	private void readSlice(int slot, FloatSampleBuffer buffer, int offset) {
+		slots[slot].copyTo(0, buffer, offset, slotSampleCounts[slot]);
+		lastReadPosition = slotEndPositions[slot];
+		readIndex = readIndex + 1;
+		unparkRenderThread();
+	}
+
+	/**
+	 * @return the index of the first slice the consumer must not read: the
+	 *         write index, or the cut index if the cut is not acknowledged yet
+	 */
+	private final long getReadLimit() {
+		long limit = writeIndex;
+		if (cutGeneration != ackGeneration && limit > cutIndex) {
+			limit = cutIndex;
+		}
+		return limit;
+	}
+
+	private final void unparkRenderThread() {
+		Thread t = renderThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/** the loop of the render thread */
+	private void renderLoop() {
+		Thread thisThread = Thread.currentThread();
+		AudioOutput.setRealtimeThread();
+		// after a cut: the write and read index at the cut
+		boolean paced = false;
+		long paceWrite = 0;
+		long paceRead = 0;
+		if (DEBUG_RENDER_AHEAD) {
+			debug("RenderAheadBuffer: render thread started with "
+					+ fillSlices + " slices of " + sliceSize + " samples");
+		}
+		try {
+			while (renderThread == thisThread) {
+				int gen = cutGeneration;
+				if (gen != ackGeneration) {
+					// the consumer cut the ring: render again after the kept
+					// slices
+					long cut = cutIndex;
+					if (cut > 0) {
+						state.setSampleSlicePosition(slotEndPositions[(int) ((cut - 1) % capacity)]);
+					}
+					long pos = requestedPosition.getAndSet(-1);
+					if (pos >= 0) {
+						// cross fade to the new position in the next slice
+						mixer.setRequestedPlaybackPositionImpl(pos);
+					}
+					writeIndex = cut;
+					paced = true;
+					paceWrite = cut;
+					paceRead = cutReadIndex;
+					ackGeneration = gen;
+				}
+				long w = writeIndex;
+				long r = readIndex;
+				boolean render = (w - r < fillSlices);
+				if (render && paced && w - r >= MIN_FILL_SLICES) {
+					render = (w < paceWrite + (r - paceRead) * REFILL_SPEED);
+				}
+				if (!render) {
+					LockSupport.parkNanos(this, 50000000L);
+					continue;
+				}
+				int slot = (int) (w % capacity);
+				FloatSampleBuffer buffer = slots[slot];
+				int count = sliceSize;
+				buffer.changeSampleCount(count, false);
+				mixer.read(buffer, 0, count);
+				slotSampleCounts[slot] = count;
+				slotEndPositions[slot] = state.getSampleSlicePosition();
+				writeIndex = w + 1;
+			}
+		} catch (Throwable t) {
+			error("Exception in render thread:");
+			error(t);
+			renderThread = null;
+		}
+		if (DEBUG_RENDER_AHEAD) {
+			debug("RenderAheadBuffer: render thread stopped.");
+		}
+	}
+
+}
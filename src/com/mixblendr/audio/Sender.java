@@ -15,7 +15,7 @@ public class Sender
     /**
      * @param fatalExceptionListener the fatalExceptionListener to set
      */
-    void setFatalExceptionListener(FatalExceptionListener fatalExceptionListener) {
+    public void setFatalExceptionListener(FatalExceptionListener fatalExceptionListener) {
         this.fatalExceptionListener = fatalExceptionListener;
     }
 
@@ -28,12 +28,29 @@ public class Sender
         hostUrl = url;    
     }
 
+    /**
+     * @return the length of the multipart body written by sendFile()
+     */
+    private static long getContentLength(String boundary, String filename,
+            long fileLength) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MultiPartFormOutputStream out = new MultiPartFormOutputStream(bos, boundary);
+        out.writeFile("uploaded", "binary", filename, new byte[0]);
+        out.close();
+        return bos.size() + fileLength;
+    }
+
     public void sendFile(File tempFile, String filename)   {
         try
         {
             URL url = new URL(hostUrl);
             String boundary = MultiPartFormOutputStream.createBoundary();
             URLConnection urlConnection = MultiPartFormOutputStream.createConnection(url);
+            if (urlConnection instanceof HttpURLConnection) {
+                // stream the body instead of buffering the whole file
+                ((HttpURLConnection) urlConnection).setFixedLengthStreamingMode(
+                        getContentLength(boundary, filename, tempFile.length()));
+            }
             urlConnection.setRequestProperty("Accept", "*/*");
             urlConnection.setRequestProperty("Content-Type",
                 MultiPartFormOutputStream.getContentType(boundary));
@@ -0,0 +1,643 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.*;
+
+/**
+ * A simulated audio device for machines without a sound card, e.g. for
+ * benchmarking the real-time behavior of the audio output on a server. The
+ * line has a buffer like a real SourceDataLine, and a device thread consumes
+ * the written frames in periods of periodMillis at the exact clock rate of
+ * the format. Like the interrupt of a sound card, the device thread wakes up
+ * late by a random time up to jitterMillis, and then consumes all periods
+ * that are due. The written audio data is discarded.
+ * <p>
+ * If a period is due and the buffer does not hold enough frames, the device
+ * plays silence for the missing frames and counts an underrun; the frame
+ * position always advances with the clock, as with real devices. The line
+ * also measures the time spent in write(), and how late a blocked write()
+ * returns after the device made room in the buffer.
+ * <p>
+ * The line is its own device: set it with AudioOutput.setDevice(), or set the
+ * system property mixblendr.audiodevice to "simulated".
+ *
+ * @author Florian Bomers
+ */
+public class SimulatedLine implements SourceDataLine, AudioOutput.Device {
+
+	private static final boolean DEBUG_LINE = false;
+
+	/** the default period of the device thread */
+	public static final double DEFAULT_PERIOD_MILLIS = 5;
+
+	/** the buffer size if none is given when opening the line */
+	public static final double DEFAULT_BUFFER_MILLIS = 500;
+
+	private final double periodMillis;
+
+	private final double jitterMillis;
+
+	private final Random random;
+
+	private final List<LineListener> listeners = new ArrayList<LineListener>();
+
+	private AudioFormat format;
+
+	private int frameSize;
+
+	private int periodFrames;
+
+	private long periodNanos;
+
+	private volatile Thread thread;
+
+	// the following fields are guarded by this
+
+	private boolean open = false;
+
+	private boolean running = false;
+
+	private boolean draining = false;
+
+	/** incremented by stop(), flush() and close() to end blocking writes */
+	private int generation = 0;
+
+	/** the size of the buffer in frames */
+	private int bufferFrames;
+
+	/** the number of frames in the buffer */
+	private int queued = 0;
+
+	/** the number of frames written since the line was flushed */
+	private long writtenFrames = 0;
+
+	/** the number of frames played since the line was opened */
+	private long position = 0;
+
+	/** the time when the clock started */
+	private long clockStartNanos;
+
+	/** the number of periods played since the clock started */
+	private long periods;
+
+	/** the time when the device last made room in the buffer */
+	private long lastPeriodNanos;
+
+	// statistics
+
+	private int underruns;
+
+	private long underrunFrames;
+
+	private int writes;
+
+	private long writeNanos;
+
+	private long maxWriteNanos;
+
+	private int blockedWrites;
+
+	private long wakeupNanos;
+
+	private long maxWakeupNanos;
+
+	private long playedPeriods;
+
+	private long deviceLateNanos;
+
+	private long maxDeviceLateNanos;
+
+	/**
+	 * Create a simulated line with the default period and no jitter.
+	 */
+	public SimulatedLine() {
+		this(DEFAULT_PERIOD_MILLIS, 0, 0);
+	}
+
+	/**
+	 * Create a simulated line.
+	 *
+	 * @param periodMillis the duration of the periods played by the device
+	 * @param jitterMillis the maximum delay of the device thread's wake-up
+	 * @param seed the seed of the random jitter
+	 */
+	public SimulatedLine(double periodMillis, double jitterMillis, long seed) {
+		if (periodMillis <= 0 || jitterMillis < 0) {
+			throw new IllegalArgumentException("illegal period or jitter");
+		}
+		this.periodMillis = periodMillis;
+		this.jitterMillis = jitterMillis;
+		random = new Random(seed);
+		format = AudioOutput.DEFAULT_FORMAT;
+		frameSize = format.getFrameSize();
+	}
+
+	/**
+	 * @return the duration of the periods played by the device
+	 */
+	public double getPeriodMillis() {
+		return periodMillis;
+	}
+
+	/**
+	 * @return the maximum delay of the device thread's wake-up
+	 */
+	public double getJitterMillis() {
+		return jitterMillis;
+	}
+
+	// --------------------------------- AudioOutput.Device
+
+	/**
+	 * @return this line. It can be opened in any PCM format.
+	 * @throws LineUnavailableException if the line is open in another format
+	 */
+	public synchronized SourceDataLine getLine(AudioFormat fmt)
+			throws LineUnavailableException {
+		if (open && !fmt.matches(format)) {
+			throw new LineUnavailableException("simulated line is open in "
+					+ format);
+		}
+		return this;
+	}
+
+	public String getName() {
+		return "Simulated audio device (" + periodMillis + "ms periods, "
+				+ jitterMillis + "ms jitter)";
+	}
+
+	// --------------------------------- statistics
+
+	/**
+	 * @return the number of periods that did not have enough frames in the
+	 *         buffer
+	 */
+	public synchronized int getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * @return the number of frames played as silence because of underruns
+	 */
+	public synchronized long getUnderrunFrames() {
+		return underrunFrames;
+	}
+
+	/**
+	 * @return the number of calls to write()
+	 */
+	public synchronized int getWriteCount() {
+		return writes;
+	}
+
+	/**
+	 * @return the average time spent in write() in nanoseconds
+	 */
+	public synchronized double getAverageWriteNanos() {
+		return (writes > 0) ? ((double) writeNanos) / writes : 0;
+	}
+
+	/**
+	 * @return the maximum time spent in write() in nanoseconds
+	 */
+	public synchronized long getMaxWriteNanos() {
+		return maxWriteNanos;
+	}
+
+	/**
+	 * @return the number of calls to write() which waited for room in the
+	 *         buffer
+	 */
+	public synchronized int getBlockedWrites() {
+		return blockedWrites;
+	}
+
+	/**
+	 * @return the average time from the device making room in the buffer
+	 *         until a blocked write() continued, in nanoseconds
+	 */
+	public synchronized double getAverageWakeupNanos() {
+		return (blockedWrites > 0) ? ((double) wakeupNanos) / blockedWrites
+				: 0;
+	}
+
+	/**
+	 * @return the maximum time from the device making room in the buffer until
+	 *         a blocked write() continued, in nanoseconds
+	 */
+	public synchronized long getMaxWakeupNanos() {
+		return maxWakeupNanos;
+	}
+
+	/**
+	 * @return the average delay of the device thread after the end of a
+	 *         period, in nanoseconds, i.e. the jitter and the scheduling delay
+	 */
+	public synchronized double getAverageDeviceLateNanos() {
+		return (playedPeriods > 0) ? ((double) deviceLateNanos)
+				/ playedPeriods : 0;
+	}
+
+	/**
+	 * @return the maximum delay of the device thread after the end of a
+	 *         period, in nanoseconds
+	 */
+	public synchronized long getMaxDeviceLateNanos() {
+		return maxDeviceLateNanos;
+	}
+
+	/** reset the statistics */
+	public synchronized void resetStatistics() {
+		underruns = 0;
+		underrunFrames = 0;
+		writes = 0;
+		writeNanos = 0;
+		maxWriteNanos = 0;
+		blockedWrites = 0;
+		wakeupNanos = 0;
+		maxWakeupNanos = 0;
+		playedPeriods = 0;
+		deviceLateNanos = 0;
+		maxDeviceLateNanos = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SimulatedLine: " + underruns + " underruns (" + underrunFrames
+				+ " frames), " + writes + " writes avg "
+				+ micros(getAverageWriteNanos()) + " max "
+				+ micros(maxWriteNanos) + ", " + blockedWrites
+				+ " blocked, wake-up avg " + micros(getAverageWakeupNanos())
+				+ " max " + micros(maxWakeupNanos) + ", device late avg "
+				+ micros(getAverageDeviceLateNanos()) + " max "
+				+ micros(maxDeviceLateNanos);
+	}
+
+	private static String micros(double nanos) {
+		return ((long) (nanos / 1000)) + "us";
+	}
+
+	// --------------------------------- Line
+
+	public Line.Info getLineInfo() {
+		return new DataLine.Info(SourceDataLine.class, format);
+	}
+
+	public void open() throws LineUnavailableException {
+		open(format);
+	}
+
+	public void open(AudioFormat fmt) throws LineUnavailableException {
+		open(fmt, AudioSystem.NOT_SPECIFIED);
+	}
+
+	public void open(AudioFormat fmt, int bufferSize)
+			throws LineUnavailableException {
+		synchronized (this) {
+			if (open) {
+				if (!fmt.matches(format)) {
+					throw new IllegalStateException("line is open in "
+							+ format);
+				}
+				return;
+			}
+			if (fmt.getFrameSize() <= 0 || fmt.getFrameRate() <= 0) {
+				throw new LineUnavailableException("unsupported format: "
+						+ fmt);
+			}
+			format = fmt;
+			frameSize = fmt.getFrameSize();
+			if (bufferSize <= 0) {
+				bufferFrames = (int) (DEFAULT_BUFFER_MILLIS
+						* fmt.getFrameRate() / 1000);
+			} else {
+				bufferFrames = bufferSize / frameSize;
+			}
+			periodFrames = Math.max(1, (int) Math.round(periodMillis
+					* fmt.getFrameRate() / 1000));
+			periodNanos = (long) (periodFrames * 1000000000.0 / fmt.getFrameRate());
+			if (bufferFrames < periodFrames) {
+				bufferFrames = periodFrames;
+			}
+			queued = 0;
+			writtenFrames = 0;
+			position = 0;
+			running = false;
+			open = true;
+			thread = new Thread("Simulated Audio Device") {
+				@Override
+				public void run() {
+					deviceLoop(this);
+				}
+			};
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+			if (DEBUG_LINE) {
+				debug(getName() + ": opened with " + bufferFrames
+						+ " frames buffer, " + periodFrames
+						+ " frames per period");
+			}
+		}
+		fireEvent(LineEvent.Type.OPEN);
+	}
+
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			open = false;
+			running = false;
+			generation++;
+			t = thread;
+			thread = null;
+			notifyAll();
+		}
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+		fireEvent(LineEvent.Type.CLOSE);
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	public Control[] getControls() {
+		return new Control[0];
+	}
+
+	public boolean isControlSupported(Control.Type control) {
+		return false;
+	}
+
+	public Control getControl(Control.Type control) {
+		throw new IllegalArgumentException("unsupported control: " + control);
+	}
+
+	public void addLineListener(LineListener listener) {
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+	}
+
+	public void removeLineListener(LineListener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	private void fireEvent(LineEvent.Type type) {
+		LineListener[] ll;
+		synchronized (listeners) {
+			if (listeners.isEmpty()) {
+				return;
+			}
+			ll = listeners.toArray(new LineListener[listeners.size()]);
+		}
+		LineEvent event = new LineEvent(this, type, getLongFramePosition());
+		for (LineListener l : ll) {
+			l.update(event);
+		}
+	}
+
+	// --------------------------------- DataLine
+
+	public void start() {
+		synchronized (this) {
+			if (!open || running) {
+				return;
+			}
+			running = true;
+			clockStartNanos = System.nanoTime();
+			lastPeriodNanos = clockStartNanos;
+			periods = 0;
+			notifyAll();
+		}
+		fireEvent(LineEvent.Type.START);
+	}
+
+	public void stop() {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			generation++;
+			notifyAll();
+		}
+		fireEvent(LineEvent.Type.STOP);
+	}
+
+	public synchronized boolean isRunning() {
+		return running;
+	}
+
+	public synchronized boolean isActive() {
+		return running && queued > 0;
+	}
+
+	/** wait until the device played all frames in the buffer */
+	public synchronized void drain() {
+		draining = true;
+		try {
+			while (running && queued > 0) {
+				wait();
+			}
+		} catch (InterruptedException ie) {
+			// return
+		} finally {
+			draining = false;
+		}
+	}
+
+	public synchronized void flush() {
+		queued = 0;
+		writtenFrames = 0;
+		generation++;
+		notifyAll();
+	}
+
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	public synchronized int getBufferSize() {
+		return bufferFrames * frameSize;
+	}
+
+	public synchronized int available() {
+		return (bufferFrames - queued) * frameSize;
+	}
+
+	public int getFramePosition() {
+		return (int) getLongFramePosition();
+	}
+
+	public synchronized long getLongFramePosition() {
+		return position;
+	}
+
+	public long getMicrosecondPosition() {
+		return (long) (getLongFramePosition() * 1000000.0 / format.getFrameRate());
+	}
+
+	public float getLevel() {
+		return AudioSystem.NOT_SPECIFIED;
+	}
+
+	// --------------------------------- SourceDataLine
+
+	/**
+	 * Write the data to the buffer. Blocks until all data is written, or until
+	 * the line is stopped, flushed, or closed.
+	 *
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if len is not an integral number of
+	 *             frames
+	 */
+	public int write(byte[] b, int off, int len) {
+		if (len % frameSize != 0) {
+			throw new IllegalArgumentException("not an integral number of frames: "
+					+ len + " bytes");
+		}
+		int frames = len / frameSize;
+		long start = System.nanoTime();
+		int done = 0;
+		synchronized (this) {
+			int gen = generation;
+			boolean blocked = false;
+			while (done < frames) {
+				if (!open || gen != generation) {
+					break;
+				}
+				int n = Math.min(frames - done, bufferFrames - queued);
+				if (n > 0) {
+					if (blocked) {
+						addWakeup(System.nanoTime() - lastPeriodNanos);
+						blocked = false;
+					}
+					queued += n;
+					writtenFrames += n;
+					done += n;
+					continue;
+				}
+				if (!blocked) {
+					blocked = true;
+					blockedWrites++;
+				}
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			writes++;
+			writeNanos += nanos;
+			if (nanos > maxWriteNanos) {
+				maxWriteNanos = nanos;
+			}
+		}
+		return done * frameSize;
+	}
+
+	private void addWakeup(long nanos) {
+		wakeupNanos += nanos;
+		if (nanos > maxWakeupNanos) {
+			maxWakeupNanos = nanos;
+		}
+	}
+
+	// --------------------------------- the device
+
+	/**
+	 * The device thread: wait for the end of the next period plus the jitter,
+	 * then play the periods that are due.
+	 */
+	private void deviceLoop(Thread thisThread) {
+		long jitterNanos = (long) (jitterMillis * 1000000.0);
+		long wakeNanos = 0;
+		while (true) {
+			synchronized (this) {
+				while (thread == thisThread && !running) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+						return;
+					}
+					// the clock is restarted by start()
+					wakeNanos = 0;
+				}
+				if (thread != thisThread) {
+					break;
+				}
+				if (wakeNanos == 0) {
+					wakeNanos = clockStartNanos + periodNanos;
+					if (jitterNanos > 0) {
+						wakeNanos += (long) (random.nextDouble() * jitterNanos);
+					}
+				}
+			}
+			long now;
+			while ((now = System.nanoTime()) < wakeNanos
+					&& thread == thisThread) {
+				LockSupport.parkNanos(wakeNanos - now);
+			}
+			synchronized (this) {
+				if (thread != thisThread) {
+					break;
+				}
+				if (!running) {
+					continue;
+				}
+				playPeriods(now);
+				wakeNanos = clockStartNanos + (periods + 1) * periodNanos;
+				if (jitterNanos > 0) {
+					wakeNanos += (long) (random.nextDouble() * jitterNanos);
+				}
+			}
+		}
+		if (DEBUG_LINE) {
+			debug(getName() + ": device thread exits");
+		}
+	}
+
+	/** play all periods that are due at now. Must hold the lock. */
+	private void playPeriods(long now) {
+		long due = (now - clockStartNanos) / periodNanos;
+		while (periods < due) {
+			periods++;
+			long late = now - clockStartNanos - periods * periodNanos;
+			playedPeriods++;
+			deviceLateNanos += late;
+			if (late > maxDeviceLateNanos) {
+				maxDeviceLateNanos = late;
+			}
+			int n = Math.min(queued, periodFrames);
+			queued -= n;
+			if (n < periodFrames && writtenFrames > 0 && !draining) {
+				underruns++;
+				underrunFrames += periodFrames - n;
+				if (DEBUG_LINE) {
+					debug(getName() + ": underrun, " + (periodFrames - n)
+							+ " frames missing");
+				}
+			}
+			position += periodFrames;
+		}
+		lastPeriodNanos = now;
+		notifyAll();
+	}
+}
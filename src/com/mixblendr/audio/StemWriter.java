@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.io.*;
+import java.util.ArrayDeque;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+/**
+ * Writes one output of a render operation with several outputs, e.g. one
+ * track of a stem export, to a WAV or Ogg Vorbis file in its own thread. The rendering thread hands over every slice with write(), which
+ * copies it to a buffer from a fixed pool. The writer thread converts and
+ * encodes the queued slices, and returns the buffers to the pool. If the
+ * writer falls behind by the whole pool, write() blocks until a buffer is
+ * free, so that the memory use is bounded.
+ *
+ * @author Florian Bomers
+ */
+class StemWriter extends Thread {
+
+	private static final boolean TRACE = false;
+
+	private File file;
+
+	private int type;
+
+	private float quality;
+
+	private AudioFormat format;
+
+	private long frames;
+
+	/** the slices waiting to be written */
+	private ArrayDeque<FloatSampleBuffer> queue;
+
+	/** the free buffers */
+	private ArrayDeque<FloatSampleBuffer> pool;
+
+	/** set by finish(): no more slices will be written */
+	private boolean finished = false;
+
+	/** set if writing failed, or if the export was aborted */
+	private IOException exception;
+
+	/** the time spent converting, encoding and writing */
+	private long writeNanos = 0;
+
+	/**
+	 * Create a writer. The thread is not started.
+	 *
+	 * @param output the output file, it is overwritten, and its type
+	 * @param format the 16-bit format of the file
+	 * @param frames the number of sample frames that will be written
+	 * @param poolSize the number of slices that can be queued
+	 * @param sliceSize the maximum number of samples of a slice
+	 */
+	StemWriter(OfflineRenderer.Output output, AudioFormat format, long frames,
+			int poolSize, int sliceSize) {
+		super("StemWriter " + output.getFile().getName());
+		this.file = output.getFile();
+		this.type = output.getType();
+		this.quality = output.getQuality();
+		this.format = format;
+		this.frames = frames;
+		queue = new ArrayDeque<FloatSampleBuffer>(poolSize);
+		pool = new ArrayDeque<FloatSampleBuffer>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			pool.add(new FloatSampleBuffer(format.getChannels(), sliceSize,
+					format.getSampleRate()));
+		}
+	}
+
+	/** @return the output file */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Queue a copy of the slice for writing, waiting for a free buffer if
+	 * necessary.
+	 *
+	 * @param slice the rendered audio, it is not modified
+	 * @return false if the writer failed or was aborted
+	 * @throws InterruptedException if the calling thread is interrupted
+	 *             while waiting for a free buffer
+	 */
+	boolean write(FloatSampleBuffer slice) throws InterruptedException {
+		FloatSampleBuffer buffer;
+		synchronized (this) {
+			while (pool.isEmpty() && exception == null) {
+				wait();
+			}
+			if (exception != null) {
+				return false;
+			}
+			buffer = pool.removeFirst();
+		}
+		int count = slice.getSampleCount();
+		buffer.changeSampleCount(count, false);
+		slice.copyTo(buffer, 0, count);
+		synchronized (this) {
+			queue.addLast(buffer);
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Signal the end of the stream. The writer thread exits when it wrote all
+	 * queued slices.
+	 */
+	synchronized void finish() {
+		finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Stop writing, and delete the file after the writer thread exits.
+	 */
+	synchronized void abort() {
+		if (exception == null) {
+			exception = new InterruptedIOException("stem export aborted");
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the exception if writing failed or was aborted, or null
+	 */
+	synchronized IOException getException() {
+		return exception;
+	}
+
+	/** @return the time spent converting, encoding and writing, in nanos */
+	long getWriteNanos() {
+		return writeNanos;
+	}
+
+	private synchronized void failed(IOException ioe) {
+		if (exception == null) {
+			exception = ioe;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the next queued slice, or null at the end of the stream
+	 * @throws InterruptedIOException if the writer failed or was aborted
+	 */
+	private synchronized FloatSampleBuffer take() throws InterruptedIOException {
+		while (queue.isEmpty() && !finished && exception == null) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException();
+			}
+		}
+		if (exception != null) {
+			throw new InterruptedIOException("stem export aborted");
+		}
+		return queue.pollFirst();
+	}
+
+	/** return a written buffer to the pool */
+	private synchronized void recycle(FloatSampleBuffer buffer) {
+		pool.addLast(buffer);
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+		SliceStream stream = new SliceStream();
+		try {
+			if (type != OfflineRenderer.WAV) {
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(
+						file));
+				try {
+					VorbisEncoder encoder = new VorbisEncoder();
+					encoder.setQuality(quality);
+					encoder.encode(stream, os);
+				} finally {
+					os.close();
+				}
+			} else {
+				AudioSystem.write(new AudioInputStream(stream, format, frames),
+						AudioFileFormat.Type.WAVE, file);
+			}
+		} catch (IOException ioe) {
+			failed(ioe);
+		} catch (Throwable t) {
+			failed(new IOException("error writing " + file + ": " + t));
+		}
+		writeNanos = System.nanoTime() - start - stream.waitNanos;
+		if (getException() != null) {
+			file.delete();
+			if (DEBUG) {
+				debug("StemWriter: " + file + ": " + getException());
+			}
+		} else if (TRACE) {
+			debug("StemWriter: " + file + " written in "
+					+ (writeNanos / 1000000) + "ms");
+		}
+	}
+
+	/**
+	 * The input stream of the encoder: converts the queued slices to the
+	 * 16-bit format.
+	 */
+	private class SliceStream extends InputStream {
+		private byte[] byteBuffer;
+		private int bytePos = 0;
+		private int byteCount = 0;
+		long waitNanos = 0;
+
+		/** convert the next slice, return false at the end */
+		private boolean nextSlice() throws InterruptedIOException {
+			long start = System.nanoTime();
+			FloatSampleBuffer buffer = take();
+			waitNanos += System.nanoTime() - start;
+			if (buffer == null) {
+				return false;
+			}
+			int size = buffer.getSampleCount() * format.getFrameSize();
+			if (byteBuffer == null || byteBuffer.length < size) {
+				byteBuffer = new byte[size];
+			}
+			byteCount = buffer.convertToByteArray(byteBuffer, 0, format);
+			bytePos = 0;
+			recycle(buffer);
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) < 0) {
+				return -1;
+			}
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (bytePos >= byteCount) {
+				if (!nextSlice()) {
+					return -1;
+				}
+			}
+			int n = byteCount - bytePos;
+			if (n > len) {
+				n = len;
+			}
+			System.arraycopy(byteBuffer, bytePos, b, off, n);
+			bytePos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return byteCount - bytePos;
+		}
+	}
+}
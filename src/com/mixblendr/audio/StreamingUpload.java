@@ -0,0 +1,474 @@
+/**
+ *
+ */
+package com.mixblendr.audio;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Uploads a file to the server while it is written, e.g. while the Ogg
+ * Vorbis encoder produces it. Everything written to getOutputStream() is
+ * appended to a spool file, and the upload thread sends the spool file with
+ * chunked transfer encoding as it grows, so that encoding and uploading
+ * overlap and the request body is never held in memory.
+ * <p>
+ * The file is sent as the multipart form field "uploaded", like Sender does,
+ * together with the fields "upload", a random id of this upload, and
+ * "offset", the position in the file where the sent data starts. The server
+ * acknowledges a complete file with a response containing "OK". If an
+ * attempt fails, the upload is resumed from the spool file, without encoding
+ * again: the server is asked how many bytes of the upload it stored, with a
+ * GET request with the parameter "upload", answered with "offset=&lt;bytes&gt;".
+ * Servers that do not answer this request get the whole file again.
+ *
+ * @author Florian Bomers
+ */
+public class StreamingUpload {
+
+	private static final boolean TRACE = false;
+
+	/** the size of the HTTP chunks, and of the buffers reading the spool */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** the default number of attempts */
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+	/** the default time to wait before resuming a failed upload */
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+
+	private URL url;
+
+	private String fileName;
+
+	private File spoolFile;
+
+	private String id;
+
+	private FileChannel writeChannel;
+
+	private OutputStream outputStream;
+
+	private Thread thread;
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+	// the following fields are guarded by this
+
+	/** the number of bytes in the spool file */
+	private long written = 0;
+
+	/** set when the output stream is closed */
+	private boolean finished = false;
+
+	private boolean aborted = false;
+
+	/** set when the upload thread exits */
+	private boolean done = false;
+
+	/** if the server acknowledged the file */
+	private boolean success = false;
+
+	private IOException exception;
+
+	private int attempts = 0;
+
+	private long sentBytes = 0;
+
+	private String response;
+
+	/**
+	 * Create an upload. The spool file is created or truncated.
+	 *
+	 * @param url the URL to post the file to
+	 * @param fileName the file name sent to the server
+	 * @param spoolFile the file receiving the written data. It is not
+	 *            deleted by this class.
+	 * @throws IOException if the spool file cannot be created, or if the URL
+	 *             is invalid
+	 */
+	public StreamingUpload(String url, String fileName, File spoolFile)
+			throws IOException {
+		this.url = new URL(url);
+		this.fileName = fileName;
+		this.spoolFile = spoolFile;
+		id = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+		writeChannel = new FileOutputStream(spoolFile).getChannel();
+		outputStream = new SpoolOutputStream();
+	}
+
+	/**
+	 * @return the maximum number of upload attempts
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts the maximum number of upload attempts, including
+	 *            the first one
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return the time to wait before resuming a failed upload
+	 */
+	public long getRetryDelayMillis() {
+		return retryDelayMillis;
+	}
+
+	/**
+	 * @param millis the time to wait before resuming a failed upload
+	 */
+	public void setRetryDelayMillis(long millis) {
+		this.retryDelayMillis = millis;
+	}
+
+	/**
+	 * @return the id of this upload, sent to the server
+	 */
+	public String getID() {
+		return id;
+	}
+
+	/**
+	 * The stream receiving the file. Closing it completes the file, then the
+	 * upload finishes with the last bytes.
+	 *
+	 * @return the output stream
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * Start the upload thread. It sends the data as soon as it is written to
+	 * the output stream.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("upload already started");
+		}
+		thread = new Thread("StreamingUpload " + fileName) {
+			@Override
+			public void run() {
+				uploadLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the upload, e.g. if encoding failed. The current request fails,
+	 * so that the server does not acknowledge an incomplete file.
+	 */
+	public synchronized void abort() {
+		aborted = true;
+		if (exception == null) {
+			exception = new InterruptedIOException("upload aborted");
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait until the upload is finished.
+	 *
+	 * @param timeoutMillis the maximum time to wait, or 0 to wait forever
+	 * @return true if the server acknowledged the file, false if it rejected
+	 *         it
+	 * @throws IOException if the upload failed in all attempts, or if it
+	 *             was aborted, or on timeout
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public synchronized boolean waitFor(long timeoutMillis) throws IOException,
+			InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!done) {
+			long wait = 0;
+			if (timeoutMillis > 0) {
+				wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new IOException("timeout while uploading " + fileName);
+				}
+			}
+			wait(wait);
+		}
+		if (exception != null) {
+			throw exception;
+		}
+		return success;
+	}
+
+	/**
+	 * @return the number of attempts so far
+	 */
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return the number of bytes of the file sent so far, in all attempts
+	 */
+	public synchronized long getSentBytes() {
+		return sentBytes;
+	}
+
+	/**
+	 * @return the number of bytes written to the output stream
+	 */
+	public synchronized long getWrittenBytes() {
+		return written;
+	}
+
+	/**
+	 * @return the body of the last response of the server, or null
+	 */
+	public synchronized String getResponse() {
+		return response;
+	}
+
+	/** the upload thread: upload, and resume until done */
+	private void uploadLoop() {
+		long offset = 0;
+		while (true) {
+			synchronized (this) {
+				attempts++;
+			}
+			try {
+				boolean ok = upload(offset);
+				synchronized (this) {
+					success = ok;
+				}
+				break;
+			} catch (IOException ioe) {
+				if (DEBUG) {
+					debug("StreamingUpload: attempt " + getAttempts()
+							+ " failed: " + ioe);
+				}
+				synchronized (this) {
+					if (aborted || attempts >= maxAttempts) {
+						if (exception == null) {
+							exception = ioe;
+						}
+						break;
+					}
+					try {
+						wait(retryDelayMillis);
+					} catch (InterruptedException ie) {
+						exception = new InterruptedIOException(
+								"upload interrupted");
+						break;
+					}
+					if (aborted) {
+						break;
+					}
+				}
+				offset = queryOffset();
+			}
+		}
+		synchronized (this) {
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Post the file from offset on.
+	 *
+	 * @return true if the server acknowledged the file
+	 * @throws IOException if the request failed
+	 */
+	private boolean upload(long offset) throws IOException {
+		if (TRACE) {
+			debug("StreamingUpload: sending " + fileName + " from " + offset);
+		}
+		String boundary = MultiPartFormOutputStream.createBoundary();
+		HttpURLConnection conn = (HttpURLConnection) MultiPartFormOutputStream.createConnection(url);
+		conn.setChunkedStreamingMode(CHUNK_SIZE);
+		conn.setRequestProperty("Accept", "*/*");
+		conn.setRequestProperty("Content-Type",
+				MultiPartFormOutputStream.getContentType(boundary));
+		conn.setRequestProperty("Cache-Control", "no-cache");
+		SpoolInputStream is = new SpoolInputStream(offset);
+		try {
+			MultiPartFormOutputStream out = new MultiPartFormOutputStream(
+					conn.getOutputStream(), boundary);
+			out.writeField("upload", id);
+			out.writeField("offset", offset);
+			out.writeFile("uploaded", "binary", fileName, is);
+			out.close();
+			String body = readResponse(conn.getInputStream());
+			synchronized (this) {
+				response = body;
+			}
+			return body.indexOf("OK") >= 0;
+		} finally {
+			is.close();
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * Ask the server how many bytes of this upload it stored.
+	 *
+	 * @return the offset to resume from, or 0 if the server did not answer
+	 */
+	private long queryOffset() {
+		try {
+			String s = url.toString();
+			URL query = new URL(s + (s.indexOf('?') < 0 ? '?' : '&')
+					+ "upload=" + id);
+			HttpURLConnection conn = (HttpURLConnection) query.openConnection();
+			conn.setUseCaches(false);
+			try {
+				Properties p = new Properties();
+				p.load(new ByteArrayInputStream(readResponse(
+						conn.getInputStream()).getBytes("ISO-8859-1")));
+				long ret = Long.parseLong(p.getProperty("offset", "0").trim());
+				synchronized (this) {
+					if (ret < 0 || ret > written) {
+						ret = 0;
+					}
+				}
+				if (DEBUG) {
+					debug("StreamingUpload: resuming " + fileName + " at " + ret);
+				}
+				return ret;
+			} finally {
+				conn.disconnect();
+			}
+		} catch (Exception e) {
+			if (DEBUG) {
+				debug("StreamingUpload: cannot query the offset, sending "
+						+ fileName + " again: " + e);
+			}
+			return 0;
+		}
+	}
+
+	private static String readResponse(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				bos.write(buffer, 0, n);
+			}
+		} finally {
+			is.close();
+		}
+		return bos.toString("ISO-8859-1");
+	}
+
+	/** appends to the spool file and wakes up the upload thread */
+	private class SpoolOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {
+				(byte) b
+			}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (StreamingUpload.this) {
+				if (finished) {
+					throw new IOException("stream closed");
+				}
+			}
+			ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+			while (bb.hasRemaining()) {
+				writeChannel.write(bb);
+			}
+			synchronized (StreamingUpload.this) {
+				written += len;
+				StreamingUpload.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (StreamingUpload.this) {
+				if (finished) {
+					return;
+				}
+				finished = true;
+				StreamingUpload.this.notifyAll();
+			}
+			writeChannel.close();
+		}
+	}
+
+	/**
+	 * Reads the spool file from a position on, waiting for more data until
+	 * the output stream is closed.
+	 */
+	private class SpoolInputStream extends InputStream {
+		private FileChannel channel;
+		private long pos;
+
+		SpoolInputStream(long offset) throws IOException {
+			channel = new RandomAccessFile(spoolFile, "r").getChannel();
+			pos = offset;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) < 0) {
+				return -1;
+			}
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long available;
+			synchronized (StreamingUpload.this) {
+				while (pos >= written && !finished && !aborted) {
+					try {
+						StreamingUpload.this.wait();
+					} catch (InterruptedException ie) {
+						throw new InterruptedIOException();
+					}
+				}
+				if (aborted) {
+					throw new InterruptedIOException("upload aborted");
+				}
+				available = written - pos;
+			}
+			if (available <= 0) {
+				return -1;
+			}
+			if (len > available) {
+				len = (int) available;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, len), pos);
+			if (n > 0) {
+				pos += n;
+				synchronized (StreamingUpload.this) {
+					sentBytes += n;
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
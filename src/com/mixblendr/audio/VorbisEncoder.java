@@ -20,9 +20,16 @@ import org.xiph.libogg.*;
 import com.mixblendr.util.FatalExceptionListener;
 import static com.mixblendr.util.Debug.error;
 import static com.mixblendr.util.Debug.debug;
+import static com.mixblendr.util.Debug.DEBUG;
 
 public class VorbisEncoder {
 
+	/** the default VBR quality, -0.1 (lowest bitrate) to 1.0 (best quality) */
+	public static final float DEFAULT_QUALITY = .3f;
+
+	/** the VBR quality used by encode() */
+	private float quality = DEFAULT_QUALITY;
+
 	vorbisenc 			encoder;
 
 	ogg_stream_state 	os;	// take physical pages, weld into a logical stream of packets
@@ -50,11 +57,30 @@ public class VorbisEncoder {
     /**
      * @param fatalExceptionListener the fatalExceptionListener to set
      */
-    void setFatalExceptionListener(FatalExceptionListener fatalExceptionListener) {
+    public void setFatalExceptionListener(FatalExceptionListener fatalExceptionListener) {
         this.fatalExceptionListener = fatalExceptionListener;
     }
 
 
+    /**
+     * @return the VBR quality, from -0.1 (lowest bitrate) to 1.0 (best
+     *         quality)
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Set the VBR quality for the next call of encode(). Lower values
+     * produce smaller files, e.g. for previews.
+     * 
+     * @param quality the quality, from -0.1 (lowest bitrate) to 1.0 (best
+     *            quality)
+     */
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
     /**
 	 * VorbisEncoder.java
 	 *  
@@ -63,6 +89,78 @@ public class VorbisEncoder {
 	 * 
 	 */
 	public void encode( File tempFile, String url, String filename ) {
+
+		try {
+
+            DataInputStream dis = new DataInputStream( new FileInputStream(tempFile));
+
+            // upload the Ogg pages while they are encoded. The encoded file is
+            // spooled, so that a failed upload is resumed without encoding again.
+            File vorbisTempFile = File.createTempFile("mixblendr", "vorbis");
+            StreamingUpload upload = new StreamingUpload(url, filename, vorbisTempFile);
+            upload.start();
+            OutputStream dos = upload.getOutputStream();
+
+            boolean encoded = false;
+            try {
+                encode( dis, dos );
+                encoded = true;
+            } finally {
+                if (!encoded) {
+                    upload.abort();
+                }
+                dis.close();
+                dos.close();
+            }
+
+            boolean success;
+            try {
+                success = upload.waitFor(0);
+            } catch (IOException ioe) {
+                vorbisTempFile.delete();
+                if (fatalExceptionListener != null) {
+                    fatalExceptionListener.hideProgressDialog();
+                    fatalExceptionListener.fatalExceptionOccured(ioe,"Sending file to server is failed.");
+                } else {
+                    error(ioe);
+                }
+                return;
+            }
+            vorbisTempFile.delete();
+            if (DEBUG) {
+                debug("VorbisEncoder: uploaded " + upload.getWrittenBytes()
+                        + " bytes in " + upload.getAttempts() + " attempts: "
+                        + upload.getResponse());
+            }
+            if (fatalExceptionListener != null) {
+                if (success) {
+                    fatalExceptionListener.setSuccess();
+                } else {
+                    fatalExceptionListener.setFailed();
+                }
+            }
+
+		} 
+        catch (Throwable t) {
+            if (fatalExceptionListener != null) {
+                fatalExceptionListener.fatalExceptionOccured(t,"Error in converting to OGG format");
+            } else {
+                error(t);
+            }
+
+        }
+	}
+
+	/**
+	 * Encode 16-bit little endian stereo audio data at 44100Hz to an Ogg
+	 * Vorbis stream. The streams are not closed.
+	 * 
+	 * @param dis the PCM input, read until end of stream
+	 * @param dos the stream receiving the Ogg pages
+	 * @throws IOException if reading or writing fails, or if the encoder
+	 *             cannot be initialized
+	 */
+	public void encode( InputStream dis, OutputStream dos ) throws IOException {
 		
 		// Output Java System Properties
 		/*
@@ -74,27 +172,14 @@ public class VorbisEncoder {
 		} 
 		*/
 
-        DataInputStream dis = null;
-        try
-        {
-            dis = new DataInputStream( new FileInputStream(tempFile));
-        }
-        catch (FileNotFoundException e)
-        {
-            //todo show error
-            //e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-        }
-
-
         boolean eos = false;
 
 		vi = new vorbis_info();
 
 		encoder = new vorbisenc();
 
-		if ( !encoder.vorbis_encode_init_vbr( vi, 2, 44100, .3f ) ) {
-			System.out.println( "Failed to Initialize vorbisenc" );
-			return;
+		if ( !encoder.vorbis_encode_init_vbr( vi, 2, 44100, quality ) ) {
+			throw new IOException( "Failed to Initialize vorbisenc" );
 		}
 
 		vc = new vorbis_comment();
@@ -103,8 +188,7 @@ public class VorbisEncoder {
 		vd = new vorbis_dsp_state();
 
 		if ( !vd.vorbis_analysis_init( vi ) ) {
-			System.out.println( "Failed to Initialize vorbis_dsp_state" );
-			return;
+			throw new IOException( "Failed to Initialize vorbis_dsp_state" );
 		}
 
 		vb = new vorbis_block( vd );
@@ -126,17 +210,6 @@ public class VorbisEncoder {
 		og = new ogg_page();
 		op = new ogg_packet();
 
-		try {
-
-            //DataOutputStream dos = new DataOutputStream(new ByteArrayOutputStream());
-
-            File vorbisTempFile = File.createTempFile("mixblendr", "vorbis");
-            DataOutputStream dos = new DataOutputStream(new FileOutputStream(vorbisTempFile));
-
-            //ByteArrayOutputStream dos = new ByteArrayOutputStream();
-
-            //FileOutputStream fos = new FileOutputStream( "c:\\1.ogg");
-
 			while( !eos ) {
 
 				if ( !os.ogg_stream_flush( og ) )
@@ -151,14 +224,16 @@ public class VorbisEncoder {
 			//FileInputStream fin = new FileInputStream( args[0] );
 			
 			System.out.print( "Encoding." );
+			long encodeStart = System.nanoTime();
+			long encodedFrames = 0;
 			while ( !eos ) {
 				
 				int i;
-				int bytes = dis.read( readbuffer, 0, READ*4 ); // stereo hardwired here
+				int bytes = readFrames( dis, readbuffer, READ*4 ); // stereo hardwired here
 
 				int break_count = 0;
 				
-				if ( bytes==0 ) {
+				if ( bytes<=0 ) {
 					
 					// end of file.  this can be done implicitly in the mainline,
 					// but it's easier to see here in non-clever fashion.
@@ -182,6 +257,7 @@ public class VorbisEncoder {
 					
 					// tell the library how much we actually submitted
 					vd.vorbis_analysis_wrote( i );
+					encodedFrames += i;
 				}
 
 				// vorbis does some data preanalysis, then divvies up blocks for more involved 
@@ -221,30 +297,28 @@ public class VorbisEncoder {
 			}
 			
 			//fin.close();
-            // send to server
-            //ByteArrayInputStream  urlStream = new ByteArrayInputStream( dos.toByteArray());
-            dos.close();
-
-            Sender sender = new Sender(url);
-            sender.setFatalExceptionListener(fatalExceptionListener);
-            sender.sendFile(vorbisTempFile, filename);
-
-            vorbisTempFile.delete();
-
-
-            //dos.close();
+            EngineMetrics.encoded(encodedFrames, 44100, System.nanoTime() - encodeStart);
 			//System.out.print( "Done.\n" );
-			
-		} 
-        catch (Throwable t) {
-            if (fatalExceptionListener != null) {
-                fatalExceptionListener.fatalExceptionOccured(t,"Error in converting to OGG format");
-            } else {
-                error(t);
-            }
-
-        }
-
+	}
 
+	/**
+	 * Read from the stream until length bytes are read, or end of stream is
+	 * reached, so that no partial sample frames are returned.
+	 * 
+	 * @return the number of bytes read, or -1 at end of stream
+	 */
+	private static int readFrames( InputStream dis, byte[] buffer, int length ) throws IOException {
+		int read = 0;
+		while ( read < length ) {
+			int bytes = dis.read( buffer, read, length - read );
+			if ( bytes < 0 ) {
+				break;
+			}
+			read += bytes;
+		}
+		if ( read == 0 && length > 0 ) {
+			return -1;
+		}
+		return read;
 	}
 }
@@ -0,0 +1,663 @@
+/**
+ *
+ */
+package com.mixblendr.effects;
+
+import java.awt.Font;
+import java.awt.event.*;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Random;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+import com.mixblendr.audio.*;
+import com.mixblendr.util.GUIUtils;
+
+import static com.mixblendr.util.Debug.*;
+
+/**
+ * A convolution reverb effect. The impulse response is either one of the
+ * built-in synthetic rooms, or an audio file loaded with the AudioFileFactory.
+ * The convolution is done by a PartitionedConvolver without latency.
+ *
+ * @author Florian Bomers
+ */
+public class ConvolutionReverb extends GUIEffectsBase implements
+		AudioEffectParameters, AudioFileURL.Listener, ItemListener {
+
+	private static final boolean DEBUG_REVERB = false;
+
+	/** the number of samples per partition of the impulse response */
+	public static final int PARTITION_SIZE = 256;
+
+	/**
+	 * the number of frequency domain partitions calculated in the render
+	 * thread, all others are calculated by the worker thread
+	 */
+	public static final int EARLY_PARTITIONS = 4;
+
+	/** impulse responses are cut at this length */
+	private static final double MAX_IMPULSE_RESPONSE_SECONDS = 20.0;
+
+	/** names of the built-in impulse responses */
+	private final static String[] SYNTHETIC_NAMES = {
+			"Room", "Hall", "Cathedral",
+	};
+
+	/** decay times of the built-in impulse responses in seconds */
+	private final static double[] SYNTHETIC_DECAY_SECONDS = {
+			0.6, 2.0, 6.0,
+	};
+
+	private static final int DEFAULT_SYNTHETIC_INDEX = 1;
+
+	/** the entry in the impulse response list for loading a file */
+	private static final String LOAD_CAPTION = "Load from URL or file...";
+
+	private SmoothedParameter balance = new SmoothedParameter(-0.5, 0);
+
+	/** the name of the current impulse response */
+	private String impulseResponseName = "";
+
+	/** the audio file of the impulse response, if loaded from a file */
+	private AudioFile impulseResponseFile;
+
+	// runtime state
+	private volatile PartitionedConvolver convolver;
+	/** the input channels, only used by the render thread */
+	private float[][] inputs;
+	/** the convolved signal, only used by the render thread */
+	private float[][] wet;
+
+	// automation support
+	private AutomationLane balanceLane = new AutomationLane();
+
+	/** create a new instance of the Convolution Reverb effect */
+	public ConvolutionReverb() {
+		super("Reverb");
+		assert (SYNTHETIC_NAMES.length == SYNTHETIC_DECAY_SECONDS.length);
+	}
+
+	/**
+	 * @return the balance [-1...0...+1]
+	 */
+	public double getBalance() {
+		return balance.getTarget();
+	}
+
+	/**
+	 * @param balance the balance to set [-1...0...+1]
+	 */
+	public void setBalance(double balance) {
+		this.balance.setTarget(balance);
+	}
+
+	/**
+	 * @return the name of the current impulse response
+	 */
+	public String getImpulseResponseName() {
+		return impulseResponseName;
+	}
+
+	/**
+	 * @return the index of the current built-in impulse response, or -1 if
+	 *         the impulse response was loaded from a file
+	 */
+	public int getSyntheticImpulseResponseIndex() {
+		synchronized (lock) {
+			if (impulseResponseFile == null) {
+				for (int i = 0; i < SYNTHETIC_NAMES.length; i++) {
+					if (SYNTHETIC_NAMES[i].equals(impulseResponseName)) {
+						return i;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Use the given impulse response. The partitions are prepared in the
+	 * calling thread, and the render thread switches to the new impulse
+	 * response at the next block.
+	 *
+	 * @param impulseResponse the samples, one array per channel
+	 * @param name the name of the impulse response
+	 */
+	public void setImpulseResponse(float[][] impulseResponse, String name) {
+		if (state == null) return;
+		PartitionedConvolver newConvolver = new PartitionedConvolver(
+				state.getChannels(), impulseResponse, PARTITION_SIZE,
+				EARLY_PARTITIONS);
+		newConvolver.start();
+		PartitionedConvolver oldConvolver;
+		synchronized (lock) {
+			oldConvolver = convolver;
+			convolver = newConvolver;
+			impulseResponseName = name;
+		}
+		if (oldConvolver != null) {
+			oldConvolver.close();
+		}
+		parameterChanged();
+		if (DEBUG_REVERB) {
+			debug("Reverb: using impulse response " + name + " with "
+					+ newConvolver.getPartitionCount() + " partitions");
+		}
+		updateGUIStatus(name);
+	}
+
+	/**
+	 * Use one of the built-in impulse responses.
+	 *
+	 * @param index the index in the list of built-in impulse responses
+	 */
+	public void selectSyntheticImpulseResponse(int index) {
+		if (state == null) return;
+		releaseImpulseResponseFile();
+		setImpulseResponse(createSyntheticImpulseResponse(
+				SYNTHETIC_DECAY_SECONDS[index], state.getSampleRate(),
+				state.getChannels()), SYNTHETIC_NAMES[index]);
+	}
+
+	/**
+	 * Load the impulse response from the given URL. The file is retrieved from
+	 * the AudioFileFactory and used as soon as it is fully downloaded.
+	 *
+	 * @param url the URL of the audio file
+	 */
+	public void loadImpulseResponse(URL url) {
+		if (state == null) return;
+		AudioFileFactory factory = state.getAudioFileFactory();
+		loadImpulseResponse(factory, factory.getAudioFile(url));
+	}
+
+	/**
+	 * Load the impulse response from the given file.
+	 *
+	 * @param file the audio file
+	 * @throws Exception if the file cannot be accessed
+	 */
+	public void loadImpulseResponse(File file) throws Exception {
+		if (state == null) return;
+		AudioFileFactory factory = state.getAudioFileFactory();
+		loadImpulseResponse(factory, factory.getAudioFile(file));
+	}
+
+	private void loadImpulseResponse(AudioFileFactory factory, AudioFile af) {
+		releaseImpulseResponseFile();
+		factory.addReference(af);
+		synchronized (lock) {
+			impulseResponseFile = af;
+		}
+		updateGUIStatus("Loading " + af.getName() + "...");
+		if (af instanceof AudioFileURL) {
+			// will call audioFileDownloadEnd if already downloaded
+			((AudioFileURL) af).addListener(this);
+		} else {
+			audioFileDownloadEnd(af);
+		}
+	}
+
+	/** stop using the audio file of the impulse response */
+	private void releaseImpulseResponseFile() {
+		AudioFile af;
+		synchronized (lock) {
+			af = impulseResponseFile;
+			impulseResponseFile = null;
+		}
+		if (af != null) {
+			if (af instanceof AudioFileURL) {
+				((AudioFileURL) af).removeListener(this);
+			}
+			AudioFileFactory factory = af.getState().getAudioFileFactory();
+			if (factory != null) {
+				factory.removeReference(af);
+			}
+		}
+	}
+
+	/**
+	 * Create a synthetic impulse response: exponentially decaying noise with
+	 * decorrelated channels, normalized to unit energy.
+	 *
+	 * @param decaySeconds the time in seconds to decay by 60dB, also the
+	 *            length of the impulse response
+	 * @param sampleRate the sample rate
+	 * @param channels the number of channels
+	 * @return the impulse response, one array per channel
+	 */
+	public static float[][] createSyntheticImpulseResponse(
+			double decaySeconds, float sampleRate, int channels) {
+		int length = (int) (decaySeconds * sampleRate);
+		float[][] ret = new float[channels][length];
+		// -60dB at the end
+		double decay = Math.log(0.001) / length;
+		for (int c = 0; c < channels; c++) {
+			Random random = new Random(c + 1);
+			float[] ir = ret[c];
+			for (int i = 0; i < length; i++) {
+				ir[i] = (float) ((random.nextDouble() * 2 - 1) * Math.exp(decay
+						* i));
+			}
+		}
+		normalize(ret);
+		return ret;
+	}
+
+	/** scale the impulse response to unit energy */
+	private static void normalize(float[][] ir) {
+		double energy = 0;
+		for (float[] channel : ir) {
+			for (float s : channel) {
+				energy += s * s;
+			}
+		}
+		energy /= ir.length;
+		if (energy > 0) {
+			float scale = (float) (1.0 / Math.sqrt(energy));
+			for (float[] channel : ir) {
+				for (int i = 0; i < channel.length; i++) {
+					channel[i] *= scale;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the samples of a fully loaded audio file, resample them to the
+	 * sample rate if necessary, and normalize them.
+	 *
+	 * @return the impulse response, one array per channel, or null if the
+	 *         file cannot be read
+	 */
+	private static float[][] readImpulseResponse(AudioFile af,
+			float sampleRate) {
+		if (af.getFormat() == null) {
+			return null;
+		}
+		int channels = Math.min(2, af.getFormat().getChannels());
+		float fileRate = af.getFormat().getSampleRate();
+		long maxLength = (long) (MAX_IMPULSE_RESPONSE_SECONDS * fileRate);
+		int length = (int) Math.min(af.getAvailableSamples(), maxLength);
+		if (length <= 0) {
+			return null;
+		}
+		float[][] data = new float[channels][length];
+		final int chunk = 8192;
+		for (int c = 0; c < channels; c++) {
+			int pos = 0;
+			while (pos < length) {
+				int read = af.readChannelData(c, pos, data[c], pos, Math.min(
+						chunk, length - pos));
+				if (read <= 0) {
+					break;
+				}
+				pos += read;
+			}
+		}
+		if (fileRate != sampleRate) {
+			// linear interpolation
+			double ratio = fileRate / sampleRate;
+			int newLength = (int) (length / ratio);
+			float[][] resampled = new float[channels][newLength];
+			for (int c = 0; c < channels; c++) {
+				for (int i = 0; i < newLength; i++) {
+					double pos = i * ratio;
+					int index = (int) pos;
+					float frac = (float) (pos - index);
+					float s0 = data[c][index];
+					float s1 = (index + 1 < length) ? data[c][index + 1] : 0;
+					resampled[c][i] = s0 + (s1 - s0) * frac;
+				}
+			}
+			data = resampled;
+		}
+		normalize(data);
+		return data;
+	}
+
+	// --------------------------------- AudioEffectParameters methods
+
+	private static final String[] PARAMETER_NAMES = {
+			"balance", "impulse",
+	};
+
+	public int getParameterCount() {
+		return PARAMETER_NAMES.length;
+	}
+
+	public String getParameterName(int index) {
+		return PARAMETER_NAMES[index];
+	}
+
+	public double getParameter(int index) {
+		switch (index) {
+		case 0:
+			return getBalance();
+		case 1:
+			return getSyntheticImpulseResponseIndex();
+		}
+		throw new IllegalArgumentException("illegal parameter index: "
+				+ index);
+	}
+
+	public void setParameter(int index, double value) {
+		switch (index) {
+		case 0:
+			setBalance(value);
+			break;
+		case 1:
+			if ((int) value != getSyntheticImpulseResponseIndex()
+					&& value >= 0 && value < SYNTHETIC_NAMES.length) {
+				selectSyntheticImpulseResponse((int) value);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("illegal parameter index: "
+					+ index);
+		}
+		parameterChanged();
+	}
+
+	public AutomationLane getParameterLane(int index) {
+		switch (index) {
+		case 0:
+			return balanceLane;
+		}
+		return null;
+	}
+
+	// --------------------------------- AudioEffect methods
+
+	@Override
+	public void initImpl() {
+		if (state == null) return;
+		int channels = state.getChannels();
+		inputs = new float[channels][];
+		wet = new float[channels][state.getSliceSizeSamples()];
+		balance.reset(-0.5);
+		balance.setSmoothingSamples(getSmoothingSamples());
+		selectSyntheticImpulseResponse(DEFAULT_SYNTHETIC_INDEX);
+	}
+
+	@Override
+	public void exitImpl() {
+		releaseImpulseResponseFile();
+		PartitionedConvolver oldConvolver = convolver;
+		convolver = null;
+		if (oldConvolver != null) {
+			oldConvolver.close();
+		}
+	}
+
+	/**
+	 * the actual reverb processor: convolve the buffer with the impulse
+	 * response, and mix the result with the source signal.
+	 */
+	@Override
+	public boolean process(long samplePos, FloatSampleBuffer buffer,
+			int offset, int sampleCount) {
+		PartitionedConvolver conv = convolver;
+		// sanity
+		if (conv == null || sampleCount == 0) return false;
+		float startBalance = prepareParameter(balance, balanceLane, samplePos,
+				sampleCount);
+		float endBalance = balance.getCurrent();
+		float startSrcVol = getSourceVolume(startBalance);
+		float startWetVol = getWetVolume(startBalance);
+		float srcVolInc = (getSourceVolume(endBalance) - startSrcVol)
+				/ sampleCount;
+		float wetVolInc = (getWetVolume(endBalance) - startWetVol)
+				/ sampleCount;
+		int channels = Math.min(buffer.getChannelCount(), inputs.length);
+		for (int c = 0; c < channels; c++) {
+			inputs[c] = buffer.getChannel(c);
+		}
+		int done = 0;
+		while (done < sampleCount) {
+			int n = Math.min(sampleCount - done, wet[0].length);
+			conv.process(inputs, offset + done, wet, 0, n);
+			for (int c = 0; c < channels; c++) {
+				float[] inout = inputs[c];
+				float[] w = wet[c];
+				float srcVol = startSrcVol + srcVolInc * done;
+				float wetVol = startWetVol + wetVolInc * done;
+				int inoutOffset = offset + done;
+				for (int i = 0; i < n; i++) {
+					inout[inoutOffset + i] = inout[inoutOffset + i] * srcVol
+							+ w[i] * wetVol;
+					srcVol += srcVolInc;
+					wetVol += wetVolInc;
+				}
+			}
+			done += n;
+		}
+		return true;
+	}
+
+	/** @return the volume of the source signal for the given balance */
+	private static final float getSourceVolume(float aBalance) {
+		return (aBalance < 0) ? 1.0f : 1 - aBalance;
+	}
+
+	/** @return the volume of the reverb signal for the given balance */
+	private static final float getWetVolume(float aBalance) {
+		return (aBalance < 0) ? 1 + aBalance : 1.0f;
+	}
+
+	// --------------------------------- interface AudioFileURL.Listener
+
+	public void audioFileDownloadStart(AudioFile source) {
+		// nothing to do
+	}
+
+	public void audioFileDownloadUpdate(AudioFile source) {
+		// nothing to do
+	}
+
+	public void audioFileDownloadError(AudioFile source) {
+		updateGUIStatus("Cannot load " + source.getName());
+	}
+
+	/** the impulse response file is complete: use it */
+	public void audioFileDownloadEnd(AudioFile source) {
+		if (state == null || source != impulseResponseFile) return;
+		float[][] ir = readImpulseResponse(source, state.getSampleRate());
+		if (ir == null) {
+			updateGUIStatus("Cannot load " + source.getName());
+			return;
+		}
+		setImpulseResponse(ir, source.getName());
+	}
+
+	// --------------------------------- GUI stuff
+
+	private JComboBox<String> cbImpulse;
+	private JLabel lStatus;
+	private SliderStrip sBalance;
+	/**
+	 * if this flag is non-zero, controls are currently set programmatically
+	 * rather than from user interaction
+	 */
+	private int noUpdate = 0;
+
+	@Override
+	protected void initGUI(JPanel main) {
+		main.setLayout(new BoxLayout(main, BoxLayout.PAGE_AXIS));
+		main.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+
+		// Title
+		JLabel title = GUIUtils.createLabel("Convolution Reverb",
+				SwingConstants.CENTER);
+		title.setFont(title.getFont().deriveFont(Font.BOLD));
+		main.add(title);
+		main.add(new JSeparator(SwingConstants.HORIZONTAL));
+
+		// impulse response selection
+		JPanel impulse = new JPanel();
+		impulse.setBorder(BorderFactory.createEmptyBorder(5, 0, 0, 0));
+		impulse.setLayout(new BoxLayout(impulse, BoxLayout.LINE_AXIS));
+		impulse.add(GUIUtils.createLabel("Impulse:", SwingConstants.LEFT,
+				STRIP_LEFT_LABEL_WIDTH));
+		noUpdate++;
+		try {
+			cbImpulse = GUIUtils.createComboBox(this);
+			for (String name : SYNTHETIC_NAMES) {
+				cbImpulse.addItem(name);
+			}
+			cbImpulse.addItem(LOAD_CAPTION);
+			cbImpulse.setSelectedIndex(DEFAULT_SYNTHETIC_INDEX);
+		} finally {
+			noUpdate--;
+		}
+		impulse.add(cbImpulse);
+		main.add(impulse);
+		main.add((lStatus = GUIUtils.createLabel(impulseResponseName,
+				SwingConstants.CENTER)));
+
+		// slider for Balance
+		main.add((sBalance = new SliderStrip("Balance:", -100, 100, -50,
+				"dry", "wet")));
+
+		// init labels
+		updateGUIBalanceLabel();
+	}
+
+	/** display the status in the event dispatch thread */
+	private void updateGUIStatus(final String status) {
+		if (lStatus == null) return;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				lStatus.setText(status);
+			}
+		});
+	}
+
+	/** ask the user for the impulse response file and load it */
+	private void chooseImpulseResponseFile() {
+		String location = JOptionPane.showInputDialog(getFrame(),
+				"Please enter the URL or path of the impulse response:", "");
+		if (location == null || location.length() == 0) {
+			return;
+		}
+		try {
+			try {
+				loadImpulseResponse(new URL(location));
+			} catch (MalformedURLException mue) {
+				loadImpulseResponse(new File(location));
+			}
+		} catch (Exception e) {
+			error(e);
+			updateGUIStatus("Cannot load " + location);
+		}
+	}
+
+	/** update the GUI with the current balance */
+	protected void updateGUIBalance() {
+		// will cause change event and update the label
+		noUpdate++;
+		try {
+			sBalance.slider.setValue((int) (getBalance() * 100.0));
+		} finally {
+			noUpdate--;
+		}
+	}
+
+	/**
+	 * read the current value from the slider and set the internal value
+	 * accordingly
+	 */
+	protected void updateBalanceFromGUI() {
+		int index = sBalance.slider.getValue();
+		setBalance(index / 100.0);
+	}
+
+	/** update the label of the with the current balance */
+	private void updateGUIBalanceLabel() {
+		sBalance.label.setText(Integer.toString(sBalance.slider.getValue())
+				+ " %");
+	}
+
+	/** display the parameters which are controlled by automation lanes */
+	@Override
+	protected void displayAutomation() {
+		if (isAutomated(balanceLane)) {
+			updateGUIBalance();
+		}
+	}
+
+	// --------------------------------- interface ItemListener
+
+	/** called when the user selects an impulse response */
+	public void itemStateChanged(ItemEvent e) {
+		if (noUpdate != 0 || e.getStateChange() != ItemEvent.SELECTED) {
+			return;
+		}
+		int index = cbImpulse.getSelectedIndex();
+		if (index >= 0 && index < SYNTHETIC_NAMES.length) {
+			selectSyntheticImpulseResponse(index);
+		} else if (LOAD_CAPTION.equals(cbImpulse.getSelectedItem())) {
+			chooseImpulseResponseFile();
+		}
+	}
+
+	// --------------------------------- interface MouseListener
+
+	/**
+	 * called when the user clicks on a slider. In response, notify the engine
+	 * that we're tracking this automation object.
+	 */
+	@Override
+	public void mousePressed(MouseEvent e) {
+		if (e.getSource() == sBalance.slider) {
+			balanceLane.setTracking(true);
+			addAutomationEvent(e.getSource());
+		}
+	}
+
+	/**
+	 * called when the user releases the mouse button from a slider. Notify the
+	 * engine that we're not tracking this automation object anymore.
+	 */
+	@Override
+	public void mouseReleased(MouseEvent e) {
+		if (e.getSource() == sBalance.slider) {
+			balanceLane.setTracking(false);
+		}
+	}
+
+	/**
+	 * if automation is currently enabled, add an appropriate automation event,
+	 * depending on the given GUI control
+	 */
+	private void addAutomationEvent(Object src) {
+		if (src == sBalance.slider) {
+			recordAutomation(balanceLane, getBalance());
+		}
+	}
+
+	// ----------------------------------------- interface ChangeListener
+
+	/**
+	 * Called when the user or the implementation moves a slider. Update the
+	 * slider labels. If not currently set by the implementation, update the
+	 * internal value and record automation.
+	 */
+	@Override
+	public void stateChanged(ChangeEvent e) {
+		Object src = e.getSource();
+		if (src == sBalance.slider) {
+			if (noUpdate == 0) {
+				updateBalanceFromGUI();
+				addAutomationEvent(src);
+				parameterChanged();
+			}
+			updateGUIBalanceLabel();
+		}
+	}
+}
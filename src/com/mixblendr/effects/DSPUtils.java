@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package com.mixblendr.effects;
+
+/**
+ * Static helper methods for real-time signal processing: fractional delay
+ * interpolation in power-of-two ring buffers, denormal protection, and
+ * buffer size calculation. All methods are small enough to be inlined in the
+ * per-sample loops of the effects.
+ *
+ * @author Florian Bomers
+ */
+public final class DSPUtils {
+
+	/**
+	 * values with a smaller magnitude are flushed to 0 to avoid denormal
+	 * numbers in feedback loops, which are extremely slow on many CPUs
+	 */
+	public static final float DENORMAL_THRESHOLD = 1.0e-30f;
+
+	/** prevent instanciation */
+	private DSPUtils() {
+		// nothing
+	}
+
+	/**
+	 * @return the smallest power of 2 which is greater or equal to value
+	 */
+	public static int nextPowerOf2(int value) {
+		int ret = 1;
+		while (ret < value) {
+			ret <<= 1;
+		}
+		return ret;
+	}
+
+	/**
+	 * Flush very small values to 0. Use this for every value that is fed back
+	 * into a delay line or filter state.
+	 */
+	public static final float flushDenormal(float value) {
+		if (value < DENORMAL_THRESHOLD && value > -DENORMAL_THRESHOLD) {
+			return 0.0f;
+		}
+		return value;
+	}
+
+	/**
+	 * Read from a power-of-two ring buffer at a fractional position with
+	 * linear interpolation.
+	 *
+	 * @param buffer the ring buffer
+	 * @param mask the size of the ring buffer minus 1
+	 * @param pos the read position, must not be negative. It is wrapped with
+	 *            the mask.
+	 * @return the interpolated sample
+	 */
+	public static final float interpolateLinear(float[] buffer, int mask,
+			double pos) {
+		int index = (int) pos;
+		float frac = (float) (pos - index);
+		float s0 = buffer[index & mask];
+		float s1 = buffer[(index + 1) & mask];
+		return s0 + (s1 - s0) * frac;
+	}
+
+	/**
+	 * Read from a power-of-two ring buffer at a fractional position with
+	 * 4-point, 3rd order Hermite interpolation. This is more expensive than
+	 * linear interpolation, but attenuates high frequencies less when the
+	 * position is modulated.
+	 *
+	 * @param buffer the ring buffer
+	 * @param mask the size of the ring buffer minus 1
+	 * @param pos the read position, must be at least 1. It is wrapped with the
+	 *            mask.
+	 * @return the interpolated sample
+	 */
+	public static final float interpolateCubic(float[] buffer, int mask,
+			double pos) {
+		int index = (int) pos;
+		float frac = (float) (pos - index);
+		float xm1 = buffer[(index - 1) & mask];
+		float x0 = buffer[index & mask];
+		float x1 = buffer[(index + 1) & mask];
+		float x2 = buffer[(index + 2) & mask];
+		float c1 = 0.5f * (x1 - xm1);
+		float c2 = xm1 - 2.5f * x0 + 2.0f * x1 - 0.5f * x2;
+		float c3 = 0.5f * (x2 - xm1) + 1.5f * (x0 - x1);
+		return ((c3 * frac + c2) * frac + c1) * frac + x0;
+	}
+
+}
@@ -20,7 +20,8 @@ import static com.mixblendr.util.Debug.*;
  * 
  * @author Florian Bomers
  */
-public class Delay extends GUIEffectsBase {
+public class Delay extends GUIEffectsBase implements
+		AudioEffectParameters {
 
 	private static final boolean DEBUG_DELAY = false;
 
@@ -33,24 +34,32 @@ public class Delay extends GUIEffectsBase {
 			1 / 64.0, 1 / 32.0, 1 / 16.0, 1 / 8.0, 1 / 4.0, 1 / 2.0, 1.0, 2.0,
 	};
 
+	/** the longest possible delay time */
+	private final static double MAX_DELAY_MILLIS = 3000.0;
+
 	private double delayTimeBeats;
-	private double delayTimeSamples;
-	private double feedback;
-	private double balance;
+	/**
+	 * the delay time set in the GUI, in whole samples, applied by the render
+	 * thread
+	 */
+	private volatile int delayTimeSamples;
+	private SmoothedParameter feedback = new SmoothedParameter(0.5, 0);
+	private SmoothedParameter balance = new SmoothedParameter(0.0, 0);
 
-	// runtime state
-	private FloatSampleBuffer delayBuffer;
-	private double delayBufferPos;
+	// runtime state, only used by the render thread
+	private volatile DelayLine delayLine;
+	/** the delay time currently used by the delay line */
+	private int currDelaySamples;
 
-	// apply a micro fade in/out when changing the buffer size
+	// apply a micro fade in/out when changing the delay time
 	private final static int FADEOUT_BUFFER_SAMPLECOUNT = 100;
 	private FloatSampleBuffer fadeOutBuffer;
 	private boolean nextBufferDoFade = true;
 
 	// automation support
 	private static AutomationHandler delayTimeHandler = AutomationManager.getHandler(DelayTimeAutomation.class);
-	private static AutomationHandler feedbackHandler = AutomationManager.getHandler(FeedbackAutomation.class);
-	private static AutomationHandler balanceHandler = AutomationManager.getHandler(BalanceAutomation.class);
+	private AutomationLane feedbackLane = new AutomationLane();
+	private AutomationLane balanceLane = new AutomationLane();
 
 	/** create a new instance of the Delay effect */
 	public Delay() {
@@ -66,55 +75,25 @@ public class Delay extends GUIEffectsBase {
 	}
 
 	/**
+	 * Set the delay time. The render thread will fade out the old delay line
+	 * and start the new delay time with silence.
+	 *
 	 * @param delayTimeBeats the delay time in beats to set
 	 */
 	public void setDelayTimeBeats(double delayTimeBeats) {
 		if (state == null) return;
-		synchronized (lock) {
-			this.delayTimeBeats = delayTimeBeats;
-			this.delayTimeSamples = state.beat2sample(delayTimeBeats);
-			if (delayTimeSamples <= 0) {
-				delayTimeSamples = 0.1;
-			}
-			int oldSampleCount = delayBuffer.getSampleCount();
-			int newSampleCount = (int) (delayTimeSamples + 1);
-
-			if (newSampleCount != oldSampleCount) {
-				// copying some samples from the current position to the fadeout
-				// buffer
-				int fadeOutCount = FADEOUT_BUFFER_SAMPLECOUNT;
-				if (fadeOutCount > oldSampleCount) {
-					fadeOutCount = oldSampleCount;
-				}
-				fadeOutBuffer.changeSampleCount(fadeOutCount, false);
-				// take advantage of copyTo()'s adjustment of "count"
-				int copied = delayBuffer.copyTo((int) delayBufferPos,
-						fadeOutBuffer, 0, fadeOutCount);
-				delayBuffer.copyTo(0, fadeOutBuffer, copied, fadeOutCount
-						- copied);
-				if (DEBUG_DELAY) {
-					debug("Fading out old delay buffer:");
-					debug("- old size=" + oldSampleCount
-							+ " samples  new size=" + newSampleCount
-							+ " samples");
-					debug("- copied " + copied
-							+ " samples from delay buffer at "
-							+ ((int) delayBufferPos)
-							+ " to fade buffer at position 0");
-					debug("- copied "
-							+ (fadeOutCount - copied)
-							+ " samples from delay buffer's beginning to fade buffer at position "
-							+ copied);
-					debug("- apply new delay buffer size and silence it");
-					debug("- next rendering time, fade in the signal");
-				}
-				// silence the new buffer
-				delayBuffer.changeSampleCount(newSampleCount, false);
-				delayBuffer.makeSilence();
-				delayBufferPos = 0;
-				nextBufferDoFade = true;
-			}
+		this.delayTimeBeats = delayTimeBeats;
+		double samples = state.beat2sampleD(delayTimeBeats);
+		double maxSamples = state.millis2sample(MAX_DELAY_MILLIS);
+		if (samples > maxSamples) {
+			samples = maxSamples;
 		}
+		if (samples < 1) {
+			samples = 1;
+		}
+		// like the original delay buffer, do not interpolate: the repeats
+		// are not low pass filtered
+		delayTimeSamples = (int) Math.round(samples);
 	}
 
 	/**
@@ -136,28 +115,83 @@ public class Delay extends GUIEffectsBase {
 	 * @return the feedback [0..1]
 	 */
 	public double getFeedback() {
-		return feedback;
+		return feedback.getTarget();
 	}
 
 	/**
 	 * @param feedback the feedback to set [0..1]
 	 */
 	public void setFeedback(double feedback) {
-		this.feedback = feedback;
+		this.feedback.setTarget(feedback);
 	}
 
 	/**
 	 * @return the balance [-1...0...+1]
 	 */
 	public double getBalance() {
-		return balance;
+		return balance.getTarget();
 	}
 
 	/**
 	 * @param balance the balance to set [-1...0...+1]
 	 */
 	public void setBalance(double balance) {
-		this.balance = balance;
+		this.balance.setTarget(balance);
+	}
+
+	// --------------------------------- AudioEffectParameters methods
+
+	private static final String[] PARAMETER_NAMES = {
+			"delayTimeBeats", "feedback", "balance",
+	};
+
+	public int getParameterCount() {
+		return PARAMETER_NAMES.length;
+	}
+
+	public String getParameterName(int index) {
+		return PARAMETER_NAMES[index];
+	}
+
+	public double getParameter(int index) {
+		switch (index) {
+		case 0:
+			return getDelayTimeBeats();
+		case 1:
+			return getFeedback();
+		case 2:
+			return getBalance();
+		}
+		throw new IllegalArgumentException("illegal parameter index: "
+				+ index);
+	}
+
+	public void setParameter(int index, double value) {
+		switch (index) {
+		case 0:
+			setDelayTimeBeats(value);
+			break;
+		case 1:
+			setFeedback(value);
+			break;
+		case 2:
+			setBalance(value);
+			break;
+		default:
+			throw new IllegalArgumentException("illegal parameter index: "
+					+ index);
+		}
+		parameterChanged();
+	}
+
+	public AutomationLane getParameterLane(int index) {
+		switch (index) {
+		case 1:
+			return feedbackLane;
+		case 2:
+			return balanceLane;
+		}
+		return null;
 	}
 
 	// --------------------------------- AudioEffect methods
@@ -165,105 +199,161 @@ public class Delay extends GUIEffectsBase {
 	@Override
 	public void initImpl() {
 		if (state == null) return;
-		if (delayBuffer == null) {
-			delayBuffer = new FloatSampleBuffer(state.getChannels(), 0,
-					state.getSampleRate());
-			fadeOutBuffer = new FloatSampleBuffer(state.getChannels(), 0,
-					state.getSampleRate());
-		}
+		fadeOutBuffer = new FloatSampleBuffer(state.getChannels(),
+				FADEOUT_BUFFER_SAMPLECOUNT, state.getSampleRate());
+		currDelaySamples = 0;
 		// default values
 		setDelayTimeBeats(1 / 8.0);
-		setFeedback(0.5);
-		setBalance(0.0);
-		nextBufferDoFade = true;
+		feedback.reset(0.5);
+		balance.reset(0.0);
+		feedback.setSmoothingSamples(getSmoothingSamples());
+		balance.setSmoothingSamples(getSmoothingSamples());
+		delayLine = new DelayLine(state.getChannels(),
+				(int) state.millis2sample(MAX_DELAY_MILLIS) + 1);
 	}
 
 	@Override
 	public void exitImpl() {
-		delayBuffer = null;
+		delayLine = null;
+	}
+
+	/**
+	 * Apply a new delay time: copy the next samples of the old delay line to
+	 * the fadeout buffer, and silence the part of the delay line that is read
+	 * with the new delay time before it is written again.
+	 */
+	private void changeDelayTime(DelayLine dl, int newDelaySamples) {
+		int fadeOutCount = 0;
+		if (currDelaySamples > 0) {
+			fadeOutCount = FADEOUT_BUFFER_SAMPLECOUNT;
+			if (fadeOutCount > currDelaySamples) {
+				fadeOutCount = currDelaySamples;
+			}
+		}
+		// the fadeout buffer has enough capacity, this does not allocate
+		fadeOutBuffer.changeSampleCount(fadeOutCount, false);
+		if (fadeOutCount > 0) {
+			int readPos = (int) dl.getReadPosition(currDelaySamples);
+			int mask = dl.getMask();
+			for (int c = 0; c < fadeOutBuffer.getChannelCount(); c++) {
+				float[] delay = dl.getChannel(c);
+				float[] fade = fadeOutBuffer.getChannel(c);
+				for (int i = 0; i < fadeOutCount; i++) {
+					fade[i] = delay[(readPos + i) & mask];
+				}
+			}
+		}
+		if (DEBUG_DELAY) {
+			debug("Fading out old delay line:");
+			debug("- old delay=" + currDelaySamples + " samples  new delay="
+					+ newDelaySamples + " samples");
+			debug("- copied " + fadeOutCount + " samples to fade buffer");
+			debug("- silence " + newDelaySamples
+					+ " samples of the delay line");
+			debug("- next rendering time, fade in the signal");
+		}
+		dl.clear(newDelaySamples);
+		currDelaySamples = newDelaySamples;
+		nextBufferDoFade = true;
 	}
 
 	/**
 	 * the actual delay processor: feed the current buffer to the circular delay
-	 * buffer, and add the current delay buffer contents to the output buffer
+	 * line, and add the delayed signal to the output buffer. Parameters are
+	 * read without locking.
 	 */
 	@Override
 	public boolean process(long samplePos, FloatSampleBuffer buffer,
 			int offset, int sampleCount) {
+		DelayLine dl = delayLine;
 		// sanity
-		if (delayBuffer == null || sampleCount == 0) return false;
-		synchronized (lock) {
-			double srcVol;
-			double delayVol;
-			if (balance < 0) {
-				srcVol = 1.0;
-				delayVol = (1 + balance);
-			} else {
-				srcVol = 1 - balance;
-				delayVol = 1.0;
+		if (dl == null || sampleCount == 0) return false;
+		int newDelaySamples = delayTimeSamples;
+		if (newDelaySamples != currDelaySamples) {
+			changeDelayTime(dl, newDelaySamples);
+		}
+		// ramp feedback and balance to the GUI values or from the automation
+		// lanes
+		float startFeedback = prepareParameter(feedback, feedbackLane,
+				samplePos, sampleCount);
+		float feedbackInc = feedback.getIncrement();
+		float startBalance = prepareParameter(balance, balanceLane, samplePos,
+				sampleCount);
+		float endBalance = balance.getCurrent();
+		float startSrcVol = getSourceVolume(startBalance);
+		float startDelayVol = getDelayVolume(startBalance);
+		float delayVol = getDelayVolume(endBalance);
+		float srcVolInc = (getSourceVolume(endBalance) - startSrcVol)
+				/ sampleCount;
+		float delayVolInc = (delayVol - startDelayVol) / sampleCount;
+		boolean doFade = nextBufferDoFade;
+		nextBufferDoFade = false;
+		float inoutVol = 1.0f;
+		float inoutVolInc = 0.0f;
+		if (doFade) {
+			inoutVolInc = 1.0f / sampleCount;
+			if (DEBUG_DELAY) {
+				debug("- Fading in...");
 			}
-			int delayCount = delayBuffer.getSampleCount();
-			double delayBufferInc = delayCount / delayTimeSamples;
-			double delayPos = delayBufferPos;
-			boolean doFade = nextBufferDoFade;
-			nextBufferDoFade = false;
-			float inoutVol = 1.0f;
-			float inoutVolInc = 0.0f;
+		}
+		int mask = dl.getMask();
+		int startReadPos = (int) dl.getReadPosition(currDelaySamples);
+		int startWritePos = dl.getWriteIndex();
+		for (int c = 0; c < buffer.getChannelCount(); c++) {
+			float[] delay = dl.getChannel(c);
+			float[] inout = buffer.getChannel(c);
+			int end = offset + sampleCount;
+			int readPos = startReadPos;
+			int writePos = startWritePos;
 			if (doFade) {
-				inoutVolInc = 1.0f / buffer.getSampleCount();
-				if (DEBUG_DELAY) {
-					debug("- Fading in...");
-				}
+				inoutVol = 0.0f;
 			}
-			for (int c = 0; c < buffer.getChannelCount(); c++) {
-				int thisCount = sampleCount;
-				float[] delay = delayBuffer.getChannel(c);
-				float[] inout = buffer.getChannel(c);
-				int thisOffset = offset;
-				delayPos = delayBufferPos;
-				while ((int) delayPos >= delayCount) {
-					delayPos -= delayCount;
-				}
+			float fb = startFeedback;
+			float sVol = startSrcVol;
+			float dVol = startDelayVol;
+			for (int i = offset; i < end; i++) {
+				// the actual delay line!
+				float io = inout[i];
+				float d = delay[readPos & mask];
+				inout[i] = d * dVol * fb + io * sVol;
+				delay[writePos] = DSPUtils.flushDenormal(d * fb + io
+						* inoutVol);
+				writePos = (writePos + 1) & mask;
+				readPos++;
+				fb += feedbackInc;
+				sVol += srcVolInc;
+				dVol += delayVolInc;
 				if (doFade) {
-					inoutVol = 0.0f;
-				}
-				while (thisCount > 0) {
-					// the actual delay line!
-					float io = inout[thisOffset];
-					int dOffset = (int) delayPos;
-					float d = delay[dOffset];
-					inout[thisOffset] = (float) (d * delayVol * feedback + io
-							* srcVol);
-					delay[dOffset] = (float) (d * feedback + (io * inoutVol));
-					thisOffset++;
-					thisCount--;
-					delayPos += delayBufferInc;
-					if ((int) delayPos >= delayCount) {
-						delayPos -= delayCount;
-					}
-					if (doFade) {
-						inoutVol += inoutVolInc;
-					}
+					inoutVol += inoutVolInc;
 				}
 			}
-			// now apply the fade buffer
-			if (doFade) {
-				// fade out the fade buffer
-				int fadeOutCount = fadeOutBuffer.getSampleCount();
-				if (fadeOutCount > buffer.getSampleCount()) {
-					fadeOutCount = buffer.getSampleCount();
-				}
-				fadeOutBuffer.linearFade((float) (delayVol * feedback), 0.0f,
-						0, fadeOutCount);
-				buffer.mix(fadeOutBuffer, 0, 0, fadeOutCount);
-				if (DEBUG_DELAY) {
-					debug("- Applied " + fadeOutCount + " from fadeOutBuffer");
-				}
-
+		}
+		dl.advance(sampleCount);
+		// now apply the fade buffer
+		if (doFade) {
+			// fade out the fade buffer
+			int fadeOutCount = fadeOutBuffer.getSampleCount();
+			if (fadeOutCount > sampleCount) {
+				fadeOutCount = sampleCount;
+			}
+			fadeOutBuffer.linearFade(delayVol * feedback.getCurrent(), 0.0f,
+					0, fadeOutCount);
+			buffer.mix(fadeOutBuffer, 0, offset, fadeOutCount);
+			if (DEBUG_DELAY) {
+				debug("- Applied " + fadeOutCount + " from fadeOutBuffer");
 			}
-			delayBufferPos = delayPos;
-			return true;
 		}
+		return true;
+	}
+
+	/** @return the volume of the source signal for the given balance */
+	private static final float getSourceVolume(float aBalance) {
+		return (aBalance < 0) ? 1.0f : 1 - aBalance;
+	}
+
+	/** @return the volume of the delayed signal for the given balance */
+	private static final float getDelayVolume(float aBalance) {
+		return (aBalance < 0) ? 1 + aBalance : 1.0f;
 	}
 
 	// --------------------------------- GUI stuff
@@ -348,7 +438,7 @@ public class Delay extends GUIEffectsBase {
 		// will cause change event and update the label
 		noUpdate++;
 		try {
-			sFeedback.slider.setValue((int) (feedback * 100.0));
+			sFeedback.slider.setValue((int) (getFeedback() * 100.0));
 		} finally {
 			noUpdate--;
 		}
@@ -374,7 +464,7 @@ public class Delay extends GUIEffectsBase {
 		// will cause change event and update the label
 		noUpdate++;
 		try {
-			sBalance.slider.setValue((int) (balance * 100.0));
+			sBalance.slider.setValue((int) (getBalance() * 100.0));
 		} finally {
 			noUpdate--;
 		}
@@ -395,6 +485,17 @@ public class Delay extends GUIEffectsBase {
 				+ " %");
 	}
 
+	/** display the parameters which are controlled by automation lanes */
+	@Override
+	protected void displayAutomation() {
+		if (isAutomated(feedbackLane)) {
+			updateGUIFeedback();
+		}
+		if (isAutomated(balanceLane)) {
+			updateGUIBalance();
+		}
+	}
+
 	// --------------------------------- interface MouseListener
 
 	/**
@@ -406,9 +507,9 @@ public class Delay extends GUIEffectsBase {
 			if (src == sDelayTime.slider) {
 				track.addAutomationObject(new DelayTimeAutomation());
 			} else if (src == sFeedback.slider) {
-				track.addAutomationObject(new FeedbackAutomation());
+				recordAutomation(feedbackLane, getFeedback());
 			} else if (src == sBalance.slider) {
-				track.addAutomationObject(new BalanceAutomation());
+				recordAutomation(balanceLane, getBalance());
 			}
 		}
 	}
@@ -419,10 +520,10 @@ public class Delay extends GUIEffectsBase {
 			delayTimeHandler.setTracking(track, on);
 			if (DEBUG_DELAY) debug("Delay Time tracking: " + on);
 		} else if (src == sFeedback.slider) {
-			feedbackHandler.setTracking(track, on);
+			feedbackLane.setTracking(on);
 			if (DEBUG_DELAY) debug("Feedback tracking: " + on);
 		} else if (src == sBalance.slider) {
-			balanceHandler.setTracking(track, on);
+			balanceLane.setTracking(on);
 			if (DEBUG_DELAY) debug("Balance tracking: " + on);
 		}
 		// add initial automation state
@@ -478,6 +579,7 @@ public class Delay extends GUIEffectsBase {
 		}
 		if (noUpdate == 0) {
 			addAutomationEvent(src);
+			parameterChanged();
 		}
 	}
 
@@ -519,77 +621,4 @@ public class Delay extends GUIEffectsBase {
 					+ " beats";
 		}
 	}
-
-	/** the automation object to record a change in feedback */
-	private class FeedbackAutomation extends AutomationObject {
-		private double aoFeedback;
-
-		/**
-		 * Create a feedback automation object capturing the current playback
-		 * time and the current feedback.
-		 */
-		public FeedbackAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoFeedback = getFeedback();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setFeedback(aoFeedback);
-			updateGUIFeedback();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", feedback=" + aoFeedback;
-		}
-	}
-
-	/** the automation object to record a change in balance */
-	private class BalanceAutomation extends AutomationObject {
-		private double aoBalance;
-
-		/**
-		 * Create a balance automation object capturing the current playback
-		 * time and the current balance.
-		 */
-		public BalanceAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoBalance = getBalance();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setBalance(aoBalance);
-			updateGUIBalance();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", balance=" + aoBalance;
-		}
-	}
-
-	/* satisfy compiler */
-	private static final long serialVersionUID = 0;
 }
@@ -18,8 +18,10 @@ import javax.swing.event.ChangeEvent;
 
 import org.tritonus.share.sampled.FloatSampleBuffer;
 
+import com.mixblendr.audio.AudioEffectParameters;
 import com.mixblendr.audio.AudioTrack;
 import com.mixblendr.audio.AutomationHandler;
+import com.mixblendr.audio.AutomationLane;
 import com.mixblendr.audio.AutomationManager;
 import com.mixblendr.audio.AutomationObject;
 import com.mixblendr.util.GUIUtils;
@@ -30,7 +32,8 @@ import com.mixblendr.util.GUIUtils;
  * 
  * @author Florian Bomers
  */
-public class Delay2 extends GUIEffectsBase {
+public class Delay2 extends GUIEffectsBase implements
+		AudioEffectParameters {
 
 	private static final boolean DEBUG_DELAY2 = false;
 
@@ -44,19 +47,20 @@ public class Delay2 extends GUIEffectsBase {
 	};
 
 	private double delayTimeBeats;
-	private double delayTimeSamples;
-	private double feedback;
-	private double balance;
+	/** the delay time set in the GUI, the render thread glides to it */
+	private volatile double delayTimeSamples;
+	private SmoothedParameter feedback = new SmoothedParameter(0.5, 0);
+	private SmoothedParameter balance = new SmoothedParameter(0.0, 0);
 
-	// runtime state
-	private FloatSampleBuffer delayBuffer;
-	private double delayBufferReadPos;
-	private double delayBufferWritePos;
+	// runtime state, only used by the render thread
+	private volatile DelayLine delayLine;
+	/** the delay time currently used by the delay line, or 0 at beginning */
+	private double currDelaySamples;
 
 	// automation support
 	private static AutomationHandler delayTimeHandler = AutomationManager.getHandler(DelayTimeAutomation.class);
-	private static AutomationHandler feedbackHandler = AutomationManager.getHandler(FeedbackAutomation.class);
-	private static AutomationHandler balanceHandler = AutomationManager.getHandler(BalanceAutomation.class);
+	private AutomationLane feedbackLane = new AutomationLane();
+	private AutomationLane balanceLane = new AutomationLane();
 
 	/** create a new instance of the Delay effect */
 	public Delay2() {
@@ -76,15 +80,14 @@ public class Delay2 extends GUIEffectsBase {
 	 */
 	public void setDelayTimeBeats(double delayTimeBeats) {
 		if (state == null) return;
-		synchronized (lock) {
-			this.delayTimeBeats = delayTimeBeats;
-			this.delayTimeSamples = state.beat2sample(delayTimeBeats);
-			if (delayTimeSamples <= 0) {
-				delayTimeSamples = 0.1;
-			} else if (delayTimeSamples > delayBuffer.getSampleCount()) {
-				delayTimeSamples = delayBuffer.getSampleCount();
-			}
+		this.delayTimeBeats = delayTimeBeats;
+		double samples = state.beat2sampleD(delayTimeBeats);
+		if (samples < 1) {
+			samples = 1;
+		} else if (samples > MAX_DELAY_SAMPLES) {
+			samples = MAX_DELAY_SAMPLES;
 		}
+		delayTimeSamples = samples;
 	}
 
 	/**
@@ -106,28 +109,83 @@ public class Delay2 extends GUIEffectsBase {
 	 * @return the feedback [0..1]
 	 */
 	public double getFeedback() {
-		return feedback;
+		return feedback.getTarget();
 	}
 
 	/**
 	 * @param feedback the feedback to set [0..1]
 	 */
 	public void setFeedback(double feedback) {
-		this.feedback = feedback;
+		this.feedback.setTarget(feedback);
 	}
 
 	/**
 	 * @return the balance [-1...0...+1]
 	 */
 	public double getBalance() {
-		return balance;
+		return balance.getTarget();
 	}
 
 	/**
 	 * @param balance the balance to set [-1...0...+1]
 	 */
 	public void setBalance(double balance) {
-		this.balance = balance;
+		this.balance.setTarget(balance);
+	}
+
+	// --------------------------------- AudioEffectParameters methods
+
+	private static final String[] PARAMETER_NAMES = {
+			"delayTimeBeats", "feedback", "balance",
+	};
+
+	public int getParameterCount() {
+		return PARAMETER_NAMES.length;
+	}
+
+	public String getParameterName(int index) {
+		return PARAMETER_NAMES[index];
+	}
+
+	public double getParameter(int index) {
+		switch (index) {
+		case 0:
+			return getDelayTimeBeats();
+		case 1:
+			return getFeedback();
+		case 2:
+			return getBalance();
+		}
+		throw new IllegalArgumentException("illegal parameter index: "
+				+ index);
+	}
+
+	public void setParameter(int index, double value) {
+		switch (index) {
+		case 0:
+			setDelayTimeBeats(value);
+			break;
+		case 1:
+			setFeedback(value);
+			break;
+		case 2:
+			setBalance(value);
+			break;
+		default:
+			throw new IllegalArgumentException("illegal parameter index: "
+					+ index);
+		}
+		parameterChanged();
+	}
+
+	public AutomationLane getParameterLane(int index) {
+		switch (index) {
+		case 1:
+			return feedbackLane;
+		case 2:
+			return balanceLane;
+		}
+		return null;
 	}
 
 	// --------------------------------- AudioEffect methods
@@ -135,110 +193,118 @@ public class Delay2 extends GUIEffectsBase {
 	/** maximum of 2 seconds delay buffer */
 	private static final int MAX_DELAY_SAMPLES = 88200;
 
+	/**
+	 * the maximum speed of shortening the delay time, in samples per sample:
+	 * if faster, it will be audible high-pitched
+	 */
+	private static final double MAX_DELAY_DECREASE = 2.0;
+
+	/** the speed of shortening the delay time if it would be too fast */
+	private static final double SLOW_DELAY_DECREASE = 0.5;
+
 	@Override
 	public void initImpl() {
 		if (state == null) return;
-		if (delayBuffer == null) {
-			delayBuffer = new FloatSampleBuffer(state.getChannels(),
-					MAX_DELAY_SAMPLES, state.getSampleRate());
-		}
+		currDelaySamples = 0;
 		// default values
 		setDelayTimeBeats(1 / 8.0);
-		setFeedback(0.5);
-		setBalance(0.0);
+		feedback.reset(0.5);
+		balance.reset(0.0);
+		feedback.setSmoothingSamples(getSmoothingSamples());
+		balance.setSmoothingSamples(getSmoothingSamples());
+		delayLine = new DelayLine(state.getChannels(), MAX_DELAY_SAMPLES);
 	}
 
 	@Override
 	public void exitImpl() {
-		delayBuffer = null;
+		delayLine = null;
 	}
 
 	/**
 	 * the actual delay processor: feed the current buffer to the circular delay
-	 * buffer, and add the current delay buffer contents to the output buffer
+	 * line, and add the delayed signal to the output buffer. Parameters are
+	 * read without locking.
 	 */
 	@Override
 	public boolean process(long samplePos, FloatSampleBuffer buffer,
 			int offset, int sampleCount) {
+		DelayLine dl = delayLine;
 		// sanity
-		if (delayBuffer == null || sampleCount == 0) return false;
-		synchronized (lock) {
-			double srcVol;
-			double delayVol;
-			if (balance < 0) {
-				srcVol = 1.0;
-				delayVol = (1 + balance);
-			} else {
-				srcVol = 1 - balance;
-				delayVol = 1.0;
-			}
-			int delayBufferCount = delayBuffer.getSampleCount();
-
-			// by which read/write pos are increased for every sample, to
-			// account for non-integral delay times
-			double writePosInc = ((int) delayTimeSamples) / delayTimeSamples;
-			double readPosInc = writePosInc;
-
-			// local variables as optimization
-			double writePos = delayBufferWritePos;
-			double readPos = delayBufferReadPos;
-
-			// if delay time has changed, read pos (dependent on write Pos)
-			// needs
-			// to slowly drift away/towards writePos so that it will reach the
-			// target delay eventually
-			double targetReadPos = writePos - delayTimeSamples;
-			if (targetReadPos < 0) {
-				targetReadPos += delayBufferCount;
+		if (dl == null || sampleCount == 0) return false;
+		// ramp feedback and balance to the GUI values or from the automation
+		// lanes
+		float startFeedback = prepareParameter(feedback, feedbackLane,
+				samplePos, sampleCount);
+		float feedbackInc = feedback.getIncrement();
+		float startBalance = prepareParameter(balance, balanceLane, samplePos,
+				sampleCount);
+		float endBalance = balance.getCurrent();
+		float startSrcVol = getSourceVolume(startBalance);
+		float startDelayVol = getDelayVolume(startBalance);
+		float srcVolInc = (getSourceVolume(endBalance) - startSrcVol)
+				/ sampleCount;
+		float delayVolInc = (getDelayVolume(endBalance) - startDelayVol)
+				/ sampleCount;
+
+		// if delay time has changed, the delay slowly drifts towards the new
+		// delay time so that it will reach the target delay eventually
+		double targetDelay = delayTimeSamples;
+		double startDelay = currDelaySamples;
+		double delayInc = 0;
+		if (startDelay == 0) {
+			// at beginning, no transition necessary
+			startDelay = targetDelay;
+		} else {
+			delayInc = (targetDelay - startDelay) / sampleCount;
+			if (delayInc < -MAX_DELAY_DECREASE) {
+				delayInc = -SLOW_DELAY_DECREASE;
 			}
-			if (readPos == writePos) {
-				// at beginning, no transition necessary
-				readPos = targetReadPos;
-			} else {
-				readPosInc += (targetReadPos - readPos) / sampleCount;
-				// do not increase too much, otherwise will be audible
-				// high-pitched...
-				if (readPosInc > 3) {
-					readPosInc = 1.5;
-				}
-			}
-			double startReadPos = readPos;
-
-			for (int c = 0; c < buffer.getChannelCount(); c++) {
-				int thisCount = sampleCount;
-				float[] delay = delayBuffer.getChannel(c);
-				float[] inout = buffer.getChannel(c);
-				int thisOffset = offset;
-
-				// re-initialize for every channel
-				writePos = delayBufferWritePos;
-				readPos = startReadPos;
-
-				while (thisCount > 0) {
-					// the actual delay line!
-					float io = inout[thisOffset];
-					int readOffset = (int) readPos;
-					int writeOffset = (int) writePos;
-					float dr = delay[readOffset];
-					inout[thisOffset] = (float) (dr * delayVol + io * srcVol);
-					delay[writeOffset] = (float) (dr * feedback + io);
-					thisOffset++;
-					thisCount--;
-					writePos += writePosInc;
-					if ((int) writePos >= delayBufferCount) {
-						writePos -= delayBufferCount;
-					}
-					readPos += readPosInc;
-					if ((int) readPos >= delayBufferCount) {
-						readPos -= delayBufferCount;
-					}
-				}
+		}
+
+		int mask = dl.getMask();
+		double startReadPos = dl.getReadPosition(startDelay);
+		int startWritePos = dl.getWriteIndex();
+		// the read position advances by 1 minus the delay change
+		double readPosInc = 1.0 - delayInc;
+		for (int c = 0; c < buffer.getChannelCount(); c++) {
+			float[] delay = dl.getChannel(c);
+			float[] inout = buffer.getChannel(c);
+			int end = offset + sampleCount;
+
+			// re-initialize for every channel
+			int writePos = startWritePos;
+			double readPos = startReadPos;
+			float fb = startFeedback;
+			float srcVol = startSrcVol;
+			float delayVol = startDelayVol;
+
+			for (int i = offset; i < end; i++) {
+				// the actual delay line!
+				float io = inout[i];
+				float dr = DSPUtils.interpolateLinear(delay, mask, readPos);
+				inout[i] = dr * delayVol + io * srcVol;
+				delay[writePos] = DSPUtils.flushDenormal(dr * fb + io);
+				writePos = (writePos + 1) & mask;
+				readPos += readPosInc;
+				fb += feedbackInc;
+				srcVol += srcVolInc;
+				delayVol += delayVolInc;
 			}
-			// store state for next audio block
-			delayBufferReadPos = readPos;
-			delayBufferWritePos = writePos;
-			return true;
 		}
+		// store state for next audio block
+		dl.advance(sampleCount);
+		currDelaySamples = startDelay + delayInc * sampleCount;
+		return true;
+	}
+
+	/** @return the volume of the source signal for the given balance */
+	private static final float getSourceVolume(float aBalance) {
+		return (aBalance < 0) ? 1.0f : 1 - aBalance;
+	}
+
+	/** @return the volume of the delayed signal for the given balance */
+	private static final float getDelayVolume(float aBalance) {
+		return (aBalance < 0) ? 1 + aBalance : 1.0f;
 	}
 
 	// --------------------------------- GUI stuff
@@ -323,7 +389,7 @@ public class Delay2 extends GUIEffectsBase {
 		// will cause change event and update the label
 		noUpdate++;
 		try {
-			sFeedback.slider.setValue((int) (feedback * 100.0));
+			sFeedback.slider.setValue((int) (getFeedback() * 100.0));
 		} finally {
 			noUpdate--;
 		}
@@ -349,7 +415,7 @@ public class Delay2 extends GUIEffectsBase {
 		// will cause change event and update the label
 		noUpdate++;
 		try {
-			sBalance.slider.setValue((int) (balance * 100.0));
+			sBalance.slider.setValue((int) (getBalance() * 100.0));
 		} finally {
 			noUpdate--;
 		}
@@ -370,6 +436,17 @@ public class Delay2 extends GUIEffectsBase {
 				+ " %");
 	}
 
+	/** display the parameters which are controlled by automation lanes */
+	@Override
+	protected void displayAutomation() {
+		if (isAutomated(feedbackLane)) {
+			updateGUIFeedback();
+		}
+		if (isAutomated(balanceLane)) {
+			updateGUIBalance();
+		}
+	}
+
 	// --------------------------------- interface MouseListener
 
 	/**
@@ -381,9 +458,9 @@ public class Delay2 extends GUIEffectsBase {
 			if (src == sDelayTime.slider) {
 				track.addAutomationObject(new DelayTimeAutomation());
 			} else if (src == sFeedback.slider) {
-				track.addAutomationObject(new FeedbackAutomation());
+				recordAutomation(feedbackLane, getFeedback());
 			} else if (src == sBalance.slider) {
-				track.addAutomationObject(new BalanceAutomation());
+				recordAutomation(balanceLane, getBalance());
 			}
 		}
 	}
@@ -394,10 +471,10 @@ public class Delay2 extends GUIEffectsBase {
 			delayTimeHandler.setTracking(track, on);
 			if (DEBUG_DELAY2) debug("Delay Time tracking: " + on);
 		} else if (src == sFeedback.slider) {
-			feedbackHandler.setTracking(track, on);
+			feedbackLane.setTracking(on);
 			if (DEBUG_DELAY2) debug("Feedback tracking: " + on);
 		} else if (src == sBalance.slider) {
-			balanceHandler.setTracking(track, on);
+			balanceLane.setTracking(on);
 			if (DEBUG_DELAY2) debug("Balance tracking: " + on);
 		}
 		// add initial automation state
@@ -453,6 +530,7 @@ public class Delay2 extends GUIEffectsBase {
 		}
 		if (noUpdate == 0) {
 			addAutomationEvent(src);
+			parameterChanged();
 		}
 	}
 
@@ -494,77 +572,4 @@ public class Delay2 extends GUIEffectsBase {
 					+ " beats";
 		}
 	}
-
-	/** the automation object to record a change in feedback */
-	private class FeedbackAutomation extends AutomationObject {
-		private double aoFeedback;
-
-		/**
-		 * Create a feedback automation object capturing the current playback
-		 * time and the current feedback.
-		 */
-		public FeedbackAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoFeedback = getFeedback();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setFeedback(aoFeedback);
-			updateGUIFeedback();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", feedback=" + aoFeedback;
-		}
-	}
-
-	/** the automation object to record a change in balance */
-	private class BalanceAutomation extends AutomationObject {
-		private double aoBalance;
-
-		/**
-		 * Create a balance automation object capturing the current playback
-		 * time and the current balance.
-		 */
-		public BalanceAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoBalance = getBalance();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setBalance(aoBalance);
-			updateGUIBalance();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", balance=" + aoBalance;
-		}
-	}
-
-	/* satisfy compiler */
-	private static final long serialVersionUID = 0;
 }
@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package com.mixblendr.effects;
+
+/**
+ * A multi-channel delay line on power-of-two ring buffers. Wrapping is done
+ * with a bit mask instead of comparisons, and the buffers are allocated once,
+ * so that changing the delay time never allocates memory in the render
+ * thread.
+ * <p>
+ * Usage in a render loop: for every channel, get the buffer with
+ * getChannel(), start writing at getWriteIndex() and read at fractional
+ * positions before it with the interpolation methods in DSPUtils. After all
+ * channels are processed, call advance() with the number of processed
+ * samples.
+ * <p>
+ * This class is not thread safe, it should only be used by the render
+ * thread.
+ *
+ * @author Florian Bomers
+ */
+public class DelayLine {
+
+	/** extra samples at the end of the buffer for interpolation */
+	private static final int GUARD_SAMPLES = 4;
+
+	private float[][] buffers;
+
+	private int mask;
+
+	private int writeIndex;
+
+	/**
+	 * Create a new delay line.
+	 *
+	 * @param channels the number of channels
+	 * @param maxDelaySamples the maximum delay in samples
+	 */
+	public DelayLine(int channels, int maxDelaySamples) {
+		int size = DSPUtils.nextPowerOf2(maxDelaySamples + GUARD_SAMPLES);
+		buffers = new float[channels][size];
+		mask = size - 1;
+		writeIndex = 0;
+	}
+
+	/**
+	 * @return the number of channels
+	 */
+	public int getChannelCount() {
+		return buffers.length;
+	}
+
+	/**
+	 * @return the size of the ring buffers, a power of 2
+	 */
+	public int getSize() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the size of the ring buffers minus one, for wrapping indexes
+	 */
+	public int getMask() {
+		return mask;
+	}
+
+	/**
+	 * @return the maximum delay in samples that can be read with
+	 *         interpolation
+	 */
+	public int getMaxDelay() {
+		return mask + 1 - GUARD_SAMPLES;
+	}
+
+	/**
+	 * @return the ring buffer of the channel
+	 */
+	public float[] getChannel(int channel) {
+		return buffers[channel];
+	}
+
+	/**
+	 * @return the index in the ring buffers where the next sample is written
+	 */
+	public int getWriteIndex() {
+		return writeIndex;
+	}
+
+	/**
+	 * Get the read position for the given delay, relative to the write index.
+	 * The returned position is always positive so that it can be passed to
+	 * the interpolation methods in DSPUtils.
+	 *
+	 * @param delaySamples the delay in samples, [1...getMaxDelay()]
+	 * @return the read position in the ring buffer, not wrapped
+	 */
+	public double getReadPosition(double delaySamples) {
+		return writeIndex + (mask + 1) - delaySamples;
+	}
+
+	/**
+	 * Advance the write index after processing a block of samples.
+	 */
+	public void advance(int sampleCount) {
+		writeIndex = (writeIndex + sampleCount) & mask;
+	}
+
+	/** silence all channels */
+	public void clear() {
+		for (float[] buffer : buffers) {
+			java.util.Arrays.fill(buffer, 0.0f);
+		}
+	}
+
+	/**
+	 * Silence the samples before the write index that are read with the
+	 * given delay, including the samples used for interpolation. Until they
+	 * are written again, reading with up to this delay returns silence. For
+	 * short delays, this is much faster than clear().
+	 *
+	 * @param delaySamples the maximum delay in samples that will be read
+	 */
+	public void clear(int delaySamples) {
+		int count = delaySamples + GUARD_SAMPLES;
+		if (count >= mask + 1) {
+			clear();
+			return;
+		}
+		int start = (writeIndex - count) & mask;
+		for (float[] buffer : buffers) {
+			if (start + count <= buffer.length) {
+				java.util.Arrays.fill(buffer, start, start + count, 0.0f);
+			} else {
+				java.util.Arrays.fill(buffer, start, buffer.length, 0.0f);
+				java.util.Arrays.fill(buffer, 0, start + count - buffer.length,
+						0.0f);
+			}
+		}
+	}
+
+}
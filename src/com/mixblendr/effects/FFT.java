@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package com.mixblendr.effects;
+
+/**
+ * An in-place radix-2 FFT for real signals of a fixed power-of-two size. The
+ * real transform is calculated with a complex FFT of half the size.
+ * <p>
+ * Spectra are stored in packed format in an array of the transform size: the
+ * real part of the DC bin is at index 0, the real part of the Nyquist bin at
+ * index 1, followed by the interleaved real and imaginary parts of bins 1 to
+ * size/2-1.
+ * <p>
+ * Instances are immutable after construction and can be shared by threads.
+ *
+ * @author Florian Bomers
+ */
+public final class FFT {
+
+	/** the size of the real transform */
+	private final int size;
+
+	/** half the size: the size of the complex transform */
+	private final int half;
+
+	/** twiddle factors of the complex transform */
+	private final float[] cosTable;
+
+	private final float[] sinTable;
+
+	/** twiddle factors for splitting the real transform */
+	private final float[] splitCos;
+
+	private final float[] splitSin;
+
+	/** bit reversal permutation of the complex transform */
+	private final int[] bitReverse;
+
+	/**
+	 * Create an FFT for the given size.
+	 *
+	 * @param size the transform size, a power of 2 and at least 4
+	 * @throws IllegalArgumentException if size is not a power of 2
+	 */
+	public FFT(int size) {
+		if (size < 4 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("FFT size must be a power of 2");
+		}
+		this.size = size;
+		half = size / 2;
+		cosTable = new float[half / 2];
+		sinTable = new float[half / 2];
+		for (int i = 0; i < half / 2; i++) {
+			double w = -2 * Math.PI * i / half;
+			cosTable[i] = (float) Math.cos(w);
+			sinTable[i] = (float) Math.sin(w);
+		}
+		splitCos = new float[half];
+		splitSin = new float[half];
+		for (int i = 0; i < half; i++) {
+			double w = -2 * Math.PI * i / size;
+			splitCos[i] = (float) Math.cos(w);
+			splitSin[i] = (float) Math.sin(w);
+		}
+		bitReverse = new int[half];
+		int bits = Integer.numberOfTrailingZeros(half);
+		for (int i = 0; i < half; i++) {
+			bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+		if (half == 1) {
+			bitReverse[0] = 0;
+		}
+	}
+
+	/**
+	 * @return the size of the transform
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * In-place complex FFT of size half on interleaved data. The inverse
+	 * transform is not scaled.
+	 */
+	private void complexTransform(float[] data, boolean inverse) {
+		int n = half;
+		// bit reversal
+		for (int i = 0; i < n; i++) {
+			int j = bitReverse[i];
+			if (j > i) {
+				int i2 = 2 * i;
+				int j2 = 2 * j;
+				float tr = data[i2];
+				float ti = data[i2 + 1];
+				data[i2] = data[j2];
+				data[i2 + 1] = data[j2 + 1];
+				data[j2] = tr;
+				data[j2 + 1] = ti;
+			}
+		}
+		float sign = inverse ? -1.0f : 1.0f;
+		for (int len = 2; len <= n; len <<= 1) {
+			int halfLen = len >> 1;
+			int step = n / len;
+			for (int start = 0; start < n; start += len) {
+				for (int k = 0; k < halfLen; k++) {
+					float wr = cosTable[k * step];
+					float wi = sign * sinTable[k * step];
+					int a = 2 * (start + k);
+					int b = 2 * (start + k + halfLen);
+					float br = data[b];
+					float bi = data[b + 1];
+					float tr = br * wr - bi * wi;
+					float ti = br * wi + bi * wr;
+					data[b] = data[a] - tr;
+					data[b + 1] = data[a + 1] - ti;
+					data[a] += tr;
+					data[a + 1] += ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transform a real signal of getSize() samples in place to its spectrum in
+	 * packed format.
+	 */
+	public void realForward(float[] data) {
+		complexTransform(data, false);
+		// split the spectrum of the even and odd samples
+		float z0r = data[0];
+		float z0i = data[1];
+		data[0] = z0r + z0i;
+		data[1] = z0r - z0i;
+		for (int k = 1; k <= half / 2; k++) {
+			int k2 = 2 * k;
+			int m2 = 2 * (half - k);
+			float zkr = data[k2];
+			float zki = data[k2 + 1];
+			float zmr = data[m2];
+			float zmi = data[m2 + 1];
+			// even part: (Z[k] + conj(Z[M-k])) / 2
+			float er = 0.5f * (zkr + zmr);
+			float ei = 0.5f * (zki - zmi);
+			// odd part: (Z[k] - conj(Z[M-k])) / 2i
+			float or = 0.5f * (zki + zmi);
+			float oi = -0.5f * (zkr - zmr);
+			float wr = splitCos[k];
+			float wi = splitSin[k];
+			// X[k] = E + W^k * O
+			float tr = or * wr - oi * wi;
+			float ti = or * wi + oi * wr;
+			data[k2] = er + tr;
+			data[k2 + 1] = ei + ti;
+			if (k != half - k) {
+				// X[M-k] = conj(E - W^k * O)
+				data[m2] = er - tr;
+				data[m2 + 1] = -(ei - ti);
+			}
+		}
+	}
+
+	/**
+	 * Transform a spectrum in packed format in place back to the real signal.
+	 * The result is scaled by getSize() / 2.
+	 */
+	public void realInverse(float[] data) {
+		float x0 = data[0];
+		float xm = data[1];
+		data[0] = 0.5f * (x0 + xm);
+		data[1] = 0.5f * (x0 - xm);
+		for (int k = 1; k <= half / 2; k++) {
+			int k2 = 2 * k;
+			int m2 = 2 * (half - k);
+			float xkr = data[k2];
+			float xki = data[k2 + 1];
+			float xmr = data[m2];
+			float xmi = data[m2 + 1];
+			// E = (X[k] + conj(X[M-k])) / 2
+			float er = 0.5f * (xkr + xmr);
+			float ei = 0.5f * (xki - xmi);
+			// O = (X[k] - conj(X[M-k])) / (2 W^k)
+			float dr = 0.5f * (xkr - xmr);
+			float di = 0.5f * (xki + xmi);
+			float wr = splitCos[k];
+			float wi = -splitSin[k];
+			float or = dr * wr - di * wi;
+			float oi = dr * wi + di * wr;
+			// Z[k] = E + i O
+			data[k2] = er - oi;
+			data[k2 + 1] = ei + or;
+			if (k != half - k) {
+				// Z[M-k] = conj(E) + i conj(O)
+				data[m2] = er + oi;
+				data[m2 + 1] = -ei + or;
+			}
+		}
+		complexTransform(data, true);
+	}
+
+	/**
+	 * Multiply two spectra in packed format and add the result to an
+	 * accumulator.
+	 *
+	 * @param acc the accumulator
+	 * @param a the first spectrum
+	 * @param b the second spectrum
+	 */
+	public void multiplyAdd(float[] acc, float[] a, float[] b) {
+		acc[0] += a[0] * b[0];
+		acc[1] += a[1] * b[1];
+		for (int i = 2; i < size; i += 2) {
+			float ar = a[i];
+			float ai = a[i + 1];
+			float br = b[i];
+			float bi = b[i + 1];
+			acc[i] += ar * br - ai * bi;
+			acc[i + 1] += ar * bi + ai * br;
+		}
+	}
+
+}
@@ -20,7 +20,8 @@ import static com.mixblendr.util.Debug.*;
  * 
  * @author Florian Bomers
  */
-public class Flanger extends GUIEffectsBase {
+public class Flanger extends GUIEffectsBase implements
+		AudioEffectParameters {
 
 	private static final boolean DEBUG_FLANGER = false;
 
@@ -35,28 +36,28 @@ public class Flanger extends GUIEffectsBase {
 	 * double the delay at its peak, and have half the delay at its negative
 	 * peak.
 	 */
-	private double amplitude;
+	private SmoothedParameter amplitude = new SmoothedParameter(0.5, 0);
 	/** freq in hertz */
-	private double freq;
-	private double feedback;
-	private double balance;
+	private volatile double freq;
+	private SmoothedParameter feedback = new SmoothedParameter(0.6, 0);
+	private SmoothedParameter balance = new SmoothedParameter(0.0, 0);
 
 	// derived values
-	private double delayTimeSamples;
+	private volatile double delayTimeSamples;
 
-	// runtime state
-	private FloatSampleBuffer delayBuffer;
-	private double delayBufferReadPos;
-	private double delayBufferWritePos;
-	private double lfoInc;
-	private double lfoCurr;
+	// runtime state, only used by the render thread
+	private volatile DelayLine delayLine;
+	/** the mean delay currently used by the delay line, or 0 at beginning */
+	private double currDelaySamples;
+	private TableLFO lfo = new TableLFO(TableLFO.Waveform.TRIANGLE);
 
 	// automation support
 	private static AutomationHandler delayTimeHandler = AutomationManager.getHandler(DelayTimeAutomation.class);
-	private static AutomationHandler amplitudeHandler = AutomationManager.getHandler(AmplitudeAutomation.class);
-	private static AutomationHandler freqHandler = AutomationManager.getHandler(FreqAutomation.class);
-	private static AutomationHandler feedbackHandler = AutomationManager.getHandler(FeedbackAutomation.class);
-	private static AutomationHandler balanceHandler = AutomationManager.getHandler(BalanceAutomation.class);
+	private AutomationLane amplitudeLane = new AutomationLane();
+	/** frequency is in Hz [1..30], allow a larger deviation */
+	private AutomationLane freqLane = new AutomationLane(0.02f);
+	private AutomationLane feedbackLane = new AutomationLane();
+	private AutomationLane balanceLane = new AutomationLane();
 
 	/** create a new instance of the Delay effect */
 	public Flanger() {
@@ -71,32 +72,36 @@ public class Flanger extends GUIEffectsBase {
 	}
 
 	/**
-	 * Set delay time in millis, recalculate minDelay and maxDelay and fade
-	 * buffer for smooth transition to this new delay time.
+	 * Set delay time in millis. The render thread glides to the new delay
+	 * time for a smooth transition.
 	 * 
 	 * @param delayTimeMillis the delay time in millis to set
 	 */
 	public void setDelayTimeMillis(double delayTimeMillis) {
 		if (state == null) return;
-		synchronized (lock) {
-			this.delayTimeMillis = delayTimeMillis;
-			delayTimeSamples = state.millis2sample(delayTimeMillis);
-			if (DEBUG_FLANGER) debug("delayTimeSamples = " + delayTimeSamples);
+		this.delayTimeMillis = delayTimeMillis;
+		double samples = state.millis2sample(delayTimeMillis);
+		if (samples < 2) {
+			samples = 2;
+		} else if (samples > MAX_DELAY_SAMPLES) {
+			samples = MAX_DELAY_SAMPLES;
 		}
+		delayTimeSamples = samples;
+		if (DEBUG_FLANGER) debug("delayTimeSamples = " + delayTimeSamples);
 	}
 
 	/**
 	 * @return the amplitude, [0...1]
 	 */
 	public double getAmplitude() {
-		return amplitude;
+		return amplitude.getTarget();
 	}
 
 	/**
 	 * @param amplitude the amplitude to set [0..1]
 	 */
 	public void setAmplitude(double amplitude) {
-		this.amplitude = amplitude;
+		this.amplitude.setTarget(amplitude);
 	}
 
 	/**
@@ -114,195 +119,267 @@ public class Flanger extends GUIEffectsBase {
 			frequency = 0.00001;
 		}
 		this.freq = frequency;
-		// set up LFO
-		// ramp:
-		// - period = samplerate/freq
-		// - one ramp is half period
-		// - LFO oscillates between -1...0...+1
-		// - therefore increase per sample is 2 / (half period)
-		double newLfoInc = 4 * freq / state.getSampleRate();
-		if (lfoInc < 0) {
-			lfoInc = -newLfoInc;
-		} else {
-			lfoInc = newLfoInc;
+		// set up LFO: one period of the triangle oscillating between
+		// -1...0...+1 per 1/freq seconds
+		if (state != null) {
+			lfo.setFrequency(frequency, state.getSampleRate());
 		}
-		if (DEBUG_FLANGER) debug("lfoInc = " + lfoInc);
+		if (DEBUG_FLANGER) debug("LFO frequency = " + frequency);
 	}
 
 	/**
 	 * @return the feedback [0..1]
 	 */
 	public double getFeedback() {
-		return feedback;
+		return feedback.getTarget();
 	}
 
 	/**
 	 * @param feedback the feedback to set [0..1]
 	 */
 	public void setFeedback(double feedback) {
-		this.feedback = feedback;
+		this.feedback.setTarget(feedback);
 	}
 
 	/**
 	 * @return the balance [-1...0...+1]
 	 */
 	public double getBalance() {
-		return balance;
+		return balance.getTarget();
 	}
 
 	/**
 	 * @param balance the balance to set [-1...0...+1]
 	 */
 	public void setBalance(double balance) {
-		this.balance = balance;
+		this.balance.setTarget(balance);
+	}
+
+	// --------------------------------- AudioEffectParameters methods
+
+	private static final String[] PARAMETER_NAMES = {
+			"delayTimeMillis", "amplitude", "frequency", "feedback", "balance",
+	};
+
+	public int getParameterCount() {
+		return PARAMETER_NAMES.length;
+	}
+
+	public String getParameterName(int index) {
+		return PARAMETER_NAMES[index];
+	}
+
+	public double getParameter(int index) {
+		switch (index) {
+		case 0:
+			return getDelayTimeMillis();
+		case 1:
+			return getAmplitude();
+		case 2:
+			return getFrequency();
+		case 3:
+			return getFeedback();
+		case 4:
+			return getBalance();
+		}
+		throw new IllegalArgumentException("illegal parameter index: "
+				+ index);
+	}
+
+	public void setParameter(int index, double value) {
+		switch (index) {
+		case 0:
+			setDelayTimeMillis(value);
+			break;
+		case 1:
+			setAmplitude(value);
+			break;
+		case 2:
+			setFrequency(value);
+			break;
+		case 3:
+			setFeedback(value);
+			break;
+		case 4:
+			setBalance(value);
+			break;
+		default:
+			throw new IllegalArgumentException("illegal parameter index: "
+					+ index);
+		}
+		parameterChanged();
+	}
+
+	public AutomationLane getParameterLane(int index) {
+		switch (index) {
+		case 1:
+			return amplitudeLane;
+		case 2:
+			return freqLane;
+		case 3:
+			return feedbackLane;
+		case 4:
+			return balanceLane;
+		}
+		return null;
 	}
 
 	// --------------------------------- AudioEffect methods
 
-	private final static int MAX_FLANGER_BUFFER_SIZE_SAMPLES = 44100;
+	/**
+	 * the maximum mean delay time, the oscillator can increase it by half of
+	 * it
+	 */
+	private final static int MAX_DELAY_SAMPLES = 22050;
+
+	/**
+	 * the maximum speed of shortening the delay time, in samples per sample:
+	 * if faster, it will be audible high-pitched
+	 */
+	private static final double MAX_DELAY_DECREASE = 2.0;
+
+	/** the speed of shortening the delay time if it would be too fast */
+	private static final double SLOW_DELAY_DECREASE = 0.2;
 
 	@Override
 	public void initImpl() {
 		if (state == null) return;
-		if (delayBuffer == null) {
-			delayBuffer = new FloatSampleBuffer(state.getChannels(),
-					MAX_FLANGER_BUFFER_SIZE_SAMPLES, state.getSampleRate());
-		}
+		currDelaySamples = 0;
+		lfo.setPhase(0);
 		// default values
 		setDelayTimeMillis(4);
-		setAmplitude(0.5);
 		setFrequency(1);
-		setFeedback(0.6);
-		setBalance(0.0);
+		amplitude.reset(0.5);
+		feedback.reset(0.6);
+		balance.reset(0.0);
+		amplitude.setSmoothingSamples(getSmoothingSamples());
+		feedback.setSmoothingSamples(getSmoothingSamples());
+		balance.setSmoothingSamples(getSmoothingSamples());
+		delayLine = new DelayLine(state.getChannels(),
+				MAX_DELAY_SAMPLES + MAX_DELAY_SAMPLES / 2 + 1);
 	}
 
 	@Override
 	public void exitImpl() {
-		delayBuffer = null;
+		delayLine = null;
 	}
 
 	/**
-	 * given the current lfo value, return the current delay time offset
+	 * given the amplitude and mean delay time, return the factor for the lfo
+	 * value to get the delay time offset
 	 * 
-	 * @param lfo the current lfo value [-1...0...+1]
-	 * @return the delay offset to the delayTimeSample
+	 * @param amp the amplitude [0..1]
+	 * @param delaySamples the mean delay time in samples
+	 * @return the maximum delay offset to the mean delay
 	 */
-	private final double getDelayOffsetSamples(double lfo) {
-		return lfo * amplitude * amplitude * (delayTimeSamples / 2);
+	private static final float getModulationDepth(float amp,
+			double delaySamples) {
+		return (float) (amp * amp * (delaySamples / 2));
 	}
 
 	/**
 	 * the actual delay processor: feed the current buffer to the circular delay
-	 * buffer, and add the current delay buffer contents to the output buffer
+	 * line, and add the delayed signal at the modulated delay time to the
+	 * output buffer. Parameters are read without locking.
 	 */
 	@Override
 	public boolean process(long samplePos, FloatSampleBuffer buffer,
 			int offset, int sampleCount) {
+		DelayLine dl = delayLine;
 		// sanity
-		if (delayBuffer == null || sampleCount == 0) return false;
-		synchronized (lock) {
-			double srcVol;
-			double delayVol;
-			if (balance < 0) {
-				srcVol = 1.0;
-				delayVol = (1 + balance);
-			} else {
-				srcVol = 1 - balance;
-				delayVol = 1.0;
-			}
-
-			int delayBufferCount = delayBuffer.getSampleCount();
-
-			// by which read/write pos are increased for every sample, to
-			// account for non-integral delay times
-			double writePosInc = ((int) delayTimeSamples) / delayTimeSamples;
-			double readPosInc = writePosInc;
-
-			// local variables as optimization
-			double writePos = delayBufferWritePos;
-			double readPos = delayBufferReadPos;
-
-			// if delay time has changed, read pos (dependent on write Pos)
-			// needs
-			// to slowly drift away/towards writePos so that it will reach the
-			// target delay eventually
-			double targetReadPos = writePos - delayTimeSamples
-					+ getDelayOffsetSamples(lfoCurr);
-			if (targetReadPos < 0) {
-				targetReadPos += delayBufferCount;
+		if (dl == null || sampleCount == 0) return false;
+		// frequency from the automation lane is applied per block
+		if (prepareAutomation(freqLane, samplePos, sampleCount)) {
+			setFrequency(freqLane.getValue(samplePos));
+		}
+		// ramp amplitude, feedback and balance to the GUI values or from the
+		// automation lanes
+		float startAmplitude = prepareParameter(amplitude, amplitudeLane,
+				samplePos, sampleCount);
+		float endAmplitude = amplitude.getCurrent();
+		float startFeedback = prepareParameter(feedback, feedbackLane,
+				samplePos, sampleCount);
+		float feedbackInc = feedback.getIncrement();
+		float startBalance = prepareParameter(balance, balanceLane, samplePos,
+				sampleCount);
+		float endBalance = balance.getCurrent();
+		float startSrcVol = getSourceVolume(startBalance);
+		float startDelayVol = getDelayVolume(startBalance);
+		float srcVolInc = (getSourceVolume(endBalance) - startSrcVol)
+				/ sampleCount;
+		float delayVolInc = (getDelayVolume(endBalance) - startDelayVol)
+				/ sampleCount;
+
+		// if delay time has changed, the mean delay slowly drifts towards the
+		// new delay time so that it will reach the target delay eventually
+		double targetDelay = delayTimeSamples;
+		double startDelay = currDelaySamples;
+		double delayInc = 0;
+		if (startDelay == 0) {
+			// at beginning, no transition necessary
+			startDelay = targetDelay;
+		} else {
+			delayInc = (targetDelay - startDelay) / sampleCount;
+			if (delayInc < -MAX_DELAY_DECREASE) {
+				delayInc = -SLOW_DELAY_DECREASE;
 			}
-			if (readPos == writePos) {
-				// at beginning, no transition necessary
-				readPos = targetReadPos;
-			} else {
-				readPosInc += (targetReadPos - readPos) / sampleCount;
-				// do not increase too much, otherwise will be audible
-				// high-pitched...
-				if (readPosInc > 3) {
-					readPosInc = 1.2;
-				}
+		}
+		double endDelay = startDelay + delayInc * sampleCount;
+		float startDepth = getModulationDepth(startAmplitude, startDelay);
+		float depthInc = (getModulationDepth(endAmplitude, endDelay) - startDepth)
+				/ sampleCount;
+
+		int mask = dl.getMask();
+		double startReadPos = dl.getReadPosition(startDelay);
+		int startWritePos = dl.getWriteIndex();
+		double startPhase = lfo.getPhase();
+		// the read position advances by 1 minus the delay change
+		double readPosInc = 1.0 - delayInc;
+
+		for (int c = 0; c < buffer.getChannelCount(); c++) {
+			float[] delay = dl.getChannel(c);
+			float[] inout = buffer.getChannel(c);
+			int end = offset + sampleCount;
+
+			// re-initialize for every channel
+			lfo.setPhase(startPhase);
+			int writePos = startWritePos;
+			double readPos = startReadPos;
+			float depth = startDepth;
+			float fb = startFeedback;
+			float srcVol = startSrcVol;
+			float delayVol = startDelayVol;
+
+			for (int i = offset; i < end; i++) {
+				// the actual delay line! A positive lfo value shortens the
+				// delay.
+				float io = inout[i];
+				float dr = DSPUtils.interpolateLinear(delay, mask, readPos
+						+ lfo.next() * depth);
+				inout[i] = dr * delayVol + io * srcVol;
+				delay[writePos] = DSPUtils.flushDenormal((dr + io) * fb);
+				writePos = (writePos + 1) & mask;
+				readPos += readPosInc;
+				depth += depthInc;
+				fb += feedbackInc;
+				srcVol += srcVolInc;
+				delayVol += delayVolInc;
 			}
+		}
+		// store state for next audio block
+		dl.advance(sampleCount);
+		currDelaySamples = endDelay;
+		return true;
+	}
 
-			double startReadPos = readPos;
-			double lLfoCurr = lfoCurr;
-			double lLfoInc = lfoInc;
-
-			// TODO: linear interpolation
-
-			for (int c = 0; c < buffer.getChannelCount(); c++) {
-				int thisCount = sampleCount;
-				float[] delay = delayBuffer.getChannel(c);
-				float[] inout = buffer.getChannel(c);
-				int thisOffset = offset;
-
-				// re-initialize for every channel
-				lLfoCurr = lfoCurr;
-				lLfoInc = lfoInc;
-				writePos = delayBufferWritePos;
-				readPos = startReadPos;
-
-				while (thisCount > 0) {
-					// the actual delay line!
-					float io = inout[thisOffset];
-					int writeOffset = (int) writePos;
-					int readOffset = (int) (readPos + getDelayOffsetSamples(lLfoCurr));
-					if (readOffset < 0) {
-						readOffset += delayBufferCount;
-					}
-					if (readOffset >= delayBufferCount) {
-						readOffset -= delayBufferCount;
-					}
-
-					float dr = delay[readOffset];
-					inout[thisOffset] = (float) (dr * delayVol + io * srcVol);
-					delay[writeOffset] = (float) ((dr + io) * feedback);
-					thisOffset++;
-					thisCount--;
-					// update write position
-					writePos += writePosInc;
-					if ((int) writePos >= delayBufferCount) {
-						writePos -= delayBufferCount;
-					}
-					// update read position
-					readPos += readPosInc;
-					if ((int) readPos >= delayBufferCount) {
-						readPos -= delayBufferCount;
-					}
-					// update lfo
-					lLfoCurr += lLfoInc;
-					if (lLfoCurr >= 1.0 || lLfoCurr <= -1.0) {
-						lLfoInc = -lLfoInc;
-					}
-				}
-			}
-			// store state for next audio block
-			lfoCurr = lLfoCurr;
-			lfoInc = lLfoInc;
-			delayBufferReadPos = readPos;
-			delayBufferWritePos = writePos;
+	/** @return the volume of the source signal for the given balance */
+	private static final float getSourceVolume(float aBalance) {
+		return (aBalance < 0) ? 1.0f : 1 - aBalance;
+	}
 
-			return true;
-		}
+	/** @return the volume of the delayed signal for the given balance */
+	private static final float getDelayVolume(float aBalance) {
+		return (aBalance < 0) ? 1 + aBalance : 1.0f;
 	}
 
 	// --------------------------------- GUI stuff
@@ -408,7 +485,7 @@ public class Flanger extends GUIEffectsBase {
 		noUpdate++;
 		try {
 			// will cause change event and update the label
-			sAmplitude.slider.setValue((int) (amplitude * 100.0));
+			sAmplitude.slider.setValue((int) (getAmplitude() * 100.0));
 		} finally {
 			noUpdate--;
 		}
@@ -483,7 +560,7 @@ public class Flanger extends GUIEffectsBase {
 		// will cause change event and update the label
 		noUpdate++;
 		try {
-			sFeedback.slider.setValue((int) (feedback * 100.0));
+			sFeedback.slider.setValue((int) (getFeedback() * 100.0));
 		} finally {
 			noUpdate--;
 		}
@@ -511,7 +588,7 @@ public class Flanger extends GUIEffectsBase {
 		// will cause change event and update the label
 		noUpdate++;
 		try {
-			sBalance.slider.setValue((int) (balance * 100.0));
+			sBalance.slider.setValue((int) (getBalance() * 100.0));
 		} finally {
 			noUpdate--;
 		}
@@ -532,6 +609,23 @@ public class Flanger extends GUIEffectsBase {
 				+ " %");
 	}
 
+	/** display the parameters which are controlled by automation lanes */
+	@Override
+	protected void displayAutomation() {
+		if (isAutomated(amplitudeLane)) {
+			updateGUIAmplitude();
+		}
+		if (isAutomated(freqLane)) {
+			updateGUIFreq();
+		}
+		if (isAutomated(feedbackLane)) {
+			updateGUIFeedback();
+		}
+		if (isAutomated(balanceLane)) {
+			updateGUIBalance();
+		}
+	}
+
 	// --------------------------------- interface MouseListener
 
 	/**
@@ -543,13 +637,13 @@ public class Flanger extends GUIEffectsBase {
 			if (src == sDelayTime.slider) {
 				track.addAutomationObject(new DelayTimeAutomation());
 			} else if (src == sAmplitude.slider) {
-				track.addAutomationObject(new AmplitudeAutomation());
+				recordAutomation(amplitudeLane, getAmplitude());
 			} else if (src == sFreq.slider) {
-				track.addAutomationObject(new FreqAutomation());
+				recordAutomation(freqLane, getFrequency());
 			} else if (src == sFeedback.slider) {
-				track.addAutomationObject(new FeedbackAutomation());
+				recordAutomation(feedbackLane, getFeedback());
 			} else if (src == sBalance.slider) {
-				track.addAutomationObject(new BalanceAutomation());
+				recordAutomation(balanceLane, getBalance());
 			}
 		}
 	}
@@ -560,16 +654,16 @@ public class Flanger extends GUIEffectsBase {
 			delayTimeHandler.setTracking(track, on);
 			if (DEBUG_FLANGER) debug("Delay Time tracking: " + on);
 		} else if (src == sAmplitude.slider) {
-			amplitudeHandler.setTracking(track, on);
+			amplitudeLane.setTracking(on);
 			if (DEBUG_FLANGER) debug("Amplitude tracking: " + on);
 		} else if (src == sFreq.slider) {
-			freqHandler.setTracking(track, on);
+			freqLane.setTracking(on);
 			if (DEBUG_FLANGER) debug("Frequency tracking: " + on);
 		} else if (src == sFeedback.slider) {
-			feedbackHandler.setTracking(track, on);
+			feedbackLane.setTracking(on);
 			if (DEBUG_FLANGER) debug("Feedback tracking: " + on);
 		} else if (src == sBalance.slider) {
-			balanceHandler.setTracking(track, on);
+			balanceLane.setTracking(on);
 			if (DEBUG_FLANGER) debug("Balance tracking: " + on);
 		}
 		// add initial automation state
@@ -635,6 +729,7 @@ public class Flanger extends GUIEffectsBase {
 		}
 		if (noUpdate == 0) {
 			addAutomationEvent(src);
+			parameterChanged();
 		}
 	}
 
@@ -676,147 +771,4 @@ public class Flanger extends GUIEffectsBase {
 					+ "ms";
 		}
 	}
-
-	/** the automation object to record a change in amplitude */
-	private class AmplitudeAutomation extends AutomationObject {
-		private double aoAmplitude;
-
-		/**
-		 * Create a amplitude automation object capturing the current playback
-		 * time and the current amplitude.
-		 */
-		public AmplitudeAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoAmplitude = getAmplitude();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setAmplitude(aoAmplitude);
-			updateGUIAmplitude();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", amplitude=" + aoAmplitude;
-		}
-	}
-
-	/** the automation object to record a change in frequency */
-	private class FreqAutomation extends AutomationObject {
-		private double aoFreq;
-
-		/**
-		 * Create a frequency automation object capturing the current playback
-		 * time and the current frequency.
-		 */
-		public FreqAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoFreq = getFrequency();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setFrequency(aoFreq);
-			updateGUIFreq();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", frequency=" + aoFreq;
-		}
-	}
-
-	/** the automation object to record a change in feedback */
-	private class FeedbackAutomation extends AutomationObject {
-		private double aoFeedback;
-
-		/**
-		 * Create a feedback automation object capturing the current playback
-		 * time and the current feedback.
-		 */
-		public FeedbackAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoFeedback = getFeedback();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setFeedback(aoFeedback);
-			updateGUIFeedback();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", feedback=" + aoFeedback;
-		}
-	}
-
-	/** the automation object to record a change in balance */
-	private class BalanceAutomation extends AutomationObject {
-		private double aoBalance;
-
-		/**
-		 * Create a balance automation object capturing the current playback
-		 * time and the current balance.
-		 */
-		public BalanceAutomation() {
-			super(state, player.getPositionSamples());
-			this.aoBalance = getBalance();
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see com.mixblendr.audio.AutomationObject#executeImpl(com.mixblendr.audio.AudioTrack)
-		 */
-		@Override
-		protected void executeImpl(AudioTrack aTrack) {
-			if (state == null) return;
-			setBalance(aoBalance);
-			updateGUIBalance();
-		}
-
-		/**
-		 * @return a string representation of this object (mainly for debugging
-		 *         purposes)
-		 */
-		@Override
-		public String toString() {
-			return super.toString() + ", balance=" + aoBalance;
-		}
-	}
-
-	/* satisfy compiler */
-	private static final long serialVersionUID = 0;
 }
@@ -17,12 +17,14 @@ import com.mixblendr.audio.*;
 import static com.mixblendr.util.GUIUtils.*;
 
 /**
- * Example base class for effects showing a GUI.
+ * Example base class for effects showing a GUI. The settings window is only
+ * created when it is shown for the first time, so effects can be used
+ * without a display, e.g. for rendering in a headless environment.
  * 
  * @author Florian Bomers
  */
-public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
-		MouseListener, ChangeListener {
+public abstract class GUIEffectsBase implements AudioEffect, MouseListener,
+		ChangeListener {
 
 	// engine
 	protected AudioState state;
@@ -32,9 +34,24 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 	// GUI
 	private boolean guiInited = false;
 
+	/** the name of this effect, and the title of the settings window */
+	private String name;
+
+	/** the settings window, or null if it was not shown yet */
+	private JFrame frame;
+
+	/** the interval for updating the GUI from the automation lanes */
+	private static final int AUTOMATION_DISPLAY_INTERVAL_MILLIS = 100;
+
+	/** the time for ramping a parameter to a new value set in the GUI */
+	protected static final double PARAMETER_SMOOTHING_MILLIS = 10.0;
+
+	/** the timer updating the GUI from the automation lanes */
+	private Timer automationDisplayTimer;
+
 	/**
-	 * synchronization object: never synchronize on <code>this</code>, will
-	 * interfere with JFrame's synchronization
+	 * synchronization object: never synchronize on <code>this</code>, so that
+	 * subclasses can use their own synchronization
 	 */
 	protected Object lock = new Object();
 
@@ -46,7 +63,7 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 
 	/** create a new instance of the Delay effect */
 	protected GUIEffectsBase(String name) {
-		super(name);
+		this.name = name;
 	}
 
 	// --------------------------------- interface AudioEffect
@@ -82,6 +99,10 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 	 * @see com.mixblendr.audio.AudioEffect#exit()
 	 */
 	public final void exit() {
+		if (automationDisplayTimer != null) {
+			automationDisplayTimer.stop();
+			automationDisplayTimer = null;
+		}
 		synchronized (lock) {
 			exitImpl();
 			// free references
@@ -90,7 +111,10 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 			this.state = null;
 			guiInited = false;
 		}
-		dispose();
+		if (frame != null) {
+			frame.dispose();
+			frame = null;
+		}
 	}
 
 	/**
@@ -105,7 +129,7 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 	 * @see com.mixblendr.audio.AudioEffect#getShortName()
 	 */
 	public String getShortName() {
-		return super.getTitle();
+		return name;
 	}
 
 	/*
@@ -135,7 +159,18 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 		if (!guiInited) {
 			initGUI();
 		}
-		setVisible(true);
+		if (automationDisplayTimer == null) {
+			automationDisplayTimer = new Timer(
+					AUTOMATION_DISPLAY_INTERVAL_MILLIS, new ActionListener() {
+						public void actionPerformed(ActionEvent e) {
+							if (frame != null && frame.isVisible()) {
+								displayAutomation();
+							}
+						}
+					});
+			automationDisplayTimer.start();
+		}
+		frame.setVisible(true);
 	}
 
 	/*
@@ -147,17 +182,108 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 	public abstract boolean process(long samplePos, FloatSampleBuffer buffer,
 			int offset, int sampleCount);
 
+	// --------------------------------- Automation lanes
+
+	/**
+	 * Record a value change in the automation lane at the current playback
+	 * position, if automation is enabled for the track. While the lane is
+	 * tracking, the changes are inserted when tracking ends.
+	 *
+	 * @param lane the automation lane of the changed parameter
+	 * @param value the new value
+	 */
+	protected void recordAutomation(AutomationLane lane, double value) {
+		if (track != null && player != null && track.isAutomationEnabled()) {
+			lane.record(player.getPositionSamples(), (float) value,
+					(int) state.millis2sample(AutomationLane.CHANGE_RAMP_MILLIS));
+		}
+	}
+
+	/**
+	 * Call this method when the user changed a parameter, so that the change
+	 * becomes audible immediately if audio is rendered ahead of the playback
+	 * position.
+	 */
+	protected void parameterChanged() {
+		AudioState s = state;
+		if (s != null) {
+			s.invalidateRenderedAudio();
+		}
+	}
+
+	/**
+	 * Prepare the automation lane for processing a block. Call this method
+	 * from process() for every lane.
+	 *
+	 * @return true if the lane is active and should be applied to this block
+	 */
+	protected boolean prepareAutomation(AutomationLane lane, long samplePos,
+			int sampleCount) {
+		AudioTrack t = track;
+		return lane.prepare(samplePos, sampleCount, (t != null)
+				&& t.isAutomationEnabled());
+	}
+
+	/**
+	 * Prepare the ramp of a smoothed parameter for the next block: follow the
+	 * automation lane if it is active, otherwise ramp to the value set in the
+	 * GUI. Call this method from process().
+	 *
+	 * @return the value of the parameter at the first sample of the block
+	 */
+	protected float prepareParameter(SmoothedParameter param,
+			AutomationLane lane, long samplePos, int sampleCount) {
+		if (prepareAutomation(lane, samplePos, sampleCount)) {
+			return param.prepareBlock(lane.getValue(samplePos),
+					lane.getValue(samplePos + sampleCount), sampleCount);
+		}
+		return param.prepareBlock(sampleCount);
+	}
+
+	/**
+	 * @return the number of samples for ramping a smoothed parameter
+	 */
+	protected int getSmoothingSamples() {
+		if (state == null) return 0;
+		return (int) state.millis2sample(PARAMETER_SMOOTHING_MILLIS);
+	}
+
+	/**
+	 * Called regularly in the event dispatch thread while the settings window
+	 * is visible. Implementors should override this method to display the
+	 * current values of parameters which are controlled by automation lanes.
+	 */
+	protected void displayAutomation() {
+		// nothing by default
+	}
+
+	/**
+	 * @return true if the lane currently controls its parameter, i.e. it has
+	 *         points and the user does not hold its GUI control.
+	 */
+	protected static boolean isAutomated(AutomationLane lane) {
+		return !lane.isTracking() && !lane.isEmpty();
+	}
+
 	// --------------------------------- Settings Window
 
 	private void initGUI() {
 		JPanel main = new JPanel();
 		initGUI(main);
 		main.setOpaque(true); // content panes must be opaque
-		setContentPane(main);
-		pack();
+		frame = new JFrame(name);
+		frame.setContentPane(main);
+		frame.pack();
 		guiInited = true;
 	}
 
+	/**
+	 * @return the settings window, or null if it was not shown yet
+	 */
+	protected JFrame getFrame() {
+		return frame;
+	}
+
 	/**
 	 * Implementors should implement this method to create the GUI components.
 	 * You can use the utility class SliderStrip and the utility methods in
@@ -243,7 +369,4 @@ public abstract class GUIEffectsBase extends JFrame implements AudioEffect,
 	 */
 	public abstract void stateChanged(ChangeEvent e);
 
-	/* satisfy compiler */
-	private static final long serialVersionUID = 0;
-
 }
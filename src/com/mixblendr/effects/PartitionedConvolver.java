@@ -0,0 +1,394 @@
+/**
+ *
+ */
+package com.mixblendr.effects;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static com.mixblendr.util.Debug.*;
+
+/**
+ * A multi-channel convolution engine with zero latency, using uniformly
+ * partitioned FFT convolution (overlap-save with a frequency domain delay
+ * line).
+ * <p>
+ * The impulse response is split into partitions of partitionSize samples.
+ * The first partition is convolved in the time domain, sample by sample, so
+ * that the output is not delayed. All other partitions are convolved in the
+ * frequency domain once a full block of input is available; since they start
+ * one partition later in the impulse response, their result is due exactly
+ * when the next block begins.
+ * <p>
+ * The early partitions are calculated in the render thread. The late
+ * partitions are only due several blocks after their input is complete, so
+ * they are calculated by a background worker thread. If the worker misses its
+ * deadline, the render thread calculates the late partitions itself, so the
+ * output is always correct.
+ * <p>
+ * The process method must only be called by one thread, usually the render
+ * thread. It does not allocate memory and does not block.
+ *
+ * @author Florian Bomers
+ */
+public class PartitionedConvolver {
+
+	private static final boolean DEBUG_CONVOLVER = false;
+
+	private final int channels;
+
+	/** number of samples per partition */
+	private final int blockSize;
+
+	/** the number of partitions, including the time domain partition */
+	private final int partitionCount;
+
+	/** the number of frequency domain partitions calculated by the render thread */
+	private final int earlyCount;
+
+	private final FFT fft;
+
+	/** the first partition per channel, reversed, for the time domain part */
+	private final float[][] head;
+
+	/** [channel][partition][fftSize]: spectra of the partitions 1..count-1 */
+	private final float[][][] partitions;
+
+	/**
+	 * [channel][2*blockSize]: the previous input block and the current input
+	 * block
+	 */
+	private final float[][] window;
+
+	/** [channel][slot][fftSize]: spectra of the last input windows */
+	private final float[][][] fdl;
+
+	/** the number of slots in the frequency domain delay line */
+	private final int fdlSize;
+
+	/** [channel][blockSize]: output of the frequency domain partitions */
+	private final float[][] tail;
+
+	/** [channel][fftSize]: accumulator for the spectrum of the next block */
+	private final float[][] accumulator;
+
+	/** [channel][slot][fftSize]: results of the worker, per target block */
+	private final float[][][] lateResults;
+
+	/** the number of slots for the worker results */
+	private final int lateSize;
+
+	/** the position in the current block */
+	private int blockPos = 0;
+
+	/** the number of completed input blocks */
+	private long inputBlocks = 0;
+
+	/** the last block of which the render thread needed the late partitions */
+	private volatile long outputBlock = 0;
+
+	/** the last block for which the worker should calculate late partitions */
+	private volatile long requestedBlock = 0;
+
+	/** the last block for which the worker calculated late partitions */
+	private volatile long lateBlock = 0;
+
+	/** number of blocks for which the worker was late */
+	private volatile int missedDeadlines = 0;
+
+	/** accumulated time of the worker calculations */
+	private volatile long workerNanos = 0;
+
+	private volatile Thread worker;
+
+	/**
+	 * Create a new convolver. The impulse response is copied.
+	 *
+	 * @param channels the number of channels to process
+	 * @param impulseResponse the impulse response: one or more channels. If it
+	 *            has less channels than the convolver, the channels are
+	 *            repeated.
+	 * @param partitionSize the number of samples per partition, a power of 2
+	 * @param earlyPartitions the number of frequency domain partitions which
+	 *            are calculated in the render thread, at least 1. Partitions
+	 *            beyond that are calculated by the worker thread.
+	 */
+	public PartitionedConvolver(int channels, float[][] impulseResponse,
+			int partitionSize, int earlyPartitions) {
+		if (earlyPartitions < 1) {
+			throw new IllegalArgumentException(
+					"at least 1 early partition is required");
+		}
+		this.channels = channels;
+		this.blockSize = partitionSize;
+		int fftSize = 2 * partitionSize;
+		fft = new FFT(fftSize);
+		int irLength = 0;
+		for (float[] ir : impulseResponse) {
+			if (ir.length > irLength) {
+				irLength = ir.length;
+			}
+		}
+		partitionCount = Math.max(1, (irLength + blockSize - 1) / blockSize);
+		earlyCount = Math.min(earlyPartitions, partitionCount - 1);
+		int lateCount = partitionCount - 1 - earlyCount;
+
+		head = new float[channels][blockSize];
+		partitions = new float[channels][partitionCount][];
+		// the spectra are scaled for the unscaled inverse transform
+		float scale = 2.0f / fftSize;
+		for (int c = 0; c < channels; c++) {
+			float[] ir = impulseResponse[c % impulseResponse.length];
+			for (int i = 0; i < blockSize && i < ir.length; i++) {
+				head[c][blockSize - 1 - i] = ir[i];
+			}
+			for (int p = 1; p < partitionCount; p++) {
+				float[] spectrum = new float[fftSize];
+				int start = p * blockSize;
+				for (int i = 0; i < blockSize && start + i < ir.length; i++) {
+					spectrum[i] = ir[start + i] * scale;
+				}
+				fft.realForward(spectrum);
+				partitions[c][p] = spectrum;
+			}
+		}
+		window = new float[channels][fftSize];
+		// the worker reads the input spectra of up to partitionCount blocks
+		// ago while the render thread adds earlyCount new ones
+		fdlSize = partitionCount + earlyCount + 1;
+		fdl = new float[channels][fdlSize][fftSize];
+		tail = new float[channels][blockSize];
+		accumulator = new float[channels][fftSize];
+		if (lateCount > 0) {
+			lateSize = earlyCount + 1;
+			lateResults = new float[channels][lateSize][fftSize];
+			// the first blocks do not have input for the late partitions
+			lateBlock = earlyCount;
+			requestedBlock = earlyCount;
+		} else {
+			lateSize = 0;
+			lateResults = null;
+		}
+		if (DEBUG_CONVOLVER) {
+			debug("PartitionedConvolver: " + partitionCount + " partitions of "
+					+ blockSize + " samples, " + earlyCount + " early, "
+					+ lateCount + " late");
+		}
+	}
+
+	/**
+	 * @return the number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return the number of samples per partition
+	 */
+	public int getPartitionSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return the total number of partitions
+	 */
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	/**
+	 * @return the number of blocks for which the worker thread did not finish
+	 *         the late partitions in time
+	 */
+	public int getMissedDeadlines() {
+		return missedDeadlines;
+	}
+
+	/**
+	 * @return the total time in nanoseconds the worker thread spent on
+	 *         calculations
+	 */
+	public long getWorkerNanos() {
+		return workerNanos;
+	}
+
+	/**
+	 * Start the worker thread for the late partitions. If there are no late
+	 * partitions, this method does nothing.
+	 */
+	public synchronized void start() {
+		if (worker != null || lateResults == null) {
+			return;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				workerLoop();
+			}
+		}, "Convolution worker");
+		t.setDaemon(true);
+		t.setPriority(Thread.MAX_PRIORITY - 1);
+		worker = t;
+		t.start();
+	}
+
+	/**
+	 * Stop the worker thread. The convolver can still be used, then the render
+	 * thread calculates all partitions.
+	 */
+	public synchronized void close() {
+		Thread t = worker;
+		worker = null;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Convolve the input with the impulse response.
+	 *
+	 * @param input the input samples per channel
+	 * @param inOffset the offset in the input arrays
+	 * @param output the arrays per channel where to write the convolved
+	 *            signal, may be the same as input
+	 * @param outOffset the offset in the output arrays
+	 * @param count the number of samples to process
+	 */
+	public void process(float[][] input, int inOffset, float[][] output,
+			int outOffset, int count) {
+		int chCount = Math.min(channels, Math.min(input.length, output.length));
+		while (count > 0) {
+			int n = blockSize - blockPos;
+			if (n > count) {
+				n = count;
+			}
+			for (int c = 0; c < chCount; c++) {
+				float[] in = input[c];
+				float[] out = output[c];
+				float[] win = window[c];
+				float[] h = head[c];
+				float[] t = tail[c];
+				for (int i = 0; i < n; i++) {
+					int pos = blockPos + i;
+					win[blockSize + pos] = in[inOffset + i];
+					// time domain convolution with the first partition:
+					// win[pos + 1 ... pos + blockSize] are the last blockSize
+					// input samples, the newest one last
+					float sum = t[pos];
+					int w = pos + 1;
+					for (int k = 0; k < blockSize; k++) {
+						sum += h[k] * win[w + k];
+					}
+					out[outOffset + i] = sum;
+				}
+			}
+			blockPos += n;
+			inOffset += n;
+			outOffset += n;
+			count -= n;
+			if (blockPos == blockSize) {
+				blockPos = 0;
+				nextBlock();
+			}
+		}
+	}
+
+	/**
+	 * Called when an input block is complete: calculate the spectrum of the
+	 * input window, and the frequency domain partitions for the next output
+	 * block.
+	 */
+	private void nextBlock() {
+		long inputBlock = inputBlocks++;
+		if (partitionCount == 1) {
+			// only the time domain partition
+			return;
+		}
+		// the output block to calculate
+		long block = inputBlock + 1;
+		int slot = (int) (inputBlock % fdlSize);
+		boolean useWorker = false;
+		if (lateResults != null) {
+			useWorker = (lateBlock >= block);
+			if (!useWorker) {
+				missedDeadlines++;
+			}
+		}
+		for (int c = 0; c < channels; c++) {
+			float[] win = window[c];
+			float[] spectrum = fdl[c][slot];
+			System.arraycopy(win, 0, spectrum, 0, win.length);
+			fft.realForward(spectrum);
+			System.arraycopy(win, blockSize, win, 0, blockSize);
+
+			float[] acc = accumulator[c];
+			if (lateResults != null && useWorker) {
+				System.arraycopy(lateResults[c][(int) (block % lateSize)], 0,
+						acc, 0, acc.length);
+			} else {
+				java.util.Arrays.fill(acc, 0.0f);
+				if (lateResults != null) {
+					// the worker is late: calculate the late partitions here
+					accumulate(c, block, earlyCount + 1, partitionCount, acc);
+				}
+			}
+			accumulate(c, block, 1, earlyCount + 1, acc);
+			fft.realInverse(acc);
+			System.arraycopy(acc, blockSize, tail[c], 0, blockSize);
+		}
+		outputBlock = block;
+		if (lateResults != null) {
+			// all input for the late partitions of this block is available
+			requestedBlock = block + earlyCount;
+			Thread t = worker;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+	/**
+	 * Multiply the partitions [first...end) with the input spectra of the
+	 * respective blocks ago, and add them to the accumulator.
+	 */
+	private final void accumulate(int channel, long block, int first, int end,
+			float[] acc) {
+		float[][] spectra = fdl[channel];
+		float[][] parts = partitions[channel];
+		for (int p = first; p < end; p++) {
+			long inputBlock = block - p;
+			if (inputBlock < 0) {
+				break;
+			}
+			fft.multiplyAdd(acc, spectra[(int) (inputBlock % fdlSize)],
+					parts[p]);
+		}
+	}
+
+	/** the loop of the worker thread */
+	private void workerLoop() {
+		Thread thisThread = Thread.currentThread();
+		while (worker == thisThread) {
+			long target = lateBlock + 1;
+			if (target > requestedBlock) {
+				LockSupport.park(this);
+				continue;
+			}
+			if (target > outputBlock) {
+				long start = System.nanoTime();
+				for (int c = 0; c < channels; c++) {
+					float[] result = lateResults[c][(int) (target % lateSize)];
+					java.util.Arrays.fill(result, 0.0f);
+					accumulate(c, target, earlyCount + 1, partitionCount,
+							result);
+				}
+				workerNanos += System.nanoTime() - start;
+			}
+			// if the target is already due, skip it
+			lateBlock = target;
+		}
+		if (DEBUG_CONVOLVER) {
+			debug("Convolution worker stopped.");
+		}
+	}
+
+}
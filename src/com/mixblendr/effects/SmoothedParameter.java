@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package com.mixblendr.effects;
+
+/**
+ * A parameter that is set from the GUI thread and read from the render thread
+ * without locking. The render thread does not jump to a new value, but ramps
+ * to it linearly over the smoothing time, which prevents zipper noise when the
+ * user moves a control.
+ * <p>
+ * The render thread calls one of the prepareBlock() methods once per block,
+ * and then applies the returned start value and the increment per sample.
+ *
+ * @author Florian Bomers
+ */
+public class SmoothedParameter {
+
+	/** the value set by the GUI */
+	private volatile float target;
+
+	/** the current value, only used by the render thread */
+	private float current;
+
+	/** the increment per sample of the current block */
+	private float increment;
+
+	/** the minimum number of samples for ramping to a new target */
+	private int smoothingSamples;
+
+	/**
+	 * Create a new parameter with the given initial value.
+	 *
+	 * @param value the initial value
+	 * @param smoothingSamples the duration in samples for ramping to a new
+	 *            value
+	 */
+	public SmoothedParameter(double value, int smoothingSamples) {
+		this.target = (float) value;
+		this.current = (float) value;
+		this.smoothingSamples = smoothingSamples;
+	}
+
+	/**
+	 * @param smoothingSamples the duration in samples for ramping to a new
+	 *            value
+	 */
+	public void setSmoothingSamples(int smoothingSamples) {
+		this.smoothingSamples = smoothingSamples;
+	}
+
+	/**
+	 * @return the value set last, which may not be reached yet by the render
+	 *         thread
+	 */
+	public double getTarget() {
+		return target;
+	}
+
+	/**
+	 * Set a new value. The render thread will ramp to it.
+	 */
+	public void setTarget(double value) {
+		target = (float) value;
+	}
+
+	/**
+	 * Set a new value without ramping, e.g. when initializing.
+	 */
+	public void reset(double value) {
+		target = (float) value;
+		current = (float) value;
+	}
+
+	/**
+	 * Prepare the ramp to the target for the next block.
+	 *
+	 * @param sampleCount the number of samples in the block
+	 * @return the value at the first sample of the block
+	 */
+	public float prepareBlock(int sampleCount) {
+		float start = current;
+		float t = target;
+		if (start == t) {
+			increment = 0.0f;
+			return start;
+		}
+		if (sampleCount >= smoothingSamples) {
+			increment = (t - start) / sampleCount;
+			current = t;
+		} else {
+			increment = (t - start) / smoothingSamples;
+			current = start + increment * sampleCount;
+		}
+		return start;
+	}
+
+	/**
+	 * Prepare a given ramp for the next block, e.g. from an automation lane.
+	 * The end value also becomes the new target.
+	 *
+	 * @param start the value at the first sample of the block
+	 * @param end the value after the last sample of the block
+	 * @param sampleCount the number of samples in the block
+	 * @return start
+	 */
+	public float prepareBlock(float start, float end, int sampleCount) {
+		increment = (end - start) / sampleCount;
+		current = end;
+		target = end;
+		return start;
+	}
+
+	/**
+	 * @return the increment per sample, as calculated by the last call to
+	 *         prepareBlock()
+	 */
+	public float getIncrement() {
+		return increment;
+	}
+
+	/**
+	 * @return the value at the end of the last prepared block
+	 */
+	public float getCurrent() {
+		return current;
+	}
+
+}
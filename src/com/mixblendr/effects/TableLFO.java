@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package com.mixblendr.effects;
+
+/**
+ * A low frequency oscillator reading one period of its waveform from a
+ * pre-calculated table with linear interpolation. The output range is
+ * [-1...0...+1], and every waveform starts at 0 rising.
+ * <p>
+ * The frequency can be set from any thread, the oscillator itself should only
+ * be advanced by the render thread.
+ *
+ * @author Florian Bomers
+ */
+public class TableLFO {
+
+	/** the available waveforms */
+	public enum Waveform {
+		SINE, TRIANGLE
+	}
+
+	private static final int TABLE_SIZE = 1024;
+
+	/** tables have one extra entry for interpolation */
+	private static final float[] SINE_TABLE = new float[TABLE_SIZE + 1];
+
+	private static final float[] TRIANGLE_TABLE = new float[TABLE_SIZE + 1];
+
+	static {
+		for (int i = 0; i <= TABLE_SIZE; i++) {
+			double phase = ((double) i) / TABLE_SIZE;
+			SINE_TABLE[i] = (float) Math.sin(2 * Math.PI * phase);
+			// triangle: 0 -> 1 -> 0 -> -1 -> 0
+			double tri;
+			if (phase < 0.25) {
+				tri = 4 * phase;
+			} else if (phase < 0.75) {
+				tri = 2 - 4 * phase;
+			} else {
+				tri = 4 * phase - 4;
+			}
+			TRIANGLE_TABLE[i] = (float) tri;
+		}
+	}
+
+	private final float[] table;
+
+	/** the current phase, [0..1) */
+	private double phase;
+
+	/** phase increment per sample */
+	private volatile double phaseInc;
+
+	/** create a new LFO with the given waveform */
+	public TableLFO(Waveform waveform) {
+		table = (waveform == Waveform.SINE) ? SINE_TABLE : TRIANGLE_TABLE;
+		phase = 0;
+		phaseInc = 0;
+	}
+
+	/**
+	 * Set the frequency of this oscillator.
+	 *
+	 * @param frequency the frequency in Hz
+	 * @param sampleRate the sample rate
+	 */
+	public void setFrequency(double frequency, float sampleRate) {
+		phaseInc = frequency / sampleRate;
+	}
+
+	/**
+	 * @return the current phase [0..1)
+	 */
+	public double getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Set the phase, e.g. for processing the next channel of the same block.
+	 *
+	 * @param phase the phase to set [0..1)
+	 */
+	public void setPhase(double phase) {
+		this.phase = phase;
+	}
+
+	/**
+	 * @return the current value [-1..+1], and advance by one sample
+	 */
+	public final float next() {
+		double pos = phase * TABLE_SIZE;
+		int index = (int) pos;
+		float frac = (float) (pos - index);
+		float s0 = table[index];
+		float ret = s0 + (table[index + 1] - s0) * frac;
+		phase += phaseInc;
+		if (phase >= 1.0) {
+			phase -= 1.0;
+		}
+		return ret;
+	}
+
+}
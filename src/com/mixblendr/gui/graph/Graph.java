@@ -52,7 +52,8 @@ import static com.mixblendr.util.Debug.*;
  */
 public class Graph extends JComponent implements MouseMotionListener,
 		MouseListener, GraphSelection.Listener, GraphSection.Listener,
-		GraphTimer.Listener, AudioFileURL.Listener {
+		GraphTimer.Listener, AudioFileURL.Listener,
+		WaveformTileCache.Requester {
 
 	private final static boolean DEBUG = false;
 	private final static boolean DEBUG_DRAW = false;
@@ -109,6 +110,13 @@ public class Graph extends JComponent implements MouseMotionListener,
 	/** whether to clear the background of the waveform or not */
 	protected boolean showGraphBackground = true;
 
+	/**
+	 * if true, the waveform is blitted from the shared tiles of the
+	 * WaveformTileCache when a pixel has at least 2 samples. The tiles are
+	 * rendered in the background, until then a placeholder is drawn.
+	 */
+	protected boolean useTileCache = false;
+
 	/**
 	 * if selection is one point, this color is used for marking the vertical
 	 * line
@@ -1266,6 +1274,114 @@ public class Graph extends JComponent implements MouseMotionListener,
 		}
 	}
 
+	/**
+	 * Returns the samples per pixel of the tiles used for this graph. The
+	 * default is the samples per pixel of this graph. Overriding classes may
+	 * return a value that does not depend on the width of this graph, so that
+	 * graphs of the same audio file can share the tiles.
+	 */
+	protected double getTileSamplesPerPixel() {
+		return pv.samplesOnePixelF;
+	}
+
+	/**
+	 * Draws the graph from the tiles of the WaveformTileCache, with the
+	 * current color of G. The tiles are drawn like drawCacheSamples() or
+	 * drawMinMaxSamples(). Only the part of the tiles from pixelFrom to
+	 * pixelTo is drawn. Tiles that are not rendered yet are requested from
+	 * the renderer threads and drawn as a zero line.
+	 * 
+	 * @return false if the graph cannot be drawn from tiles
+	 */
+	private boolean drawCacheTiles(Graphics G, int pixelFrom, int pixelTo,
+			int channel) {
+		if (audioFile == null) {
+			return false;
+		}
+		double samplesPerPixel = getTileSamplesPerPixel();
+		if (samplesPerPixel < WaveformTileCache.MIN_SAMPLES_PER_PIXEL) {
+			return false;
+		}
+		WaveformTileCache.Level level = new WaveformTileCache.Level(
+				samplesPerPixel, channel, pv.graphHeight, pv.toPixelYHelp1,
+				pv.toPixelYHelp2, G.getColor());
+		WaveformTileCache cache = WaveformTileCache.getInstance();
+		if (!cache.canRender(audioFile, level)) {
+			return false;
+		}
+		int startPixel = getTileStartPixel(samplesPerPixel);
+		int tileWidth = WaveformTileCache.TILE_WIDTH;
+		int fromTile = (pixelFrom + startPixel) / tileWidth;
+		int toTile = (pixelTo + startPixel) / tileWidth;
+		int height = pv.graphHeight;
+		for (int t = fromTile; t <= toTile; t++) {
+			Image tile = cache.getTile(audioFile, level, t, this);
+			int x = t * tileWidth - startPixel;
+			// the part of the tile to draw
+			int x1 = Math.max(x, pixelFrom);
+			int x2 = Math.min(x + tileWidth, pixelTo + 1);
+			if (tile != null) {
+				G.drawImage(tile, x1, 0, x2, height, x1 - x, 0, x2 - x,
+						height, null);
+			} else {
+				// placeholder until the tile is rendered
+				int y = toPixelY(zeroSampleValue);
+				G.drawLine(x1, y, x2 - 1, y);
+			}
+		}
+		if (DEBUG_DRAW) {
+			debug("drawCacheTiles: tiles " + fromTile + ".." + toTile + ", "
+					+ cache);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the pixel of the section start in the tiles, i.e. the offset of
+	 * the tiles' pixels to the graph's pixels.
+	 */
+	private int getTileStartPixel(double samplesPerPixel) {
+		return (int) (section.getStart() / samplesPerPixel);
+	}
+
+	/**
+	 * Called by the renderer threads of the WaveformTileCache: the tile is
+	 * visible if it is at the current zoom level, and in the visible part of
+	 * this graph.
+	 * 
+	 * @see com.mixblendr.gui.graph.WaveformTileCache.Requester#isTileVisible(com.mixblendr.audio.AudioFile,
+	 *      com.mixblendr.gui.graph.WaveformTileCache.Level, int)
+	 */
+	public boolean isTileVisible(AudioFile file,
+			WaveformTileCache.Level level, int index) {
+		if (file != audioFile || level.height != pv.graphHeight
+				|| level.samplesPerPixel != getTileSamplesPerPixel()
+				|| !isShowing()) {
+			return false;
+		}
+		Rectangle visible = getVisibleRect();
+		int x = pv.graphX + index * WaveformTileCache.TILE_WIDTH
+				- getTileStartPixel(level.samplesPerPixel);
+		return x < visible.x + visible.width
+				&& x + WaveformTileCache.TILE_WIDTH > visible.x;
+	}
+
+	/**
+	 * Repaint the rendered tile.
+	 * 
+	 * @see com.mixblendr.gui.graph.WaveformTileCache.Requester#tileRendered(com.mixblendr.audio.AudioFile,
+	 *      com.mixblendr.gui.graph.WaveformTileCache.Level, int)
+	 */
+	public void tileRendered(AudioFile file, WaveformTileCache.Level level,
+			int index) {
+		if (file == audioFile) {
+			int x = pv.graphX + index * WaveformTileCache.TILE_WIDTH
+					- getTileStartPixel(level.samplesPerPixel);
+			repaint(x, pv.graphY, WaveformTileCache.TILE_WIDTH,
+					pv.allGraphsHeight);
+		}
+	}
+
 	private float[] floatCache;
 
 	/** @return the number of samples available in floatcache */
@@ -1288,7 +1404,10 @@ public class Graph extends JComponent implements MouseMotionListener,
 	 */
 	protected void drawGraph(Graphics G, int from, int to, int channel) {
 		try {
-			if (pv.samplesOnePixelF >= 2
+			if (useTileCache && pv.samplesOnePixelF >= 2
+					&& drawCacheTiles(G, from, to, channel)) {
+				// drawn from the tiles
+			} else if (pv.samplesOnePixelF >= 2
 					&& pv.samplesOnePixelF >= AudioPeakCache.SCALE_FACTOR) {
 				drawCacheSamples(G, from, to, channel);
 			} else {
@@ -1794,7 +1913,10 @@ public class Graph extends JComponent implements MouseMotionListener,
 	 * @see com.mixblendr.audio.AudioFileURL.Listener#audioFileDownloadStart(com.mixblendr.audio.AudioFile)
 	 */
 	public void audioFileDownloadStart(AudioFile source) {
-		// nothing
+		if (useTileCache) {
+			// the file is loaded again
+			WaveformTileCache.getInstance().invalidate(source);
+		}
 	}
 
 	/*
@@ -0,0 +1,841 @@
+/**
+ *
+ */
+package com.mixblendr.gui.graph;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import com.mixblendr.audio.AudioFile;
+import com.mixblendr.audio.AudioPeakCache;
+import static com.mixblendr.util.Debug.*;
+
+/**
+ * A cache of pre-rendered waveform images. The waveform of an audio file is
+ * rendered into tiles of TILE_WIDTH pixels, for a given zoom level: from the
+ * peak cache if a pixel has at least AudioPeakCache.SCALE_FACTOR samples,
+ * otherwise from the audio data. A tile is identified by the audio file, the
+ * zoom level, and the tile index, i.e. its position in the file at that zoom
+ * level. So all graphs that display the same audio file at the same zoom
+ * level share the tiles, and repainting a graph, e.g. when scrolling or
+ * moving the playback cursor, only blits the tiles.
+ * <p>
+ * While a file is downloaded, only the tiles are rendered again that contain
+ * data that was added since the tile was rendered. The least recently used
+ * tiles are removed when the memory used by the tiles exceeds the memory
+ * budget.
+ * <p>
+ * Tiles requested by a Requester are rendered by a pool of renderer threads,
+ * so that painting never waits for rendering. Until a tile is rendered,
+ * getTile() returns its outdated image, or null, and the requester paints a
+ * placeholder. When the tile is rendered, the requester is notified in the
+ * event dispatch thread. Before rendering a tile, the renderer asks the
+ * requesters if the tile is still visible, so the tiles that were scrolled
+ * out of view, or belong to a previous zoom level, are not rendered.
+ * <p>
+ * The tiles are images with bitmask transparency which are compatible with
+ * the screen, so that Java2D can keep them in video memory and blit them
+ * without blending. Without a screen, they are indexed images with a
+ * transparent color and the waveform color.
+ * <p>
+ * All graphs use the same instance, see getInstance().
+ *
+ * @author Florian Bomers
+ */
+public class WaveformTileCache {
+
+	private final static boolean DEBUG = false;
+
+	/** the width of a tile in pixels */
+	public static final int TILE_WIDTH = 256;
+
+	/** the minimum number of samples of a pixel column to use tiles */
+	public static final double MIN_SAMPLES_PER_PIXEL = 2;
+
+	/** the default memory budget of the tiles, in bytes */
+	public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+	/** the default number of renderer threads: leave a core for the audio */
+	public static final int DEFAULT_RENDERER_COUNT = Math.max(1, Math.min(2,
+			Runtime.getRuntime().availableProcessors() - 1));
+
+	private static WaveformTileCache instance = new WaveformTileCache(
+			DEFAULT_MEMORY_BUDGET);
+
+	/** the memory of a tile pixel: indexed images use one byte per pixel */
+	private static final int BYTES_PER_PIXEL = GraphicsEnvironment.isHeadless()
+			? 1 : 4;
+
+	/** the tiles in access order, the least recently used tile is first */
+	private LinkedHashMap<Key, Tile> tiles = new LinkedHashMap<Key, Tile>(64,
+			0.75f, true);
+
+	private long memoryBudget;
+
+	private long memoryBytes = 0;
+
+	/** the requests to render, the most recent request is last */
+	private LinkedList<Request> queue = new LinkedList<Request>();
+
+	private int rendererCount = DEFAULT_RENDERER_COUNT;
+
+	/** the renderer threads, started with the first request */
+	private Renderer[] renderers = null;
+
+	/** the number of renderers currently rendering a tile */
+	private int busyRenderers = 0;
+
+	// statistics
+	private long hits = 0;
+	private long renders = 0;
+	private long evictions = 0;
+	private long cancellations = 0;
+
+	/**
+	 * Create a tile cache with the given memory budget.
+	 *
+	 * @param memoryBudget the maximum number of bytes used by the tiles
+	 */
+	public WaveformTileCache(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return the instance used by all graphs
+	 */
+	public static WaveformTileCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return true if tiles of the file can be rendered at the given level
+	 */
+	public boolean canRender(AudioFile file, Level level) {
+		if (level.usesPeakCache()) {
+			AudioPeakCache peakCache = file.getPeakCache();
+			return peakCache != null && peakCache.getMinCache() != null;
+		}
+		return level.samplesPerPixel >= MIN_SAMPLES_PER_PIXEL
+				&& file.getFormat() != null;
+	}
+
+	/**
+	 * Get the tile with the given index, and render it in this thread if it
+	 * does not exist yet, or if the file has new data in the range of the
+	 * tile.
+	 *
+	 * @param file the audio file
+	 * @param level the zoom level
+	 * @param index the index of the tile, its first pixel is index *
+	 *            TILE_WIDTH
+	 * @return the tile, or null if the tile cannot be rendered
+	 * @see #canRender(AudioFile, Level)
+	 */
+	public Image getTile(AudioFile file, Level level, int index) {
+		return getTile(file, level, index, null);
+	}
+
+	/**
+	 * Get the tile with the given index. If the tile does not exist yet, or if
+	 * the file has new data in the range of the tile, the tile is rendered by
+	 * a renderer thread, and the requester is notified when it is rendered.
+	 * Meanwhile, the outdated tile is returned, or null. If requester is null,
+	 * or if the renderer count is 0, the tile is rendered in this thread.
+	 *
+	 * @param file the audio file
+	 * @param level the zoom level
+	 * @param index the index of the tile, its first pixel is index *
+	 *            TILE_WIDTH
+	 * @param requester the requester to notify, or null
+	 * @return the tile, or null if it is not rendered yet or cannot be
+	 *         rendered
+	 * @see #canRender(AudioFile, Level)
+	 */
+	public synchronized Image getTile(AudioFile file, Level level, int index,
+			Requester requester) {
+		if (!canRender(file, level)) {
+			return null;
+		}
+		Key key = new Key(file, level, index);
+		Tile tile = tiles.get(key);
+		if (tile == null) {
+			tile = new Tile(level, index);
+			tiles.put(key, tile);
+			memoryBytes += tile.getMemoryBytes();
+			evict();
+		} else if (tile.isValid(file)) {
+			hits++;
+			return tile.image;
+		}
+		if (requester == null || rendererCount == 0) {
+			AudioPeakCache peakCache = tile.getPeakCache(file);
+			int units = tile.getAvailableUnits(file, peakCache);
+			tile.setImage(tile.render(file, peakCache, units), peakCache,
+					units);
+			renders++;
+		} else {
+			request(key, tile, requester);
+		}
+		return tile.image;
+	}
+
+	/** add the request to the queue, or move it to the end */
+	private void request(Key key, Tile tile, Requester requester) {
+		Request request = tile.request;
+		if (request == null) {
+			request = new Request(key, tile);
+			tile.request = request;
+			queue.addLast(request);
+			if (renderers == null) {
+				startRenderers();
+			}
+			notifyAll();
+		} else if (!request.rendering && queue.getLast() != request) {
+			// the most recently requested tiles are rendered first
+			queue.remove(request);
+			queue.addLast(request);
+		}
+		if (!request.requesters.contains(requester)) {
+			request.requesters.add(requester);
+		}
+	}
+
+	/**
+	 * Remove all tiles of the given file, e.g. when it is downloaded again.
+	 */
+	public synchronized void invalidate(AudioFile file) {
+		Iterator<Map.Entry<Key, Tile>> it = tiles.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Tile> entry = it.next();
+			if (entry.getKey().file == file) {
+				removed(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/** remove all tiles */
+	public synchronized void clear() {
+		for (Tile tile : tiles.values()) {
+			removed(tile);
+		}
+		tiles.clear();
+	}
+
+	/** remove the least recently used tiles until the budget is met */
+	private void evict() {
+		Iterator<Tile> it = tiles.values().iterator();
+		// never remove the most recently used tile
+		while (memoryBytes > memoryBudget && tiles.size() > 1) {
+			removed(it.next());
+			it.remove();
+			evictions++;
+		}
+		if (DEBUG) {
+			debug("WaveformTileCache: " + this);
+		}
+	}
+
+	/** account for the removal of the tile, and cancel its request */
+	private void removed(Tile tile) {
+		memoryBytes -= tile.getMemoryBytes();
+		tile.removed = true;
+		if (tile.request != null && !tile.request.rendering) {
+			queue.remove(tile.request);
+			tile.request = null;
+		}
+	}
+
+	/**
+	 * @return the maximum number of bytes used by the tiles
+	 */
+	public synchronized long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set the maximum number of bytes used by the tiles. If the tiles use more
+	 * memory, the least recently used tiles are removed.
+	 *
+	 * @param memoryBudget the memory budget in bytes
+	 */
+	public synchronized void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		evict();
+	}
+
+	/**
+	 * @return the number of bytes of the tile images
+	 */
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 * @return the number of tiles in the cache
+	 */
+	public synchronized int getTileCount() {
+		return tiles.size();
+	}
+
+	/**
+	 * @return the number of renderer threads
+	 */
+	public synchronized int getRendererCount() {
+		return rendererCount;
+	}
+
+	/**
+	 * Set the number of renderer threads. If set to 0, all tiles are rendered
+	 * in the thread calling getTile(). The requesters of pending tiles are
+	 * notified, so that they request them again.
+	 *
+	 * @param count the number of renderer threads
+	 */
+	public synchronized void setRendererCount(int count) {
+		if (count == rendererCount) {
+			return;
+		}
+		stopRenderers();
+		rendererCount = count;
+		if (count == 0) {
+			for (Request request : queue) {
+				request.tile.request = null;
+				notifyRequesters(request);
+			}
+			queue.clear();
+		} else if (!queue.isEmpty()) {
+			startRenderers();
+		}
+	}
+
+	private void startRenderers() {
+		renderers = new Renderer[rendererCount];
+		for (int i = 0; i < rendererCount; i++) {
+			renderers[i] = new Renderer(i);
+		}
+	}
+
+	private void stopRenderers() {
+		if (renderers != null) {
+			for (Renderer renderer : renderers) {
+				renderer.killed = true;
+			}
+			renderers = null;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until all requested tiles are rendered or cancelled. Note that the
+	 * requesters may not be notified yet.
+	 *
+	 * @param timeoutMillis the maximum time to wait
+	 * @return true if the renderers are idle
+	 */
+	public synchronized boolean waitForRenderers(long timeoutMillis)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (!queue.isEmpty() || busyRenderers > 0) {
+			long wait = end - System.currentTimeMillis();
+			if (wait <= 0) {
+				return false;
+			}
+			wait(wait);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of tiles waiting for a renderer
+	 */
+	public synchronized int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of tiles that were returned without rendering
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of tiles that were rendered
+	 */
+	public synchronized long getRenders() {
+		return renders;
+	}
+
+	/**
+	 * @return the number of tiles removed to meet the memory budget
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of requested tiles that were not rendered because
+	 *         they were not visible anymore
+	 */
+	public synchronized long getCancellations() {
+		return cancellations;
+	}
+
+	/** reset the hits, renders, evictions, and cancellations */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		renders = 0;
+		evictions = 0;
+		cancellations = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return tiles.size() + " tiles, " + (memoryBytes / 1024) + "KB of "
+				+ (memoryBudget / 1024) + "KB, " + hits + " hits, " + renders
+				+ " renders, " + evictions + " evictions, " + queue.size()
+				+ " pending, " + cancellations + " cancelled";
+	}
+
+	/** notify the requesters in the event dispatch thread */
+	private void notifyRequesters(Request request) {
+		final Key key = request.key;
+		final Requester[] requesters = request.getRequesters();
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				for (Requester requester : requesters) {
+					requester.tileRendered(key.file, key.level, key.index);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Render the most recently requested tile, if it is still visible. Called
+	 * by the renderer threads.
+	 */
+	private void renderNext(Renderer renderer) throws InterruptedException {
+		Request request;
+		Requester[] requesters;
+		synchronized (this) {
+			while (queue.isEmpty() && !renderer.killed) {
+				wait();
+			}
+			if (renderer.killed) {
+				return;
+			}
+			request = queue.removeLast();
+			request.rendering = true;
+			requesters = request.getRequesters();
+			busyRenderers++;
+		}
+		Key key = request.key;
+		Tile tile = request.tile;
+		BufferedImage image = null;
+		AudioPeakCache peakCache = null;
+		int units = 0;
+		boolean visible = false;
+		try {
+			// the requesters are asked outside of the lock
+			for (Requester requester : requesters) {
+				if (requester.isTileVisible(key.file, key.level, key.index)) {
+					visible = true;
+					break;
+				}
+			}
+			if (visible) {
+				peakCache = tile.getPeakCache(key.file);
+				units = tile.getAvailableUnits(key.file, peakCache);
+				image = tile.render(key.file, peakCache, units);
+			}
+		} catch (Throwable t) {
+			if (DEBUG) {
+				debug(t);
+			}
+		} finally {
+			synchronized (this) {
+				busyRenderers--;
+				tile.request = null;
+				if (!visible) {
+					cancellations++;
+				} else if (image != null && !tile.removed) {
+					tile.setImage(image, peakCache, units);
+					renders++;
+					// also notify requesters added while rendering
+					notifyRequesters(request);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A graph that requests tiles. The methods are called for tiles that it
+	 * requested with getTile().
+	 */
+	public interface Requester {
+		/**
+		 * Called by a renderer thread before rendering the tile. Since it is
+		 * not called in the event dispatch thread, the implementation should
+		 * only read the position of the component.
+		 *
+		 * @return false if the tile is not visible anymore, so it does not
+		 *         need to be rendered
+		 */
+		public boolean isTileVisible(AudioFile file, Level level, int index);
+
+		/**
+		 * Called in the event dispatch thread when the tile is rendered, so
+		 * that the requester can repaint it.
+		 */
+		public void tileRendered(AudioFile file, Level level, int index);
+	}
+
+	/**
+	 * A zoom level: the horizontal and vertical scale, and the channel and
+	 * color of the waveform. Tiles are only shared by graphs with equal zoom
+	 * levels.
+	 */
+	public static class Level {
+		final double samplesPerPixel;
+		final int channel;
+		final int height;
+		final double yOffset;
+		final double yScale;
+		final int rgb;
+
+		/**
+		 * Create a zoom level.
+		 *
+		 * @param samplesPerPixel the number of samples of one pixel column,
+		 *            must be at least MIN_SAMPLES_PER_PIXEL
+		 * @param channel the channel of the audio file
+		 * @param height the height of the tiles in pixels
+		 * @param yOffset the sample value at the bottom of the tiles
+		 * @param yScale the factor to convert a sample value to pixels
+		 * @param color the color of the waveform
+		 */
+		public Level(double samplesPerPixel, int channel, int height,
+				double yOffset, double yScale, Color color) {
+			this.samplesPerPixel = samplesPerPixel;
+			this.channel = channel;
+			this.height = height;
+			this.yOffset = yOffset;
+			this.yScale = yScale;
+			this.rgb = color.getRGB();
+		}
+
+		/** @return true if the tiles are rendered from the peak cache */
+		final boolean usesPeakCache() {
+			return samplesPerPixel >= AudioPeakCache.SCALE_FACTOR;
+		}
+
+		/** convert the sample value to the y coordinate in the tile */
+		final int toPixelY(float sample) {
+			return height - 1 - (int) ((sample - yOffset) * yScale);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Level)) {
+				return false;
+			}
+			Level l = (Level) o;
+			return l.samplesPerPixel == samplesPerPixel
+					&& l.channel == channel && l.height == height
+					&& l.yOffset == yOffset && l.yScale == yScale
+					&& l.rgb == rgb;
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(samplesPerPixel);
+			return (int) (bits ^ (bits >>> 32)) + 31 * channel + 961 * height
+					+ rgb;
+		}
+	}
+
+	/** the key of a tile in the map */
+	private static class Key {
+		final AudioFile file;
+		final Level level;
+		final int index;
+
+		Key(AudioFile file, Level level, int index) {
+			this.file = file;
+			this.level = level;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return k.file == file && k.index == index && k.level.equals(level);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(file) + 31 * level.hashCode()
+					+ index;
+		}
+	}
+
+	/** a request to render a tile */
+	private static class Request {
+		final Key key;
+		final Tile tile;
+		final List<Requester> requesters = new ArrayList<Requester>(2);
+		/** set when a renderer took this request from the queue */
+		boolean rendering = false;
+
+		Request(Key key, Tile tile) {
+			this.key = key;
+			this.tile = tile;
+		}
+
+		Requester[] getRequesters() {
+			return requesters.toArray(new Requester[requesters.size()]);
+		}
+	}
+
+	/** a tile, the image is null until it is rendered */
+	private static class Tile {
+		final Level level;
+		/** the first pixel column of this tile in the file */
+		final int startPixel;
+		/** the samples of this tile */
+		final int startSample, endSample;
+		/** the peak cache elements in this tile */
+		final int firstElement, endElement;
+		BufferedImage image = null;
+		/** the peak cache that this tile was rendered from */
+		AudioPeakCache peakCache;
+		/** the number of elements, or samples, of this tile rendered */
+		int renderedUnits = -1;
+		/** the pending request, or null */
+		Request request = null;
+		/** set when this tile is removed from the cache */
+		boolean removed = false;
+
+		Tile(Level level, int index) {
+			this.level = level;
+			startPixel = index * TILE_WIDTH;
+			startSample = (int) (startPixel * level.samplesPerPixel);
+			endSample = (int) ((startPixel + TILE_WIDTH) * level.samplesPerPixel);
+			firstElement = startSample >> AudioPeakCache.SCALE_SHIFT;
+			// a cache element belongs to the pixel in which it starts
+			endElement = ((endSample - 1) >> AudioPeakCache.SCALE_SHIFT) + 1;
+		}
+
+		long getMemoryBytes() {
+			return (long) TILE_WIDTH * level.height * BYTES_PER_PIXEL;
+		}
+
+		/** @return the peak cache to render from, or null for audio data */
+		AudioPeakCache getPeakCache(AudioFile file) {
+			return level.usesPeakCache() ? file.getPeakCache() : null;
+		}
+
+		/**
+		 * @return the number of peak cache elements, or samples, of this tile
+		 *         that are available
+		 */
+		int getAvailableUnits(AudioFile file, AudioPeakCache aPeakCache) {
+			long avail;
+			int first, end;
+			if (aPeakCache != null) {
+				avail = aPeakCache.getHandledCacheElementCount();
+				first = firstElement;
+				end = endElement;
+			} else {
+				if (file.canPlayBeforeFullyLoaded() || file.isFullyLoaded()) {
+					avail = file.getAvailableSamples();
+				} else {
+					avail = 0;
+				}
+				first = startSample;
+				end = endSample;
+			}
+			if (avail > end) {
+				return end - first;
+			}
+			if (avail < first) {
+				return 0;
+			}
+			return (int) (avail - first);
+		}
+
+		/**
+		 * @return true if this tile is rendered, and no data in the range of
+		 *         this tile was added since rendering it
+		 */
+		boolean isValid(AudioFile file) {
+			AudioPeakCache aPeakCache = getPeakCache(file);
+			return image != null && aPeakCache == peakCache
+					&& getAvailableUnits(file, aPeakCache) == renderedUnits;
+		}
+
+		void setImage(BufferedImage aImage, AudioPeakCache aPeakCache,
+				int units) {
+			image = aImage;
+			peakCache = aPeakCache;
+			renderedUnits = units;
+		}
+
+		/**
+		 * Render this tile into a new image from the peak cache, or from the
+		 * audio data if aPeakCache is null.
+		 *
+		 * @param units the number of available elements, or samples
+		 */
+		BufferedImage render(AudioFile file, AudioPeakCache aPeakCache,
+				int units) {
+			BufferedImage ret = createImage(TILE_WIDTH, level.height, level.rgb);
+			Graphics2D g = ret.createGraphics();
+			try {
+				g.setColor(new Color(level.rgb, true));
+				if (aPeakCache != null) {
+					renderPeaks(g, aPeakCache, units);
+				} else {
+					renderSamples(g, file, units);
+				}
+			} finally {
+				g.dispose();
+			}
+			return ret;
+		}
+
+		/** draw the min/max lines, like Graph.drawCacheSamples() */
+		private void renderPeaks(Graphics g, AudioPeakCache aPeakCache,
+				int units) {
+			FloatSampleBuffer minCache = aPeakCache.getMinCache();
+			FloatSampleBuffer maxCache = aPeakCache.getMaxCache();
+			float[] minData = minCache.getChannel(level.channel
+					% minCache.getChannelCount());
+			float[] maxData = maxCache.getChannel(level.channel
+					% maxCache.getChannelCount());
+			int maxCacheIndex = firstElement + units;
+			// just for sanity
+			if (maxCacheIndex > minData.length) {
+				maxCacheIndex = minData.length;
+			}
+			if (maxCacheIndex > maxData.length) {
+				maxCacheIndex = maxData.length;
+			}
+			int cacheIndex = firstElement;
+			int sample = cacheIndex << AudioPeakCache.SCALE_SHIFT;
+			for (int x = 0; x < TILE_WIDTH; x++) {
+				int sampleNext = (int) ((startPixel + x + 1) * level.samplesPerPixel);
+				if (cacheIndex >= maxCacheIndex) {
+					break;
+				}
+				float mi = minData[cacheIndex];
+				float ma = maxData[cacheIndex];
+				cacheIndex++;
+				sample += AudioPeakCache.SCALE_FACTOR;
+				while (sample < sampleNext && cacheIndex < maxCacheIndex) {
+					if (minData[cacheIndex] < mi) mi = minData[cacheIndex];
+					if (maxData[cacheIndex] > ma) ma = maxData[cacheIndex];
+					cacheIndex++;
+					sample += AudioPeakCache.SCALE_FACTOR;
+				}
+				g.drawLine(x, level.toPixelY(mi), x, level.toPixelY(ma));
+			}
+		}
+
+		/** draw the min/max lines, like Graph.drawMinMaxSamples() */
+		private void renderSamples(Graphics g, AudioFile file, int units) {
+			float[] samples = new float[units];
+			int count = file.readChannelData(level.channel, startSample,
+					samples, 0, units);
+			for (int x = 0; x < TILE_WIDTH; x++) {
+				int from = (int) ((startPixel + x) * level.samplesPerPixel)
+						- startSample;
+				int to = (int) ((startPixel + x + 1) * level.samplesPerPixel)
+						- 1 - startSample;
+				if (from >= count) {
+					break;
+				}
+				if (to >= count) {
+					to = count - 1;
+				}
+				float mi = samples[from];
+				float ma = mi;
+				if (from < to) {
+					mi = 1.0f;
+					ma = -1.0f;
+					for (int i = from; i <= to; i++) {
+						float s = samples[i];
+						if (s < mi) mi = s;
+						if (s > ma) ma = s;
+					}
+				}
+				g.drawLine(x, level.toPixelY(mi), x, level.toPixelY(ma));
+			}
+		}
+	}
+
+	/**
+	 * Create an empty, transparent tile image for drawing in the given color.
+	 * On a screen, the image is compatible with the screen, with bitmask
+	 * transparency if the color is opaque. Otherwise, it is an indexed image
+	 * with the two colors.
+	 */
+	static BufferedImage createImage(int width, int height, int rgb) {
+		if (!GraphicsEnvironment.isHeadless()) {
+			GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+					.getDefaultScreenDevice().getDefaultConfiguration();
+			return gc.createCompatibleImage(width, height,
+					((rgb >>> 24) == 0xFF) ? Transparency.BITMASK
+							: Transparency.TRANSLUCENT);
+		}
+		IndexColorModel cm = new IndexColorModel(8, 2, new int[] {
+				0, rgb
+		}, 0, true, 0, DataBuffer.TYPE_BYTE);
+		return new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_INDEXED, cm);
+	}
+
+	/** a thread rendering requested tiles */
+	private class Renderer extends Thread {
+
+		volatile boolean killed = false;
+
+		public Renderer(int id) {
+			super("WaveformTileRenderer " + id);
+			setDaemon(true);
+			setPriority(Thread.NORM_PRIORITY - 1);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!killed) {
+					renderNext(this);
+				}
+			} catch (InterruptedException ie) {
+				// exit
+			}
+			if (DEBUG) {
+				debug(getName() + ": exit");
+			}
+		}
+	}
+}
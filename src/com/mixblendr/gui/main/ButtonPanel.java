@@ -659,6 +659,8 @@ class ButtonPanel implements ActionListener, AudioPlayer.Listener,
 		// displaytimer
 		boolean stillActive = false;
 		for (ChannelStrip strip : main.strips) {
+			strip.displayAutomation();
+			strip.displayLoad();
 			if (strip.displayLevel(currTime, timerRefreshIntervalSamples)) {
 				stillActive = true;
 			}
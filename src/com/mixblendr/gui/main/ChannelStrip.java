@@ -17,8 +17,8 @@ import com.mixblendr.audio.AudioState;
 import com.mixblendr.audio.AudioTrack;
 import com.mixblendr.audio.AudioRegion.State;
 import com.mixblendr.audio.AudioTrack.SoloState;
-import com.mixblendr.automation.AutomationPan;
-import com.mixblendr.automation.AutomationVolume;
+import com.mixblendr.audio.AutomationLane;
+import com.mixblendr.audio.LoadMeter;
 import com.mixblendr.skin.*;
 import com.mixblendr.util.Debug;
 import com.mixblendr.util.Utils;
@@ -44,6 +44,8 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 	MPanel channelstrip;
 	MButton moveUp, moveDown, remove;
 	MLabel name;
+	/** optional: the processing load of the track */
+	MLabel load;
 	MSlider volume, pan;
 	MLED clip;
 	MButton FXselect;
@@ -71,6 +73,7 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 		moveDown = getButton(builder, "trackDown");
 		remove = getButton(builder, "trackRemove");
 		name = getLabel(builder, "trackDisplay");
+		load = getLabel(builder, "trackLoad");
 		volume = getSlider(builder, "volume", 1.0, false);
 		pan = getSlider(builder, "pan", 0.5, true);
 		clip = getLED(builder, "volume_clip");
@@ -99,6 +102,7 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 		moveDown = copy(strip.moveDown);
 		remove = copy(strip.remove);
 		name = copy(strip.name);
+		load = copy(strip.load);
 		volume = copy(strip.volume);
 		pan = copy(strip.pan);
 		clip = copy(strip.clip);
@@ -442,6 +446,23 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 		pan.setValue((track.getBalance() + 1.0) / 2.0);
 	}
 
+	/**
+	 * display volume and pan if they are currently controlled by the
+	 * automation lanes of the AudioTrack
+	 */
+	public void displayAutomation() {
+		AudioTrack track = getAudioTrack();
+		if (track == null) return;
+		AutomationLane lane = track.getVolumeLane();
+		if (!lane.isTracking() && !lane.isEmpty()) {
+			displayVolume();
+		}
+		lane = track.getBalanceLane();
+		if (!lane.isTracking() && !lane.isEmpty()) {
+			displayPan();
+		}
+	}
+
 	/**
 	 * display the current audio level from the current setting in the
 	 * AudioTrack
@@ -477,6 +498,34 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 		return (started || (level > 0.0));
 	}
 
+	/**
+	 * display the processing load of the track in the load label, if the skin
+	 * has one, and in the tooltip of the name label
+	 */
+	public void displayLoad() {
+		AudioTrack track = getAudioTrack();
+		if (track == null) return;
+		if (load != null) {
+			load.setText(LoadMeter.formatLoad(track.getAverageLoad()));
+		}
+		if (name != null) {
+			StringBuffer sb = new StringBuffer("<html>CPU load: ");
+			sb.append(LoadMeter.formatLoad(track.getAverageLoad()));
+			sb.append("<br>audio: ").append(track.getSourceLoad());
+			sb.append("<br>effects: ").append(track.getEffectsLoad());
+			for (AudioEffect effect : track.getEffects()) {
+				LoadMeter meter = track.getEffectLoad(effect);
+				if (meter != null) {
+					sb.append("<br>&nbsp;&nbsp;").append(effect.getShortName());
+					sb.append(": ").append(meter);
+				}
+			}
+			sb.append("<br>mix: ").append(track.getMixLoad());
+			sb.append("</html>");
+			name.setToolTipText(sb.toString());
+		}
+	}
+
 	/** display the FX setting from the current setting in the AudioTrack */
 	public void displayFX() {
 		AudioEffect effect = getAudioEffect();
@@ -527,9 +576,8 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 		track.setVolume(vol);
 		if (canAutomate && (player != null) && (auto != null)
 				&& auto.isSelected()) {
-			track.addAutomationObject(new AutomationVolume(player.getState(),
-					vol /* AudioUtils.decibel2linear(vol) */,
-					player.getPositionSamples()));
+			track.recordVolume(vol /* AudioUtils.decibel2linear(vol) */,
+					player.getPositionSamples());
 		}
 
 	}
@@ -543,8 +591,7 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 		track.setBalance(pa);
 		if (canAutomate && (player != null) && (auto != null)
 				&& auto.isSelected()) {
-			track.addAutomationObject(new AutomationPan(player.getState(), pa,
-					player.getPositionSamples()));
+			track.recordBalance(pa, player.getPositionSamples());
 		}
 	}
 
@@ -655,6 +702,8 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 			// from now on, any existing events will be removed
 			main.volAutoHandler.setTracking(track, source == volume);
 			main.panAutoHandler.setTracking(track, source == pan);
+			track.getVolumeLane().setTracking(source == volume);
+			track.getBalanceLane().setTracking(source == pan);
 			// insert initial automation event
 			sliderValueTracked(source);
 		}
@@ -668,6 +717,10 @@ class ChannelStrip implements MSlider.Listener, ActionListener, AudioListener {
 		// cancel tracking for this track
 		main.volAutoHandler.setTracking(track, false);
 		main.panAutoHandler.setTracking(track, false);
+		if (track != null) {
+			track.getVolumeLane().setTracking(false);
+			track.getBalanceLane().setTracking(false);
+		}
 	}
 
 	/*
@@ -12,6 +12,7 @@ import javax.swing.JOptionPane;
 
 import com.mixblendr.audio.AudioEffect;
 import com.mixblendr.audio.AudioTrack;
+import com.mixblendr.effects.ConvolutionReverb;
 import com.mixblendr.effects.Delay;
 import com.mixblendr.effects.Delay2;
 import com.mixblendr.effects.Flanger;
@@ -28,7 +29,7 @@ class EffectManager {
 	public static final String EFFECT_NONE = "<no effect>";
 
 	public static final Class[] EFFECT_CLASSES = {
-			Delay.class, Flanger.class, Delay2.class
+			Delay.class, Flanger.class, Delay2.class, ConvolutionReverb.class
 	};
 
 	private static List<String> effectNames = null;
@@ -118,21 +118,23 @@ class PositionGrid implements MPanel.PaintListener, ChangeListener,
 
 	/**
 	 * repaint the area of old and new play position. Will also repaint the
-	 * corresponding are of the allRegions area. If the sample position has not
-	 * changed, repaintArea.width is set to 0 and nothing is repainted.
+	 * corresponding are of the allRegions area. If the pixel of the play
+	 * position has not changed, repaintArea.width is set to 0 and nothing is
+	 * repainted.
 	 * 
 	 * @param repaintArea [out] fills in x and width with the repaint area
 	 */
 	void repaintPlayPosition(long newSamplePosition, Rectangle repaintArea) {
-		if (newSamplePosition == playPosition) {
+		int pixel1 = scale.sample2pixel(playPosition) - 1;
+		int pixel2 = scale.sample2pixel(newSamplePosition) - 1;
+		if (pixel1 == pixel2) {
+			setPlayPosition(newSamplePosition);
 			if (repaintArea != null) {
 				repaintArea.width = 0;
 			}
 			return;
 		}
 		int xOffset = globals.getAllRegionsScrollX();
-		int pixel1 = scale.sample2pixel(playPosition) - 1;
-		int pixel2 = scale.sample2pixel(newSamplePosition) - 1;
 		if (pixel1 > pixel2) {
 			int h = pixel1;
 			pixel1 = pixel2;
@@ -124,6 +124,8 @@ public class RegionGraph extends Graph implements GraphScale.Listener,
 		showEdge = false;
 		showGraphBackground = false;
 		showMono = true;
+		// regions of the same file share the waveform tiles
+		useTileCache = true;
 
 		// cannot set left/right edge, otherwise the cut position would appear
 		// off
@@ -467,6 +469,21 @@ public class RegionGraph extends Graph implements GraphScale.Listener,
 		return region;
 	}
 
+	/**
+	 * Use the scale for the tiles, so that the tiles do not depend on the
+	 * rounded width of this region graph, and all regions of the audio file
+	 * use the same tiles.
+	 * 
+	 * @see com.mixblendr.gui.graph.Graph#getTileSamplesPerPixel()
+	 */
+	@Override
+	protected double getTileSamplesPerPixel() {
+		if (scale != null && scale.getScaleFactor() > 0.0) {
+			return scale.pixel2sample(1.0);
+		}
+		return super.getTileSamplesPerPixel();
+	}
+
 	/**
 	 * @return the scale
 	 */
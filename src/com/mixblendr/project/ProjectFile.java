@@ -0,0 +1,1005 @@
+/**
+ *
+ */
+package com.mixblendr.project;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.*;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.automation.AutomationPan;
+import com.mixblendr.automation.AutomationVolume;
+
+/**
+ * Saves and loads the arrangement of an AudioPlayer in a compact binary
+ * project file: tracks with their regions, automation objects, automation
+ * lanes, and effects with their parameters, the buses and sends, and the
+ * sources of the regions with a hash of their content.
+ * <p>
+ * The file is a sequence of chunks. Every track's playlist and automation
+ * lanes are stored in their own chunk. The index chunk with the global
+ * settings, the sources, the buses, and the tracks' mixer settings and
+ * effects is written last, followed by a trailer pointing to the index. The
+ * file is written in one sequential pass, and loaded by memory mapping it.
+ * Only the index is parsed when loading; the playlist chunk of a track is
+ * parsed when the track's playlist is accessed for the first time, see
+ * AudioTrack.setPlaylistLoader().
+ * <p>
+ * Saving to the file that was loaded or saved last is incremental: only the
+ * chunks of changed tracks are appended to the file, followed by a new index
+ * and trailer. When the file contains too much unused data, it is rewritten.
+ * <p>
+ * All numbers are big endian. Strings are stored as the length in bytes
+ * followed by the UTF-8 bytes.
+ * <p>
+ * Effect specific automation objects in the playlists (e.g. the delay time
+ * of the Delay effect) are not saved. Effects are only saved if they
+ * implement AudioEffectParameters.
+ *
+ * @author Florian Bomers
+ */
+public class ProjectFile {
+
+	private static final boolean DEBUG_PROJECT = false;
+
+	/** the magic number at the start of the file: &quot;MXBP&quot; */
+	public static final int MAGIC = 0x4D584250;
+
+	/** the magic number at the end of the file: &quot;MXBE&quot; */
+	public static final int TRAILER_MAGIC = 0x4D584245;
+
+	/** the current version of the file format */
+	public static final int VERSION = 1;
+
+	/** magic, version */
+	private static final int HEADER_SIZE = 8;
+
+	/** index offset, index length, magic */
+	private static final int TRAILER_SIZE = 16;
+
+	/** type, payload length */
+	private static final int CHUNK_HEADER_SIZE = 8;
+
+	private static final int CHUNK_PLAYLIST = 1;
+
+	private static final int CHUNK_INDEX = 2;
+
+	private static final byte OBJECT_REGION = 1;
+
+	private static final byte OBJECT_VOLUME = 2;
+
+	private static final byte OBJECT_PAN = 3;
+
+	/**
+	 * rewrite the file instead of appending if less than this fraction of
+	 * the file would be used
+	 */
+	private static final double MIN_USED_RATIO = 0.5;
+
+	private AudioPlayer player;
+
+	/** the file that was loaded or saved last, or null */
+	private File file;
+
+	/** the length of the file after loading or saving it */
+	private long fileLength = 0;
+
+	/** the sources, in the order of the source table in the file */
+	private List<Source> sources = new ArrayList<Source>();
+
+	/** the index of every source in sources */
+	private Map<String, Integer> sourceIndex = new HashMap<String, Integer>();
+
+	/** the location of the playlist chunks of the tracks in the file */
+	private Map<AudioTrack, Chunk> chunks = new WeakHashMap<AudioTrack, Chunk>();
+
+	/** the number of bytes written by the last save operation */
+	private long lastSaveBytes = 0;
+
+	/**
+	 * Create a project file instance for saving the player's arrangement.
+	 *
+	 * @param player the initialized player
+	 */
+	public ProjectFile(AudioPlayer player) {
+		this.player = player;
+	}
+
+	/**
+	 * Load the project file into the player. The tracks and buses are added
+	 * to the player's mixer, which should be empty. The playlists of the
+	 * tracks are loaded when they are accessed for the first time.
+	 *
+	 * @param player the initialized player
+	 * @param file the project file
+	 * @return the project file instance, for saving the project
+	 * @throws IOException if the file cannot be read, or if it is not a valid
+	 *             project file
+	 */
+	public static ProjectFile load(AudioPlayer player, File file)
+			throws IOException {
+		ProjectFile ret = new ProjectFile(player);
+		ret.read(file);
+		return ret;
+	}
+
+	/**
+	 * @return the file that was loaded or saved last, or null
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of bytes written by the last save operation
+	 */
+	public long getLastSaveBytes() {
+		return lastSaveBytes;
+	}
+
+	/**
+	 * Save the project to the file it was loaded from or saved to last.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save() throws IOException {
+		if (file == null) {
+			throw new IOException("no file name given");
+		}
+		save(file);
+	}
+
+	/**
+	 * Save the project. If the file is the one that was loaded or saved last,
+	 * only the changed tracks are appended to it. Otherwise, the whole project
+	 * is written.
+	 *
+	 * @param newFile the file to save to
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void save(File newFile) throws IOException {
+		boolean incremental = (file != null)
+				&& file.getAbsoluteFile().equals(newFile.getAbsoluteFile())
+				&& newFile.length() == fileLength;
+		if (incremental && getUsedBytes() < fileLength * MIN_USED_RATIO) {
+			if (DEBUG_PROJECT) {
+				debug("ProjectFile: rewriting " + newFile);
+			}
+			incremental = false;
+		}
+		long start = System.nanoTime();
+		if (incremental) {
+			writeIncremental(newFile);
+		} else {
+			writeFull(newFile);
+		}
+		file = newFile;
+		if (DEBUG_PROJECT) {
+			debug("ProjectFile: saved " + newFile + " in "
+					+ ((System.nanoTime() - start) / 1000000) + "ms, "
+					+ (incremental ? "incremental, " : "") + lastSaveBytes
+					+ " bytes written, size " + fileLength + " bytes");
+		}
+	}
+
+	/**
+	 * Compare the content hashes of the sources in the file with the hashes
+	 * of the fully loaded audio files.
+	 *
+	 * @return the sources whose content changed since saving the project
+	 */
+	public synchronized List<String> getChangedSources() {
+		List<String> ret = new ArrayList<String>();
+		for (Source s : sources) {
+			if (s.hash != null && s.audioFile != null) {
+				byte[] hash = s.audioFile.getContentHash();
+				if (hash != null && !Arrays.equals(hash, s.hash)) {
+					ret.add(s.source);
+				}
+			}
+		}
+		return ret;
+	}
+
+	// WRITING
+
+	/** @return the number of bytes of the file that are still referenced */
+	private long getUsedBytes() {
+		long ret = HEADER_SIZE + TRAILER_SIZE;
+		for (AudioTrack t : player.getMixer().getTracks()) {
+			Chunk c = chunks.get(t);
+			if (c != null) {
+				ret += CHUNK_HEADER_SIZE + c.length;
+			}
+		}
+		return ret;
+	}
+
+	/** write the whole project in one sequential pass to a temporary file */
+	private void writeFull(File newFile) throws IOException {
+		List<AudioTrack> tracks = player.getMixer().getTracks();
+		// all tracks are written from memory
+		for (AudioTrack t : tracks) {
+			t.loadPlaylist();
+		}
+		sources.clear();
+		sourceIndex.clear();
+		chunks.clear();
+		File tempFile = new File(newFile.getAbsoluteFile().getParentFile(),
+				newFile.getName() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		try {
+			FileChannel channel = fos.getChannel();
+			Output out = new Output();
+			out.buffer.putInt(MAGIC);
+			out.buffer.putInt(VERSION);
+			long pos = out.write(channel);
+			for (AudioTrack t : tracks) {
+				out.startChunk(CHUNK_PLAYLIST);
+				writePlaylist(out, t);
+				Chunk c = new Chunk(pos, out.getChunkLength(), out.getChunkHash());
+				chunks.put(t, c);
+				pos += out.write(channel);
+			}
+			pos += writeIndex(out, channel, pos);
+			channel.force(false);
+			fileLength = pos;
+		} finally {
+			fos.close();
+		}
+		if (!tempFile.renameTo(newFile)) {
+			// e.g. on Windows, cannot rename to an existing file
+			newFile.delete();
+			if (!tempFile.renameTo(newFile)) {
+				throw new IOException("cannot rename " + tempFile + " to "
+						+ newFile);
+			}
+		}
+		lastSaveBytes = fileLength;
+	}
+
+	/**
+	 * append the chunks of the changed tracks, and a new index and trailer to
+	 * the file
+	 */
+	private void writeIncremental(File newFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(newFile, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long pos = fileLength;
+			channel.position(pos);
+			Output out = new Output();
+			for (AudioTrack t : player.getMixer().getTracks()) {
+				Chunk c = chunks.get(t);
+				if (c != null && t.getPlaylistLoader() instanceof TrackLoader) {
+					// not loaded, so not changed
+					continue;
+				}
+				out.startChunk(CHUNK_PLAYLIST);
+				writePlaylist(out, t);
+				byte[] hash = out.getChunkHash();
+				if (c != null && Arrays.equals(hash, c.hash)) {
+					out.discard();
+					continue;
+				}
+				chunks.put(t, new Chunk(pos, out.getChunkLength(), hash));
+				pos += out.write(channel);
+			}
+			pos += writeIndex(out, channel, pos);
+			channel.force(false);
+			lastSaveBytes = pos - fileLength;
+			fileLength = pos;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * write the index chunk and the trailer
+	 *
+	 * @return the number of written bytes
+	 */
+	private int writeIndex(Output out, FileChannel channel, long pos)
+			throws IOException {
+		AudioMixer mixer = player.getMixer();
+		AudioState state = player.getState();
+		List<AudioTrack> tracks = mixer.getTracks();
+		List<AudioBus> buses = mixer.getBuses();
+		out.startChunk(CHUNK_INDEX);
+		out.ensure(33);
+		ByteBuffer b = out.buffer;
+		b.putDouble(state.getTempo());
+		b.putDouble(state.getMasterVolume());
+		b.putLong(state.getLoopStartSamples());
+		b.putLong(state.getLoopEndSamples());
+		b.put((byte) (state.isLoopEnabled() ? 1 : 0));
+		// the sources were collected while writing the playlists
+		out.ensure(4);
+		b = out.buffer;
+		b.putInt(sources.size());
+		for (Source s : sources) {
+			if (s.audioFile != null) {
+				byte[] hash = s.audioFile.getContentHash();
+				if (hash != null) {
+					s.hash = hash;
+				}
+				long duration = s.audioFile.getDurationSamples();
+				if (duration >= 0) {
+					s.durationSamples = duration;
+				}
+			}
+			out.putString(s.source);
+			out.putString(s.name);
+			out.putBytes(s.hash);
+			out.ensure(8);
+			out.buffer.putLong(s.durationSamples);
+		}
+		out.ensure(4);
+		out.buffer.putInt(buses.size());
+		for (AudioBus bus : buses) {
+			out.putString(bus.getName());
+			out.ensure(13);
+			out.buffer.putDouble(bus.getVolume());
+			out.buffer.put((byte) (bus.isMute() ? 1 : 0));
+			out.buffer.putInt(getBusIndex(bus.getOutput()));
+			writeEffects(out, bus.getEffects());
+			writeEffectLanes(out, bus.getEffects());
+		}
+		out.ensure(4);
+		out.buffer.putInt(tracks.size());
+		for (AudioTrack t : tracks) {
+			out.putString(t.getName());
+			AudioSend[] sends = t.getSends();
+			out.ensure(31 + sends.length * 12);
+			b = out.buffer;
+			b.putDouble(t.getVolume());
+			b.putDouble(t.getBalance());
+			b.put((byte) (t.isMute() ? 1 : 0));
+			b.put((byte) (t.getSolo() == AudioTrack.SoloState.SOLO ? 1 : 0));
+			b.put((byte) (t.isAutomationEnabled() ? 1 : 0));
+			b.putInt(getBusIndex(t.getOutputBus()));
+			b.putInt(sends.length);
+			for (AudioSend send : sends) {
+				b.putInt(getBusIndex(send.getBus()));
+				b.putDouble(send.getLevel());
+			}
+			writeEffects(out, t.getEffects());
+			Chunk c = chunks.get(t);
+			out.ensure(12);
+			out.buffer.putLong(c.offset);
+			out.buffer.putInt(c.length);
+		}
+		int length = out.getChunkLength();
+		out.ensure(TRAILER_SIZE);
+		out.buffer.putLong(pos);
+		out.buffer.putInt(length);
+		out.buffer.putInt(TRAILER_MAGIC);
+		return out.write(channel);
+	}
+
+	private static int getBusIndex(AudioBus bus) {
+		return (bus == null) ? -1 : bus.getIndex();
+	}
+
+	/** write the automation objects and the automation lanes of the track */
+	private void writePlaylist(Output out, AudioTrack t) {
+		Playlist pl = t.getPlaylist();
+		out.ensure(4);
+		int countPos = out.buffer.position();
+		out.buffer.putInt(0);
+		int count = 0;
+		synchronized (pl) {
+			int objectCount = pl.getObjectCount();
+			for (int i = 0; i < objectCount; i++) {
+				AutomationObject ao = pl.getObject(i);
+				out.ensure(33);
+				ByteBuffer b = out.buffer;
+				if (ao instanceof AudioRegion) {
+					AudioRegion r = (AudioRegion) ao;
+					b.put(OBJECT_REGION);
+					b.putLong(r.getStartTimeSamples());
+					b.putInt(getSourceIndex(r.getAudioFile()));
+					b.putLong(r.getAudioFileOffset());
+					b.putLong(r.getDuration());
+				} else if (ao instanceof AutomationVolume) {
+					b.put(OBJECT_VOLUME);
+					b.putLong(ao.getStartTimeSamples());
+					b.putDouble(((AutomationVolume) ao).getVolume());
+				} else if (ao instanceof AutomationPan) {
+					b.put(OBJECT_PAN);
+					b.putLong(ao.getStartTimeSamples());
+					b.putDouble(((AutomationPan) ao).getPan());
+				} else {
+					if (DEBUG_PROJECT) {
+						debug("ProjectFile: cannot save " + ao);
+					}
+					continue;
+				}
+				count++;
+			}
+		}
+		out.buffer.putInt(countPos, count);
+		out.putLane(t.getVolumeLane());
+		out.putLane(t.getBalanceLane());
+		writeEffectLanes(out, t.getEffects());
+	}
+
+	/** write class name and parameter values of the effects */
+	private static void writeEffects(Output out, List<AudioEffect> effects) {
+		List<AudioEffectParameters> list = getSavedEffects(effects);
+		out.ensure(4);
+		out.buffer.putInt(list.size());
+		for (AudioEffectParameters e : list) {
+			out.putString(e.getClass().getName());
+			int count = e.getParameterCount();
+			out.ensure(4);
+			out.buffer.putInt(count);
+			for (int p = 0; p < count; p++) {
+				out.putString(e.getParameterName(p));
+				out.ensure(8);
+				out.buffer.putDouble(e.getParameter(p));
+			}
+		}
+	}
+
+	/** write the automation lanes of the effects' parameters */
+	private static void writeEffectLanes(Output out, List<AudioEffect> effects) {
+		List<AudioEffectParameters> list = getSavedEffects(effects);
+		out.ensure(4);
+		int countPos = out.buffer.position();
+		out.buffer.putInt(0);
+		int count = 0;
+		for (int i = 0; i < list.size(); i++) {
+			AudioEffectParameters e = list.get(i);
+			for (int p = 0; p < e.getParameterCount(); p++) {
+				AutomationLane lane = e.getParameterLane(p);
+				if (lane != null && !lane.isEmpty()) {
+					out.ensure(4);
+					out.buffer.putInt(i);
+					out.putString(e.getParameterName(p));
+					out.putLane(lane);
+					count++;
+				}
+			}
+		}
+		out.buffer.putInt(countPos, count);
+	}
+
+	/** @return the effects which can be saved */
+	private static List<AudioEffectParameters> getSavedEffects(
+			List<AudioEffect> effects) {
+		List<AudioEffectParameters> ret = new ArrayList<AudioEffectParameters>(
+				effects.size());
+		for (AudioEffect e : effects) {
+			if (e instanceof AudioEffectParameters) {
+				ret.add((AudioEffectParameters) e);
+			} else if (DEBUG_PROJECT) {
+				debug("ProjectFile: cannot save effect " + e.getShortName());
+			}
+		}
+		return ret;
+	}
+
+	/** get the index of the audio file in the source table, or add it */
+	private int getSourceIndex(AudioFile af) {
+		Integer index = sourceIndex.get(af.getSource());
+		if (index != null) {
+			Source s = sources.get(index);
+			s.audioFile = af;
+			return index;
+		}
+		Source s = new Source();
+		s.source = af.getSource();
+		s.name = af.getName();
+		s.audioFile = af;
+		s.durationSamples = af.getDurationSamples();
+		sources.add(s);
+		sourceIndex.put(s.source, sources.size() - 1);
+		return sources.size() - 1;
+	}
+
+	// READING
+
+	private void read(File newFile) throws IOException {
+		long start = System.nanoTime();
+		MappedByteBuffer map;
+		RandomAccessFile raf = new RandomAccessFile(newFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if (length < HEADER_SIZE + CHUNK_HEADER_SIZE + TRAILER_SIZE) {
+				throw new IOException(newFile + " is not a project file");
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException(newFile + " is too large");
+			}
+			// the mapping stays valid after closing the file
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			fileLength = length;
+		} finally {
+			raf.close();
+		}
+		if (map.getInt(0) != MAGIC
+				|| map.getInt((int) fileLength - 4) != TRAILER_MAGIC) {
+			throw new IOException(newFile + " is not a project file");
+		}
+		int version = map.getInt(4);
+		if (version > VERSION) {
+			throw new IOException(newFile
+					+ ": unsupported project file version " + version);
+		}
+		long indexOffset = map.getLong((int) fileLength - TRAILER_SIZE);
+		try {
+			readIndex(map, getChunk(map, indexOffset, CHUNK_INDEX));
+		} catch (RuntimeException re) {
+			// e.g. BufferUnderflowException
+			IOException ioe = new IOException(newFile
+					+ ": corrupt project file");
+			ioe.initCause(re);
+			throw ioe;
+		}
+		file = newFile;
+		if (DEBUG_PROJECT) {
+			debug("ProjectFile: opened " + newFile + " in "
+					+ ((System.nanoTime() - start) / 1000000) + "ms");
+		}
+	}
+
+	/**
+	 * @return the payload of the chunk at offset
+	 */
+	private ByteBuffer getChunk(ByteBuffer map, long offset, int type)
+			throws IOException {
+		if (offset < HEADER_SIZE || offset + CHUNK_HEADER_SIZE > fileLength) {
+			throw new IOException("illegal chunk offset: " + offset);
+		}
+		int pos = (int) offset;
+		int length = map.getInt(pos + 4);
+		if (map.getInt(pos) != type || length < 0
+				|| pos + CHUNK_HEADER_SIZE + length > fileLength) {
+			throw new IOException("illegal chunk at offset " + offset);
+		}
+		ByteBuffer ret = map.duplicate();
+		ret.position(pos + CHUNK_HEADER_SIZE);
+		ret.limit(pos + CHUNK_HEADER_SIZE + length);
+		return ret.slice();
+	}
+
+	private void readIndex(ByteBuffer map, ByteBuffer b) throws IOException {
+		AudioMixer mixer = player.getMixer();
+		AudioState state = player.getState();
+		player.setTempo(b.getDouble());
+		state.setMasterVolume(b.getDouble());
+		long loopStart = b.getLong();
+		long loopEnd = b.getLong();
+		if (loopEnd >= loopStart) {
+			player.setLoopSamples(loopStart, loopEnd - loopStart);
+		}
+		player.setLoopEnabled(b.get() != 0);
+		// sources
+		int count = b.getInt();
+		sources.clear();
+		sourceIndex.clear();
+		for (int i = 0; i < count; i++) {
+			Source s = new Source();
+			s.source = getString(b);
+			s.name = getString(b);
+			s.hash = getBytes(b);
+			s.durationSamples = b.getLong();
+			s.audioFile = getAudioFile(s.source);
+			sources.add(s);
+			sourceIndex.put(s.source, i);
+		}
+		// buses: create all of them first, because of the routing
+		count = b.getInt();
+		AudioBus[] buses = new AudioBus[count];
+		int[] busOutputs = new int[count];
+		for (int i = 0; i < count; i++) {
+			buses[i] = player.addAudioBus();
+		}
+		for (int i = 0; i < count; i++) {
+			AudioBus bus = buses[i];
+			bus.setName(getString(b));
+			bus.setVolume(b.getDouble());
+			bus.setMute(b.get() != 0);
+			busOutputs[i] = b.getInt();
+			List<AudioEffect> effects = readEffects(b, null);
+			for (AudioEffect e : effects) {
+				bus.addEffect(e);
+			}
+			readEffectLanes(b, effects);
+		}
+		for (int i = 0; i < count; i++) {
+			mixer.setOutputBus(buses[i], getBus(buses, busOutputs[i]));
+		}
+		// tracks
+		count = b.getInt();
+		for (int i = 0; i < count; i++) {
+			AudioTrack t = player.addAudioTrack();
+			t.setName(getString(b));
+			t.setVolume(b.getDouble());
+			t.setBalance(b.getDouble());
+			t.setMute(b.get() != 0);
+			boolean solo = (b.get() != 0);
+			t.setAutomationEnabled(b.get() != 0);
+			mixer.setOutputBus(t, getBus(buses, b.getInt()));
+			int sendCount = b.getInt();
+			for (int s = 0; s < sendCount; s++) {
+				AudioBus bus = getBus(buses, b.getInt());
+				double level = b.getDouble();
+				if (bus != null) {
+					mixer.setSendLevel(t, bus, level);
+				}
+			}
+			if (solo) {
+				mixer.setSolo(t, true);
+			}
+			for (AudioEffect e : readEffects(b, t)) {
+				t.addEffect(e);
+			}
+			long offset = b.getLong();
+			int length = b.getInt();
+			ByteBuffer playlist = getChunk(map, offset, CHUNK_PLAYLIST);
+			if (playlist.remaining() != length) {
+				throw new IOException("illegal chunk length at offset "
+						+ offset);
+			}
+			chunks.put(t, new Chunk(offset, length, null));
+			t.setPlaylistLoader(new TrackLoader(playlist));
+		}
+	}
+
+	private static AudioBus getBus(AudioBus[] buses, int index) {
+		if (index < 0 || index >= buses.length) {
+			return null;
+		}
+		return buses[index];
+	}
+
+	/** get the audio file for the source from the factory */
+	private AudioFile getAudioFile(String source) throws IOException {
+		AudioFileFactory factory = player.getFactory();
+		if (source.indexOf(':') > 1) {
+			// a URL, and not a Windows path
+			return factory.getAudioFile(new URL(source));
+		}
+		return factory.getAudioFile(new File(source));
+	}
+
+	/** read and create the effects, and set their parameters */
+	private List<AudioEffect> readEffects(ByteBuffer b, AudioTrack track) {
+		int count = b.getInt();
+		List<AudioEffect> ret = new ArrayList<AudioEffect>(count);
+		for (int i = 0; i < count; i++) {
+			String className = getString(b);
+			AudioEffectParameters effect = null;
+			try {
+				effect = (AudioEffectParameters) Class.forName(className)
+						.getDeclaredConstructor().newInstance();
+				((AudioEffect) effect).init(player.getState(), player, track);
+			} catch (Exception e) {
+				error("ProjectFile: cannot create effect " + className + ": "
+						+ e);
+				effect = null;
+			}
+			int paramCount = b.getInt();
+			for (int p = 0; p < paramCount; p++) {
+				String name = getString(b);
+				double value = b.getDouble();
+				int index = getParameterIndex(effect, name);
+				if (index >= 0) {
+					effect.setParameter(index, value);
+				}
+			}
+			// keep the index, so that the effect lanes are assigned correctly
+			ret.add((AudioEffect) effect);
+		}
+		return ret;
+	}
+
+	/**
+	 * read the automation lanes of the effects' parameters
+	 *
+	 * @param effects the effects, may contain null for effects that could not
+	 *            be created
+	 */
+	private static void readEffectLanes(ByteBuffer b, List<AudioEffect> effects) {
+		int count = b.getInt();
+		for (int i = 0; i < count; i++) {
+			int index = b.getInt();
+			String name = getString(b);
+			AutomationLane lane = null;
+			if (index >= 0 && index < effects.size()) {
+				AudioEffectParameters e = (AudioEffectParameters) effects.get(index);
+				int p = getParameterIndex(e, name);
+				if (p >= 0) {
+					lane = e.getParameterLane(p);
+				}
+			}
+			getLane(b, lane);
+		}
+	}
+
+	/** @return the index of the parameter, or -1 */
+	private static int getParameterIndex(AudioEffectParameters effect,
+			String name) {
+		if (effect != null) {
+			for (int i = 0; i < effect.getParameterCount(); i++) {
+				if (effect.getParameterName(i).equals(name)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the playlist chunk of a track when the track's playlist is
+	 * accessed for the first time.
+	 */
+	private class TrackLoader implements AudioTrack.PlaylistLoader {
+		private ByteBuffer chunk;
+
+		TrackLoader(ByteBuffer chunk) {
+			this.chunk = chunk;
+		}
+
+		public void loadPlaylist(AudioTrack track) {
+			try {
+				loadPlaylistImpl(track);
+			} catch (RuntimeException re) {
+				error("ProjectFile: cannot load the playlist of " + track
+						+ ": " + re);
+			}
+			chunk = null;
+		}
+
+		private void loadPlaylistImpl(AudioTrack track) {
+			ByteBuffer b = chunk.duplicate();
+			AudioState state = player.getState();
+			Playlist pl = track.getPlaylist();
+			int count = b.getInt();
+			for (int i = 0; i < count; i++) {
+				byte type = b.get();
+				long start = b.getLong();
+				switch (type) {
+				case OBJECT_REGION:
+					int source = b.getInt();
+					AudioRegion r = new AudioRegion(state, getSource(source));
+					r.setStartTimeSamples(start);
+					r.setAudioFileOffset(b.getLong());
+					r.setDuration(b.getLong());
+					pl.addObject(r);
+					break;
+				case OBJECT_VOLUME:
+					pl.addObject(new AutomationVolume(state, b.getDouble(),
+							start));
+					break;
+				case OBJECT_PAN:
+					pl.addObject(new AutomationPan(state, b.getDouble(), start));
+					break;
+				default:
+					throw new IllegalStateException(
+							"illegal automation object type " + type);
+				}
+			}
+			getLane(b, track.getVolumeLane());
+			getLane(b, track.getBalanceLane());
+			readEffectLanes(b, track.getEffects());
+			// remember the hash, so that saving can detect changes
+			synchronized (ProjectFile.this) {
+				Chunk c = chunks.get(track);
+				if (c != null) {
+					ByteBuffer all = chunk.duplicate();
+					byte[] data = new byte[all.remaining()];
+					all.get(data);
+					c.hash = Output.hash(data, data.length);
+				}
+			}
+			if (DEBUG_PROJECT) {
+				debug("ProjectFile: loaded playlist of " + track + ": "
+						+ count + " objects");
+			}
+		}
+
+		private AudioFile getSource(int index) {
+			synchronized (ProjectFile.this) {
+				return sources.get(index).audioFile;
+			}
+		}
+	}
+
+	private static String getString(ByteBuffer b) {
+		byte[] bytes = getBytes(b);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	/** @return the bytes, or null if the length is 0 */
+	private static byte[] getBytes(ByteBuffer b) {
+		int length = b.getInt();
+		if (length == 0) {
+			return null;
+		}
+		byte[] ret = new byte[length];
+		b.get(ret);
+		return ret;
+	}
+
+	/**
+	 * Read the points of an automation lane.
+	 *
+	 * @param lane the lane to set, or null to skip the points
+	 */
+	private static void getLane(ByteBuffer b, AutomationLane lane) {
+		int count = b.getInt();
+		if (lane == null) {
+			b.position(b.position() + count * 12);
+			return;
+		}
+		long[] times = new long[count];
+		float[] values = new float[count];
+		b.asLongBuffer().get(times);
+		b.position(b.position() + count * 8);
+		b.asFloatBuffer().get(values);
+		b.position(b.position() + count * 4);
+		lane.setPoints(times, values, count);
+	}
+
+	// HELPER CLASSES
+
+	/** an entry of the source table */
+	private static class Source {
+		String source;
+		String name;
+		byte[] hash;
+		long durationSamples = -1;
+		AudioFile audioFile;
+	}
+
+	/** the location of a playlist chunk in the file */
+	private static class Chunk {
+		/** the offset of the chunk header */
+		long offset;
+		/** the length of the payload */
+		int length;
+		/** the SHA-1 hash of the payload, or null if not known yet */
+		byte[] hash;
+
+		Chunk(long offset, int length, byte[] hash) {
+			this.offset = offset;
+			this.length = length;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * A growing buffer for composing chunks before writing them to the file.
+	 */
+	private static class Output {
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+
+		/** the position of the current chunk's header in buffer */
+		private int chunkStart = -1;
+
+		/** start a new chunk, the buffer must be empty */
+		void startChunk(int type) {
+			ensure(CHUNK_HEADER_SIZE + 4);
+			chunkStart = buffer.position();
+			buffer.putInt(type);
+			buffer.putInt(0);
+		}
+
+		/** @return the payload length of the current chunk */
+		int getChunkLength() {
+			int length = buffer.position() - chunkStart - CHUNK_HEADER_SIZE;
+			buffer.putInt(chunkStart + 4, length);
+			return length;
+		}
+
+		/** @return the SHA-1 hash of the current chunk's payload */
+		byte[] getChunkHash() {
+			int payload = chunkStart + CHUNK_HEADER_SIZE;
+			byte[] data = buffer.array();
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-1");
+				digest.update(data, payload, buffer.position() - payload);
+				return digest.digest();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		static byte[] hash(byte[] data, int length) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-1");
+				digest.update(data, 0, length);
+				return digest.digest();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/** make sure that count more bytes fit into the buffer */
+		void ensure(int count) {
+			if (buffer.remaining() < count) {
+				int newCapacity = buffer.capacity() * 2;
+				while (newCapacity - buffer.position() < count) {
+					newCapacity *= 2;
+				}
+				ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+				buffer.flip();
+				newBuffer.put(buffer);
+				buffer = newBuffer;
+			}
+		}
+
+		void putBytes(byte[] bytes) {
+			int length = (bytes == null) ? 0 : bytes.length;
+			ensure(4 + length);
+			buffer.putInt(length);
+			if (length > 0) {
+				buffer.put(bytes);
+			}
+		}
+
+		void putString(String s) {
+			try {
+				putBytes(s.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException uee) {
+				throw new IllegalStateException(uee);
+			}
+		}
+
+		/** write the number of points, the times, and the values */
+		void putLane(AutomationLane lane) {
+			long[] times = new long[lane.getPointCount()];
+			float[] values = new float[times.length];
+			int count = lane.getPoints(times, values);
+			while (count > times.length) {
+				// points were added in the meantime
+				times = new long[count];
+				values = new float[count];
+				count = lane.getPoints(times, values);
+			}
+			ensure(4 + count * 12);
+			buffer.putInt(count);
+			buffer.asLongBuffer().put(times, 0, count);
+			buffer.position(buffer.position() + count * 8);
+			buffer.asFloatBuffer().put(values, 0, count);
+			buffer.position(buffer.position() + count * 4);
+		}
+
+		/** forget the current chunk */
+		void discard() {
+			buffer.clear();
+			chunkStart = -1;
+		}
+
+		/**
+		 * write the buffer to the channel and clear it
+		 *
+		 * @return the number of written bytes
+		 */
+		int write(FileChannel channel) throws IOException {
+			buffer.flip();
+			int ret = buffer.remaining();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+			chunkStart = -1;
+			return ret;
+		}
+	}
+}
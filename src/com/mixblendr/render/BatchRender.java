@@ -0,0 +1,278 @@
+/**
+ *
+ */
+package com.mixblendr.render;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mixblendr.audio.AudioPlayer;
+import com.mixblendr.audio.AudioState;
+import com.mixblendr.audio.OfflineRenderer;
+import com.mixblendr.audio.VorbisEncoder;
+import com.mixblendr.util.Debug;
+
+/**
+ * Command line tool for rendering a project offline to WAV or Ogg Vorbis
+ * files, e.g. on a server without sound card and without display. The project
+ * is read with ProjectReader, the output format is chosen by the extension
+ * of the output file. With several output files, the project is rendered
+ * once, and the files are encoded in parallel.
+ * <p>
+ * Usage: BatchRender [options] &lt;project file&gt; &lt;output file&gt;...
+ * <ul>
+ * <li>-start &lt;time&gt;: start of the rendered portion, default 0</li>
+ * <li>-end &lt;time&gt;: end of the rendered portion, default: end of the last
+ * region</li>
+ * <li>-tail &lt;time&gt;: added to the end, e.g. for the reverb tail</li>
+ * <li>-stems &lt;directory&gt;: also write every track to its own file in
+ * the directory, in the same pass, in the format of the first output
+ * file</li>
+ * <li>-preview &lt;file&gt;: also write a low quality Ogg Vorbis file</li>
+ * <li>-quality &lt;quality&gt;: Vorbis quality of the Ogg Vorbis output
+ * files, from -0.1 to 1.0</li>
+ * <li>-timeout &lt;seconds&gt;: maximum time for downloading the sources,
+ * default 300</li>
+ * <li>-v: verbose</li>
+ * </ul>
+ * Times are given like in the project file: in samples, or in seconds with
+ * the suffix s, or in beats with the suffix b. The exit code is 0 on success.
+ *
+ * @author Florian Bomers
+ */
+public class BatchRender {
+
+	private static final int DEFAULT_TIMEOUT_SECONDS = 300;
+
+	/**
+	 * Render the project file to the output file.
+	 *
+	 * @param project the project description file
+	 * @param output the output file, .ogg for Ogg Vorbis, otherwise WAV
+	 * @param start the start time, or null for the beginning
+	 * @param end the end time, or null for the end of the last region
+	 * @param tail the time added to the end, or null
+	 * @param timeoutMillis the maximum time for downloading the sources
+	 * @return the timing statistics
+	 */
+	public static OfflineRenderer.Statistics render(File project, File output,
+			String start, String end, String tail, long timeoutMillis)
+			throws Exception {
+		return render(project, new OfflineRenderer.Output[] {
+			createOutput(output)
+		}, null, start, end, tail, timeoutMillis);
+	}
+
+	/**
+	 * Render the project file to the output files, and optionally every track
+	 * to its own file, in one pass.
+	 *
+	 * @param project the project description file
+	 * @param outputs the output files for the mix
+	 * @param stemDir the directory for the track files in the format of the
+	 *            first output file, or null to only render the mix
+	 * @param start the start time, or null for the beginning
+	 * @param end the end time, or null for the end of the last region
+	 * @param tail the time added to the end, or null
+	 * @param timeoutMillis the maximum time for downloading the sources
+	 * @return the timing statistics
+	 */
+	public static OfflineRenderer.Statistics render(File project,
+			OfflineRenderer.Output[] outputs, File stemDir, String start,
+			String end, String tail, long timeoutMillis) throws Exception {
+		InputStream is = new FileInputStream(project);
+		try {
+			return render(is, project.getAbsoluteFile().getParentFile(),
+					outputs, stemDir, start, end, tail, timeoutMillis);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Render a project description to the output file, using a new player.
+	 *
+	 * @param project the project description
+	 * @param baseDir the directory for resolving relative file names
+	 * @param output the output file, .ogg for Ogg Vorbis, otherwise WAV
+	 * @param start the start time, or null for the beginning
+	 * @param end the end time, or null for the end of the last region
+	 * @param tail the time added to the end, or null
+	 * @param timeoutMillis the maximum time for downloading the sources
+	 * @return the timing statistics
+	 */
+	public static OfflineRenderer.Statistics render(InputStream project,
+			File baseDir, File output, String start, String end, String tail,
+			long timeoutMillis) throws Exception {
+		return render(project, baseDir, new OfflineRenderer.Output[] {
+			createOutput(output)
+		}, null, start, end, tail, timeoutMillis);
+	}
+
+	/**
+	 * Render a project description to the output files, and optionally every
+	 * track to its own file, in one pass, using a new player.
+	 *
+	 * @param project the project description
+	 * @param baseDir the directory for resolving relative file names
+	 * @param outputs the output files for the mix
+	 * @param stemDir the directory for the track files in the format of the
+	 *            first output file, or null to only render the mix
+	 * @param start the start time, or null for the beginning
+	 * @param end the end time, or null for the end of the last region
+	 * @param tail the time added to the end, or null
+	 * @param timeoutMillis the maximum time for downloading the sources
+	 * @return the timing statistics
+	 */
+	public static OfflineRenderer.Statistics render(InputStream project,
+			File baseDir, OfflineRenderer.Output[] outputs, File stemDir,
+			String start, String end, String tail, long timeoutMillis)
+			throws Exception {
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			AudioState state = player.getState();
+			new ProjectReader(player, baseDir).load(project);
+			OfflineRenderer renderer = new OfflineRenderer(player);
+			renderer.waitForDownloads(timeoutMillis);
+			long startSample = 0;
+			long endSample = renderer.getEndSamples();
+			if (start != null) {
+				startSample = ProjectReader.parseTime(state, start);
+			}
+			if (end != null) {
+				endSample = ProjectReader.parseTime(state, end);
+			}
+			if (tail != null) {
+				endSample += ProjectReader.parseTime(state, tail);
+			}
+			if (stemDir != null) {
+				stemDir.mkdirs();
+				OfflineRenderer.Output first = outputs[0];
+				File[] files = renderer.getStemFiles(stemDir, first.getType());
+				OfflineRenderer.Output[] stems = new OfflineRenderer.Output[files.length];
+				for (int i = 0; i < files.length; i++) {
+					stems[i] = new OfflineRenderer.Output(files[i],
+							first.getType(), first.getQuality());
+				}
+				return renderer.render(startSample, endSample, stems, outputs);
+			}
+			return renderer.render(startSample, endSample, outputs);
+		} finally {
+			player.close();
+		}
+	}
+
+	/**
+	 * @return an output with the type for the file name extension, and the
+	 *         default quality
+	 */
+	private static OfflineRenderer.Output createOutput(File file) {
+		return new OfflineRenderer.Output(file, OfflineRenderer.getType(file));
+	}
+
+	/**
+	 * @param args [options] &lt;project file&gt; &lt;output file&gt;...
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		String start = null;
+		String end = null;
+		String tail = null;
+		File stemDir = null;
+		File preview = null;
+		float quality = VorbisEncoder.DEFAULT_QUALITY;
+		long timeout = DEFAULT_TIMEOUT_SECONDS * 1000L;
+		File project = null;
+		List<File> files = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("-start")) {
+					start = args[++i];
+				} else if (arg.equals("-end")) {
+					end = args[++i];
+				} else if (arg.equals("-tail")) {
+					tail = args[++i];
+				} else if (arg.equals("-stems")) {
+					stemDir = new File(args[++i]);
+				} else if (arg.equals("-preview")) {
+					preview = new File(args[++i]);
+				} else if (arg.equals("-quality")) {
+					quality = Float.parseFloat(args[++i]);
+				} else if (arg.equals("-timeout")) {
+					timeout = (long) (Double.parseDouble(args[++i]) * 1000);
+				} else if (arg.equals("-v")) {
+					Debug.DEBUG = true;
+				} else if (arg.startsWith("-")) {
+					usage("unknown option: " + arg);
+				} else if (project == null) {
+					project = new File(arg);
+				} else {
+					files.add(new File(arg));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage("missing value for " + args[args.length - 1]);
+		} catch (NumberFormatException e) {
+			usage("illegal number: " + e.getMessage());
+		}
+		if (files.isEmpty()) {
+			usage(null);
+		}
+		List<OfflineRenderer.Output> outputs = new ArrayList<OfflineRenderer.Output>();
+		for (File f : files) {
+			outputs.add(new OfflineRenderer.Output(f,
+					OfflineRenderer.getType(f), quality));
+		}
+		if (preview != null) {
+			outputs.add(new OfflineRenderer.Output(preview,
+					OfflineRenderer.OGG_PREVIEW));
+		}
+		int exitCode = 0;
+		try {
+			long startNanos = System.nanoTime();
+			OfflineRenderer.Statistics stats = render(project,
+					outputs.toArray(new OfflineRenderer.Output[outputs.size()]),
+					stemDir, start, end, tail, timeout);
+			out("Rendered " + outputs + ": " + stats);
+			out("Total time: " + ((System.nanoTime() - startNanos) / 1000000)
+					+ "ms");
+		} catch (Throwable t) {
+			out("Error: " + t.getMessage());
+			if (Debug.DEBUG) {
+				t.printStackTrace();
+			}
+			exitCode = 1;
+		}
+		// the download threads do not terminate by themselves
+		System.exit(exitCode);
+	}
+
+	private static void usage(String error) {
+		if (error != null) {
+			out("Error: " + error);
+		}
+		out("Usage: BatchRender [options] <project file> <output file>...");
+		out("  -start <time>       start of the rendered portion, default 0");
+		out("  -end <time>         end of the rendered portion, default: end of the last region");
+		out("  -tail <time>        time added to the end, e.g. for a reverb tail");
+		out("  -stems <directory>  also write every track to a file in the directory");
+		out("  -preview <file>     also write a low quality Ogg Vorbis file");
+		out("  -quality <quality>  Vorbis quality of the output files, -0.1 to 1.0, default "
+				+ VorbisEncoder.DEFAULT_QUALITY);
+		out("  -timeout <seconds>  maximum time for downloading the sources, default "
+				+ DEFAULT_TIMEOUT_SECONDS);
+		out("  -v                  verbose");
+		out("Times are in samples, or in seconds with suffix s, or in beats with suffix b.");
+		out("The output format is Ogg Vorbis for *.ogg files, WAV otherwise.");
+		System.exit(2);
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
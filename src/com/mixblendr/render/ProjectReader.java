@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package com.mixblendr.render;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.StringTokenizer;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.effects.ConvolutionReverb;
+import com.mixblendr.effects.Delay;
+import com.mixblendr.effects.Delay2;
+import com.mixblendr.effects.Flanger;
+import com.mixblendr.skin.ParseException;
+
+/**
+ * Reads a project description in text form and creates the tracks, regions
+ * and effects in an AudioPlayer. Example:
+ *
+ * <pre>
+ * # global settings
+ * tempo 62.5
+ *
+ * [track Bass]
+ * volume 0.8
+ * balance -0.2
+ * effect Delay
+ * region sounds/Bass1.ogg 0
+ * region sounds/Bass2.ogg 4b
+ * region http://www.example.com/Bass3.ogg 8b 2b 1.5s
+ * </pre>
+ *
+ * A region is defined by its source, start time, and optionally its duration
+ * and the offset in the audio file. Times are in samples, or in seconds with
+ * the suffix &quot;s&quot;, or in beats with the suffix &quot;b&quot;. Sources
+ * are URLs or file names relative to the base directory. Effects are
+ * identified by their short name or class name. A track can be muted with
+ * the line &quot;mute&quot;.
+ *
+ * @author Florian Bomers
+ */
+public class ProjectReader {
+
+	private static final boolean TRACE = false;
+
+	/** the effects that can be used in a project */
+	@SuppressWarnings("unchecked")
+	public static final Class<? extends AudioEffect>[] EFFECT_CLASSES = (Class<? extends AudioEffect>[]) new Class<?>[] {
+			Delay.class, Flanger.class, Delay2.class, ConvolutionReverb.class
+	};
+
+	private AudioPlayer player;
+
+	private File baseDir;
+
+	/**
+	 * Create a reader that adds the project to the player.
+	 *
+	 * @param player the initialized player
+	 * @param baseDir the directory for resolving relative file names
+	 */
+	public ProjectReader(AudioPlayer player, File baseDir) {
+		this.player = player;
+		this.baseDir = baseDir;
+	}
+
+	/**
+	 * Read the project file and add its tracks to the player. The player's
+	 * mixer is not cleared before.
+	 *
+	 * @param file the project file, relative sources are resolved relative
+	 *            to its directory
+	 */
+	public static void load(AudioPlayer player, File file)
+			throws ParseException, IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			new ProjectReader(player, file.getAbsoluteFile().getParentFile()).load(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Parse the project description and add its tracks to the player.
+	 *
+	 * @param is the project description
+	 * @throws ParseException when a parse error occurs
+	 * @throws IOException when reading the stream fails
+	 */
+	public void load(InputStream is) throws ParseException, IOException {
+		LineNumberReader input = new LineNumberReader(new InputStreamReader(is,
+				"UTF-8"));
+		AudioState state = player.getState();
+		AudioTrack track = null;
+		String line;
+		while ((line = input.readLine()) != null) {
+			line = line.trim();
+			int lineNumber = input.getLineNumber() - 1;
+			if (TRACE) debug("->" + line);
+			int len = line.length();
+			if (len == 0 || line.charAt(0) == '#') {
+				continue;
+			}
+			if (line.charAt(0) == '[') {
+				if (len < 2 || line.charAt(len - 1) != ']') {
+					throw new ParseException(lineNumber,
+							"illegal section syntax");
+				}
+				String section = line.substring(1, len - 1).trim();
+				if (!section.equals("track") && !section.startsWith("track ")) {
+					throw new ParseException(lineNumber, "unknown section: "
+							+ section);
+				}
+				track = player.addAudioTrack();
+				String name = section.substring(5).trim();
+				if (name.length() > 0) {
+					track.setName(name);
+				}
+				continue;
+			}
+			StringTokenizer st = new StringTokenizer(line);
+			String key = st.nextToken();
+			String value = line.substring(key.length()).trim();
+			if (key.equals("tempo")) {
+				player.setTempo(parseDouble(lineNumber, value));
+				continue;
+			}
+			if (track == null) {
+				throw new ParseException(lineNumber,
+						"unexpected statement outside of a track: " + key);
+			}
+			if (key.equals("volume")) {
+				track.setVolume(parseDouble(lineNumber, value));
+			} else if (key.equals("balance")) {
+				track.setBalance(parseDouble(lineNumber, value));
+			} else if (key.equals("mute")) {
+				track.setMute(true);
+			} else if (key.equals("effect")) {
+				AudioEffect effect = createEffect(lineNumber, value);
+				effect.init(state, player, track);
+				track.addEffect(effect);
+			} else if (key.equals("region")) {
+				if (!st.hasMoreTokens()) {
+					throw new ParseException(lineNumber, "missing region source");
+				}
+				AudioFile af = getAudioFile(lineNumber, st.nextToken());
+				long start = 0;
+				long duration = -1;
+				if (st.hasMoreTokens()) {
+					start = parseTime(lineNumber, st.nextToken());
+				}
+				if (st.hasMoreTokens()) {
+					duration = parseTime(lineNumber, st.nextToken());
+				}
+				AudioRegion region = track.addRegion(af, start, duration);
+				if (st.hasMoreTokens()) {
+					region.setAudioFileOffset(parseTime(lineNumber,
+							st.nextToken()));
+				}
+			} else {
+				throw new ParseException(lineNumber, "unknown statement: " + key);
+			}
+		}
+	}
+
+	/** get the audio file from the factory, for a URL or a file name */
+	private AudioFile getAudioFile(int lineNumber, String source)
+			throws ParseException, IOException {
+		if (source.indexOf("://") > 0) {
+			try {
+				return player.getFactory().getAudioFile(new URL(source));
+			} catch (MalformedURLException mue) {
+				throw new ParseException(lineNumber, "illegal URL: " + source,
+						mue);
+			}
+		}
+		File file = new File(source);
+		if (!file.isAbsolute() && baseDir != null) {
+			file = new File(baseDir, source);
+		}
+		if (!file.exists()) {
+			throw new ParseException(lineNumber, "file not found: " + file);
+		}
+		return player.getFactory().getAudioFile(file);
+	}
+
+	/** create an effect by its short name or class name */
+	private static AudioEffect createEffect(int lineNumber, String name)
+			throws ParseException {
+		for (Class<? extends AudioEffect> c : EFFECT_CLASSES) {
+			try {
+				AudioEffect effect = c.getDeclaredConstructor().newInstance();
+				if (name.equalsIgnoreCase(effect.getShortName())
+						|| name.equals(c.getSimpleName())
+						|| name.equals(c.getName())) {
+					return effect;
+				}
+			} catch (Exception e) {
+				throw new ParseException(lineNumber, "cannot create effect "
+						+ c.getName(), e);
+			}
+		}
+		throw new ParseException(lineNumber, "unknown effect: " + name);
+	}
+
+	/** parse a time, see parseTime(AudioState, String) */
+	private long parseTime(int lineNumber, String s) throws ParseException {
+		try {
+			return parseTime(player.getState(), s);
+		} catch (NumberFormatException nfe) {
+			throw new ParseException(lineNumber, "illegal time: " + s);
+		}
+	}
+
+	/**
+	 * Parse a time in samples, or in seconds with the suffix s, or in beats
+	 * with the suffix b.
+	 *
+	 * @return the time in samples
+	 * @throws NumberFormatException if the time cannot be parsed
+	 */
+	static long parseTime(AudioState state, String s) {
+		if (s.endsWith("s")) {
+			return state.seconds2sample(Double.parseDouble(s.substring(0,
+					s.length() - 1)));
+		}
+		if (s.endsWith("b")) {
+			return state.beat2sample(Double.parseDouble(s.substring(0,
+					s.length() - 1)));
+		}
+		return Long.parseLong(s);
+	}
+
+	private static double parseDouble(int lineNumber, String s)
+			throws ParseException {
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException nfe) {
+			throw new ParseException(lineNumber, "illegal number: " + s);
+		}
+	}
+
+}
@@ -0,0 +1,827 @@
+/**
+ *
+ */
+package com.mixblendr.render;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.mixblendr.audio.OfflineRenderer;
+import com.mixblendr.util.Debug;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP service for rendering projects on the server, using the JDK's
+ * built-in HTTP server. Clients post a project description (see
+ * ProjectReader), the render job is queued, and rendered by one of the worker
+ * threads with the offline engine. The encoded file is stored until it is
+ * fetched, or streamed back directly.
+ * <p>
+ * Requests:
+ * <ul>
+ * <li>POST /render: queue a render job, the body is the project description.
+ * Query parameters: tenant, format (ogg or wav, default ogg), start, end,
+ * tail (times as in ProjectReader), wait (if true, the response is the
+ * rendered file). Returns 202 with the job status, 429 if the tenant has too
+ * many queued jobs, 503 if the queue is full, 413 if the project is too
+ * large.</li>
+ * <li>GET /jobs/&lt;id&gt;: the status and timing of a job.</li>
+ * <li>GET /jobs/&lt;id&gt;/output: the rendered file, 409 if the job is not
+ * done.</li>
+ * <li>DELETE /jobs/&lt;id&gt;: remove a finished job and its file, or cancel
+ * a queued job.</li>
+ * <li>GET /status: the state of the queue and the workers.</li>
+ * </ul>
+ * Status responses are text in the properties format (key=value lines).
+ * <p>
+ * Admission control: the total number of queued jobs and the number of queued
+ * jobs per tenant are limited, and a tenant can only render a limited number
+ * of jobs at the same time, so that one tenant cannot block the others.
+ * <p>
+ * Usage: RenderServer [options]
+ * <ul>
+ * <li>-port &lt;port&gt;: the port, default 8765</li>
+ * <li>-public: listen on all interfaces, not only on the loopback interface</li>
+ * <li>-workers &lt;n&gt;: the number of render threads, default: number of
+ * processors</li>
+ * <li>-queue &lt;n&gt;: the maximum number of queued jobs</li>
+ * <li>-tenant-queue &lt;n&gt;: the maximum number of queued jobs per
+ * tenant</li>
+ * <li>-tenant-running &lt;n&gt;: the maximum number of jobs of a tenant
+ * rendered at the same time</li>
+ * <li>-dir &lt;directory&gt;: the directory for the rendered files, default:
+ * a temporary directory</li>
+ * <li>-base &lt;directory&gt;: the directory for resolving relative file
+ * names in the projects, default: the current directory</li>
+ * <li>-v: verbose</li>
+ * </ul>
+ *
+ * @author Florian Bomers
+ */
+public class RenderServer {
+
+	private static final boolean DEBUG_SERVER = false;
+
+	public static final int DEFAULT_PORT = 8765;
+
+	/** the tenant used if the request does not specify one */
+	public static final String DEFAULT_TENANT = "default";
+
+	/** the maximum size of a project description in bytes */
+	public static final int MAX_PROJECT_BYTES = 1024 * 1024;
+
+	/** the number of finished jobs kept for fetching the output */
+	public static final int MAX_FINISHED_JOBS = 100;
+
+	/** the number of threads handling HTTP requests */
+	private static final int HTTP_THREADS = 8;
+
+	/** the states of a job */
+	public enum State {
+		QUEUED, RENDERING, DONE, FAILED, CANCELED
+	}
+
+	private InetSocketAddress address;
+
+	private File outputDir;
+
+	private File baseDir;
+
+	private int workerCount = Runtime.getRuntime().availableProcessors();
+
+	private int maxQueuedJobs = 64;
+
+	private int maxQueuedJobsPerTenant = 8;
+
+	private int maxRunningJobsPerTenant = 2;
+
+	private long downloadTimeoutMillis = 300000;
+
+	private HttpServer server;
+
+	private ExecutorService httpExecutor;
+
+	private List<Worker> workers = new ArrayList<Worker>();
+
+	/** the queued jobs in order of submission. Lock for all job state. */
+	private final List<Job> queue = new ArrayList<Job>();
+
+	/** all jobs by id, in order of submission */
+	private Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+	/** the finished jobs, in order of completion */
+	private LinkedList<Job> finished = new LinkedList<Job>();
+
+	/** the number of rendering jobs per tenant */
+	private Map<String, Integer> running = new HashMap<String, Integer>();
+
+	private int jobCounter = 0;
+
+	private long submittedJobs = 0;
+
+	private long rejectedJobs = 0;
+
+	private long completedJobs = 0;
+
+	private long failedJobs = 0;
+
+	private boolean stopped = false;
+
+	/**
+	 * Create a render server. Call start() to start it.
+	 *
+	 * @param address the address to listen on, e.g. the loopback address
+	 * @param outputDir the directory for the rendered files
+	 * @param baseDir the directory for resolving relative file names in the
+	 *            projects
+	 */
+	public RenderServer(InetSocketAddress address, File outputDir, File baseDir) {
+		this.address = address;
+		this.outputDir = outputDir;
+		this.baseDir = baseDir;
+	}
+
+	/** set the number of render threads, before calling start() */
+	public void setWorkerCount(int workerCount) {
+		this.workerCount = workerCount;
+	}
+
+	/** set the maximum number of queued jobs of all tenants */
+	public void setMaxQueuedJobs(int maxQueuedJobs) {
+		this.maxQueuedJobs = maxQueuedJobs;
+	}
+
+	/** set the maximum number of queued jobs of one tenant */
+	public void setMaxQueuedJobsPerTenant(int maxQueuedJobsPerTenant) {
+		this.maxQueuedJobsPerTenant = maxQueuedJobsPerTenant;
+	}
+
+	/** set the maximum number of jobs of one tenant rendered at a time */
+	public void setMaxRunningJobsPerTenant(int maxRunningJobsPerTenant) {
+		this.maxRunningJobsPerTenant = maxRunningJobsPerTenant;
+	}
+
+	/** set the maximum time for downloading the sources of a project */
+	public void setDownloadTimeout(long millis) {
+		this.downloadTimeoutMillis = millis;
+	}
+
+	/**
+	 * Start listening and start the render threads.
+	 *
+	 * @throws IOException if the server cannot listen on the address
+	 */
+	public synchronized void start() throws IOException {
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			throw new IOException("cannot create directory " + outputDir);
+		}
+		server = HttpServer.create(address, 0);
+		server.createContext("/render", new RenderHandler());
+		server.createContext("/jobs/", new JobHandler());
+		server.createContext("/status", new StatusHandler());
+		httpExecutor = Executors.newFixedThreadPool(HTTP_THREADS);
+		server.setExecutor(httpExecutor);
+		synchronized (queue) {
+			stopped = false;
+		}
+		for (int i = 0; i < workerCount; i++) {
+			Worker w = new Worker(i);
+			workers.add(w);
+			w.start();
+		}
+		server.start();
+		if (DEBUG) {
+			debug("RenderServer: listening on " + getAddress() + ", "
+					+ workerCount + " workers");
+		}
+	}
+
+	/**
+	 * Stop the server. Running jobs are finished, queued jobs are canceled.
+	 */
+	public synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		server.stop(0);
+		httpExecutor.shutdownNow();
+		synchronized (queue) {
+			stopped = true;
+			for (Job job : queue) {
+				job.finish(State.CANCELED, "server stopped");
+			}
+			queue.clear();
+			queue.notifyAll();
+		}
+		for (Worker w : workers) {
+			try {
+				w.join();
+			} catch (InterruptedException ie) {
+				break;
+			}
+		}
+		workers.clear();
+		server = null;
+	}
+
+	/** @return the address the server listens on, e.g. for the actual port */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	// JOB MANAGEMENT
+
+	/**
+	 * Queue a new render job.
+	 *
+	 * @param tenant the tenant submitting the job
+	 * @param project the project description
+	 * @param format &quot;ogg&quot; or &quot;wav&quot;
+	 * @param start the start time, or null
+	 * @param end the end time, or null
+	 * @param tail the time added to the end, or null
+	 * @return the queued job
+	 * @throws RejectedException if the job is not accepted
+	 */
+	Job submit(String tenant, byte[] project, String format, String start,
+			String end, String tail) throws RejectedException {
+		synchronized (queue) {
+			if (stopped) {
+				rejectedJobs++;
+				throw new RejectedException(503, "server stopped");
+			}
+			if (queue.size() >= maxQueuedJobs) {
+				rejectedJobs++;
+				throw new RejectedException(503, "too many queued jobs");
+			}
+			int tenantJobs = 0;
+			for (Job job : queue) {
+				if (job.tenant.equals(tenant)) {
+					tenantJobs++;
+				}
+			}
+			if (tenantJobs >= maxQueuedJobsPerTenant) {
+				rejectedJobs++;
+				throw new RejectedException(429, "too many queued jobs for "
+						+ tenant);
+			}
+			Job job = new Job(Integer.toString(++jobCounter), tenant, project);
+			job.output = new File(outputDir, "job-" + job.id + "." + format);
+			job.start = start;
+			job.end = end;
+			job.tail = tail;
+			queue.add(job);
+			jobs.put(job.id, job);
+			submittedJobs++;
+			queue.notifyAll();
+			if (DEBUG_SERVER) {
+				debug("RenderServer: queued job " + job.id + " of " + tenant
+						+ ", " + queue.size() + " jobs in queue");
+			}
+			return job;
+		}
+	}
+
+	/** @return the job, or null if not known */
+	Job getJob(String id) {
+		synchronized (queue) {
+			return jobs.get(id);
+		}
+	}
+
+	/**
+	 * Remove a job: cancel it if it is queued, delete its output if it is
+	 * finished.
+	 *
+	 * @return false if the job is rendering and cannot be removed
+	 */
+	boolean removeJob(Job job) {
+		synchronized (queue) {
+			if (job.state == State.RENDERING) {
+				return false;
+			}
+			if (queue.remove(job)) {
+				job.finish(State.CANCELED, "canceled");
+			}
+			finished.remove(job);
+			jobs.remove(job.id);
+		}
+		job.output.delete();
+		return true;
+	}
+
+	/**
+	 * Wait for a job that can be rendered now: the oldest job of a tenant
+	 * below its limit of running jobs.
+	 *
+	 * @return the job, or null if the server is stopped
+	 */
+	private Job takeJob() throws InterruptedException {
+		synchronized (queue) {
+			while (!stopped) {
+				for (int i = 0; i < queue.size(); i++) {
+					Job job = queue.get(i);
+					if (getRunning(job.tenant) < maxRunningJobsPerTenant) {
+						queue.remove(i);
+						running.put(job.tenant, getRunning(job.tenant) + 1);
+						job.state = State.RENDERING;
+						job.startMillis = System.currentTimeMillis();
+						return job;
+					}
+				}
+				queue.wait();
+			}
+			return null;
+		}
+	}
+
+	/** called by the worker when the job is done or failed */
+	private void jobFinished(Job job) {
+		List<Job> removed = new ArrayList<Job>();
+		synchronized (queue) {
+			int r = getRunning(job.tenant) - 1;
+			if (r > 0) {
+				running.put(job.tenant, r);
+			} else {
+				running.remove(job.tenant);
+			}
+			if (job.state == State.DONE) {
+				completedJobs++;
+			} else {
+				failedJobs++;
+			}
+			finished.add(job);
+			while (finished.size() > MAX_FINISHED_JOBS) {
+				Job old = finished.removeFirst();
+				jobs.remove(old.id);
+				removed.add(old);
+			}
+			// the tenant may have waiting jobs
+			queue.notifyAll();
+		}
+		for (Job old : removed) {
+			old.output.delete();
+		}
+	}
+
+	private int getRunning(String tenant) {
+		Integer r = running.get(tenant);
+		return (r == null) ? 0 : r;
+	}
+
+	/** @return the status of the server */
+	String getStatus() {
+		StringBuffer sb = new StringBuffer();
+		synchronized (queue) {
+			append(sb, "workers", workerCount);
+			append(sb, "queued", queue.size());
+			int total = 0;
+			for (int r : running.values()) {
+				total += r;
+			}
+			append(sb, "rendering", total);
+			append(sb, "maxQueuedJobs", maxQueuedJobs);
+			append(sb, "maxQueuedJobsPerTenant", maxQueuedJobsPerTenant);
+			append(sb, "maxRunningJobsPerTenant", maxRunningJobsPerTenant);
+			append(sb, "submitted", submittedJobs);
+			append(sb, "rejected", rejectedJobs);
+			append(sb, "completed", completedJobs);
+			append(sb, "failed", failedJobs);
+			for (Map.Entry<String, Integer> e : running.entrySet()) {
+				append(sb, "rendering." + e.getKey(), e.getValue());
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void append(StringBuffer sb, String key, Object value) {
+		sb.append(key).append('=').append(value).append('\n');
+	}
+
+	/** a render job */
+	static class Job {
+		final String id;
+		final String tenant;
+		byte[] project;
+		File output;
+		String start;
+		String end;
+		String tail;
+		volatile State state = State.QUEUED;
+		final long submitMillis = System.currentTimeMillis();
+		long startMillis;
+		long finishMillis;
+		String error;
+		OfflineRenderer.Statistics stats;
+
+		Job(String id, String tenant, byte[] project) {
+			this.id = id;
+			this.tenant = tenant;
+			this.project = project;
+		}
+
+		/** set the final state and wake up waiting request threads */
+		synchronized void finish(State newState, String newError) {
+			state = newState;
+			error = newError;
+			finishMillis = System.currentTimeMillis();
+			// not needed anymore
+			project = null;
+			notifyAll();
+		}
+
+		/** wait until the job is finished */
+		synchronized void waitFor() throws InterruptedException {
+			while (state == State.QUEUED || state == State.RENDERING) {
+				wait();
+			}
+		}
+
+		/** @return the status of the job */
+		synchronized String getStatus() {
+			StringBuffer sb = new StringBuffer();
+			append(sb, "id", id);
+			append(sb, "tenant", tenant);
+			append(sb, "state", state.toString().toLowerCase());
+			long now = System.currentTimeMillis();
+			if (state == State.QUEUED) {
+				append(sb, "queuedMillis", now - submitMillis);
+			} else if (startMillis > 0) {
+				append(sb, "queuedMillis", startMillis - submitMillis);
+			}
+			if (state == State.RENDERING) {
+				append(sb, "runningMillis", now - startMillis);
+			} else if (finishMillis > 0 && startMillis > 0) {
+				append(sb, "runningMillis", finishMillis - startMillis);
+			}
+			if (stats != null) {
+				append(sb, "durationMillis", round(stats.getDurationMillis()));
+				append(sb, "downloadMillis", round(stats.getDownloadMillis()));
+				append(sb, "renderMillis", round(stats.getRenderMillis()));
+				append(sb, "writeMillis", round(stats.getWriteMillis()));
+				append(sb, "maxSliceMillis", round(stats.getMaxSliceMillis()));
+				append(sb, "speedFactor", round(stats.getSpeedFactor()));
+				append(sb, "bytes", stats.getBytes());
+			}
+			if (state == State.DONE) {
+				append(sb, "output", "/jobs/" + id + "/output");
+			}
+			if (error != null) {
+				append(sb, "error", error.replace('\n', ' '));
+			}
+			return sb.toString();
+		}
+
+		private static double round(double d) {
+			return Math.round(d * 10) / 10.0;
+		}
+	}
+
+	/** thrown if a job is not accepted */
+	static class RejectedException extends Exception {
+		private static final long serialVersionUID = 0;
+
+		final int httpCode;
+
+		RejectedException(int httpCode, String message) {
+			super(message);
+			this.httpCode = httpCode;
+		}
+	}
+
+	/** a thread rendering the queued jobs */
+	private class Worker extends Thread {
+
+		Worker(int index) {
+			super("RenderWorker " + index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Job job;
+				try {
+					job = takeJob();
+				} catch (InterruptedException ie) {
+					break;
+				}
+				if (job == null) {
+					break;
+				}
+				render(job);
+				jobFinished(job);
+			}
+		}
+
+		private void render(Job job) {
+			if (DEBUG_SERVER) {
+				debug("RenderServer: rendering job " + job.id);
+			}
+			try {
+				OfflineRenderer.Statistics stats = BatchRender.render(
+						new ByteArrayInputStream(job.project), baseDir,
+						job.output, job.start, job.end, job.tail,
+						downloadTimeoutMillis);
+				synchronized (job) {
+					job.stats = stats;
+				}
+				job.finish(RenderServer.State.DONE, null);
+			} catch (Throwable t) {
+				if (DEBUG_SERVER) {
+					debug(t);
+				}
+				job.output.delete();
+				String msg = t.getMessage();
+				if (msg == null) {
+					msg = t.toString();
+				}
+				job.finish(RenderServer.State.FAILED, msg);
+			}
+		}
+	}
+
+	// HTTP HANDLING
+
+	/** handles POST /render */
+	private class RenderHandler implements HttpHandler {
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				if (!ex.getRequestMethod().equals("POST")) {
+					sendText(ex, 405, "use POST\n");
+					return;
+				}
+				Map<String, String> params = getParameters(ex);
+				String tenant = params.get("tenant");
+				if (tenant == null) {
+					tenant = DEFAULT_TENANT;
+				}
+				String format = params.get("format");
+				if (format == null) {
+					format = "ogg";
+				}
+				if (!format.equals("ogg") && !format.equals("wav")) {
+					sendText(ex, 400, "unsupported format: " + format + "\n");
+					return;
+				}
+				byte[] project = readBody(ex);
+				if (project == null) {
+					sendText(ex, 413, "project too large\n");
+					return;
+				}
+				Job job;
+				try {
+					job = submit(tenant, project, format, params.get("start"),
+							params.get("end"), params.get("tail"));
+				} catch (RejectedException re) {
+					ex.getResponseHeaders().set("Retry-After", "5");
+					sendText(ex, re.httpCode, re.getMessage() + "\n");
+					return;
+				}
+				if ("true".equals(params.get("wait"))) {
+					job.waitFor();
+					if (job.state == State.DONE) {
+						ex.getResponseHeaders().set("X-Job-Id", job.id);
+						sendFile(ex, job.output);
+					} else {
+						sendText(ex, 500, job.getStatus());
+					}
+					return;
+				}
+				ex.getResponseHeaders().set("Location", "/jobs/" + job.id);
+				sendText(ex, 202, job.getStatus());
+			} catch (InterruptedException ie) {
+				sendText(ex, 503, "interrupted\n");
+			} finally {
+				ex.close();
+			}
+		}
+	}
+
+	/** handles /jobs/&lt;id&gt; and /jobs/&lt;id&gt;/output */
+	private class JobHandler implements HttpHandler {
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				String path = ex.getRequestURI().getPath().substring(
+						"/jobs/".length());
+				boolean output = path.endsWith("/output");
+				if (output) {
+					path = path.substring(0, path.length() - "/output".length());
+				}
+				Job job = getJob(path);
+				if (job == null) {
+					sendText(ex, 404, "unknown job: " + path + "\n");
+					return;
+				}
+				String method = ex.getRequestMethod();
+				if (method.equals("DELETE") && !output) {
+					if (removeJob(job)) {
+						sendText(ex, 200, job.getStatus());
+					} else {
+						sendText(ex, 409, "job is rendering\n");
+					}
+				} else if (!method.equals("GET")) {
+					sendText(ex, 405, "use GET or DELETE\n");
+				} else if (!output) {
+					sendText(ex, 200, job.getStatus());
+				} else if (job.state != State.DONE) {
+					sendText(ex, 409, job.getStatus());
+				} else {
+					sendFile(ex, job.output);
+				}
+			} finally {
+				ex.close();
+			}
+		}
+	}
+
+	/** handles GET /status */
+	private class StatusHandler implements HttpHandler {
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				sendText(ex, 200, getStatus());
+			} finally {
+				ex.close();
+			}
+		}
+	}
+
+	/** @return the decoded query parameters */
+	private static Map<String, String> getParameters(HttpExchange ex)
+			throws UnsupportedEncodingException {
+		Map<String, String> ret = new HashMap<String, String>();
+		String query = ex.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String param : query.split("&")) {
+				int eq = param.indexOf('=');
+				if (eq > 0) {
+					ret.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+							URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/** @return the request body, or null if it is too large */
+	private static byte[] readBody(HttpExchange ex) throws IOException {
+		InputStream is = ex.getRequestBody();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = is.read(buffer)) > 0) {
+			if (bos.size() + n > MAX_PROJECT_BYTES) {
+				return null;
+			}
+			bos.write(buffer, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	private static void sendText(HttpExchange ex, int code, String text)
+			throws IOException {
+		byte[] bytes = text.getBytes("UTF-8");
+		ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		ex.sendResponseHeaders(code, bytes.length);
+		OutputStream os = ex.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+
+	private static void sendFile(HttpExchange ex, File file) throws IOException {
+		Headers headers = ex.getResponseHeaders();
+		if (file.getName().endsWith(".ogg")) {
+			headers.set("Content-Type", "audio/ogg");
+		} else {
+			headers.set("Content-Type", "audio/wav");
+		}
+		InputStream is;
+		try {
+			is = new FileInputStream(file);
+		} catch (FileNotFoundException fnfe) {
+			sendText(ex, 410, "the output was removed\n");
+			return;
+		}
+		try {
+			ex.sendResponseHeaders(200, file.length());
+			OutputStream os = ex.getResponseBody();
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				os.write(buffer, 0, n);
+			}
+			os.close();
+		} finally {
+			is.close();
+		}
+	}
+
+	// COMMAND LINE
+
+	/**
+	 * @param args see the class description
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int port = DEFAULT_PORT;
+		boolean pub = false;
+		File dir = null;
+		File base = new File(".");
+		RenderServer server;
+		Map<String, Integer> limits = new HashMap<String, Integer>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("-port")) {
+					port = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-public")) {
+					pub = true;
+				} else if (arg.equals("-dir")) {
+					dir = new File(args[++i]);
+				} else if (arg.equals("-base")) {
+					base = new File(args[++i]);
+				} else if (arg.equals("-workers") || arg.equals("-queue")
+						|| arg.equals("-tenant-queue")
+						|| arg.equals("-tenant-running")) {
+					limits.put(arg, Integer.parseInt(args[++i]));
+				} else if (arg.equals("-v")) {
+					Debug.DEBUG = true;
+				} else {
+					usage("unknown option: " + arg);
+				}
+			}
+			if (dir == null) {
+				dir = File.createTempFile("mixblendr-render", "");
+				dir.delete();
+			}
+			InetSocketAddress address;
+			if (pub) {
+				address = new InetSocketAddress(port);
+			} else {
+				address = new InetSocketAddress(InetAddress.getByName(null),
+						port);
+			}
+			server = new RenderServer(address, dir, base);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage("missing value for " + args[args.length - 1]);
+			return;
+		} catch (NumberFormatException e) {
+			usage("illegal number: " + e.getMessage());
+			return;
+		} catch (IOException e) {
+			usage(e.getMessage());
+			return;
+		}
+		if (limits.containsKey("-workers")) {
+			server.setWorkerCount(limits.get("-workers"));
+		}
+		if (limits.containsKey("-queue")) {
+			server.setMaxQueuedJobs(limits.get("-queue"));
+		}
+		if (limits.containsKey("-tenant-queue")) {
+			server.setMaxQueuedJobsPerTenant(limits.get("-tenant-queue"));
+		}
+		if (limits.containsKey("-tenant-running")) {
+			server.setMaxRunningJobsPerTenant(limits.get("-tenant-running"));
+		}
+		try {
+			server.start();
+		} catch (IOException e) {
+			out("Error: " + e.getMessage());
+			System.exit(1);
+		}
+		out("RenderServer listening on " + server.getAddress()
+				+ ", output directory " + dir);
+	}
+
+	private static void usage(String error) {
+		if (error != null) {
+			out("Error: " + error);
+		}
+		out("Usage: RenderServer [options]");
+		out("  -port <port>            the port, default " + DEFAULT_PORT);
+		out("  -public                 listen on all interfaces, not only on localhost");
+		out("  -workers <n>            the number of render threads");
+		out("  -queue <n>              the maximum number of queued jobs");
+		out("  -tenant-queue <n>       the maximum number of queued jobs per tenant");
+		out("  -tenant-running <n>     the maximum number of rendering jobs per tenant");
+		out("  -dir <directory>        the directory for the rendered files");
+		out("  -base <directory>       the directory for relative file names in projects");
+		out("  -v                      verbose");
+		System.exit(2);
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
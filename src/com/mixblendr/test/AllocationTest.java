@@ -0,0 +1,201 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.automation.AutomationPan;
+import com.mixblendr.automation.AutomationVolume;
+import com.mixblendr.effects.ConvolutionReverb;
+import com.mixblendr.effects.Delay;
+import com.mixblendr.effects.Delay2;
+import com.mixblendr.effects.Flanger;
+
+/**
+ * Renders a representative session (regions, automation, effects on tracks
+ * and on a bus, aux sends, looping) for a number of seconds and verifies that
+ * the rendering thread does not allocate any memory, using
+ * ThreadMXBean.getThreadAllocatedBytes(). Another thread changes effect
+ * parameters and the mix meanwhile, like the GUI does. The automation lanes
+ * of one track are only filled after the warmup, so that their first use is
+ * measured, too.
+ * <p>
+ * Usage: AllocationTest [seconds] [slice size in samples]
+ * <p>
+ * The exit code is 0 if no allocation was detected, 1 otherwise, so this test
+ * can be run by a build script.
+ * <p>
+ * Note that the HotSpot server compiler may allocate a few hundred bytes in
+ * the calling thread when it replaces compiled code, even after the warmup.
+ * For a reproducible result, run with -XX:TieredStopAtLevel=1 or -Xint.
+ *
+ * @author Florian Bomers
+ */
+public class AllocationTest {
+
+	/** the number of seconds to render before measuring */
+	private static final double WARMUP_SECONDS = 10;
+
+	private static final int TRACK_COUNT = 4;
+
+	/** the duration of the synthetic audio files */
+	private static final double FILE_SECONDS = 3;
+
+	/**
+	 * @param args [seconds] [slice size]
+	 */
+	public static void main(String[] args) throws Exception {
+		double seconds = 30;
+		int sliceSize = 441;
+		if (args.length > 0) {
+			seconds = Double.parseDouble(args[0]);
+		}
+		if (args.length > 1) {
+			sliceSize = Integer.parseInt(args[1]);
+		}
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+			out("This VM does not support measuring allocated memory per thread.");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean) mx;
+		tmx.setThreadAllocatedMemoryEnabled(true);
+
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		final AudioState state = player.getState();
+		final AudioMixer mixer = player.getMixer();
+		long beat = state.beat2sample(1);
+
+		// the session
+		final Delay delay = new Delay();
+		final Flanger flanger = new Flanger();
+		for (int t = 0; t < TRACK_COUNT; t++) {
+			AudioTrack track = new AudioTrack(state);
+			mixer.addTrack(track);
+			AudioFile af = new SynthAudioFile(state, "synth" + t, 110 * (t + 1),
+					FILE_SECONDS);
+			for (int r = 0; r < 8; r++) {
+				track.addRegion(af, r * 8 * beat + t * beat);
+			}
+			for (int b = 0; b < 64; b++) {
+				track.addAutomationObject(new AutomationVolume(state,
+						0.5 + 0.4 * ((b + t) % 2), b * beat + beat / 2));
+				track.addAutomationObject(new AutomationPan(state,
+						((b % 3) - 1) * 0.5, b * beat + beat / 3));
+			}
+			AudioEffect effect;
+			switch (t) {
+			case 0:
+				effect = delay;
+				break;
+			case 1:
+				effect = new Delay2();
+				break;
+			case 2:
+				effect = flanger;
+				break;
+			default:
+				effect = null;
+			}
+			if (effect != null) {
+				effect.init(state, player, track);
+				track.addEffect(effect);
+			}
+		}
+		AudioBus bus = player.addAudioBus();
+		ConvolutionReverb reverb = new ConvolutionReverb();
+		reverb.init(state, player, null);
+		bus.addEffect(reverb);
+		for (int t = 0; t < TRACK_COUNT; t++) {
+			mixer.setSendLevel(mixer.getTrack(t), bus, 0.3);
+		}
+		player.setLoopSamples(2 * beat, 28 * beat);
+		player.setLoopEnabled(true);
+
+		// simulate the GUI changing parameters while rendering
+		final boolean[] stop = new boolean[1];
+		Thread gui = new Thread("GUI Simulation") {
+			@Override
+			public void run() {
+				int i = 0;
+				while (!stop[0]) {
+					i++;
+					delay.setDelayTimeBeats((i % 4 + 1) / 8.0);
+					flanger.setDelayTimeMillis(2 + (i % 5));
+					mixer.getTrack(i % TRACK_COUNT).setVolume(0.5 + (i % 2) * 0.3);
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException ie) {
+						break;
+					}
+				}
+			}
+		};
+		gui.setDaemon(true);
+		gui.start();
+
+		FloatSampleBuffer buffer = new FloatSampleBuffer(state.getChannels(),
+				sliceSize, state.getSampleRate());
+		long warmupSlices = (long) (WARMUP_SECONDS * state.getSampleRate() / sliceSize);
+		long slices = (long) (seconds * state.getSampleRate() / sliceSize);
+		out("Rendering " + TRACK_COUNT + " tracks with slices of " + sliceSize
+				+ " samples for " + seconds + "s...");
+		// like the audio thread: events are dropped rather than allocated
+		AudioOutput.setRealtimeThread();
+		for (long i = 0; i < warmupSlices; i++) {
+			mixer.read(buffer);
+		}
+		AudioTrack laneTrack = mixer.getTrack(TRACK_COUNT - 1);
+		laneTrack.getVolumeLane().addPoint(2 * beat, 0.2f);
+		laneTrack.getVolumeLane().addPoint(20 * beat, 0.9f);
+		laneTrack.getBalanceLane().addPoint(4 * beat, -0.5f);
+		laneTrack.getBalanceLane().addPoint(24 * beat, 0.5f);
+		long threadID = Thread.currentThread().getId();
+		// the measurement itself may allocate: calibrate
+		long overhead = tmx.getThreadAllocatedBytes(threadID);
+		overhead = tmx.getThreadAllocatedBytes(threadID) - overhead;
+		long allocatingSlices = 0;
+		long firstAllocatingSlice = -1;
+		long total = 0;
+		long before = tmx.getThreadAllocatedBytes(threadID);
+		long startNanos = System.nanoTime();
+		for (long i = 0; i < slices; i++) {
+			mixer.read(buffer);
+			long now = tmx.getThreadAllocatedBytes(threadID);
+			long allocated = now - before - overhead;
+			if (allocated > 0) {
+				total += allocated;
+				allocatingSlices++;
+				if (firstAllocatingSlice < 0) {
+					firstAllocatingSlice = i;
+				}
+			}
+			before = now;
+		}
+		long renderMillis = (System.nanoTime() - startNanos) / 1000000;
+		stop[0] = true;
+		gui.join();
+		out("Rendered " + slices + " slices in " + renderMillis + "ms.");
+		if (total == 0) {
+			out("OK: no memory allocated in the render thread.");
+			System.exit(0);
+		}
+		out("FAILED: " + total + " bytes allocated in " + allocatingSlices
+				+ " slices, first allocation in slice " + firstAllocatingSlice
+				+ " at "
+				+ state.samples2timeTenthsString(firstAllocatingSlice
+						* sliceSize));
+		System.exit(1);
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.File;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.mixblendr.audio.*;
+
+/**
+ * Moves a region of an audio file that is larger than
+ * AudioFileFactory.MAX_RELEASED_BYTES to another track, like dragging it in
+ * the track panel, and verifies that the file is not closed and still
+ * provides its audio data, and that the factory does not create a second
+ * instance for the same file. Then removes the region, releases another file
+ * so that the large file is evicted and closed, adds the region again like
+ * undo, and verifies that the file is loaded again.
+ * <p>
+ * Usage: AudioFileReleaseTest [mem]
+ * <p>
+ * With "mem", in-memory files are used instead of temporary files. The exit
+ * code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class AudioFileReleaseTest {
+
+	private static final float SAMPLE_RATE = 44100;
+
+	private static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE,
+			16, 2, true, false);
+
+	/** the number of frames of the test file */
+	private static final long FRAMES = AudioFileFactory.MAX_RELEASED_BYTES
+			/ FORMAT.getFrameSize() + 10 * (long) SAMPLE_RATE;
+
+	private static int errors = 0;
+
+	/**
+	 * @param args [mem]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		File wav = File.createTempFile("AudioFileReleaseTest", ".wav");
+		AudioInputStream ais = new AudioInputStream(new SignalStream(),
+				FORMAT, FRAMES);
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, wav);
+		File small = File.createTempFile("AudioFileReleaseTest", ".wav");
+		ais = new AudioInputStream(new SignalStream(), FORMAT, 1000);
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, small);
+
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			AudioFileFactory factory = player.getFactory();
+			if (args.length > 0 && args[0].equals("mem")) {
+				factory.setUseOnlyMemFiles(true);
+			}
+			AudioFile af = factory.getAudioFile(wav);
+			AudioTrack track1 = player.addAudioTrack();
+			AudioTrack track2 = player.addAudioTrack();
+			AudioRegion region = track1.addRegion(af, 0);
+			waitForLoad(af, "initial download");
+			check(af.getAvailableBytes() > AudioFileFactory.MAX_RELEASED_BYTES,
+					"file larger than the released files cache");
+
+			// move to the other track, like TrackPanel
+			region.getOwner().removeObject(region);
+			region.setStartTimeSamples(1000);
+			track2.getPlaylist().addObject(region);
+			check(!af.isClosed(), "file open after moving");
+			check(af.isFullyLoaded(), "no new download after moving");
+			check(region.getAudioFile() == af, "region file after moving");
+			check(factory.getAudioFile(wav) == af,
+					"no new instance after moving");
+			checkData(af, "after moving");
+
+			// remove, and release a small file, so that the large file is
+			// evicted and closed
+			region.getOwner().removeObject(region);
+			check(af.getReferenceCount() == 0, "no references after removal");
+			AudioRegion smallRegion = track2.addRegion(
+					factory.getAudioFile(small), 0);
+			waitForLoad(smallRegion.getAudioFile(), "small file");
+			smallRegion.getOwner().removeObject(smallRegion);
+			check(af.isClosed(), "file closed after removal");
+			check(factory.getReleasedFileCount() == 1, "file evicted");
+
+			// add again, like undo
+			track1.getPlaylist().addObject(region);
+			waitForLoad(af, "after adding again");
+			check(!af.isClosed(), "file open after adding again");
+			check(factory.getAudioFile(wav) == af,
+					"no new instance after adding again");
+			check(factory.getOpenFiles().size() == 2, "two open files");
+			checkData(af, "after adding again");
+		} finally {
+			player.close();
+			wav.delete();
+			small.delete();
+		}
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	private static void waitForLoad(AudioFile af, String what)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		while (!af.isFullyLoaded()
+				&& System.currentTimeMillis() - start < 60000) {
+			Thread.sleep(20);
+		}
+		check(af.isFullyLoaded(), "loaded " + what);
+		out(what + ": loaded in " + (System.currentTimeMillis() - start)
+				+ "ms");
+	}
+
+	/** read portions of the file and compare with the signal */
+	private static void checkData(AudioFile af, String what) {
+		check(af.getAvailableSamples() == FRAMES, "length " + what);
+		float[] data = new float[1000];
+		for (long pos = 0; pos < FRAMES; pos += FRAMES / 7) {
+			for (int c = 0; c < 2; c++) {
+				int count = af.readChannelData(c, pos, data, 0, data.length);
+				if (count != Math.min(data.length, FRAMES - pos)) {
+					check(false, "read at " + pos + " " + what);
+					return;
+				}
+				for (int i = 0; i < count; i++) {
+					float expected = getSample(pos + i, c) / 32768f;
+					if (Math.abs(data[i] - expected) > 0.0001f) {
+						check(false, "sample " + (pos + i) + " " + what);
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/** @return the sample of the test signal: a sine per channel */
+	private static int getSample(long frame, int channel) {
+		return (int) (10000 * Math.sin(2 * Math.PI * (220 + 110 * channel)
+				* (frame % (long) SAMPLE_RATE) / SAMPLE_RATE));
+	}
+
+	/** generates the test signal, without holding it in memory */
+	private static class SignalStream extends InputStream {
+		private long pos = 0;
+
+		@Override
+		public int read() {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			long total = FRAMES * FORMAT.getFrameSize();
+			if (pos >= total) {
+				return -1;
+			}
+			if (len > total - pos) {
+				len = (int) (total - pos);
+			}
+			for (int i = 0; i < len; i++, pos++) {
+				int byteInFrame = (int) (pos % 4);
+				int s = getSample(pos / 4, byteInFrame / 2);
+				b[off + i] = (byte) ((byteInFrame % 2 == 0) ? s : (s >> 8));
+			}
+			return len;
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import com.mixblendr.audio.AutomationLane;
+
+/**
+ * Records control changes into an automation lane like the channel strip
+ * does while the user drags a fader, and verifies the recorded curve:
+ * <ul>
+ * <li>a sine drag is thinned to few points, which reproduce it within the
+ * tolerance;</li>
+ * <li>a drag that continues across a loop jump, i.e. a second pass over the
+ * same range in one tracking session, replaces the first pass;</li>
+ * <li>a drag that continues after a seek back keeps both passes.</li>
+ * </ul>
+ * Usage: AutomationRecordTest
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class AutomationRecordTest {
+
+	private static final float SAMPLE_RATE = 44100;
+
+	/** the number of control changes per second */
+	private static final int EVENTS_PER_SECOND = 300;
+
+	private static final int RAMP_SAMPLES = (int) (SAMPLE_RATE
+			* AutomationLane.CHANGE_RAMP_MILLIS / 1000);
+
+	private static int errors = 0;
+
+	/**
+	 * @param args not used
+	 */
+	public static void main(String[] args) {
+		checkSineDrag();
+		checkLoopedDrag();
+		checkSeekBack();
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/** a 20 second sine drag */
+	private static void checkSineDrag() {
+		AutomationLane lane = new AutomationLane();
+		float tolerance = lane.getRecordTolerance();
+		int step = (int) (SAMPLE_RATE / EVENTS_PER_SECOND);
+		long end = (long) (20 * SAMPLE_RATE);
+		lane.setTracking(true);
+		int changes = 0;
+		for (long t = 0; t <= end; t += step) {
+			lane.record(t, getSine(t), RAMP_SAMPLES);
+			changes++;
+		}
+		lane.setTracking(false);
+		float maxDeviation = 0;
+		for (long t = 0; t <= end; t += step) {
+			float d = Math.abs(lane.getValue(t) - getSine(t));
+			if (d > maxDeviation) {
+				maxDeviation = d;
+			}
+		}
+		out("sine drag: " + changes + " changes, " + lane.getPointCount()
+				+ " points, max deviation " + maxDeviation);
+		check(maxDeviation <= tolerance * 1.001f, "sine drag within tolerance");
+		check(lane.getPointCount() < changes / 10, "sine drag thinned");
+	}
+
+	/** @return the value of a slow sine at the given time */
+	private static float getSine(long time) {
+		return 0.5f + 0.4f * (float) Math.sin(2 * Math.PI * time
+				/ SAMPLE_RATE / 4);
+	}
+
+	/**
+	 * A drag at 0.2 from 1000 to 11000, then playback loops back to 1000 and
+	 * the drag continues at 0.9 to 11000, in one tracking session: the lane
+	 * must be 0.9 in the whole range.
+	 */
+	private static void checkLoopedDrag() {
+		AutomationLane lane = new AutomationLane();
+		lane.setTracking(true);
+		for (long t = 1000; t <= 11000; t += 100) {
+			lane.record(t, 0.2f, RAMP_SAMPLES);
+		}
+		for (long t = 1000; t <= 11000; t += 100) {
+			lane.record(t, 0.9f, RAMP_SAMPLES);
+		}
+		lane.setTracking(false);
+		out("looped drag: " + lane);
+		checkRange(lane, 1000, 11000, 0.9f, "looped drag");
+		checkSorted(lane, "looped drag");
+	}
+
+	/**
+	 * A drag at 0.3 from 20000 to 30000, then the user seeks back to 5000 and
+	 * the drag continues at 0.7 to 10000: both passes must be in the lane.
+	 */
+	private static void checkSeekBack() {
+		AutomationLane lane = new AutomationLane();
+		lane.setTracking(true);
+		for (long t = 20000; t <= 30000; t += 100) {
+			lane.record(t, 0.3f, RAMP_SAMPLES);
+		}
+		for (long t = 5000; t <= 10000; t += 100) {
+			lane.record(t, 0.7f, RAMP_SAMPLES);
+		}
+		lane.setTracking(false);
+		out("seek back: " + lane);
+		checkRange(lane, 5000, 10000, 0.7f, "seek back, second pass");
+		checkRange(lane, 20000, 30000, 0.3f, "seek back, first pass");
+		checkSorted(lane, "seek back");
+	}
+
+	private static void checkRange(AutomationLane lane, long from, long to,
+			float expected, String what) {
+		for (long t = from; t <= to; t += 10) {
+			if (lane.getValue(t) != expected) {
+				check(false, what + ": value " + lane.getValue(t) + " at " + t
+						+ ", expected " + expected);
+				return;
+			}
+		}
+	}
+
+	private static void checkSorted(AutomationLane lane, String what) {
+		for (int i = 1; i < lane.getPointCount(); i++) {
+			if (lane.getPointTime(i) <= lane.getPointTime(i - 1)) {
+				check(false, what + ": points not sorted at " + i);
+				return;
+			}
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mixblendr.audio.AudioState;
+import com.mixblendr.audio.SimpleEnvironment;
+import com.mixblendr.effects.ConvolutionReverb;
+import com.mixblendr.effects.PartitionedConvolver;
+import com.mixblendr.util.Debug;
+
+/**
+ * Simple app that measures the cost of the convolution reverb with 2 second
+ * and 6 second impulse responses at slices of 10 milliseconds. Every impulse
+ * response is measured twice:
+ * <ul>
+ * <li>in real time: one slice is processed per slice duration, like the
+ * render thread does, and the late partitions are calculated by the worker
+ * thread</li>
+ * <li>as fast as possible without worker thread, i.e. all partitions are
+ * calculated in the render thread</li>
+ * </ul>
+ * Usage: ConvolutionBenchmark [seconds per test] [slice size in
+ * milliseconds]
+ *
+ * @author Florian Bomers
+ */
+public class ConvolutionBenchmark {
+
+	private static final double[] IMPULSE_RESPONSE_SECONDS = {
+			2.0, 6.0
+	};
+
+	private AudioState state;
+
+	private float[][] input;
+
+	private float[][] output;
+
+	private double seconds;
+
+	private double sliceMillis;
+
+	private ConvolutionBenchmark(double seconds, double sliceMillis) {
+		Debug.DEBUG = false;
+		this.seconds = seconds;
+		state = new SimpleEnvironment().getState();
+		int sliceSize = (int) state.millis2sample(sliceMillis);
+		this.sliceMillis = state.sample2millis(sliceSize);
+		input = new float[state.getChannels()][sliceSize];
+		output = new float[state.getChannels()][sliceSize];
+		Random random = new Random(1);
+		for (float[] data : input) {
+			for (int i = 0; i < sliceSize; i++) {
+				data[i] = random.nextFloat() * 0.5f - 0.25f;
+			}
+		}
+	}
+
+	private PartitionedConvolver createConvolver(double irSeconds) {
+		float[][] ir = ConvolutionReverb.createSyntheticImpulseResponse(
+				irSeconds, state.getSampleRate(), state.getChannels());
+		return new PartitionedConvolver(state.getChannels(), ir,
+				ConvolutionReverb.PARTITION_SIZE,
+				ConvolutionReverb.EARLY_PARTITIONS);
+	}
+
+	/** process slices in real time, with the worker thread */
+	private void measureRealTime(double irSeconds) {
+		PartitionedConvolver conv = createConvolver(irSeconds);
+		conv.start();
+		int sliceSize = input[0].length;
+		long slicePeriod = (long) (sliceMillis * 1000000.0);
+		// warm up
+		for (int i = 0; i < 200; i++) {
+			conv.process(input, 0, output, 0, sliceSize);
+		}
+		int missedBefore = conv.getMissedDeadlines();
+		long workerBefore = conv.getWorkerNanos();
+		long slices = (long) (seconds * 1000000000.0 / slicePeriod);
+		long total = 0;
+		long max = 0;
+		long start = System.nanoTime();
+		long next = start;
+		for (long s = 0; s < slices; s++) {
+			long t0 = System.nanoTime();
+			conv.process(input, 0, output, 0, sliceSize);
+			long t = System.nanoTime() - t0;
+			total += t;
+			if (t > max) {
+				max = t;
+			}
+			next += slicePeriod;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		conv.close();
+		double renderLoad = ((double) total) / elapsed;
+		double workerLoad = ((double) (conv.getWorkerNanos() - workerBefore))
+				/ elapsed;
+		System.out.println(String.format(
+				"%4.1fs IR, real time:  render thread %6.3f ms/slice avg, %6.3f ms max, %5.2f%% CPU;"
+						+ " worker %5.2f%% CPU; %d missed deadlines",
+				irSeconds, total / 1000000.0 / slices, max / 1000000.0,
+				renderLoad * 100.0, workerLoad * 100.0,
+				conv.getMissedDeadlines() - missedBefore));
+	}
+
+	/** process slices as fast as possible, without the worker thread */
+	private void measureThroughput(double irSeconds) {
+		PartitionedConvolver conv = createConvolver(irSeconds);
+		int sliceSize = input[0].length;
+		for (int i = 0; i < 200; i++) {
+			conv.process(input, 0, output, 0, sliceSize);
+		}
+		long slices = 0;
+		long duration = (long) (seconds * 1000000000.0);
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 20; i++) {
+				conv.process(input, 0, output, 0, sliceSize);
+			}
+			slices += 20;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < duration);
+		double millisPerSlice = elapsed / 1000000.0 / slices;
+		System.out.println(String.format(
+				"%4.1fs IR, no worker:  %6.3f ms/slice, %5.2f%% CPU, %6.2f ns/sample",
+				irSeconds, millisPerSlice, millisPerSlice * 100.0 / sliceMillis,
+				elapsed / ((double) slices * sliceSize * input.length)));
+	}
+
+	/**
+	 * @param args optionally, the duration of each test in seconds and the
+	 *            slice size in milliseconds
+	 */
+	public static void main(String[] args) {
+		double seconds = 5.0;
+		double sliceMillis = 10.0;
+		if (args.length > 0) {
+			seconds = Double.parseDouble(args[0]);
+		}
+		if (args.length > 1) {
+			sliceMillis = Double.parseDouble(args[1]);
+		}
+		ConvolutionBenchmark bench = new ConvolutionBenchmark(seconds,
+				sliceMillis);
+		System.out.println("Slice: " + bench.sliceMillis + " ms = " + bench.input[0].length + " samples, "
+				+ bench.input.length + " channels; partition size "
+				+ ConvolutionReverb.PARTITION_SIZE + ", "
+				+ ConvolutionReverb.EARLY_PARTITIONS + " early partitions");
+		for (double irSeconds : IMPULSE_RESPONSE_SECONDS) {
+			bench.measureRealTime(irSeconds);
+			bench.measureThroughput(irSeconds);
+		}
+		System.exit(0);
+	}
+}
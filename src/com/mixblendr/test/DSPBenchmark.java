@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.awt.GraphicsEnvironment;
+import java.util.Random;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import com.mixblendr.audio.AudioEffect;
+import com.mixblendr.audio.AudioState;
+import com.mixblendr.audio.SimpleEnvironment;
+import com.mixblendr.effects.*;
+import com.mixblendr.util.Debug;
+
+/**
+ * Simple app that measures the cost per sample of the real-time DSP
+ * primitives, and of the Delay, Delay2 and Flanger effects which are built on
+ * them. The effects are windows, so they are only measured if a display is
+ * available.
+ * <p>
+ * Usage: DSPBenchmark [seconds per test]
+ *
+ * @author Florian Bomers
+ */
+public class DSPBenchmark {
+
+	/** a piece of code to measure, processing one block of samples */
+	private interface BlockProcessor {
+		void process(long samplePos, FloatSampleBuffer buffer);
+	}
+
+	private static final int WARMUP_BLOCKS = 2000;
+
+	private AudioState state;
+
+	private FloatSampleBuffer buffer;
+
+	private FloatSampleBuffer source;
+
+	private double seconds;
+
+	/** prevent the JIT from removing the primitive loops */
+	private float sink;
+
+	private DSPBenchmark(double seconds) {
+		Debug.DEBUG = false;
+		this.seconds = seconds;
+		state = new SimpleEnvironment().getState();
+		int sliceSize = state.getSliceSizeSamples();
+		source = new FloatSampleBuffer(state.getChannels(), sliceSize,
+				state.getSampleRate());
+		Random random = new Random(1);
+		for (int c = 0; c < source.getChannelCount(); c++) {
+			float[] data = source.getChannel(c);
+			for (int i = 0; i < sliceSize; i++) {
+				data[i] = random.nextFloat() * 0.5f - 0.25f;
+			}
+		}
+		buffer = new FloatSampleBuffer(state.getChannels(), sliceSize,
+				state.getSampleRate());
+	}
+
+	/** run the processor repeatedly and print the time per sample */
+	private void measure(String name, BlockProcessor proc) {
+		int sliceSize = buffer.getSampleCount();
+		long samplePos = 0;
+		for (int i = 0; i < WARMUP_BLOCKS; i++) {
+			source.copyTo(0, buffer, 0, sliceSize);
+			proc.process(samplePos, buffer);
+			samplePos += sliceSize;
+		}
+		long blocks = 0;
+		long duration = (long) (seconds * 1000000000.0);
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 100; i++) {
+				source.copyTo(0, buffer, 0, sliceSize);
+				proc.process(samplePos, buffer);
+				samplePos += sliceSize;
+			}
+			blocks += 100;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < duration);
+		double samples = ((double) blocks) * sliceSize
+				* buffer.getChannelCount();
+		double nsPerSample = elapsed / samples;
+		// the fraction of one CPU core needed for real time processing
+		double load = nsPerSample * buffer.getChannelCount()
+				* state.getSampleRate() / 1.0E9;
+		System.out.println(String.format("%-28s %8.2f ns/sample  %6.3f%% CPU",
+				name, nsPerSample, load * 100.0));
+	}
+
+	private void measurePrimitives() {
+		final int channels = state.getChannels();
+		final DelayLine dl = new DelayLine(channels, 88200);
+		final double delay = state.millis2sample(333.3);
+		measure("copy (reference)", new BlockProcessor() {
+			public void process(long samplePos, FloatSampleBuffer buf) {
+				// nothing, only measures copying the source
+			}
+		});
+		measure("linear interpolation", new BlockProcessor() {
+			public void process(long samplePos, FloatSampleBuffer buf) {
+				int mask = dl.getMask();
+				for (int c = 0; c < channels; c++) {
+					float[] delayData = dl.getChannel(c);
+					double readPos = dl.getReadPosition(delay);
+					float s = 0;
+					for (int i = 0; i < buf.getSampleCount(); i++) {
+						s += DSPUtils.interpolateLinear(delayData, mask,
+								readPos++);
+					}
+					sink += s;
+				}
+			}
+		});
+		measure("cubic interpolation", new BlockProcessor() {
+			public void process(long samplePos, FloatSampleBuffer buf) {
+				int mask = dl.getMask();
+				for (int c = 0; c < channels; c++) {
+					float[] delayData = dl.getChannel(c);
+					double readPos = dl.getReadPosition(delay);
+					float s = 0;
+					for (int i = 0; i < buf.getSampleCount(); i++) {
+						s += DSPUtils.interpolateCubic(delayData, mask,
+								readPos++);
+					}
+					sink += s;
+				}
+			}
+		});
+		final TableLFO lfo = new TableLFO(TableLFO.Waveform.SINE);
+		lfo.setFrequency(1.5, state.getSampleRate());
+		measure("table LFO", new BlockProcessor() {
+			public void process(long samplePos, FloatSampleBuffer buf) {
+				for (int c = 0; c < channels; c++) {
+					float[] data = buf.getChannel(c);
+					for (int i = 0; i < buf.getSampleCount(); i++) {
+						data[i] *= lfo.next();
+					}
+				}
+			}
+		});
+		final SmoothedParameter param = new SmoothedParameter(0,
+				(int) state.millis2sample(10));
+		measure("smoothed parameter", new BlockProcessor() {
+			public void process(long samplePos, FloatSampleBuffer buf) {
+				param.setTarget(((samplePos >> 12) & 1) == 0 ? 0.2 : 0.8);
+				float start = param.prepareBlock(buf.getSampleCount());
+				float inc = param.getIncrement();
+				for (int c = 0; c < channels; c++) {
+					float[] data = buf.getChannel(c);
+					float value = start;
+					for (int i = 0; i < buf.getSampleCount(); i++) {
+						data[i] *= value;
+						value += inc;
+					}
+				}
+			}
+		});
+		measure("feedback delay line", new BlockProcessor() {
+			public void process(long samplePos, FloatSampleBuffer buf) {
+				int mask = dl.getMask();
+				for (int c = 0; c < channels; c++) {
+					float[] delayData = dl.getChannel(c);
+					float[] data = buf.getChannel(c);
+					double readPos = dl.getReadPosition(delay);
+					int writePos = dl.getWriteIndex();
+					for (int i = 0; i < buf.getSampleCount(); i++) {
+						float d = DSPUtils.interpolateLinear(delayData, mask,
+								readPos++);
+						delayData[writePos] = DSPUtils.flushDenormal(d * 0.7f
+								+ data[i]);
+						data[i] += d;
+						writePos = (writePos + 1) & mask;
+					}
+				}
+				dl.advance(buf.getSampleCount());
+			}
+		});
+	}
+
+	private void measureEffect(String name, final AudioEffect effect) {
+		effect.init(state, null, null);
+		measure(name, new BlockProcessor() {
+			public void process(long samplePos, FloatSampleBuffer buf) {
+				effect.process(samplePos, buf, 0, buf.getSampleCount());
+			}
+		});
+		effect.exit();
+	}
+
+	private void measureEffects() {
+		if (GraphicsEnvironment.isHeadless()) {
+			System.out.println("(no display: effects are not measured)");
+			return;
+		}
+		measureEffect("Delay", new Delay());
+		measureEffect("Delay2", new Delay2());
+		measureEffect("Flanger", new Flanger());
+	}
+
+	/**
+	 * @param args optionally, the duration of each test in seconds
+	 */
+	public static void main(String[] args) {
+		double seconds = 2.0;
+		if (args.length > 0) {
+			seconds = Double.parseDouble(args[0]);
+		}
+		DSPBenchmark bench = new DSPBenchmark(seconds);
+		System.out.println("Block size: " + bench.buffer.getSampleCount()
+				+ " samples, " + bench.buffer.getChannelCount()
+				+ " channels, " + bench.state.getSampleRate() + " Hz");
+		bench.measurePrimitives();
+		bench.measureEffects();
+		if (bench.sink == 1.2345f) {
+			System.out.println();
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.effects.Delay;
+
+/**
+ * Renders a session in one pass to a WAV file, an Ogg Vorbis file, and a low
+ * quality Ogg Vorbis preview with OfflineRenderer.render(long, long,
+ * Output[]), and compares the time with rendering the three files one after
+ * the other. Verifies that the WAV file is the same as a WAV file rendered
+ * alone, and that the preview is smaller than the Ogg Vorbis file.
+ * <p>
+ * Usage: MultiFormatExportTest [seconds]
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class MultiFormatExportTest {
+
+	private static final int TRACK_COUNT = 8;
+
+	private static int errors = 0;
+
+	/**
+	 * @param args [seconds]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		double seconds = 20;
+		if (args.length > 0) {
+			seconds = Double.parseDouble(args[0]);
+		}
+		File dir = File.createTempFile("MultiFormatExportTest", "");
+		dir.delete();
+		dir.mkdirs();
+		File wav = new File(dir, "source.wav");
+		writeWave(wav);
+
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			AudioState state = player.getState();
+			AudioFile af = player.getFactory().getAudioFile(wav);
+			long beat = state.beat2sample(1);
+			long end = (long) (seconds * state.getSampleRate());
+			for (int t = 0; t < TRACK_COUNT; t++) {
+				AudioTrack track = player.addAudioTrack();
+				track.setVolume(0.2);
+				for (long pos = t * beat / 2; pos < end; pos += 2 * beat) {
+					track.addRegion(af, pos);
+				}
+				Delay delay = new Delay();
+				delay.init(state, player, track);
+				track.addEffect(delay);
+			}
+			OfflineRenderer renderer = new OfflineRenderer(player);
+			renderer.waitForDownloads(60000);
+
+			// the delay keeps its state from the previous render: render the
+			// WAV file last, so that it starts with the same state as the
+			// render in one pass
+			File[] single = new File[] {
+					new File(dir, "single.ogg"),
+					new File(dir, "single-preview.ogg"),
+					new File(dir, "single.wav")
+			};
+			int[] types = new int[] {
+					OfflineRenderer.OGG, OfflineRenderer.OGG_PREVIEW,
+					OfflineRenderer.WAV
+			};
+			long start = System.nanoTime();
+			for (int i = 0; i < single.length; i++) {
+				renderer.render(0, end, single[i], types[i]);
+			}
+			long sequentialMillis = millis(start);
+
+			OfflineRenderer.Output[] outputs = new OfflineRenderer.Output[single.length];
+			for (int i = 0; i < outputs.length; i++) {
+				outputs[i] = new OfflineRenderer.Output(new File(dir, "multi"
+						+ i), types[i]);
+			}
+			start = System.nanoTime();
+			OfflineRenderer.Statistics stats = renderer.render(0, end, outputs);
+			long multiMillis = millis(start);
+			out("One pass: " + stats);
+			out("3 files one after the other: " + sequentialMillis
+					+ "ms, in one pass: " + multiMillis + "ms");
+
+			check(Arrays.equals(read(single[2]), read(outputs[2].getFile())),
+					"WAV file equals the WAV file rendered alone");
+			for (int i = 0; i < 2; i++) {
+				byte[] data = read(outputs[i].getFile());
+				check(data.length > 1000
+						&& new String(data, 0, 4, "ISO-8859-1").equals("OggS"),
+						"Ogg file " + i);
+			}
+			long ogg = outputs[0].getFile().length();
+			long preview = outputs[1].getFile().length();
+			out("Ogg Vorbis: " + ogg + " bytes, preview: " + preview
+					+ " bytes");
+			check(preview < ogg, "preview is smaller");
+		} finally {
+			player.close();
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	private static byte[] read(File file) throws Exception {
+		byte[] ret = new byte[(int) file.length()];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			int pos = 0;
+			int n;
+			while (pos < ret.length
+					&& (n = fis.read(ret, pos, ret.length - pos)) > 0) {
+				pos += n;
+			}
+		} finally {
+			fis.close();
+		}
+		return ret;
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	/** write a 1 second 16-bit stereo WAV file with a decaying tone */
+	private static void writeWave(File file) throws Exception {
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		int frames = 44100;
+		byte[] data = new byte[frames * 4];
+		for (int i = 0; i < frames; i++) {
+			double t = i / 44100.0;
+			int s = (int) (Math.exp(-4 * t) * Math.sin(2 * Math.PI * 440 * t) * 10000);
+			for (int c = 0; c < 2; c++) {
+				data[i * 4 + c * 2] = (byte) s;
+				data[i * 4 + c * 2 + 1] = (byte) (s >> 8);
+			}
+		}
+		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(
+				data), format, frames);
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+	}
+
+	private static long millis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.zip.CRC32;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.automation.AutomationPan;
+import com.mixblendr.automation.AutomationVolume;
+import com.mixblendr.effects.Delay;
+
+/**
+ * Renders the same session in a number of independent players concurrently,
+ * each in its own thread, and verifies that every player renders exactly the
+ * same audio as a player rendering alone. The rendering jumps to different
+ * positions, so that the chasing of automation objects is exercised.
+ * <p>
+ * Usage: MultiSessionTest [players] [rounds]
+ * <p>
+ * The exit code is 0 if all players rendered the same audio, 1 otherwise.
+ *
+ * @author Florian Bomers
+ */
+public class MultiSessionTest {
+
+	private static final int TRACK_COUNT = 4;
+
+	/** the number of slices rendered after every jump */
+	private static final int SLICES_PER_JUMP = 200;
+
+	/** the positions to jump to, in beats */
+	private static final double[] JUMPS = {
+			0, 7.3, 2.5, 15.9, 0.2, 11.1
+	};
+
+	/**
+	 * @param args [players] [rounds]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		int playerCount = 16;
+		int rounds = 3;
+		if (args.length > 0) {
+			playerCount = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			rounds = Integer.parseInt(args[1]);
+		}
+		final File wav = File.createTempFile("MultiSessionTest", ".wav");
+		wav.deleteOnExit();
+		writeWave(wav);
+
+		long reference = render(wav);
+		out("Reference checksum: " + Long.toHexString(reference));
+
+		int errors = 0;
+		for (int r = 0; r < rounds; r++) {
+			final long[] results = new long[playerCount];
+			final Throwable[] exceptions = new Throwable[playerCount];
+			Thread[] threads = new Thread[playerCount];
+			long start = System.nanoTime();
+			for (int i = 0; i < playerCount; i++) {
+				final int index = i;
+				threads[i] = new Thread("Session " + i) {
+					@Override
+					public void run() {
+						try {
+							results[index] = render(wav);
+						} catch (Throwable t) {
+							exceptions[index] = t;
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			int roundErrors = 0;
+			for (int i = 0; i < playerCount; i++) {
+				if (exceptions[i] != null) {
+					out("Player " + i + ": " + exceptions[i]);
+					roundErrors++;
+				} else if (results[i] != reference) {
+					out("Player " + i + ": checksum "
+							+ Long.toHexString(results[i]) + " differs");
+					roundErrors++;
+				}
+			}
+			out("Round " + (r + 1) + ": " + playerCount + " players in "
+					+ ((System.nanoTime() - start) / 1000000) + "ms, "
+					+ roundErrors + " errors");
+			errors += roundErrors;
+		}
+		out(errors == 0 ? "OK" : "FAILED");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Create a player with the test session, render it with jumps, and close
+	 * it.
+	 *
+	 * @return the checksum of the rendered audio
+	 */
+	private static long render(File wav) throws Exception {
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			AudioState state = player.getState();
+			AudioFile af = player.getFactory().getAudioFile(wav);
+			long beat = state.beat2sample(1);
+			for (int t = 0; t < TRACK_COUNT; t++) {
+				AudioTrack track = player.addAudioTrack();
+				for (int r = 0; r < 8; r++) {
+					track.addRegion(af, r * 2 * beat + t * beat / 4);
+				}
+				for (int b = 0; b < 16; b++) {
+					track.addAutomationObject(new AutomationVolume(state,
+							0.2 + 0.1 * ((b * (t + 1)) % 7), b * beat + beat
+									/ 2));
+					track.addAutomationObject(new AutomationPan(state,
+							((b + t) % 3 - 1) * 0.7, b * beat + beat / 3));
+				}
+				if (t == 0) {
+					Delay delay = new Delay();
+					delay.init(state, player, track);
+					track.addEffect(delay);
+				}
+			}
+			new OfflineRenderer(player).waitForDownloads(60000);
+
+			AudioMixer mixer = player.getMixer();
+			FloatSampleBuffer buffer = new FloatSampleBuffer(
+					state.getChannels(), state.getSliceSizeSamples(),
+					state.getSampleRate());
+			byte[] bytes = new byte[buffer.getSampleCount() * 4
+					* buffer.getChannelCount()];
+			AudioFormat format = new AudioFormat(state.getSampleRate(), 32,
+					state.getChannels(), true, false);
+			CRC32 crc = new CRC32();
+			for (double jump : JUMPS) {
+				player.setPositionSamples(state.beat2sample(jump));
+				for (int s = 0; s < SLICES_PER_JUMP; s++) {
+					mixer.read(buffer);
+					int count = buffer.convertToByteArray(bytes, 0, format);
+					crc.update(bytes, 0, count);
+				}
+			}
+			return crc.getValue();
+		} finally {
+			player.close();
+		}
+	}
+
+	/** write a 2 second sine tone to a 16-bit stereo WAV file */
+	private static void writeWave(File file) throws Exception {
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		int frames = 88200;
+		byte[] data = new byte[frames * 4];
+		for (int i = 0; i < frames; i++) {
+			int v = (int) (Math.sin(2 * Math.PI * 220 * i / 44100.0) * 12000);
+			for (int c = 0; c < 2; c++) {
+				data[i * 4 + c * 2] = (byte) v;
+				data[i * 4 + c * 2 + 1] = (byte) (v >> 8);
+			}
+		}
+		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(
+				data), format, frames);
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
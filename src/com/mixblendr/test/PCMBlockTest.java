@@ -0,0 +1,265 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.tritonus.share.sampled.FloatSampleTools;
+
+import com.mixblendr.audio.AudioFile;
+import com.mixblendr.audio.AudioFileFactory;
+import com.mixblendr.audio.AudioPlayer;
+import com.mixblendr.audio.PCMBlockCodec;
+
+/**
+ * Round-trips 16-bit audio data through PCMBlockCodec, and through the block
+ * store of the memory and file based audio files, and verifies that the data
+ * is restored exactly: silence, full scale square waves, full scale noise, a
+ * sine, mono and stereo, little and big endian, and blocks with odd tails.
+ * Then measures the decoding speed and verifies that decoding is faster than
+ * realtime.
+ * <p>
+ * Usage: PCMBlockTest [seconds]
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class PCMBlockTest {
+
+	private static final float SAMPLE_RATE = 44100;
+
+	private static final int SILENCE = 0;
+
+	private static final int SQUARE = 1;
+
+	private static final int NOISE = 2;
+
+	private static final int SINE = 3;
+
+	private static final String[] SIGNAL_NAMES = {
+			"silence", "full scale square", "full scale noise", "sine"
+	};
+
+	/** the frame counts of the tested blocks, including odd tails */
+	private static final int[] BLOCK_SIZES = {
+			PCMBlockCodec.BLOCK_FRAMES, 1, 2, 3, 1001,
+			PCMBlockCodec.BLOCK_FRAMES - 1
+	};
+
+	private static int errors = 0;
+
+	/**
+	 * @param args [seconds]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		double seconds = 60;
+		if (args.length > 0) {
+			seconds = Double.parseDouble(args[0]);
+		}
+		// the codec
+		for (int channels = 1; channels <= 2; channels++) {
+			for (boolean bigEndian : new boolean[] {
+					false, true
+			}) {
+				AudioFormat format = new AudioFormat(SAMPLE_RATE, 16,
+						channels, true, bigEndian);
+				for (int signal = 0; signal < SIGNAL_NAMES.length; signal++) {
+					for (int frames : BLOCK_SIZES) {
+						checkCodec(format, signal, frames);
+					}
+				}
+			}
+		}
+
+		// the block stores, with a length that is not a multiple of the block
+		// size
+		File dir = File.createTempFile("PCMBlockTest", "");
+		dir.delete();
+		dir.mkdirs();
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			int frames = 3 * PCMBlockCodec.BLOCK_FRAMES + 77;
+			for (int channels = 1; channels <= 2; channels++) {
+				AudioFormat format = new AudioFormat(SAMPLE_RATE, 16,
+						channels, true, false);
+				for (int signal = 0; signal < SIGNAL_NAMES.length; signal++) {
+					byte[] data = createSignal(format, signal, frames);
+					for (boolean mem : new boolean[] {
+							true, false
+					}) {
+						// a new file for every store, the factory re-uses
+						// the audio files for the same source
+						File wav = new File(dir, (mem ? "mem" : "file")
+								+ channels + "_" + signal + ".wav");
+						writeWave(wav, format, data);
+						checkStore(player.getFactory(), wav, mem, format, data);
+					}
+				}
+			}
+		} finally {
+			player.close();
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+
+		// decoding speed
+		AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 2, true, false);
+		PCMBlockCodec codec = new PCMBlockCodec(format);
+		int blockCount = (int) (seconds * SAMPLE_RATE
+				/ PCMBlockCodec.BLOCK_FRAMES) + 1;
+		byte[] pcm = createSignal(format, NOISE, PCMBlockCodec.BLOCK_FRAMES);
+		byte[] coded = new byte[codec
+				.getMaxEncodedSize(PCMBlockCodec.BLOCK_FRAMES)];
+		codec.encode(pcm, 0, PCMBlockCodec.BLOCK_FRAMES, coded, 0);
+		byte[] decoded = new byte[pcm.length];
+		// warm up
+		for (int i = 0; i < blockCount; i++) {
+			codec.decode(coded, 0, decoded, 0, PCMBlockCodec.BLOCK_FRAMES);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < blockCount; i++) {
+			codec.decode(coded, 0, decoded, 0, PCMBlockCodec.BLOCK_FRAMES);
+		}
+		long nanos = System.nanoTime() - start;
+		double audioNanos = blockCount * PCMBlockCodec.BLOCK_FRAMES
+				* 1000000000.0 / SAMPLE_RATE;
+		double factor = audioNanos / nanos;
+		out("decoded " + (blockCount * PCMBlockCodec.BLOCK_FRAMES / SAMPLE_RATE)
+				+ "s of stereo noise in " + (nanos / 1000000) + "ms: "
+				+ ((int) factor) + "x realtime");
+		check(factor > 1, "decoding faster than realtime");
+
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/** encode and decode one block and compare with the original data */
+	private static void checkCodec(AudioFormat format, int signal, int frames) {
+		PCMBlockCodec codec = new PCMBlockCodec(format);
+		byte[] pcm = createSignal(format, signal, frames);
+		// use offsets to verify that they are respected
+		int maxSize = codec.getMaxEncodedSize(frames);
+		byte[] coded = new byte[maxSize + 10];
+		int size = codec.encode(pcm, 0, frames, coded, 3);
+		String what = SIGNAL_NAMES[signal] + ", " + format.getChannels()
+				+ " channels, " + (format.isBigEndian() ? "big" : "little")
+				+ " endian, " + frames + " frames";
+		check(size > 0 && size <= maxSize, "coded size " + size + " of "
+				+ what);
+		byte[] decoded = new byte[pcm.length + 5];
+		codec.decode(coded, 3, decoded, 5, frames);
+		check(Arrays.equals(pcm, Arrays.copyOfRange(decoded, 5,
+				decoded.length)), "codec round trip of " + what);
+	}
+
+	/**
+	 * load the file with the memory or file based audio file, and compare the
+	 * data read in pieces across the block boundaries with the original data
+	 */
+	private static void checkStore(AudioFileFactory factory, File wav,
+			boolean mem, AudioFormat format, byte[] data) throws Exception {
+		factory.setUseOnlyMemFiles(mem);
+		AudioFile af = factory.getAudioFile(wav);
+		String what = (mem ? "memory" : "file") + " store of "
+				+ wav.getName();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!af.isFullyLoaded() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		check(af.isFullyLoaded(), "loaded " + what);
+		int frames = data.length / format.getFrameSize();
+		check(af.getAvailableSamples() == frames, "length of " + what);
+		float[] expected = new float[frames];
+		float[] actual = new float[frames];
+		for (int c = 0; c < format.getChannels(); c++) {
+			FloatSampleTools.byte2float(c, data, 0, expected, 0, frames,
+					format);
+			Arrays.fill(actual, 1);
+			// read in pieces that do not align with the blocks
+			int pos = 0;
+			while (pos < frames) {
+				int count = Math.min(999, frames - pos);
+				int read = af.readChannelData(c, pos, actual, pos, count);
+				if (read != count) {
+					check(false, "read " + count + " at " + pos + " from "
+							+ what);
+					break;
+				}
+				pos += count;
+			}
+			check(Arrays.equals(expected, actual), "channel " + c + " of "
+					+ what);
+		}
+	}
+
+	/** create the PCM data for the given signal */
+	private static byte[] createSignal(AudioFormat format, int signal,
+			int frames) {
+		int channels = format.getChannels();
+		byte[] data = new byte[frames * format.getFrameSize()];
+		Random random = new Random(signal * 1000 + frames);
+		int i = 0;
+		for (int f = 0; f < frames; f++) {
+			for (int c = 0; c < channels; c++) {
+				int s;
+				switch (signal) {
+				case SQUARE:
+					// the largest possible steps, out of phase in the
+					// channels
+					s = ((f + c) % 2 == 0) ? 32767 : -32768;
+					break;
+				case NOISE:
+					s = random.nextInt(65536) - 32768;
+					break;
+				case SINE:
+					s = (int) (20000 * Math.sin(2 * Math.PI * (440 + 110 * c)
+							* f / SAMPLE_RATE));
+					break;
+				case SILENCE:
+				default:
+					s = 0;
+				}
+				if (format.isBigEndian()) {
+					data[i++] = (byte) (s >> 8);
+					data[i++] = (byte) s;
+				} else {
+					data[i++] = (byte) s;
+					data[i++] = (byte) (s >> 8);
+				}
+			}
+		}
+		return data;
+	}
+
+	private static void writeWave(File file, AudioFormat format, byte[] data)
+			throws Exception {
+		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(
+				data), format, data.length / format.getFrameSize());
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
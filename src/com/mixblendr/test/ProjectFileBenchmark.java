@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.automation.AutomationPan;
+import com.mixblendr.automation.AutomationVolume;
+import com.mixblendr.effects.Delay;
+import com.mixblendr.effects.Flanger;
+import com.mixblendr.project.ProjectFile;
+
+/**
+ * Measures saving and opening a large project with ProjectFile: a number of
+ * tracks with regions, automation objects, volume lanes with many points, and
+ * effects. Then one track is changed and the project is saved incrementally.
+ * Finally, the loaded project is compared with the original one.
+ * <p>
+ * Usage: ProjectFileBenchmark [tracks] [lane points per track]
+ * <p>
+ * The default is 200 tracks with 500 points each, i.e. 100000 automation
+ * points. The project and a short WAV file are written to the temp directory.
+ *
+ * @author Florian Bomers
+ */
+public class ProjectFileBenchmark {
+
+	private static final int REGIONS_PER_TRACK = 32;
+
+	/**
+	 * @param args [tracks] [points]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		int trackCount = 200;
+		int points = 500;
+		if (args.length > 0) {
+			trackCount = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			points = Integer.parseInt(args[1]);
+		}
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		File wav = new File(dir, "ProjectFileBenchmark.wav");
+		File project = new File(dir, "ProjectFileBenchmark.mxbp");
+		writeWave(wav);
+
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		AudioState state = player.getState();
+		AudioFile af = player.getFactory().getAudioFile(wav);
+		long beat = state.beat2sample(1);
+		for (int t = 0; t < trackCount; t++) {
+			AudioTrack track = player.addAudioTrack();
+			track.setName("Track " + (t + 1));
+			track.setVolume(0.5 + (t % 5) * 0.1);
+			for (int r = 0; r < REGIONS_PER_TRACK; r++) {
+				track.addRegion(af, r * 4 * beat + t);
+			}
+			for (int b = 0; b < REGIONS_PER_TRACK; b++) {
+				track.addAutomationObject(new AutomationVolume(state,
+						0.5 + 0.4 * (b % 2), b * beat + beat / 2));
+				track.addAutomationObject(new AutomationPan(state,
+						((b % 3) - 1) * 0.5, b * beat + beat / 3));
+			}
+			AutomationLane lane = track.getVolumeLane();
+			for (int p = 0; p < points; p++) {
+				lane.addPoint(p * 100L, (float) ((p % 50) / 50.0));
+			}
+			if (t % 10 == 0) {
+				Delay delay = new Delay();
+				delay.init(state, player, track);
+				delay.setParameter(1, 0.3 + (t % 3) * 0.1);
+				track.addEffect(delay);
+			} else if (t % 10 == 5) {
+				Flanger flanger = new Flanger();
+				flanger.init(state, player, track);
+				track.addEffect(flanger);
+			}
+		}
+		out("Created " + trackCount + " tracks with " + (trackCount * points)
+				+ " automation lane points.");
+
+		// the content hashes are saved only for fully loaded files
+		new OfflineRenderer(player).waitForDownloads(60000);
+		ProjectFile pf = new ProjectFile(player);
+		long start = System.nanoTime();
+		pf.save(project);
+		out("Full save:        " + millis(start) + "ms, " + project.length()
+				+ " bytes");
+
+		AudioPlayer player2 = new AudioPlayer(null, null);
+		player2.init();
+		start = System.nanoTime();
+		ProjectFile pf2 = ProjectFile.load(player2, project);
+		out("Open:             " + millis(start) + "ms");
+		AudioTrack first = player2.getMixer().getTrack(0);
+		start = System.nanoTime();
+		first.getPlaylist();
+		out("Load one track:   " + millis(start) + "ms");
+
+		// change one track and save incrementally
+		first.getVolumeLane().addPoint(points * 100L + 1000, 0.25f);
+		start = System.nanoTime();
+		pf2.save();
+		out("Incremental save: " + millis(start) + "ms, "
+				+ pf2.getLastSaveBytes() + " bytes written, file size "
+				+ project.length() + " bytes");
+
+		// open the incrementally saved file and compare all tracks
+		AudioPlayer player3 = new AudioPlayer(null, null);
+		player3.init();
+		start = System.nanoTime();
+		ProjectFile.load(player3, project);
+		out("Open again:       " + millis(start) + "ms");
+		new OfflineRenderer(player2).waitForDownloads(60000);
+		new OfflineRenderer(player3).waitForDownloads(60000);
+		if (!pf2.getChangedSources().isEmpty()) {
+			out("Changed sources: " + pf2.getChangedSources());
+		}
+		start = System.nanoTime();
+		first.getVolumeLane().removePoints(points * 100L + 1000,
+				points * 100L + 1001);
+		player3.getMixer().getTrack(0).getVolumeLane().removePoints(
+				points * 100L + 1000, points * 100L + 1001);
+		int errors = 0;
+		for (int t = 0; t < trackCount; t++) {
+			String a = describe(player.getMixer().getTrack(t));
+			if (!a.equals(describe(player3.getMixer().getTrack(t)))) {
+				out("Track " + t + " differs.");
+				errors++;
+			}
+		}
+		out("Loaded all tracks and compared: " + millis(start) + "ms");
+		out(errors == 0 ? "OK" : "FAILED");
+		player.close();
+		player2.close();
+		player3.close();
+		project.delete();
+		wav.delete();
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/** @return a string with all saved properties of the track */
+	private static String describe(AudioTrack track) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(track.getName()).append(' ').append(track.getVolume());
+		Playlist pl = track.getPlaylist();
+		for (int i = 0; i < pl.getObjectCount(); i++) {
+			AutomationObject ao = pl.getObject(i);
+			sb.append(' ').append(ao.getClass().getSimpleName()).append('@');
+			sb.append(ao.getStartTimeSamples());
+			if (ao instanceof AudioRegion) {
+				AudioRegion r = (AudioRegion) ao;
+				sb.append(':').append(r.getAudioFile().getSource());
+				sb.append(':').append(r.getDuration());
+			} else if (ao instanceof AutomationVolume) {
+				sb.append(':').append(((AutomationVolume) ao).getVolume());
+			} else if (ao instanceof AutomationPan) {
+				sb.append(':').append(((AutomationPan) ao).getPan());
+			}
+		}
+		sb.append(' ').append(track.getVolumeLane());
+		for (AudioEffect e : track.getEffects()) {
+			AudioEffectParameters p = (AudioEffectParameters) e;
+			sb.append(' ').append(e.getShortName());
+			for (int i = 0; i < p.getParameterCount(); i++) {
+				sb.append(':').append(p.getParameter(i));
+			}
+		}
+		return sb.toString();
+	}
+
+	/** write one second of silence to a 16-bit stereo WAV file */
+	private static void writeWave(File file) throws Exception {
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		byte[] data = new byte[44100 * 4];
+		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(
+				data), format, 44100);
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+	}
+
+	private static long millis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
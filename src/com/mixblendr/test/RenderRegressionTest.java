@@ -0,0 +1,693 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.automation.AutomationPan;
+import com.mixblendr.automation.AutomationVolume;
+import com.mixblendr.effects.ConvolutionReverb;
+import com.mixblendr.effects.Delay;
+import com.mixblendr.effects.Delay2;
+import com.mixblendr.effects.Flanger;
+
+/**
+ * Render regression test: builds synthetic sessions from generated sources
+ * (regions, split regions, loops, jumps, automation, effects and buses),
+ * renders them offline, and compares the audio with stored fingerprints. The
+ * audio is split in blocks of BLOCK_FRAMES frames; the fingerprint of a block
+ * is the CRC32 of the float samples, and its RMS and peak level. By default,
+ * the CRC must match exactly; with a tolerance, the RMS and peak of every
+ * block must be within the tolerance of the stored values, so that changes
+ * which only affect the rounding can be verified.
+ * <p>
+ * Every session is also rendered in other modes, which must produce the same
+ * audio as the reference render (the slice size of the state): with odd,
+ * changing slice sizes, with a track tap installed, and with several players
+ * rendering concurrently. New render paths, e.g. parallel or cached
+ * rendering, should be added here as a mode.
+ * <p>
+ * Usage: RenderRegressionTest [-update] [-golden &lt;file&gt;] [-tolerance
+ * &lt;t&gt;] [-session &lt;name&gt;] [-v]
+ * <p>
+ * The stored fingerprints are read from the file given with -golden, or from
+ * RenderRegressionTest.properties next to this class. With -update, the
+ * fingerprints of the reference render are written to the -golden file
+ * instead of comparing. The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class RenderRegressionTest {
+
+	/** the number of frames of a fingerprinted block */
+	static final int BLOCK_FRAMES = 8192;
+
+	/** the name of the resource with the stored fingerprints */
+	private static final String GOLDEN_RESOURCE = "RenderRegressionTest.properties";
+
+	/** the slice sizes used in turn by the ODD_SLICES mode */
+	private static final int[] ODD_SLICES = {
+			1, 441, 127, 2048, 64, 1000, 333, 7
+	};
+
+	/**
+	 * the tolerance of the block levels for modes that render with other
+	 * slice sizes than the reference
+	 */
+	private static final double SLICE_LEVEL_TOLERANCE = 0.01;
+
+	/** the number of players rendering concurrently in the CONCURRENT mode */
+	private static final int CONCURRENT_PLAYERS = 4;
+
+	private static boolean verbose = false;
+
+	private static int errors = 0;
+
+	/**
+	 * @param args [-update] [-golden file] [-tolerance t] [-session name] [-v]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		boolean update = false;
+		File golden = null;
+		double tolerance = 0;
+		String only = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-update")) {
+				update = true;
+			} else if (args[i].equals("-golden") && i + 1 < args.length) {
+				golden = new File(args[++i]);
+			} else if (args[i].equals("-tolerance") && i + 1 < args.length) {
+				tolerance = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-session") && i + 1 < args.length) {
+				only = args[++i];
+			} else if (args[i].equals("-v")) {
+				verbose = true;
+			} else {
+				out("Usage: RenderRegressionTest [-update] [-golden <file>] "
+						+ "[-tolerance <t>] [-session <name>] [-v]");
+				System.exit(1);
+			}
+		}
+		if (update && golden == null) {
+			out("-update needs the file given with -golden");
+			System.exit(1);
+		}
+
+		Properties stored = new Properties();
+		if (!update) {
+			InputStream is;
+			if (golden != null) {
+				is = new FileInputStream(golden);
+			} else {
+				is = RenderRegressionTest.class.getResourceAsStream(GOLDEN_RESOURCE);
+				if (is == null) {
+					out("FAILED: resource " + GOLDEN_RESOURCE
+							+ " not found, use -golden <file>");
+					System.exit(1);
+				}
+			}
+			try {
+				stored.load(is);
+			} finally {
+				is.close();
+			}
+		}
+
+		StringBuffer updated = new StringBuffer();
+		for (Session session : SESSIONS) {
+			if (only != null && !only.equals(session.name)) {
+				continue;
+			}
+			long start = System.nanoTime();
+			float[] reference = render(session, null, null);
+			Block[] blocks = fingerprint(reference);
+			if (update) {
+				updated.append(toProperties(session.name, blocks));
+			} else {
+				compare(session.name, blocks, stored, tolerance);
+			}
+			out(session.name + ": " + blocks.length + " blocks rendered in "
+					+ millis(start) + "ms");
+			for (Mode mode : MODES) {
+				start = System.nanoTime();
+				List<float[]> results = mode.render(session);
+				for (int i = 0; i < results.size(); i++) {
+					String what = session.name + "/" + mode.name
+							+ (results.size() > 1 ? " " + i : "");
+					if (mode.levelTolerance > 0) {
+						compare(what, blocks, fingerprint(results.get(i)),
+								Math.max(tolerance, mode.levelTolerance));
+					} else {
+						compare(what, reference, results.get(i), tolerance);
+					}
+				}
+				if (verbose) {
+					out("  " + mode.name + " in " + millis(start) + "ms");
+				}
+			}
+		}
+		if (update) {
+			Writer w = new OutputStreamWriter(new FileOutputStream(golden),
+					"ISO-8859-1");
+			try {
+				w.write("# RenderRegressionTest fingerprints: <session>.<block>"
+						+ "=<crc32> <rms> <peak>\n");
+				w.write("# generated with RenderRegressionTest -update, do not edit\n");
+				w.write(updated.toString());
+			} finally {
+				w.close();
+			}
+			out("Written " + golden);
+		}
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	// ------------------------------------------------------ sessions
+
+	/**
+	 * A synthetic session. The seconds of the session are rendered from
+	 * position 0, with the jumps in between.
+	 */
+	private static abstract class Session {
+		final String name;
+		final double seconds;
+
+		Session(String name, double seconds) {
+			this.name = name;
+			this.seconds = seconds;
+		}
+
+		/** add the tracks, buses and effects to the player */
+		abstract void build(AudioPlayer player);
+
+		/**
+		 * @return pairs of the rendered frame at which to jump, and the new
+		 *         position in samples, or null for no jumps
+		 */
+		long[] getJumps(AudioState state) {
+			return null;
+		}
+	}
+
+	private static final Session[] SESSIONS = {
+			new Session("regions", 6) {
+				@Override
+				void build(AudioPlayer player) {
+					AudioState state = player.getState();
+					AudioTrack t1 = player.addAudioTrack();
+					AudioFile sine = new SynthAudioFile(state, "sine", 220, 2);
+					t1.addRegion(sine, 0);
+					t1.addRegion(sine, samples(state, 1.5));
+					t1.addRegion(sine, samples(state, 4), samples(state, 0.5));
+					AudioRegion r = t1.addRegion(sine, samples(state, 5));
+					r.setAudioFileOffset(samples(state, 0.3));
+
+					AudioTrack t2 = player.addAudioTrack();
+					t2.setVolume(0.4);
+					t2.setBalance(-0.6);
+					AudioFile noise = new SynthAudioFile(state, "noise",
+							SynthAudioFile.NOISE, 3, 1);
+					t2.addRegion(noise, samples(state, 0.25));
+					r = t2.addRegion(noise, samples(state, 3));
+					t2.getPlaylist().splitRegion(r, samples(state, 0.4));
+
+					AudioTrack t3 = player.addAudioTrack();
+					t3.setBalance(0.5);
+					t3.addRegion(new SynthAudioFile(state, "sweep",
+							SynthAudioFile.SWEEP, 110, 3), samples(state, 2));
+				}
+			},
+
+			new Session("automation", 6) {
+				@Override
+				void build(AudioPlayer player) {
+					AudioState state = player.getState();
+					player.setTempo(97);
+					long beat = state.beat2sample(1);
+					for (int t = 0; t < 2; t++) {
+						AudioTrack track = player.addAudioTrack();
+						AudioFile af = new SynthAudioFile(state, "tone" + t,
+								330 * (t + 1), 1.5);
+						for (int b = 0; b < 10; b += 2) {
+							track.addRegion(af, b * beat + t * beat / 3);
+						}
+						for (int b = 0; b < 10; b++) {
+							track.addAutomationObject(new AutomationVolume(
+									state, 0.3 + 0.1 * ((b + t) % 5), b * beat
+											+ beat / 2));
+							track.addAutomationObject(new AutomationPan(state,
+									((b + t) % 3 - 1) * 0.8, b * beat + beat
+											/ 4));
+						}
+					}
+					AudioTrack track = player.addAudioTrack();
+					track.addRegion(new SynthAudioFile(state, "ramp",
+							SynthAudioFile.SWEEP, 200, 6), 0);
+					AutomationLane volume = track.getVolumeLane();
+					volume.addPoint(0, 0.1f);
+					volume.addPoint(samples(state, 2), 0.9f);
+					volume.addPoint(samples(state, 2.5), 0.2f);
+					volume.addPoint(samples(state, 5), 0.7f);
+					AutomationLane balance = track.getBalanceLane();
+					balance.addPoint(samples(state, 1), -1f);
+					balance.addPoint(samples(state, 4), 1f);
+				}
+			},
+
+			new Session("effects", 6) {
+				@Override
+				void build(AudioPlayer player) {
+					AudioState state = player.getState();
+					AudioEffect[] effects = {
+							new Delay(), new Delay2(), new Flanger(),
+							new ConvolutionReverb()
+					};
+					for (int t = 0; t < effects.length; t++) {
+						AudioTrack track = player.addAudioTrack();
+						track.setVolume(0.5);
+						AudioFile af = new SynthAudioFile(state, "src" + t,
+								(t % 2 == 0) ? SynthAudioFile.SINE
+										: SynthAudioFile.NOISE, 150 + 70 * t,
+								0.7);
+						// start after the first slice, which ramps the volume
+						for (double s = 0.1 + t * 0.2; s < 5; s += 1.6) {
+							track.addRegion(af, samples(state, s));
+						}
+						effects[t].init(state, player, track);
+						track.addEffect(effects[t]);
+					}
+					Delay delay = (Delay) effects[0];
+					delay.setDelayTimeBeats(0.375);
+					delay.setFeedback(0.6);
+					AutomationLane feedback = delay.getParameterLane(1);
+					feedback.addPoint(samples(state, 1), 0.2f);
+					feedback.addPoint(samples(state, 3), 0.8f);
+					Flanger flanger = (Flanger) effects[2];
+					flanger.setFrequency(0.7);
+					flanger.setFeedback(0.4);
+				}
+			},
+
+			new Session("loop", 6) {
+				@Override
+				void build(AudioPlayer player) {
+					AudioState state = player.getState();
+					long beat = state.beat2sample(1);
+					AudioTrack track = player.addAudioTrack();
+					AudioFile af = new SynthAudioFile(state, "loop", 440, 0.8);
+					for (int b = 0; b < 12; b++) {
+						track.addRegion(af, b * beat + beat / 5);
+						track.addAutomationObject(new AutomationVolume(state,
+								0.3 + 0.15 * (b % 4), b * beat));
+					}
+					Delay delay = new Delay();
+					delay.init(state, player, track);
+					track.addEffect(delay);
+					player.setLoopSamples(samples(state, 1.1), samples(state,
+							1.7));
+					player.setLoopEnabled(true);
+				}
+
+				@Override
+				long[] getJumps(AudioState state) {
+					return new long[] {
+							samples(state, 4), samples(state, 0.45),
+							samples(state, 5), samples(state, 3.2)
+					};
+				}
+			},
+
+			new Session("buses", 6) {
+				@Override
+				void build(AudioPlayer player) {
+					AudioState state = player.getState();
+					AudioMixer mixer = player.getMixer();
+					AudioBus delayBus = player.addAudioBus();
+					Delay delay = new Delay();
+					delay.init(state, player, null);
+					delayBus.addEffect(delay);
+					AudioBus reverbBus = player.addAudioBus();
+					reverbBus.setVolume(0.6);
+					ConvolutionReverb reverb = new ConvolutionReverb();
+					reverb.init(state, player, null);
+					reverbBus.addEffect(reverb);
+					mixer.setOutputBus(delayBus, reverbBus);
+					for (int t = 0; t < 3; t++) {
+						AudioTrack track = player.addAudioTrack();
+						AudioFile af = new SynthAudioFile(state, "bus" + t,
+								(t == 1) ? SynthAudioFile.NOISE
+										: SynthAudioFile.SINE, 260 + 90 * t,
+								0.5);
+						for (double s = 0.1 + t * 0.3; s < 4; s += 1.2) {
+							track.addRegion(af, samples(state, s));
+						}
+						mixer.setSendLevel(track, reverbBus, 0.2 + 0.2 * t);
+					}
+					mixer.setOutputBus(mixer.getTrack(2), delayBus);
+				}
+			}
+	};
+
+	private static long samples(AudioState state, double seconds) {
+		return (long) (seconds * state.getSampleRate());
+	}
+
+	// ------------------------------------------------------ render modes
+
+	/**
+	 * A way of rendering a session, which must equal the reference render.
+	 * The audio of modes with a level tolerance may differ from the reference
+	 * render in single samples, but the RMS and peak level of every block
+	 * must be within the tolerance.
+	 */
+	private static abstract class Mode {
+		final String name;
+		final double levelTolerance;
+
+		Mode(String name) {
+			this(name, 0);
+		}
+
+		Mode(String name, double levelTolerance) {
+			this.name = name;
+			this.levelTolerance = levelTolerance;
+		}
+
+		/** @return the rendered audio of one or more renders */
+		abstract List<float[]> render(Session session) throws Exception;
+	}
+
+	private static final Mode[] MODES = {
+			// automation objects take effect at slice boundaries, and the
+			// parameters of the effects are smoothed per slice
+			new Mode("odd slices", SLICE_LEVEL_TOLERANCE) {
+				@Override
+				List<float[]> render(Session session) throws Exception {
+					List<float[]> ret = new ArrayList<float[]>(1);
+					ret.add(RenderRegressionTest.render(session, ODD_SLICES,
+							null));
+					return ret;
+				}
+			},
+
+			new Mode("track tap") {
+				@Override
+				List<float[]> render(Session session) throws Exception {
+					// a tap which only reads the track buffers must not change
+					// the mix
+					AudioMixer.TrackTap tap = new AudioMixer.TrackTap() {
+						float sum;
+
+						public void trackRendered(int trackIndex,
+								AudioTrack track, long samplePos,
+								FloatSampleBuffer buffer) {
+							for (int c = 0; c < buffer.getChannelCount(); c++) {
+								float[] data = buffer.getChannel(c);
+								for (int i = 0; i < buffer.getSampleCount(); i++) {
+									sum += data[i];
+								}
+							}
+						}
+					};
+					List<float[]> ret = new ArrayList<float[]>(1);
+					ret.add(RenderRegressionTest.render(session, null, tap));
+					return ret;
+				}
+			},
+
+			new Mode("concurrent") {
+				@Override
+				List<float[]> render(final Session session) throws Exception {
+					final float[][] results = new float[CONCURRENT_PLAYERS][];
+					final Exception[] exceptions = new Exception[CONCURRENT_PLAYERS];
+					Thread[] threads = new Thread[CONCURRENT_PLAYERS];
+					for (int i = 0; i < threads.length; i++) {
+						final int index = i;
+						threads[i] = new Thread("Render " + session.name + " "
+								+ i) {
+							@Override
+							public void run() {
+								try {
+									results[index] = RenderRegressionTest.render(
+											session, null, null);
+								} catch (Exception e) {
+									exceptions[index] = e;
+								}
+							}
+						};
+						threads[i].start();
+					}
+					for (Thread t : threads) {
+						t.join();
+					}
+					for (Exception e : exceptions) {
+						if (e != null) {
+							throw e;
+						}
+					}
+					List<float[]> ret = new ArrayList<float[]>(results.length);
+					for (float[] r : results) {
+						ret.add(r);
+					}
+					return ret;
+				}
+			}
+	};
+
+	/**
+	 * Build the session in a new player and render it.
+	 *
+	 * @param sliceSizes the sizes of the rendered slices, used in turn, or
+	 *            null for the slice size of the state
+	 * @param tap the track tap to install, or null
+	 * @return the interleaved samples
+	 */
+	static float[] render(Session session, int[] sliceSizes,
+			AudioMixer.TrackTap tap) throws Exception {
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			AudioState state = player.getState();
+			session.build(player);
+			new OfflineRenderer(player).waitForDownloads(60000);
+			if (sliceSizes == null) {
+				sliceSizes = new int[] {
+					state.getSliceSizeSamples()
+				};
+			}
+			int maxSlice = 0;
+			for (int s : sliceSizes) {
+				maxSlice = Math.max(maxSlice, s);
+			}
+			AudioMixer mixer = player.getMixer();
+			mixer.setTrackTap(tap);
+			int channels = state.getChannels();
+			int frames = (int) samples(state, session.seconds);
+			long[] jumps = session.getJumps(state);
+			if (jumps == null) {
+				jumps = new long[0];
+			}
+			float[] ret = new float[frames * channels];
+			FloatSampleBuffer buffer = new FloatSampleBuffer(channels,
+					maxSlice, state.getSampleRate());
+			int nextJump = 0;
+			int slice = 0;
+			int pos = 0;
+			while (pos < frames) {
+				while (nextJump < jumps.length && jumps[nextJump] == pos) {
+					player.setPositionSamples(jumps[nextJump + 1]);
+					nextJump += 2;
+				}
+				int count = Math.min(sliceSizes[slice++ % sliceSizes.length],
+						frames - pos);
+				if (nextJump < jumps.length && pos + count > jumps[nextJump]) {
+					count = (int) jumps[nextJump] - pos;
+				}
+				buffer.changeSampleCount(count, false);
+				mixer.read(buffer);
+				for (int c = 0; c < channels; c++) {
+					float[] data = buffer.getChannel(c);
+					for (int i = 0; i < count; i++) {
+						ret[(pos + i) * channels + c] = data[i];
+					}
+				}
+				pos += count;
+			}
+			return ret;
+		} finally {
+			player.close();
+		}
+	}
+
+	// ------------------------------------------------------ fingerprints
+
+	/** the fingerprint of a block of audio */
+	static class Block {
+		long crc;
+		double rms;
+		double peak;
+
+		@Override
+		public String toString() {
+			return Long.toHexString(crc) + " " + rms + " " + peak;
+		}
+	}
+
+	/** @return the fingerprints of the interleaved stereo samples */
+	static Block[] fingerprint(float[] samples) {
+		int blockSamples = BLOCK_FRAMES * 2;
+		Block[] ret = new Block[(samples.length + blockSamples - 1)
+				/ blockSamples];
+		CRC32 crc = new CRC32();
+		byte[] bytes = new byte[blockSamples * 4];
+		for (int b = 0; b < ret.length; b++) {
+			int start = b * blockSamples;
+			int end = Math.min(start + blockSamples, samples.length);
+			double sum = 0;
+			double peak = 0;
+			int n = 0;
+			for (int i = start; i < end; i++) {
+				float s = samples[i];
+				int bits = Float.floatToIntBits(s);
+				bytes[n++] = (byte) bits;
+				bytes[n++] = (byte) (bits >> 8);
+				bytes[n++] = (byte) (bits >> 16);
+				bytes[n++] = (byte) (bits >> 24);
+				sum += s * s;
+				peak = Math.max(peak, Math.abs(s));
+			}
+			crc.reset();
+			crc.update(bytes, 0, n);
+			Block block = new Block();
+			block.crc = crc.getValue();
+			block.rms = Math.sqrt(sum / (end - start));
+			block.peak = peak;
+			ret[b] = block;
+		}
+		return ret;
+	}
+
+	private static String toProperties(String session, Block[] blocks) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(session + ".blocks=" + blocks.length + "\n");
+		for (int b = 0; b < blocks.length; b++) {
+			sb.append(session + "." + b + "=" + blocks[b] + "\n");
+		}
+		return sb.toString();
+	}
+
+	/** compare the fingerprints with the stored fingerprints */
+	private static void compare(String session, Block[] blocks,
+			Properties stored, double tolerance) {
+		String count = stored.getProperty(session + ".blocks");
+		if (count == null) {
+			check(false, session + ": no stored fingerprints, run with -update");
+			return;
+		}
+		if (Integer.parseInt(count.trim()) != blocks.length) {
+			check(false, session + ": " + blocks.length
+					+ " blocks rendered, stored: " + count);
+			return;
+		}
+		int failed = 0;
+		for (int b = 0; b < blocks.length; b++) {
+			String[] s = stored.getProperty(session + "." + b, "").trim().split(
+					" ");
+			if (s.length != 3) {
+				check(false, session + ": block " + b + " not stored");
+				return;
+			}
+			boolean ok;
+			if (tolerance == 0) {
+				ok = Long.parseLong(s[0], 16) == blocks[b].crc;
+			} else {
+				ok = Math.abs(Double.parseDouble(s[1]) - blocks[b].rms) <= tolerance
+						&& Math.abs(Double.parseDouble(s[2]) - blocks[b].peak) <= tolerance;
+			}
+			if (!ok) {
+				if (failed == 0 || verbose) {
+					out(session + ": block " + b + " at frame "
+							+ (b * BLOCK_FRAMES) + " differs: " + blocks[b]
+							+ ", stored: " + s[0] + " " + s[1] + " " + s[2]);
+				}
+				failed++;
+			}
+		}
+		check(failed == 0, session + ": " + failed + " of " + blocks.length
+				+ " blocks differ from the stored fingerprints");
+	}
+
+	/** compare the block levels of a render with the reference render */
+	private static void compare(String what, Block[] reference,
+			Block[] blocks, double tolerance) {
+		if (blocks.length != reference.length) {
+			check(false, what + ": " + blocks.length + " blocks rendered, "
+					+ reference.length + " expected");
+			return;
+		}
+		double maxDiff = 0;
+		int first = -1;
+		for (int b = 0; b < blocks.length; b++) {
+			double diff = Math.max(Math.abs(blocks[b].rms - reference[b].rms),
+					Math.abs(blocks[b].peak - reference[b].peak));
+			if (diff > tolerance && first < 0) {
+				first = b;
+			}
+			maxDiff = Math.max(maxDiff, diff);
+		}
+		if (verbose || first >= 0) {
+			out("  " + what + ": max level difference " + maxDiff
+					+ (first >= 0 ? ", first in block " + first : ""));
+		}
+		check(first < 0, what + ": block levels equal the reference render");
+	}
+
+	/** compare a render sample by sample with the reference render */
+	private static void compare(String what, float[] reference,
+			float[] samples, double tolerance) {
+		if (samples.length != reference.length) {
+			check(false, what + ": " + samples.length + " samples rendered, "
+					+ reference.length + " expected");
+			return;
+		}
+		double maxDiff = 0;
+		int first = -1;
+		for (int i = 0; i < samples.length; i++) {
+			double diff = Math.abs(samples[i] - reference[i]);
+			if (diff > tolerance && first < 0) {
+				first = i;
+			}
+			maxDiff = Math.max(maxDiff, diff);
+		}
+		if (verbose || first >= 0) {
+			out("  " + what + ": max difference " + maxDiff
+					+ (first >= 0 ? ", first at frame " + (first / 2) : ""));
+		}
+		check(first < 0, what + " equals the reference render");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static long millis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
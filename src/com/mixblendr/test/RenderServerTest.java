@@ -0,0 +1,220 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Properties;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.mixblendr.render.RenderServer;
+
+/**
+ * Starts a RenderServer on a free local port and exercises it over HTTP:
+ * queueing jobs, admission control per tenant, polling the job status,
+ * fetching the rendered Ogg file, rendering with wait=true, a failing
+ * project, and a project with a broken source that fails without waiting
+ * for the download of its other source, which never ends.
+ * <p>
+ * Usage: RenderServerTest
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class RenderServerTest {
+
+	private static int errors = 0;
+
+	private static String base;
+
+	/**
+	 * @param args not used
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		File dir = File.createTempFile("RenderServerTest", "");
+		dir.delete();
+		dir.mkdirs();
+		writeWave(new File(dir, "tone.wav"));
+		// a source that exists, but cannot be loaded
+		FileOutputStream fos = new FileOutputStream(new File(dir,
+				"broken.wav"));
+		fos.write("not a wave file".getBytes("ISO-8859-1"));
+		fos.close();
+		RenderServer server = new RenderServer(new InetSocketAddress(
+				InetAddress.getByName(null), 0), new File(dir, "out"), dir);
+		server.setWorkerCount(2);
+		server.setMaxQueuedJobs(4);
+		server.setMaxQueuedJobsPerTenant(2);
+		server.setMaxRunningJobsPerTenant(1);
+		server.start();
+		base = "http://localhost:" + server.getAddress().getPort();
+		out("Server started at " + base);
+
+		String project = "tempo 120\n[track Tone]\nvolume 0.8\n"
+				+ "effect Delay\nregion tone.wav 0\nregion tone.wav 4b\n";
+		try {
+			// tenant a: 1 rendering at a time, 2 queued at most
+			String[] ids = new String[3];
+			for (int i = 0; i < 3; i++) {
+				Response r = request("POST", "/render?tenant=a&tail=1s",
+						project);
+				if (r.code == 202) {
+					ids[i] = r.props().getProperty("id");
+				}
+				out("Job " + i + " of tenant a: " + r.code);
+			}
+			check(ids[0] != null && ids[1] != null, "first jobs accepted");
+			// the third job is only accepted if the first one was taken from
+			// the queue already
+			Response r = request("POST", "/render?tenant=a", project);
+			out("Job 3 of tenant a: " + r.code);
+			check(r.code == 429, "tenant queue limit");
+			r = request("POST", "/render?tenant=b&format=wav", project);
+			check(r.code == 202, "other tenant accepted");
+			String idB = r.props().getProperty("id");
+
+			for (String id : new String[] {
+					ids[0], ids[1], idB
+			}) {
+				Properties status = waitFor(id);
+				out("Job " + id + ": " + status);
+				check("done".equals(status.getProperty("state")), "job " + id
+						+ " done");
+				r = request("GET", "/jobs/" + id + "/output", null);
+				check(r.code == 200 && r.body.length > 1000, "output of job "
+						+ id);
+				String magic = new String(r.body, 0, 4, "ISO-8859-1");
+				check(magic.equals(id.equals(idB) ? "RIFF" : "OggS"),
+						"file format of job " + id);
+			}
+
+			r = request("POST", "/render?tenant=c&wait=true", project);
+			check(r.code == 200 && r.body.length > 1000
+					&& new String(r.body, 0, 4, "ISO-8859-1").equals("OggS"),
+					"wait=true returns the Ogg file");
+
+			r = request("POST", "/render?tenant=c", "[track x]\nregion missing.wav\n");
+			Properties status = waitFor(r.props().getProperty("id"));
+			out("Failing job: " + status);
+			check("failed".equals(status.getProperty("state"))
+					&& status.getProperty("error") != null, "failing job");
+
+			// a source that accepts the connection, but never responds
+			ServerSocket stuck = new ServerSocket(0, 1, InetAddress
+					.getByName(null));
+			try {
+				long start = System.currentTimeMillis();
+				r = request("POST", "/render?tenant=c", "[track x]\n"
+						+ "region broken.wav 0\nregion http://localhost:"
+						+ stuck.getLocalPort() + "/stuck.wav 0\n");
+				status = waitFor(r.props().getProperty("id"));
+				long millis = System.currentTimeMillis() - start;
+				out("Job with a broken source: " + status + " after "
+						+ millis + "ms");
+				check("failed".equals(status.getProperty("state"))
+						&& status.getProperty("error").indexOf("broken.wav") >= 0,
+						"broken source");
+				check(millis < 10000, "broken source fails without waiting");
+			} finally {
+				stuck.close();
+			}
+
+			r = request("GET", "/status", null);
+			out("Server status:\n" + new String(r.body, "UTF-8"));
+			check(r.code == 200, "status");
+		} finally {
+			server.stop();
+		}
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/** poll the job status until the job is finished */
+	private static Properties waitFor(String id) throws Exception {
+		while (true) {
+			Properties p = request("GET", "/jobs/" + id, null).props();
+			String state = p.getProperty("state");
+			if (!"queued".equals(state) && !"rendering".equals(state)) {
+				return p;
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static class Response {
+		int code;
+		byte[] body;
+
+		Properties props() throws IOException {
+			Properties p = new Properties();
+			p.load(new ByteArrayInputStream(body));
+			return p;
+		}
+	}
+
+	private static Response request(String method, String path, String body)
+			throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+		conn.setRequestMethod(method);
+		if (body != null) {
+			conn.setDoOutput(true);
+			OutputStream os = conn.getOutputStream();
+			os.write(body.getBytes("UTF-8"));
+			os.close();
+		}
+		Response ret = new Response();
+		ret.code = conn.getResponseCode();
+		InputStream is = (ret.code < 400) ? conn.getInputStream()
+				: conn.getErrorStream();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		if (is != null) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				bos.write(buffer, 0, n);
+			}
+			is.close();
+		}
+		ret.body = bos.toByteArray();
+		return ret;
+	}
+
+	/** write a 1 second sine tone to a 16-bit stereo WAV file */
+	private static void writeWave(File file) throws Exception {
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		int frames = 44100;
+		byte[] data = new byte[frames * 4];
+		for (int i = 0; i < frames; i++) {
+			int v = (int) (Math.sin(2 * Math.PI * 440 * i / 44100.0) * 12000);
+			for (int c = 0; c < 2; c++) {
+				data[i * 4 + c * 2] = (byte) v;
+				data[i * 4 + c * 2 + 1] = (byte) (v >> 8);
+			}
+		}
+		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(
+				data), format, frames);
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
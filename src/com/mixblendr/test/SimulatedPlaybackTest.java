@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import org.tritonus.share.sampled.AudioUtils;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.effects.ConvolutionReverb;
+import com.mixblendr.effects.Delay;
+import com.mixblendr.effects.Flanger;
+
+/**
+ * Plays a session in real time on a SimulatedLine, so that the audio output
+ * can be measured without a sound card: rendering in the audio device
+ * thread, with jitter of the device, with render-ahead, and with adaptive
+ * latency. For every configuration, the underruns and the timing of the
+ * simulated device are printed, together with the statistics of the latency
+ * controller. Verifies that the device played at its clock rate, and that
+ * the audio output wrote to it. Finally plays with adaptive latency and
+ * render-ahead on a device with so much jitter that the latency grows, and
+ * verifies that the render-ahead ring is kept and renders with the new slice
+ * size.
+ * <p>
+ * Usage: SimulatedPlaybackTest [seconds] [tracks] [jitterMillis]
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class SimulatedPlaybackTest {
+
+	/** the jitter which makes the latency controller grow the buffer */
+	private static final double LARGE_JITTER_MILLIS = 100;
+
+	private static int errors = 0;
+
+	/**
+	 * @param args [seconds] [tracks] [jitterMillis]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		double seconds = 5;
+		int trackCount = 8;
+		double jitter = 3;
+		if (args.length > 0) {
+			seconds = Double.parseDouble(args[0]);
+		}
+		if (args.length > 1) {
+			trackCount = Integer.parseInt(args[1]);
+		}
+		if (args.length > 2) {
+			jitter = Double.parseDouble(args[2]);
+		}
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			createSession(player, trackCount);
+			play(player, "render in device thread", seconds, 0, false, 0);
+			play(player, "render in device thread, " + jitter + "ms jitter",
+					seconds, jitter, false, 0);
+			play(player, "render ahead, " + jitter + "ms jitter", seconds,
+					jitter, false, AudioOutput.DEFAULT_RENDER_AHEAD_MILLIS);
+			play(player, "adaptive latency, " + jitter + "ms jitter", seconds,
+					jitter, true, 0);
+			play(player, "adaptive latency, render ahead, "
+					+ LARGE_JITTER_MILLIS + "ms jitter", seconds,
+					LARGE_JITTER_MILLIS, true,
+					AudioOutput.DEFAULT_RENDER_AHEAD_MILLIS);
+		} finally {
+			player.close();
+		}
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	private static void createSession(AudioPlayer player, int trackCount)
+			throws Exception {
+		AudioState state = player.getState();
+		AudioMixer mixer = player.getMixer();
+		long beat = state.beat2sample(1);
+		AudioBus bus = player.addAudioBus();
+		ConvolutionReverb reverb = new ConvolutionReverb();
+		reverb.init(state, player, null);
+		bus.addEffect(reverb);
+		for (int t = 0; t < trackCount; t++) {
+			AudioTrack track = player.addAudioTrack();
+			track.setVolume(0.3);
+			AudioFile af = new SynthAudioFile(state, "track" + t,
+					(t % 3 == 2) ? SynthAudioFile.NOISE : SynthAudioFile.SINE,
+					110 * (t + 1), 1);
+			for (int b = 0; b < 64; b += 2) {
+				track.addRegion(af, b * beat + t * beat / 4);
+			}
+			AudioEffect effect = (t % 2 == 0) ? new Delay() : new Flanger();
+			effect.init(state, player, track);
+			track.addEffect(effect);
+			mixer.setSendLevel(track, bus, 0.2);
+		}
+		new OfflineRenderer(player).waitForDownloads(60000);
+	}
+
+	/** play the session for the given time on a new simulated line */
+	private static void play(AudioPlayer player, String name, double seconds,
+			double jitter, boolean adaptive, double renderAheadMillis)
+			throws Exception {
+		AudioOutput output = player.getOutput();
+		SimulatedLine line = new SimulatedLine(
+				SimulatedLine.DEFAULT_PERIOD_MILLIS, jitter, 1);
+		output.setAdaptiveLatency(adaptive);
+		output.setRenderAheadMillis(renderAheadMillis);
+		output.setDevice(line);
+		player.setPositionSamples(0);
+		player.start();
+		long start = System.nanoTime();
+		Thread.sleep(100);
+		RenderAheadBuffer ra = output.getRenderAhead();
+		Thread.sleep((long) (seconds * 1000) - 100);
+		long position = line.getLongFramePosition();
+		double elapsed = (System.nanoTime() - start) / 1000000000.0;
+		RenderAheadBuffer raAtEnd = output.getRenderAhead();
+		player.stop(true);
+
+		out(name + ":");
+		out("  " + line);
+		LatencyController lc = output.getLatencyController();
+		if (lc != null) {
+			out("  latency " + ((int) lc.getBufferMillis()) + "ms, slice "
+					+ lc.getSliceMillis() + "ms, " + lc.getUnderruns()
+					+ " underruns, " + lc.getMissedDeadlines()
+					+ " missed deadlines, " + lc.getChanges() + " changes");
+		}
+		if (adaptive && renderAheadMillis > 0
+				&& jitter >= LARGE_JITTER_MILLIS) {
+			check(lc != null && lc.getChanges() > 0, name
+					+ ": latency changed");
+			check(ra != null && raAtEnd == ra, name
+					+ ": render-ahead kept when the latency changed");
+			if (lc != null && ra != null) {
+				int sliceSize = (int) AudioUtils.millis2Frames(
+						lc.getSliceMillis(), line.getFormat());
+				check(ra.getSliceSize() == sliceSize, name
+						+ ": render-ahead uses the new slice size");
+			}
+		}
+		double played = position / line.getFormat().getFrameRate();
+		out("  played " + ((int) (played * 1000)) + "ms in "
+				+ ((int) (elapsed * 1000)) + "ms");
+		// the clock starts with the first write, allow for the startup
+		check(played <= elapsed + 0.01 && played >= elapsed - 0.25, name
+				+ ": device clock");
+		check(line.getWriteCount() > 0, name + ": written to the device");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.mixblendr.audio.*;
+import com.mixblendr.automation.AutomationVolume;
+import com.mixblendr.effects.Delay;
+import com.mixblendr.effects.Flanger;
+
+/**
+ * Exports the tracks of a session with OfflineRenderer.renderStems() and
+ * verifies that the sum of the exported tracks equals the exported mix. Then
+ * compares the time of the stem export with rendering the mix alone, and with
+ * rendering every track separately by setting it to solo, for WAV and Ogg
+ * Vorbis.
+ * <p>
+ * Usage: StemExportTest [tracks] [seconds]
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class StemExportTest {
+
+	private static int errors = 0;
+
+	/**
+	 * @param args [tracks] [seconds]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		int trackCount = 10;
+		double seconds = 20;
+		if (args.length > 0) {
+			trackCount = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			seconds = Double.parseDouble(args[1]);
+		}
+		File dir = File.createTempFile("StemExportTest", "");
+		dir.delete();
+		dir.mkdirs();
+		File wav = new File(dir, "source.wav");
+		writeWave(wav);
+
+		AudioPlayer player = new AudioPlayer(null, null);
+		player.init();
+		try {
+			AudioState state = player.getState();
+			AudioFile af = player.getFactory().getAudioFile(wav);
+			long beat = state.beat2sample(1);
+			long end = (long) (seconds * state.getSampleRate());
+			for (int t = 0; t < trackCount; t++) {
+				AudioTrack track = player.addAudioTrack();
+				track.setName("Track " + (t + 1));
+				track.setVolume(0.3 + 0.05 * t);
+				track.setBalance((t % 3 - 1) * 0.5);
+				for (long pos = t * beat / 3; pos < end; pos += 2 * beat) {
+					track.addRegion(af, pos);
+				}
+				for (int b = 0; b * beat < end; b += 4) {
+					track.addAutomationObject(new AutomationVolume(state,
+							0.2 + 0.1 * ((b + t) % 5), b * beat + beat / 2));
+				}
+				AudioEffect effect = (t % 2 == 0) ? new Delay() : new Flanger();
+				effect.init(state, player, track);
+				track.addEffect(effect);
+			}
+			OfflineRenderer renderer = new OfflineRenderer(player);
+			renderer.waitForDownloads(60000);
+
+			// the sum of the tracks must be the mix
+			File[] files = renderer.getStemFiles(dir, OfflineRenderer.WAV);
+			File master = new File(dir, "master.wav");
+			OfflineRenderer.Statistics stats = renderer.renderStems(0, end,
+					files, master, OfflineRenderer.WAV);
+			out("WAV stems: " + stats);
+			checkSum(files, master);
+			check(stats.getFrames() == end, "rendered frames");
+
+			for (int type : new int[] {
+					OfflineRenderer.WAV, OfflineRenderer.OGG
+			}) {
+				String ext = (type == OfflineRenderer.OGG) ? ".ogg" : ".wav";
+				long start = System.nanoTime();
+				renderer.render(0, end, new File(dir, "mix" + ext), type);
+				long mixMillis = millis(start);
+
+				start = System.nanoTime();
+				files = renderer.getStemFiles(dir, type);
+				renderer.renderStems(0, end, files, new File(dir, "master"
+						+ ext), type);
+				long stemMillis = millis(start);
+				for (File f : files) {
+					check(f.length() > 1000, "exported " + f.getName());
+					if (type == OfflineRenderer.OGG) {
+						check(isOgg(f), "Ogg file " + f.getName());
+					}
+				}
+
+				start = System.nanoTime();
+				AudioMixer mixer = player.getMixer();
+				for (int t = 0; t < trackCount; t++) {
+					mixer.setSolo(t, true);
+					renderer.render(0, end, new File(dir, "solo" + t + ext),
+							type);
+					mixer.setSolo(t, false);
+				}
+				long soloMillis = millis(start);
+				out(ext + ": mix " + mixMillis + "ms, mix and " + trackCount
+						+ " tracks in one pass " + stemMillis + "ms, "
+						+ trackCount + " solo renders " + soloMillis + "ms");
+			}
+		} finally {
+			player.close();
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Verify that the sum of the track files equals the master file, allowing
+	 * for the rounding to 16 bits.
+	 */
+	private static void checkSum(File[] tracks, File master) throws Exception {
+		short[] mix = readSamples(master);
+		int[] sum = new int[mix.length];
+		for (File f : tracks) {
+			short[] samples = readSamples(f);
+			if (samples.length != mix.length) {
+				check(false, "length of " + f.getName());
+				return;
+			}
+			for (int i = 0; i < sum.length; i++) {
+				sum[i] += samples[i];
+			}
+		}
+		int maxDiff = 0;
+		int maxLevel = 0;
+		for (int i = 0; i < sum.length; i++) {
+			maxDiff = Math.max(maxDiff, Math.abs(sum[i] - mix[i]));
+			maxLevel = Math.max(maxLevel, Math.abs(mix[i]));
+		}
+		out("Sum of " + tracks.length + " tracks vs. mix: max difference "
+				+ maxDiff + ", max level " + maxLevel);
+		check(maxLevel > 1000 && maxLevel < 32767, "level of the mix");
+		check(maxDiff <= tracks.length, "sum of the tracks equals the mix");
+	}
+
+	private static short[] readSamples(File file) throws Exception {
+		AudioInputStream ais = AudioSystem.getAudioInputStream(file);
+		byte[] data = new byte[(int) ais.getFrameLength()
+				* ais.getFormat().getFrameSize()];
+		int pos = 0;
+		int n;
+		while (pos < data.length
+				&& (n = ais.read(data, pos, data.length - pos)) > 0) {
+			pos += n;
+		}
+		ais.close();
+		short[] ret = new short[data.length / 2];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = (short) ((data[i * 2] & 0xFF) | (data[i * 2 + 1] << 8));
+		}
+		return ret;
+	}
+
+	private static boolean isOgg(File file) throws Exception {
+		byte[] magic = new byte[4];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			return fis.read(magic) == 4
+					&& new String(magic, "ISO-8859-1").equals("OggS");
+		} finally {
+			fis.close();
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	/** write a 1 second 16-bit stereo WAV file with a decaying chord */
+	private static void writeWave(File file) throws Exception {
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		int frames = 44100;
+		byte[] data = new byte[frames * 4];
+		for (int i = 0; i < frames; i++) {
+			double t = i / 44100.0;
+			double v = Math.exp(-3 * t)
+					* (Math.sin(2 * Math.PI * 220 * t) + 0.5 * Math.sin(2
+							* Math.PI * 330 * t));
+			for (int c = 0; c < 2; c++) {
+				int s = (int) (v * (c == 0 ? 6000 : 5000));
+				data[i * 4 + c * 2] = (byte) s;
+				data[i * 4 + c * 2 + 1] = (byte) (s >> 8);
+			}
+		}
+		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(
+				data), format, frames);
+		AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+	}
+
+	private static long millis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+}
@@ -0,0 +1,383 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mixblendr.audio.Sender;
+import com.mixblendr.audio.StreamingUpload;
+import com.mixblendr.audio.VorbisEncoder;
+import com.mixblendr.util.FatalExceptionListener;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Uploads Ogg Vorbis files to a local stub server while encoding them, with
+ * StreamingUpload and VorbisEncoder.encode(File, String, String), and
+ * verifies the received files. The stub server fails the first request of an
+ * upload after a number of bytes, so that the upload is resumed from the
+ * stored offset, or, if the stub does not report the offset, sent again. The
+ * old Sender is tested with the same server.
+ * <p>
+ * Usage: StreamingUploadTest
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class StreamingUploadTest {
+
+	private static int errors = 0;
+
+	/**
+	 * @param args not used
+	 */
+	public static void main(String[] args) throws Exception {
+		StubServer stub = new StubServer();
+		String url = "http://localhost:" + stub.server.getAddress().getPort()
+				+ "/upload";
+		File pcm = File.createTempFile("StreamingUploadTest", ".pcm");
+		File spool = File.createTempFile("StreamingUploadTest", ".ogg");
+		try {
+			writePCM(pcm, 20);
+
+			// upload while encoding
+			out("Upload while encoding:");
+			StreamingUpload upload = new StreamingUpload(url, "a.ogg", spool);
+			upload.start();
+			long start = System.nanoTime();
+			encode(pcm, upload.getOutputStream());
+			long encodeEnd = System.nanoTime();
+			check(upload.waitFor(60000), "server acknowledged the file");
+			out("  encoded in " + ((encodeEnd - start) / 1000000)
+					+ "ms, first bytes received after "
+					+ ((stub.firstBodyNanos - start) / 1000000)
+					+ "ms, upload finished after "
+					+ ((System.nanoTime() - start) / 1000000) + "ms");
+			check(stub.firstBodyNanos < encodeEnd,
+					"upload started before encoding finished");
+			check(stub.chunked, "chunked transfer encoding");
+			checkFile(stub, upload, spool, 1);
+
+			// the first request fails, resume at the stored offset
+			out("Resume at the stored offset:");
+			stub.failAfter = 30000;
+			upload = new StreamingUpload(url, "b.ogg", spool);
+			upload.setRetryDelayMillis(10);
+			upload.start();
+			encode(pcm, upload.getOutputStream());
+			check(upload.waitFor(60000), "server acknowledged the file");
+			checkFile(stub, upload, spool, 2);
+			// the stub reads the whole first request, but stores only 30000
+			// bytes
+			check(upload.getSentBytes() == 2 * spool.length() - 30000,
+					"only the missing part was sent again");
+
+			// the server does not report the offset: send the file again
+			out("Resume at 0:");
+			stub.failAfter = 30000;
+			stub.supportsQuery = false;
+			upload = new StreamingUpload(url, "c.ogg", spool);
+			upload.setRetryDelayMillis(10);
+			upload.start();
+			encode(pcm, upload.getOutputStream());
+			check(upload.waitFor(60000), "server acknowledged the file");
+			checkFile(stub, upload, spool, 2);
+			stub.supportsQuery = true;
+
+			// every request fails
+			out("Give up:");
+			stub.failAfter = 1000;
+			stub.failAlways = true;
+			upload = new StreamingUpload(url, "d.ogg", spool);
+			upload.setMaxAttempts(3);
+			upload.setRetryDelayMillis(10);
+			upload.start();
+			encode(pcm, upload.getOutputStream());
+			try {
+				upload.waitFor(60000);
+				check(false, "failing upload throws an exception");
+			} catch (IOException ioe) {
+				out("  " + ioe);
+			}
+			check(upload.getAttempts() == 3, "3 attempts");
+			stub.failAlways = false;
+			stub.failAfter = 0;
+
+			// the publishing path of the applet
+			out("VorbisEncoder.encode() with a failing first request:");
+			stub.failAfter = 50000;
+			Listener listener = new Listener();
+			VorbisEncoder encoder = new VorbisEncoder();
+			encoder.setFatalExceptionListener(listener);
+			encoder.encode(pcm, url, "e.ogg");
+			check(listener.success, "listener notified about the success");
+			byte[] data = stub.files.get("e.ogg");
+			check(data != null && data.length > 1000
+					&& new String(data, 0, 4, "ISO-8859-1").equals("OggS"),
+					"received Ogg file");
+
+			out("Sender:");
+			listener = new Listener();
+			Sender sender = new Sender(url);
+			sender.setFatalExceptionListener(listener);
+			sender.sendFile(spool, "f.ogg");
+			check(listener.success, "Sender succeeded");
+			check(Arrays.equals(readFile(spool), stub.files.get("f.ogg")),
+					"file sent by Sender");
+			check(!stub.chunked, "Sender uses fixed length streaming");
+		} finally {
+			stub.server.stop(0);
+			pcm.delete();
+			spool.delete();
+		}
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/** compare the spooled file with the file received by the stub */
+	private static void checkFile(StubServer stub, StreamingUpload upload,
+			File spool, int attempts) throws IOException {
+		out("  " + spool.length() + " bytes, " + upload.getSentBytes()
+				+ " bytes sent in " + upload.getAttempts() + " attempts");
+		check(upload.getAttempts() == attempts, attempts + " attempts");
+		check(Arrays.equals(readFile(spool), stub.files.get(upload.getID())),
+				"received file equals the encoded file");
+	}
+
+	/** encode the raw PCM file to the stream, and close it */
+	private static void encode(File pcm, OutputStream os) throws IOException {
+		InputStream is = new FileInputStream(pcm);
+		try {
+			new VorbisEncoder().encode(is, os);
+		} finally {
+			is.close();
+			os.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] ret = new byte[(int) file.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			dis.readFully(ret);
+		} finally {
+			dis.close();
+		}
+		return ret;
+	}
+
+	/** write raw 16-bit stereo PCM data at 44100Hz, as SaveThread does */
+	private static void writePCM(File file, int seconds) throws IOException {
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			for (int i = 0; i < seconds * 44100; i++) {
+				double t = i / 44100.0;
+				int v = (int) ((Math.sin(2 * Math.PI * 220 * t) + 0.3 * Math.sin(2
+						* Math.PI * 1250 * t * (1 + t / 10))) * 9000);
+				for (int c = 0; c < 2; c++) {
+					os.write(v);
+					os.write(v >> 8);
+				}
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+
+	private static class Listener implements FatalExceptionListener {
+		volatile boolean success = false;
+
+		public void fatalExceptionOccured(Throwable t, String context) {
+			out("  " + context + ": " + t);
+		}
+
+		public void showMessage(String title, String context) {
+			// nothing to do
+		}
+
+		public void showProgressDialog() {
+			// nothing to do
+		}
+
+		public void hideProgressDialog() {
+			// nothing to do
+		}
+
+		public void setSuccess() {
+			success = true;
+		}
+
+		public void setFailed() {
+			out("  upload failed");
+		}
+	}
+
+	/**
+	 * A stub of the upload script: stores the received files by upload id
+	 * and by file name, reports the stored size of an upload, and fails
+	 * requests on demand.
+	 */
+	private static class StubServer implements HttpHandler {
+		HttpServer server;
+
+		/** the received data by upload id and by file name */
+		Map<String, byte[]> files = new HashMap<String, byte[]>();
+
+		/** if not 0, store only this many bytes, then fail the request */
+		volatile int failAfter = 0;
+
+		volatile boolean failAlways = false;
+
+		volatile boolean supportsQuery = true;
+
+		volatile long firstBodyNanos = 0;
+
+		volatile boolean chunked;
+
+		StubServer() throws IOException {
+			server = HttpServer.create(new InetSocketAddress(
+					InetAddress.getByName(null), 0), 0);
+			server.createContext("/upload", this);
+			server.start();
+		}
+
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				if (ex.getRequestMethod().equals("GET")) {
+					String query = ex.getRequestURI().getQuery();
+					String id = query.substring(query.indexOf('=') + 1);
+					byte[] stored = files.get(id);
+					if (!supportsQuery || stored == null) {
+						respond(ex, 404, "unknown upload");
+					} else {
+						respond(ex, 200, "offset=" + stored.length + "\n");
+					}
+					return;
+				}
+				chunked = "chunked".equalsIgnoreCase(ex.getRequestHeaders().getFirst(
+						"Transfer-Encoding"));
+				InputStream is = ex.getRequestBody();
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				int b = is.read();
+				if (firstBodyNanos == 0) {
+					firstBodyNanos = System.nanoTime();
+				}
+				byte[] buffer = new byte[65536];
+				int n;
+				if (b >= 0) {
+					bos.write(b);
+					while ((n = is.read(buffer)) > 0) {
+						bos.write(buffer, 0, n);
+					}
+				}
+				String type = ex.getRequestHeaders().getFirst("Content-Type");
+				String boundary = "--"
+						+ type.substring(type.indexOf("boundary=") + 9);
+				Map<String, byte[]> parts = parseMultipart(bos.toByteArray(),
+						boundary);
+				String id = parts.containsKey("upload") ? new String(
+						parts.get("upload"), "ISO-8859-1") : null;
+				long offset = parts.containsKey("offset") ? Long.parseLong(new String(
+						parts.get("offset"), "ISO-8859-1"))
+						: 0;
+				byte[] data = parts.get("uploaded");
+				String fileName = new String(parts.get("filename"), "UTF-8");
+				boolean fail = failAfter > 0 && data.length > failAfter;
+				if (fail) {
+					data = Arrays.copyOf(data, failAfter);
+					if (!failAlways) {
+						failAfter = 0;
+					}
+				}
+				byte[] stored = (id == null) ? null : files.get(id);
+				if (offset > 0) {
+					if (stored == null || stored.length != offset) {
+						respond(ex, 409, "wrong offset");
+						return;
+					}
+					byte[] all = Arrays.copyOf(stored, stored.length
+							+ data.length);
+					System.arraycopy(data, 0, all, stored.length, data.length);
+					data = all;
+				}
+				if (id != null) {
+					files.put(id, data);
+				}
+				if (fail) {
+					respond(ex, 500, "connection lost");
+					return;
+				}
+				files.put(fileName, data);
+				respond(ex, 200, "OK\n");
+			} catch (Exception e) {
+				e.printStackTrace();
+				respond(ex, 400, e.toString());
+			}
+		}
+
+		private static void respond(HttpExchange ex, int code, String body)
+				throws IOException {
+			byte[] b = body.getBytes("ISO-8859-1");
+			ex.sendResponseHeaders(code, b.length);
+			OutputStream os = ex.getResponseBody();
+			os.write(b);
+			os.close();
+		}
+
+		/**
+		 * @return the contents of the parts by field name, and the file name
+		 *         of the file part as "filename"
+		 */
+		private static Map<String, byte[]> parseMultipart(byte[] body,
+				String boundary) throws IOException {
+			Map<String, byte[]> ret = new HashMap<String, byte[]>();
+			String s = new String(body, "ISO-8859-1");
+			int pos = s.indexOf(boundary);
+			while (pos >= 0) {
+				int headerStart = pos + boundary.length() + 2;
+				if (s.startsWith("--", pos + boundary.length())) {
+					break;
+				}
+				int headerEnd = s.indexOf("\r\n\r\n", headerStart);
+				String header = s.substring(headerStart, headerEnd);
+				int next = s.indexOf("\r\n" + boundary, headerEnd);
+				String name = field(header, "name");
+				ret.put(name, Arrays.copyOfRange(body, headerEnd + 4, next));
+				String fileName = field(header, "filename");
+				if (fileName != null) {
+					ret.put("filename", fileName.getBytes("UTF-8"));
+				}
+				pos = next + 2;
+			}
+			return ret;
+		}
+
+		private static String field(String header, String name) {
+			int i = header.indexOf(" " + name + "=\"");
+			if (i < 0) {
+				return null;
+			}
+			i += name.length() + 3;
+			return header.substring(i, header.indexOf('"', i));
+		}
+	}
+}
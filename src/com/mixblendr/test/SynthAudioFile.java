@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import com.mixblendr.audio.AudioFile;
+import com.mixblendr.audio.AudioState;
+
+/**
+ * A synthetic audio file in memory, 16-bit stereo at the sample rate of the
+ * state: a sine tone, white noise, or a sine sweep, with a decaying envelope.
+ * The audio is computed with StrictMath and a seeded random generator, so
+ * that it is the same on every platform.
+ *
+ * @author Florian Bomers
+ */
+class SynthAudioFile extends AudioFile {
+
+	/** waveform: sine tone */
+	public static final int SINE = 0;
+
+	/** waveform: white noise */
+	public static final int NOISE = 1;
+
+	/** waveform: sine sweep from freq to 4 times freq */
+	public static final int SWEEP = 2;
+
+	private byte[] data;
+
+	/**
+	 * Create a synthetic file. For noise, freq is used as the seed.
+	 *
+	 * @param state the state
+	 * @param name the name and source of the file
+	 * @param waveform SINE, NOISE, or SWEEP
+	 * @param freq the frequency in Hz
+	 * @param seconds the duration
+	 */
+	public SynthAudioFile(AudioState state, String name, int waveform,
+			double freq, double seconds) {
+		super(state, name, name);
+		float sampleRate = state.getSampleRate();
+		AudioFormat format = new AudioFormat(sampleRate, 16, 2, true, false);
+		int frames = (int) (seconds * sampleRate);
+		Random random = new Random((long) freq);
+		data = new byte[frames * 4];
+		double phase = 0;
+		for (int i = 0; i < frames; i++) {
+			double env = StrictMath.exp(-3.0 * i / frames);
+			double v;
+			switch (waveform) {
+			case NOISE:
+				v = random.nextFloat() * 2 - 1;
+				break;
+			case SWEEP:
+				phase += 2 * Math.PI * freq * (1 + 3.0 * i / frames)
+						/ sampleRate;
+				v = StrictMath.sin(phase);
+				break;
+			default:
+				v = StrictMath.sin(2 * Math.PI * freq * i / sampleRate);
+			}
+			int s = (int) (v * env * 16000);
+			for (int c = 0; c < 2; c++) {
+				data[i * 4 + c * 2] = (byte) s;
+				data[i * 4 + c * 2 + 1] = (byte) (s >> 8);
+			}
+		}
+		setFormat(format);
+		setFileSize(data.length);
+		setAvailableBytes(data.length);
+	}
+
+	/**
+	 * Create a sine tone.
+	 *
+	 * @param state the state
+	 * @param name the name and source of the file
+	 * @param freq the frequency in Hz
+	 * @param seconds the duration
+	 */
+	public SynthAudioFile(AudioState state, String name, double freq,
+			double seconds) {
+		this(state, name, SINE, freq, seconds);
+	}
+
+	/**
+	 * Calculate the peak cache for the given frames, like a file that is
+	 * downloaded.
+	 *
+	 * @param startFrame the first frame
+	 * @param frameCount the number of frames
+	 */
+	void loadPeakCache(int startFrame, int frameCount) {
+		updatePeakCache(startFrame * 4L, data, startFrame * 4, frameCount * 4);
+	}
+
+	@Override
+	protected int read(long pos, byte[] buffer, int offset, int length) {
+		if (pos >= data.length) {
+			return -1;
+		}
+		if (pos + length > data.length) {
+			length = (int) (data.length - pos);
+		}
+		System.arraycopy(data, (int) pos, buffer, offset, length);
+		return length;
+	}
+
+	@Override
+	protected void closeImpl() {
+		data = null;
+	}
+}
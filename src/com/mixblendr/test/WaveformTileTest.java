@@ -0,0 +1,356 @@
+/**
+ *
+ */
+package com.mixblendr.test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import javax.swing.SwingUtilities;
+
+import com.mixblendr.audio.AudioFile;
+import com.mixblendr.audio.AudioPlayer;
+import com.mixblendr.audio.AudioState;
+import com.mixblendr.gui.graph.Graph;
+import com.mixblendr.gui.graph.GraphSection;
+import com.mixblendr.gui.graph.WaveformTileCache;
+
+/**
+ * Paints many graphs of the same audio file, like the regions in the track
+ * panel, with and without the WaveformTileCache, and prints the time used
+ * for painting. Verifies that the tiles give the same waveform as drawing
+ * from the peak cache or the audio data, that repainting with the tiles is
+ * clearly faster than drawing the lines, that the graphs share the tiles,
+ * that only the tiles with new data are rendered again while a file is
+ * downloaded, and that the memory budget is respected. With renderer threads,
+ * verifies that a placeholder is painted until the tiles are rendered, and
+ * that tiles that are not visible anymore are not rendered. Then zooms
+ * through the file and prints the paint time with and without renderer
+ * threads.
+ * <p>
+ * Usage: WaveformTileTest [graphs] [repaints]
+ * <p>
+ * The exit code is 0 if all checks passed.
+ *
+ * @author Florian Bomers
+ */
+public class WaveformTileTest {
+
+	private static final int GRAPH_WIDTH = 1000;
+
+	private static final int GRAPH_HEIGHT = 60;
+
+	private static final int SAMPLES_PER_PIXEL = 441;
+
+	private static final double FILE_SECONDS = 30;
+
+	/** the number of rounds of measuring the repaint time */
+	private static final int PAINT_ROUNDS = 5;
+
+	private static int errors = 0;
+
+	/**
+	 * @param args [graphs] [repaints]
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		int graphCount = 200;
+		int repaints = 20;
+		if (args.length > 0) {
+			graphCount = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			repaints = Integer.parseInt(args[1]);
+		}
+		AudioState state = new AudioPlayer(null, null).getState();
+		WaveformTileCache cache = WaveformTileCache.getInstance();
+		int rendererCount = cache.getRendererCount();
+		// first render the tiles while painting
+		cache.setRendererCount(0);
+
+		// compare the tiles with drawing from the peak cache
+		SynthAudioFile file = new SynthAudioFile(state, "sweep",
+				SynthAudioFile.SWEEP, 50, FILE_SECONDS);
+		int frames = (int) file.getDurationSamples();
+		file.loadPeakCache(0, frames);
+		compare(file, 0, SAMPLES_PER_PIXEL, "section at 0");
+		compare(file, 123457, SAMPLES_PER_PIXEL, "section at 123457");
+		compare(file, 123457, 50, "audio data at 50 samples per pixel");
+
+		// paint time, and sharing of the tiles
+		TestGraph[] lines = new TestGraph[graphCount];
+		TestGraph[] tiles = new TestGraph[graphCount];
+		int maxStart = frames - GRAPH_WIDTH * SAMPLES_PER_PIXEL;
+		for (int i = 0; i < graphCount; i++) {
+			// every graph shows a different part of the file
+			int start = (int) ((long) maxStart * (i % 10) / 10);
+			lines[i] = new TestGraph(file, start, SAMPLES_PER_PIXEL, false);
+			tiles[i] = new TestGraph(file, start, SAMPLES_PER_PIXEL, true);
+		}
+		BufferedImage image = new BufferedImage(GRAPH_WIDTH, GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB);
+		cache.clear();
+		cache.resetStatistics();
+		paint(tiles, image, 1);
+		long firstRenders = cache.getRenders();
+		out("first paint of " + graphCount + " graphs: " + cache);
+		int tilesPerGraph = GRAPH_WIDTH / WaveformTileCache.TILE_WIDTH + 2;
+		check(firstRenders <= 10 * tilesPerGraph,
+				"graphs of the same file share the tiles");
+		cache.resetStatistics();
+		// the best of alternating rounds, to reduce the effect of the JIT
+		// compiler and garbage collection
+		double linesMillis = Double.MAX_VALUE;
+		double tilesMillis = Double.MAX_VALUE;
+		for (int round = 0; round < PAINT_ROUNDS; round++) {
+			linesMillis = Math.min(linesMillis, paint(lines, image, repaints));
+			tilesMillis = Math.min(tilesMillis, paint(tiles, image, repaints));
+		}
+		out("repaint of " + graphCount + " graphs: lines "
+				+ format(linesMillis) + "ms, tiles " + format(tilesMillis)
+				+ "ms");
+		out("  " + cache);
+		check(cache.getRenders() == 0, "repaint does not render tiles");
+		check(tilesMillis < linesMillis * 0.75,
+				"repaint with tiles clearly faster than drawing lines");
+
+		// download
+		SynthAudioFile download = new SynthAudioFile(state, "download",
+				SynthAudioFile.NOISE, 1, FILE_SECONDS);
+		TestGraph graph = new TestGraph(download, 0, SAMPLES_PER_PIXEL, true);
+		int tileSamples = WaveformTileCache.TILE_WIDTH * SAMPLES_PER_PIXEL;
+		int chunk = tileSamples / 3;
+		int loaded = tileSamples / 2;
+		download.loadPeakCache(0, loaded);
+		paint(graph, image);
+		cache.resetStatistics();
+		int updates = 0;
+		while (loaded + chunk < GRAPH_WIDTH * SAMPLES_PER_PIXEL) {
+			download.loadPeakCache(loaded, chunk);
+			loaded += chunk;
+			paint(graph, image);
+			updates++;
+		}
+		out("download with " + updates + " updates: " + cache);
+		// every chunk may extend into one more tile
+		check(cache.getRenders() <= 2 * updates,
+				"download renders only the tiles with new data");
+		download.loadPeakCache(loaded, frames - loaded);
+		compare(download, 0, SAMPLES_PER_PIXEL, "downloaded file");
+
+		// memory budget
+		// the tile size depends on the graphics configuration
+		long budget = 8 * cache.getMemoryBytes() / cache.getTileCount();
+		long oldBudget = cache.getMemoryBudget();
+		cache.setMemoryBudget(budget);
+		cache.resetStatistics();
+		paint(tiles, image, 1);
+		out("memory budget " + (budget / 1024) + "KB: " + cache);
+		check(cache.getMemoryBytes() <= budget, "memory budget");
+		check(cache.getEvictions() > 0, "tiles evicted");
+		cache.setMemoryBudget(oldBudget);
+
+		// background rendering
+		cache.setRendererCount(Math.max(rendererCount, 1));
+		cache.clear();
+		cache.resetStatistics();
+		BufferedImage expected = new BufferedImage(GRAPH_WIDTH, GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB);
+		paint(new TestGraph(file, 0, SAMPLES_PER_PIXEL, false), expected);
+		graph = new TestGraph(file, 0, SAMPLES_PER_PIXEL, true);
+		image = new BufferedImage(GRAPH_WIDTH, GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB);
+		paint(graph, image);
+		check(countDifferentColumns(expected, image) > GRAPH_WIDTH / 2,
+				"placeholder painted");
+		waitForRenderers();
+		out("background rendering: " + cache);
+		check(graph.renderedTiles >= GRAPH_WIDTH / WaveformTileCache.TILE_WIDTH,
+				"graph notified of rendered tiles");
+		image = new BufferedImage(GRAPH_WIDTH, GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB);
+		paint(graph, image);
+		check(countDifferentColumns(expected, image) == 0,
+				"tiles rendered in the background");
+
+		// cancel tiles that are not visible
+		cache.resetStatistics();
+		graph = new TestGraph(file, 0, 2 * SAMPLES_PER_PIXEL, true);
+		graph.visible = false;
+		int requested = cache.getTileCount();
+		paint(graph, image);
+		requested = cache.getTileCount() - requested;
+		waitForRenderers();
+		out("invisible graph: " + cache);
+		check(requested > 0 && cache.getCancellations() == requested
+				&& cache.getRenders() == 0, "tiles of invisible graph cancelled");
+
+		// zoom through the file
+		double syncMillis = zoom(file, graphCount / 10, 0);
+		double asyncMillis = zoom(file, graphCount / 10, Math.max(
+				rendererCount, 1));
+		out("zooming, longest paint: rendering while painting "
+				+ format(syncMillis) + "ms, renderer threads "
+				+ format(asyncMillis) + "ms");
+		cache.setRendererCount(rendererCount);
+
+		out(errors == 0 ? "OK" : "FAILED: " + errors + " errors");
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Paint the graphs at 40 zoom levels, return the longest time of painting
+	 * all graphs.
+	 */
+	private static double zoom(AudioFile file, int graphCount,
+			int rendererCount) throws Exception {
+		WaveformTileCache cache = WaveformTileCache.getInstance();
+		cache.setRendererCount(rendererCount);
+		cache.clear();
+		BufferedImage image = new BufferedImage(GRAPH_WIDTH, GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB);
+		int maxSamplesPerPixel = (int) (file.getDurationSamples() / GRAPH_WIDTH);
+		double ret = 0;
+		for (int i = 0; i < 40; i++) {
+			int samplesPerPixel = (int) (2 * Math.pow(maxSamplesPerPixel / 2.0,
+					i / 39.0));
+			TestGraph[] graphs = new TestGraph[graphCount];
+			int maxStart = (int) file.getDurationSamples() - GRAPH_WIDTH
+					* samplesPerPixel;
+			for (int g = 0; g < graphCount; g++) {
+				graphs[g] = new TestGraph(file, (int) ((long) maxStart * g
+						/ graphCount), samplesPerPixel, true);
+			}
+			double millis = paint(graphs, image, 1);
+			if (millis > ret) {
+				ret = millis;
+			}
+		}
+		waitForRenderers();
+		return ret;
+	}
+
+	private static void waitForRenderers() throws Exception {
+		check(WaveformTileCache.getInstance().waitForRenderers(10000),
+				"renderers finished");
+		// let the event dispatch thread notify the graphs
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				// nothing
+			}
+		});
+	}
+
+	/**
+	 * Compare the images, except the first column: Graph.toSamplesX() maps
+	 * pixel 0 to the section start, not to the pixel grid, so the first
+	 * column may differ.
+	 */
+	private static int countDifferentColumns(BufferedImage image1,
+			BufferedImage image2) {
+		int diff = 0;
+		for (int x = 1; x < GRAPH_WIDTH; x++) {
+			for (int y = 0; y < GRAPH_HEIGHT; y++) {
+				if (image1.getRGB(x, y) != image2.getRGB(x, y)) {
+					diff++;
+					break;
+				}
+			}
+		}
+		return diff;
+	}
+
+	/** verify that the tiles are equal to drawing without tiles */
+	private static void compare(AudioFile file, int start,
+			int samplesPerPixel, String name) {
+		BufferedImage lineImage = new BufferedImage(GRAPH_WIDTH, GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB);
+		BufferedImage tileImage = new BufferedImage(GRAPH_WIDTH, GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB);
+		paint(new TestGraph(file, start, samplesPerPixel, false), lineImage);
+		paint(new TestGraph(file, start, samplesPerPixel, true), tileImage);
+		int diff = countDifferentColumns(lineImage, tileImage);
+		out(name + ": " + diff + " columns differ");
+		check(diff == 0, name + ": tiles equal to the graph");
+	}
+
+	/** paint the graphs repeatedly, return the milliseconds for one pass */
+	private static double paint(TestGraph[] graphs, BufferedImage image,
+			int count) {
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			for (TestGraph graph : graphs) {
+				paint(graph, image);
+			}
+		}
+		return (System.nanoTime() - start) / 1000000.0 / count;
+	}
+
+	private static void paint(TestGraph graph, BufferedImage image) {
+		Graphics2D g = image.createGraphics();
+		g.setClip(0, 0, GRAPH_WIDTH, GRAPH_HEIGHT);
+		graph.paintWaveform(g);
+		g.dispose();
+	}
+
+	private static String format(double d) {
+		return Double.toString(((int) (d * 100)) / 100.0);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			out("FAILED: " + what);
+			errors++;
+		}
+	}
+
+	private static void out(String s) {
+		System.out.println(s);
+	}
+
+	/** a graph that paints a part of the file, with or without tiles */
+	private static class TestGraph extends Graph {
+		private static final long serialVersionUID = 0;
+
+		/** instead of the visible rectangle of the component */
+		volatile boolean visible = true;
+
+		/** the number of tiles that were rendered in the background */
+		volatile int renderedTiles = 0;
+
+		TestGraph(AudioFile file, int start, int samplesPerPixel,
+				boolean tiles) {
+			showMono = true;
+			showZeroLine = false;
+			showEdge = false;
+			showGraphBackground = false;
+			useTileCache = tiles;
+			leftEdge = 0;
+			rightEdge = 0;
+			topEdge = 0;
+			bottomEdge = 0;
+			setForeground(new Color(220, 220, 255));
+			init(file, null, new GraphSection(start, GRAPH_WIDTH
+					* samplesPerPixel));
+			setBounds(0, 0, GRAPH_WIDTH, GRAPH_HEIGHT);
+		}
+
+		void paintWaveform(Graphics2D g) {
+			paintGraphArea(g);
+		}
+
+		@Override
+		public boolean isTileVisible(AudioFile file,
+				WaveformTileCache.Level level, int index) {
+			return visible;
+		}
+
+		@Override
+		public void tileRendered(AudioFile file,
+				WaveformTileCache.Level level, int index) {
+			renderedTiles++;
+			super.tileRendered(file, level, index);
+		}
+	}
+}
@@ -111,8 +111,8 @@ public class GUIUtils {
 	}
 
 	/** Create a new combo box. It reports its events to the given ItemListener. */
-	public static JComboBox createComboBox(ItemListener il) {
-		JComboBox res = new JComboBox();
+	public static <E> JComboBox<E> createComboBox(ItemListener il) {
+		JComboBox<E> res = new JComboBox<E>();
 		res.addItemListener(il);
 		return res;
 	}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package com.mixblendr.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of long values with fixed buckets, e.g. for durations.
+ * Recording a value does not lock or allocate, so it can be used in the audio
+ * thread. The buckets are defined by their upper bounds, the last bucket
+ * counts all values above the highest bound.
+ *
+ * @author Florian Bomers
+ */
+public class Histogram {
+
+	/** the upper bounds of the buckets, ascending */
+	private final long[] bounds;
+
+	private final AtomicLongArray counts;
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Create a histogram with the given bucket bounds.
+	 *
+	 * @param bounds the inclusive upper bounds of the buckets, ascending
+	 */
+	public Histogram(long[] bounds) {
+		this.bounds = bounds.clone();
+		counts = new AtomicLongArray(bounds.length + 1);
+	}
+
+	/**
+	 * Create a histogram with exponentially growing buckets: first, 2*first,
+	 * 4*first, ...
+	 *
+	 * @param first the upper bound of the first bucket
+	 * @param bucketCount the number of bounded buckets
+	 */
+	public static Histogram createExponential(long first, int bucketCount) {
+		long[] bounds = new long[bucketCount];
+		for (int i = 0; i < bucketCount; i++) {
+			bounds[i] = first << i;
+		}
+		return new Histogram(bounds);
+	}
+
+	/** add a value */
+	public void record(long value) {
+		int i = 0;
+		while (i < bounds.length && value > bounds[i]) {
+			i++;
+		}
+		counts.incrementAndGet(i);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/** @return the upper bounds of the buckets */
+	public long[] getBounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * @return the number of values in every bucket, the last element is the
+	 *         number of values above the highest bound
+	 */
+	public long[] getCounts() {
+		long[] ret = new long[counts.length()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = counts.get(i);
+		}
+		return ret;
+	}
+
+	/** @return the number of recorded values */
+	public long getCount() {
+		return count.get();
+	}
+
+	/** @return the mean of the recorded values, or 0 */
+	public double getMean() {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		return ((double) sum.get()) / n;
+	}
+
+	/** @return the maximum recorded value */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Estimate a percentile from the buckets.
+	 *
+	 * @param percentile the percentile, e.g. 99.0
+	 * @return the upper bound of the bucket containing the percentile, or the
+	 *         maximum if it is in the last bucket
+	 */
+	public long getPercentile(double percentile) {
+		long[] c = getCounts();
+		long total = 0;
+		for (long n : c) {
+			total += n;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			seen += c[i];
+			if (seen >= rank) {
+				return Math.min(bounds[i], getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/** remove all values */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * @return the buckets as text, e.g. &quot;&lt;=64:10 &lt;=128:3
+	 *         &gt;128:0&quot;
+	 */
+	@Override
+	public String toString() {
+		long[] c = getCounts();
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < bounds.length; i++) {
+			sb.append("<=").append(bounds[i]).append(':').append(c[i]).append(
+					' ');
+		}
+		sb.append('>').append(bounds[bounds.length - 1]).append(':').append(
+				c[bounds.length]);
+		return sb.toString();
+	}
+}
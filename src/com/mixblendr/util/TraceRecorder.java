@@ -0,0 +1,331 @@
+/**
+ *
+ */
+package com.mixblendr.util;
+
+import static com.mixblendr.util.Debug.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Static class to record timed events of the audio threads into a ring of
+ * preallocated records, for finding the cause of dropouts. Recording does not
+ * allocate objects and does not lock, so it can be enabled during normal
+ * playback. If disabled, the overhead is one volatile read per event.
+ * <p>
+ * Events are registered once, usually in a static field of the class using
+ * them:
+ *
+ * <pre>
+ * private static final int TRACE_READ = TraceRecorder.registerEvent(
+ * 		&quot;AudioMixer.read&quot;, &quot;mixer&quot;);
+ * ...
+ * long t = TraceRecorder.begin();
+ * // do the work
+ * TraceRecorder.end(TRACE_READ, t, trackIndex, samplePos);
+ * </pre>
+ *
+ * The records can be written in the Chrome trace event format (JSON), which
+ * is displayed by chrome://tracing and ui.perfetto.dev. Every record is
+ * shown as a slice on the timeline of its thread, with the track index and
+ * sample position as arguments.
+ * <p>
+ * If the system property mixblendr.trace is set to a file name, recording is
+ * enabled at startup and the trace is written to that file when the VM
+ * exits.
+ *
+ * @author Florian Bomers
+ */
+public class TraceRecorder {
+
+	/** the number of records in the ring, must be a power of 2 */
+	public static final int CAPACITY = 1 << 16;
+
+	private static final int MASK = CAPACITY - 1;
+
+	private static volatile boolean enabled = false;
+
+	// the ring of records, allocated when enabled for the first time
+
+	private static long[] startNanos;
+
+	private static long[] durationNanos;
+
+	private static long[] threadIDs;
+
+	private static int[] events;
+
+	private static int[] tracks;
+
+	private static long[] positions;
+
+	/**
+	 * for every record: the sequence number + 1 of the record, written after
+	 * the other fields
+	 */
+	private static AtomicLongArray sequences;
+
+	/** the sequence number of the next record */
+	private static final AtomicLong nextSequence = new AtomicLong();
+
+	/** the registered event names and categories */
+	private static final List<String> eventNames = new ArrayList<String>();
+
+	private static final List<String> eventCategories = new ArrayList<String>();
+
+	static {
+		try {
+			final String file = System.getProperty("mixblendr.trace");
+			if (file != null && file.length() > 0) {
+				setEnabled(true);
+				Runtime.getRuntime().addShutdownHook(
+						new Thread("Trace Writer") {
+							@Override
+							public void run() {
+								try {
+									writeChromeTrace(new File(file));
+								} catch (IOException ioe) {
+									error(ioe);
+								}
+							}
+						});
+			}
+		} catch (SecurityException se) {
+			// e.g. in an applet
+		}
+	}
+
+	/** not to be instanciated */
+	private TraceRecorder() {
+		// nothing
+	}
+
+	/**
+	 * Register a new event type.
+	 *
+	 * @param name the name of the event, e.g. the method
+	 * @param category the category, e.g. &quot;mixer&quot;
+	 * @return the ID of the event, to be passed to end() and instant()
+	 */
+	public static synchronized int registerEvent(String name, String category) {
+		eventNames.add(name);
+		eventCategories.add(category);
+		return eventNames.size() - 1;
+	}
+
+	/**
+	 * Enable or disable recording. The ring is allocated when enabling for the
+	 * first time.
+	 */
+	public static synchronized void setEnabled(boolean enable) {
+		if (enable && sequences == null) {
+			startNanos = new long[CAPACITY];
+			durationNanos = new long[CAPACITY];
+			threadIDs = new long[CAPACITY];
+			events = new int[CAPACITY];
+			tracks = new int[CAPACITY];
+			positions = new long[CAPACITY];
+			sequences = new AtomicLongArray(CAPACITY);
+		}
+		enabled = enable;
+	}
+
+	/**
+	 * @return true if events are recorded
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** discard all records */
+	public static synchronized void clear() {
+		if (sequences != null) {
+			for (int i = 0; i < CAPACITY; i++) {
+				sequences.set(i, 0);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of records since the start, including the records
+	 *         which were overwritten
+	 */
+	public static long getRecordCount() {
+		return nextSequence.get();
+	}
+
+	/**
+	 * Start timing an event.
+	 *
+	 * @return the start time to pass to end(), or 0 if recording is disabled
+	 */
+	public static long begin() {
+		if (!enabled) {
+			return 0;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record an event which started at the time returned by begin(). Nothing
+	 * is recorded if recording was disabled when begin() was called.
+	 *
+	 * @param event the event ID returned by registerEvent()
+	 * @param start the time returned by begin()
+	 * @param track the index of the track, or -1
+	 * @param samplePos the sample position, or -1
+	 */
+	public static void end(int event, long start, int track, long samplePos) {
+		if (start == 0 || !enabled) {
+			return;
+		}
+		record(event, start, System.nanoTime() - start, track, samplePos);
+	}
+
+	/**
+	 * Record an event without duration, e.g. an underrun.
+	 *
+	 * @param event the event ID returned by registerEvent()
+	 * @param track the index of the track, or -1
+	 * @param samplePos the sample position, or -1
+	 */
+	public static void instant(int event, int track, long samplePos) {
+		if (!enabled) {
+			return;
+		}
+		record(event, System.nanoTime(), -1, track, samplePos);
+	}
+
+	private static void record(int event, long start, long duration,
+			int track, long samplePos) {
+		long seq = nextSequence.getAndIncrement();
+		int i = (int) (seq & MASK);
+		// mark as being written
+		sequences.set(i, 0);
+		startNanos[i] = start;
+		durationNanos[i] = duration;
+		threadIDs[i] = Thread.currentThread().getId();
+		events[i] = event;
+		tracks[i] = track;
+		positions[i] = samplePos;
+		sequences.lazySet(i, seq + 1);
+	}
+
+	/**
+	 * Write the current records to the file in the Chrome trace event format.
+	 */
+	public static void writeChromeTrace(File file) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		try {
+			writeChromeTrace(w);
+		} finally {
+			w.close();
+		}
+		if (DEBUG) {
+			debug("Wrote trace to " + file);
+		}
+	}
+
+	/**
+	 * Write the current records in the Chrome trace event format. Recording
+	 * can continue while writing; records which are overwritten while
+	 * writing are skipped.
+	 */
+	public static synchronized void writeChromeTrace(Writer w)
+			throws IOException {
+		w.write("{\"traceEvents\":[\n");
+		boolean first = true;
+		// thread names
+		Map<Long, String> threadNames = new HashMap<Long, String>();
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			threadNames.put(t.getId(), t.getName());
+		}
+		for (Map.Entry<Long, String> e : threadNames.entrySet()) {
+			if (!first) {
+				w.write(",\n");
+			}
+			first = false;
+			w.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+					+ e.getKey() + ",\"args\":{\"name\":\""
+					+ escape(e.getValue()) + "\"}}");
+		}
+		if (sequences != null) {
+			long end = nextSequence.get();
+			long start = Math.max(0, end - CAPACITY);
+			for (long seq = start; seq < end; seq++) {
+				int i = (int) (seq & MASK);
+				if (sequences.get(i) != seq + 1) {
+					continue;
+				}
+				long ts = startNanos[i];
+				long dur = durationNanos[i];
+				long tid = threadIDs[i];
+				int event = events[i];
+				int track = tracks[i];
+				long pos = positions[i];
+				if (sequences.get(i) != seq + 1 || event < 0
+						|| event >= eventNames.size()) {
+					// overwritten in the meantime
+					continue;
+				}
+				if (!first) {
+					w.write(",\n");
+				}
+				first = false;
+				StringBuffer sb = new StringBuffer(160);
+				sb.append("{\"name\":\"").append(escape(eventNames.get(event)));
+				sb.append("\",\"cat\":\"").append(
+						escape(eventCategories.get(event))).append('"');
+				if (dur < 0) {
+					sb.append(",\"ph\":\"i\",\"s\":\"t\"");
+				} else {
+					sb.append(",\"ph\":\"X\",\"dur\":").append(micros(dur));
+				}
+				sb.append(",\"pid\":1,\"tid\":").append(tid);
+				sb.append(",\"ts\":").append(micros(ts));
+				sb.append(",\"args\":{\"track\":").append(track);
+				sb.append(",\"samplePos\":").append(pos).append("}}");
+				w.write(sb.toString());
+			}
+		}
+		w.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		w.flush();
+	}
+
+	/** format nanoseconds as microseconds with 3 decimals */
+	private static String micros(long nanos) {
+		StringBuffer sb = new StringBuffer(20);
+		if (nanos < 0) {
+			sb.append('-');
+			nanos = -nanos;
+		}
+		sb.append(nanos / 1000).append('.');
+		long frac = nanos % 1000;
+		if (frac < 100) sb.append('0');
+		if (frac < 10) sb.append('0');
+		sb.append(frac);
+		return sb.toString();
+	}
+
+	private static String escape(String s) {
+		StringBuffer sb = new StringBuffer(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(' ');
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}